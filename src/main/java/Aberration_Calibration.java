@@ -861,6 +861,7 @@ if (MORE_BUTTONS) {
 		addButton("Crop Equirectangular Mapping",panelPixelMapping);
 		addButton("Generate & Save Equirectangular",panelPixelMapping);
 		addButton("Load Equirectangular Maps",panelPixelMapping);
+		addButton("Convert Maps to Binary",panelPixelMapping);
 		addButton("Show Maps Overlap",panelPixelMapping);
 		addButton("Test Lanczos",panelPixelMapping);
 		addButton("Warp Image",panelPixelMapping);
@@ -6773,12 +6774,16 @@ if (MORE_BUTTONS) {
 		    		y0, //double y0,
 		    		1.0/resolutionScale, //double pixelStep,
 		    		THREADS_MAX);
-			if (showResult) this.SDFA_INSTANCE.showArraysSparse(
-					PIXEL_MAPPING.sensors[channelNumber].equirectangularMap.map,
+			if (showResult) {
+				float [][] fullMap=new float [titles.length][];
+				for (int n=0;n<fullMap.length;n++) fullMap[n]=PIXEL_MAPPING.sensors[channelNumber].equirectangularMap.getFullMapLayer(n);
+				this.SDFA_INSTANCE.showArrays(
+					fullMap,
 					PIXEL_MAPPING.sensors[channelNumber].equirectangularMap.pixelsHorizontal,
 					PIXEL_MAPPING.sensors[channelNumber].equirectangularMap.pixelsVertical,
 					true,
 					"DPM-"+channelNumber, titles);
+			}
 			  if (DEBUG_LEVEL>0) System.out.println("--- Free memory="+runtime.freeMemory()+" (of "+runtime.totalMemory()+")");
 
 			return;
@@ -6796,7 +6801,7 @@ if (MORE_BUTTONS) {
 			int channelNumber=    (int) gd.getNextNumber();
 			int outputWidth=      (int) gd.getNextNumber();
 			boolean clearFullMap=gd.getNextBoolean();
-			if (PIXEL_MAPPING.sensors[channelNumber].equirectangularMap.map==null){
+			if (!PIXEL_MAPPING.sensors[channelNumber].equirectangularMap.hasFullMap()){
 				IJ.showMessage("Equirectangular map for channel "+channelNumber+" does not exist.");
 				return;
 			}
@@ -6811,7 +6816,7 @@ if (MORE_BUTTONS) {
 			  if (DEBUG_LEVEL>0) System.out.println ("Number of defined pixels ="+numPixels+" ("+
 					  IJ.d2s(100.0*numPixels/PIXEL_MAPPING.sensors[channelNumber].equirectangularMap.partialMap[0].length)+"%)");
 			  if (clearFullMap){
-				  PIXEL_MAPPING.sensors[channelNumber].equirectangularMap.map=null;
+				  PIXEL_MAPPING.sensors[channelNumber].equirectangularMap.deleteFullMap();
 				  if (DEBUG_LEVEL>0) System.out.println("--- Free memory="+runtime.freeMemory()+" (of "+runtime.totalMemory()+")");
 			  }
 			return;
@@ -6900,6 +6905,25 @@ if (MORE_BUTTONS) {
 			}
 			return;
 		}
+/* ======================================================================== */
+		if       (label.equals("Convert Maps to Binary")) {
+			DEBUG_LEVEL=MASTER_DEBUG_LEVEL;
+	    	String [] extensions={".eqr-tiff", ".eqrect-tiff", ".tiff"};
+	    	CalibrationFileManagement.MultipleExtensionsFileFilter mapFilter = new CalibrationFileManagement.MultipleExtensionsFileFilter("",extensions,"equirectangular or plane map files");
+	    	String [] mapFiles=CalibrationFileManagement.selectFiles(false,
+	    			"Select TIFF map files to convert to binary ("+PixelMapping.BinaryMap.EXTENSION+") format",
+	    			"Select",
+	    			mapFilter,
+	    			null);
+	    	if ((mapFiles==null) || (mapFiles.length==0)) return;
+	    	long startTime=System.nanoTime();
+	    	for (int i=0;i<mapFiles.length;i++){
+	    		IJ.showStatus("Converting "+mapFiles[i]);
+	    		PixelMapping.BinaryMap.convertTiffMap(mapFiles[i], DEBUG_LEVEL);
+	    	}
+	    	if (DEBUG_LEVEL>0) System.out.println("Converted "+mapFiles.length+" map files in "+ IJ.d2s(0.000000001*(System.nanoTime()-startTime),3)+" sec");
+			return;
+		}
 /* ======================================================================== */
 		if       (label.equals("Show Maps Overlap")) {
 			DEBUG_LEVEL=MASTER_DEBUG_LEVEL;
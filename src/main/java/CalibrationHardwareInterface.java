@@ -32,6 +32,7 @@ import ij.process.ImageProcessor;
 import ij.text.TextWindow;
 
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -48,6 +49,7 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -95,6 +97,11 @@ public class CalibrationHardwareInterface {
         private String imageURLcmd="torp/wait/bimg"; // will wait if needed. If repeated (as when reading Exif)- won't wait
         private String metaURLcmd="torp/wait/meta";  // will get XML, including timestamp
         private String lastTimestamp="";
+        private boolean asyncAcquisition=false; // non-blocking HTTP requests, decode/demux each camera image as soon as it is received
+        private int     acquisitionConcurrency=0; // maximal number of simultaneous HTTP requests (0 - all cameras at once)
+        private int     acquisitionTimeoutMilliseconds=0; // fail request if nothing is received for this long, 0 - no limit (image server waits for the next frame)
+        private CameraHttpClient httpClient=null; // keeps connections to the cameras between acquisitions
+        private CameraHttpClient.LatencyHistogram [] cameraLatency=null; // per IP, from request to the last byte of the image
 		public int debugLevel=2;
 		private double lastTemperature=Double.NaN;
 		private int     colorMode=5; // JP4
@@ -217,6 +224,10 @@ public class CalibrationHardwareInterface {
 
 			}
 			for (int i=0; i<this.images.length;i++) this.images[i]= null;
+			if (this.httpClient!=null) this.httpClient.close(); // camera IPs may change
+			this.httpClient=null;
+			this.cameraLatency=new CameraHttpClient.LatencyHistogram[this.cameraIPs.length];
+			for (int i=0; i<this.cameraLatency.length;i++) this.cameraLatency[i]=new CameraHttpClient.LatencyHistogram();
 		}
 		
 		private void initCamParsDefaultArrays(int num){
@@ -283,6 +294,9 @@ public class CalibrationHardwareInterface {
     		properties.setProperty(prefix+"triggerURLcmd",this.triggerURLcmd);
     		properties.setProperty(prefix+"imageURLcmd",this.imageURLcmd);
     		properties.setProperty(prefix+"metaURLcmd",this.metaURLcmd);
+    		properties.setProperty(prefix+"asyncAcquisition",this.asyncAcquisition+"");
+    		properties.setProperty(prefix+"acquisitionConcurrency",this.acquisitionConcurrency+"");
+    		properties.setProperty(prefix+"acquisitionTimeoutMilliseconds",this.acquisitionTimeoutMilliseconds+"");
     		properties.setProperty(prefix+"channelMap.length",this.channelMap.length+"");
     		for (int i=0;i<this.channelMap.length;i++) {
             		properties.setProperty(prefix+"channelMap_"+i+"_IPindex",   this.channelMap[i][0]+"");
@@ -342,6 +356,12 @@ public class CalibrationHardwareInterface {
     			this.imageURLcmd=properties.getProperty(prefix+"imageURLcmd");
     		if (properties.getProperty(prefix+"metaURLcmd")!=null)
     			this.metaURLcmd=properties.getProperty(prefix+"metaURLcmd");
+    		if (properties.getProperty(prefix+"asyncAcquisition")!=null)
+    			this.asyncAcquisition=Boolean.parseBoolean(properties.getProperty(prefix+"asyncAcquisition"));
+    		if (properties.getProperty(prefix+"acquisitionConcurrency")!=null)
+    			this.acquisitionConcurrency=Integer.parseInt(properties.getProperty(prefix+"acquisitionConcurrency"));
+    		if (properties.getProperty(prefix+"acquisitionTimeoutMilliseconds")!=null)
+    			this.acquisitionTimeoutMilliseconds=Integer.parseInt(properties.getProperty(prefix+"acquisitionTimeoutMilliseconds"));
     		if (properties.getProperty(prefix+"channelMap.length")!=null) {
     			initDefaultMap (Integer.parseInt(properties.getProperty(prefix+"channelMap.length")));
     			this.flipImages=new boolean[this.channelMap.length];
@@ -459,6 +479,9 @@ public class CalibrationHardwareInterface {
     		gd.addStringField ("Image server command to trigger acquisition",this.triggerURLcmd,15);
     		gd.addStringField ("Image server command to acquire image (waits for the new one after reset)",this.imageURLcmd,15);
     		gd.addStringField ("Image server command to receive XML metadata (with timestamp)",this.metaURLcmd,15);
+    		gd.addCheckbox    ("Asynchronous acquisition (non-blocking requests, decode each image as soon as it arrives)",this.asyncAcquisition);
+    		gd.addNumericField("Maximal number of simultaneous camera requests (0 - no limit)",this.acquisitionConcurrency,0);
+    		gd.addNumericField("Acquisition timeout (no data received, 0 - no limit)",this.acquisitionTimeoutMilliseconds,0,5,"ms");
     		gd.addMessage("Configure each sub-camera - which IP index and channel does it use.");
     		if (askRegenerate) gd.addMessage("You may change number of subcameras and press REGENERATE below");
     		for (int i=0; i< this.channelMap.length;i++){
@@ -491,6 +514,9 @@ public class CalibrationHardwareInterface {
     	    this.triggerURLcmd=          gd.getNextString();
     	    this.imageURLcmd=            gd.getNextString();
     	    this.metaURLcmd=             gd.getNextString();
+    	    this.asyncAcquisition=       gd.getNextBoolean();
+    	    this.acquisitionConcurrency=(int) gd.getNextNumber();
+    	    this.acquisitionTimeoutMilliseconds=(int) gd.getNextNumber();
     		for (int i=0; i< this.channelMap.length;i++){
         		this.channelMap[i][0]=(int) gd.getNextNumber();
         		this.channelMap[i][1]=(int) gd.getNextNumber();
@@ -1092,7 +1118,7 @@ public class CalibrationHardwareInterface {
 	   	}
 	   	
 	   	public double[] timestampIPs(boolean [] ipSelection){
-
+	   		if (this.asyncAcquisition) return timestampIPsAsync();
 	   		final Thread[] threads = newThreadArray(this.maxNumberOfThreads);
 	   		final AtomicInteger ipIndexAtomic = new AtomicInteger(0);
 	   		final int ipLength=this.resetURLs.length;
@@ -1116,19 +1142,7 @@ public class CalibrationHardwareInterface {
 	   							String url=metaURLs[ipIndex];
 	   							if (debugLevel>2) System.out.println("timestampIPs:" + url );
 	   							dom = db.parse(url);
-	   							if (!dom.getDocumentElement().getNodeName().equals("meta")) {
-	   								System.out.println("Root element: expected 'meta', got'" + dom.getDocumentElement().getNodeName()+"'");
-	   								IJ.showMessage("Error","Root element: expected 'meta', got'" + dom.getDocumentElement().getNodeName()+"'"); 
-	   								continue;
-	   							}
-	   							if (dom.getDocumentElement().getElementsByTagName("frame").getLength()==0) {
-	   								String sError="reading timestamp failed. Do you have camera firmware version >=8.1.1.1?";
-	   								System.out.println("ERROR: "+sError );
-	   								IJ.showMessage("Error",sError); 
-	   								continue;
-	   							}
-	   							ts[ipIndex]=Double.parseDouble(
-	   									((Node) (((Node) dom.getDocumentElement().getElementsByTagName("timestamp").item(0)).getChildNodes().item(0))).getNodeValue());
+	   							ts[ipIndex]=timestampFromMeta(dom);
 
 	   						} catch(MalformedURLException e){
 	   							System.out.println("Please check the URL:" + e.toString() );
@@ -1154,6 +1168,130 @@ public class CalibrationHardwareInterface {
 	   		return ts;
 	   	}
 
+	   	/**
+	   	 * Get timestamp from the camera XML metadata
+	   	 * @return timestamp or 0.0 if it is not available
+	   	 */
+	   	private double timestampFromMeta(Document dom){
+	   		if (!dom.getDocumentElement().getNodeName().equals("meta")) {
+	   			System.out.println("Root element: expected 'meta', got'" + dom.getDocumentElement().getNodeName()+"'");
+	   			IJ.showMessage("Error","Root element: expected 'meta', got'" + dom.getDocumentElement().getNodeName()+"'"); 
+	   			return 0.0;
+	   		}
+	   		if (dom.getDocumentElement().getElementsByTagName("frame").getLength()==0) {
+	   			String sError="reading timestamp failed. Do you have camera firmware version >=8.1.1.1?";
+	   			System.out.println("ERROR: "+sError );
+	   			IJ.showMessage("Error",sError); 
+	   			return 0.0;
+	   		}
+	   		return Double.parseDouble(
+	   				((Node) (((Node) dom.getDocumentElement().getElementsByTagName("timestamp").item(0)).getChildNodes().item(0))).getNodeValue());
+	   	}
+
+	   	/**
+	   	 * Same as timestampIPs(), but all requests are sent at once over the non-blocking (kept alive) connections
+	   	 */
+	   	private double[] timestampIPsAsync(){
+	   		final double [] ts= new double[this.cameraIPs.length];
+	   		for (int i=0;i<ts.length;i++) ts[i]=0.0;
+	   		if (this.debugLevel>2) for (int ipIndex=0;ipIndex<this.metaURLs.length;ipIndex++) System.out.println("timestampIPs:" + this.metaURLs[ipIndex] );
+	   		final ArrayList<String> failedURLs=new ArrayList<String>();
+	   		final ArrayList<IOException> failures=new ArrayList<IOException>();
+	   		getHttpClient().fetch(this.metaURLs, null, new CameraHttpClient.ResponseHandler(){
+	   			public void onResponse(int ipIndex, byte [] data, long latencyNs){
+	   				Document dom=parseXML(data);
+	   				if (dom!=null) ts[ipIndex]=timestampFromMeta(dom);
+	   			}
+	   			public void onFailure(int ipIndex, String url, IOException e){
+	   				failedURLs.add(url);
+	   				failures.add(e);
+	   			}
+	   		});
+	   		reportHttpErrors("timestampIPs() ERROR", failedURLs, failures);
+	   		return ts;
+	   	}
+
+	   	/**
+	   	 * Same as resetIPs(), but all requests are sent at once over the non-blocking (kept alive) connections
+	   	 */
+	   	private void resetIPsAsync(){
+	   		if (this.debugLevel>2) for (int ipIndex=0;ipIndex<this.resetURLs.length;ipIndex++) System.out.println("--- resetURLs:" + this.resetURLs[ipIndex] );
+	   		final ArrayList<String> failedURLs=new ArrayList<String>();
+	   		final ArrayList<IOException> failures=new ArrayList<IOException>();
+	   		getHttpClient().fetch(this.resetURLs, null, new CameraHttpClient.ResponseHandler(){
+	   			public void onResponse(int ipIndex, byte [] data, long latencyNs){
+	   				// should be some XML (currently discarded)
+	   			}
+	   			public void onFailure(int ipIndex, String url, IOException e){
+	   				failedURLs.add(url);
+	   				failures.add(e);
+	   			}
+	   		});
+	   		reportHttpErrors("resetIPs() ERROR", failedURLs, failures);
+	   	}
+
+	   	private CameraHttpClient getHttpClient(){
+	   		if (this.httpClient==null) this.httpClient=new CameraHttpClient(this.acquisitionConcurrency, this.acquisitionTimeoutMilliseconds, this.debugLevel);
+	   		this.httpClient.maxConcurrent=this.acquisitionConcurrency;
+	   		this.httpClient.timeoutMs=    this.acquisitionTimeoutMilliseconds;
+	   		this.httpClient.debugLevel=   this.debugLevel;
+	   		return this.httpClient;
+	   	}
+
+	   	private Document parseXML(byte [] data){
+	   		try {
+	   			DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+	   			DocumentBuilder db = dbf.newDocumentBuilder();
+	   			return db.parse(new ByteArrayInputStream(data));
+	   		} catch(IOException  e1){
+	   			e1.printStackTrace();
+	   		}catch(ParserConfigurationException pce) {
+	   			pce.printStackTrace();
+	   		}catch(SAXException se) {
+	   			se.printStackTrace(); 
+	   		}
+	   		return null;
+	   	}
+
+	   	private void reportHttpError(String title, String url, IOException e){
+	   		IJ.showStatus("");
+	   		String error = e.getMessage();
+	   		if (error==null || error.equals(""))  error = ""+e;
+	   		IJ.showMessage(title, url+"\n"+error);
+	   	}
+
+	   	/**
+	   	 * Report failures collected by the CameraHttpClient handler (called from fetch()) in a single message after fetch() returns,
+	   	 * so the selector loop is never blocked by a modal dialog
+	   	 */
+	   	private void reportHttpErrors(String title, ArrayList<String> urls, ArrayList<IOException> failures){
+	   		if (failures.isEmpty()) return;
+	   		if (failures.size()==1) {
+	   			reportHttpError(title, urls.get(0), failures.get(0));
+	   			return;
+	   		}
+	   		IJ.showStatus("");
+	   		String message="";
+	   		for (int i=0;i<failures.size();i++){
+	   			String error = failures.get(i).getMessage();
+	   			if (error==null || error.equals(""))  error = ""+failures.get(i);
+	   			message+=urls.get(i)+"\n"+error+"\n";
+	   		}
+	   		IJ.showMessage(title, message);
+	   	}
+
+	   	/**
+	   	 * Print per-camera image acquisition latency histograms (accumulated by the asynchronous acquisition)
+	   	 */
+	   	public void printLatencyHistograms(){
+	   		for (int ipIndex=0;ipIndex<this.cameraLatency.length;ipIndex++){
+	   			System.out.println("Camera "+this.cameraIPs[ipIndex]+" image latency: "+this.cameraLatency[ipIndex]);
+	   		}
+	   	}
+	   	public void resetLatencyHistograms(){
+	   		for (int ipIndex=0;ipIndex<this.cameraLatency.length;ipIndex++) this.cameraLatency[ipIndex].reset();
+	   	}
+
 	   	public void resetCameras(boolean [] selection){
 	   		if (this.debugLevel>2) {
 	   			System.out.println("resetCameras(...)");
@@ -1165,6 +1303,10 @@ public class CalibrationHardwareInterface {
 	   	}
 
 	   	public void resetIPs(boolean [] ipSelection){
+	   		if (this.asyncAcquisition) {
+	   			resetIPsAsync();
+	   			return;
+	   		}
 	   		final Thread[] threads = newThreadArray(this.maxNumberOfThreads);
 	   		final AtomicInteger ipIndexAtomic = new AtomicInteger(0);
 	   		final int ipLength=this.resetURLs.length;
@@ -1219,13 +1361,11 @@ public class CalibrationHardwareInterface {
 		   	}  
 		   	final double [] timestamps= timestampIPs(acquireIPs);
 			if (this.debugLevel>2) System.out.println("getImages(): this.imagesIP.length=" + this.imagesIP.length);
+			if (this.asyncAcquisition) return getImagesAsync(acquire, acquireIPs, timestamps, show);
 	   		final Thread[] threads = newThreadArray(this.maxNumberOfThreads);
 	   		final AtomicInteger ipIndexAtomic = new AtomicInteger(0);
 	   		final int ipLength=this.resetURLs.length;
 	   		final int debugLevel=this.debugLevel;
-			final String []	imageURLs=this.imageURLs;
-			final ImagePlus []	imagesIP=this.imagesIP;
-			final JP46_Reader_camera [] jp4_Instances=this.jp4_Instances;
 			for (int ithread = 0; ithread < threads.length; ithread++) {
 				threads[ithread] = new Thread() {
 					public void run() {
@@ -1234,32 +1374,7 @@ public class CalibrationHardwareInterface {
 							if (debugLevel>2) System.out.println("getImages()3: ipIndex="+ipIndex+" acquireIPs.length=" +acquireIPs.length+
 									((ipIndex<acquireIPs.length)? (" acquireIPs[ipIndex]="+acquireIPs[ipIndex]):""));
 							if ((ipIndex<acquireIPs.length) && acquireIPs[ipIndex]) {
-								if (debugLevel>2) System.out.println("getImages:" + imageURLs[ipIndex] );
-								if ((debugLevel>3) &&(imagesIP[ipIndex]!=null) && show){
-									System.out.println("=============== old image ==========");
-									jp4_Instances[ipIndex].listImageProperties(imagesIP[ipIndex]);
-
-								}
-								imagesIP[ipIndex]=jp4_Instances[ipIndex].openURL( // gains inside were OK
-										imageURLs[ipIndex],
-										"",
-										true, //scale
-										imagesIP[ipIndex],
-										false); //show); // show image
-								imagesIP[ipIndex].setProperty("timestamp", IJ.d2s(timestamps[ipIndex],6));
-								imagesIP[ipIndex].setProperty("MIRRORED","NO");
-								if (debugLevel>2) {
-									jp4_Instances[ipIndex].listImageProperties(imagesIP[ipIndex],true); // to console - properties old - fixed
-								}
-
-
-								if (show){
-									imagesIP[ipIndex].updateAndDraw(); /// Redisplays final image
-									if (debugLevel>2){
-										System.out.println("=============== new image ==========");
-										jp4_Instances[ipIndex].listImageProperties(imagesIP[ipIndex]);
-									}
-								}
+								openIPImage(ipIndex, null, timestamps, show);
 							}
 						}
 					}
@@ -1268,9 +1383,7 @@ public class CalibrationHardwareInterface {
 			startAndJoin(threads);
 			//TODO: Multithread the next cycle (per-sensor)
 			final ImagePlus []	images=this.images;
-			final int [][] channelMap = this.channelMap;
 	   		final AtomicInteger imageIndexAtomic = new AtomicInteger(0);
-	   		final int [] motorsPosition=this.motorsPosition;
 	   		for (int ithread = 0; ithread < threads.length; ithread++) {
 	   			threads[ithread] = new Thread() {
 	   				public void run() {
@@ -1278,54 +1391,7 @@ public class CalibrationHardwareInterface {
 						JP46_Reader_camera jp4_Instance= new JP46_Reader_camera(false);
 	   					for (int imageIndex=imageIndexAtomic.getAndIncrement(); imageIndex<images.length;imageIndex=imageIndexAtomic.getAndIncrement())
 	   						if ((imageIndex<acquire.length) && acquire[imageIndex]){
-	   							//		   	for (int i=0;i<this.images.length;i++) if ((i<acquire.length) && acquire[i]) {
-	   							int iIP=channelMap[imageIndex][0];
-	   							if (sensorPresent[iIP]==null) { // system board for this channel did not respond null pointer - check cameras were detected
-	   								images[imageIndex]=null;
-	   								continue;
-	   							}
-	   							boolean singleSensor=true;
-	   							for (int s=0;s<sensorPresent[iIP].length;s++) singleSensor&= !sensorPresent[iIP][s];
-	   							if (singleSensor){ // no 10359 multiplexor
-	   								images[imageIndex]=jp4_Instance.demuxClone(imagesIP[iIP]); 
-	   							} else {
-	   								int subCam=channelMap[imageIndex][1];
-	   								if (!sensorPresent[iIP][subCam]){ // requested sensor does not exist
-	   									images[imageIndex]=null;
-	   									continue;
-	   								}
-	   								// skip missing channels, then demux
-	   								for (int s=0;s<channelMap[imageIndex][1];s++) if (!sensorPresent[iIP][s]) subCam--;
-	   								images[imageIndex]=jp4_Instance.demuxImage(imagesIP[iIP],subCam);
-	   							}
-	   							//		   		this.images[i]=this.jp4_Instances[j].demuxImageOrClone(this.imagesIP[j],this.channelMap[i][1]);
-	   							if (images[imageIndex]==null) continue;
-	   							if (debugLevel>2) jp4_Instance.listImageProperties(images[imageIndex]);
-	   							if (debugLevel>2) jp4_Instance.encodeProperiesToInfo(images[imageIndex]);
-	   							if (debugLevel>2) {
-	   								jp4_Instance.listImageProperties(images[imageIndex]);
-	   								jp4_Instance.decodeProperiesFromInfo(images[imageIndex]);
-	   								jp4_Instance.listImageProperties(images[imageIndex]);
-	   							}
-	   							String title=IJ.d2s(timestamps[iIP],6).replace('.','_')+String.format("-%02d.tiff", imageIndex); // sensor number
-	   							images[imageIndex].setTitle(title);
-
-	   							if (flipImages[imageIndex]) { // this is only for physical mirror
-	   								flipKeepBayer(images[imageIndex]);
-	   								if (debugLevel>2){
-	   									System.out.println("=============== flipKeepBayer ==========");
-	   									jp4_Instance.listImageProperties(images[imageIndex]);
-	   								}
-	   								if (show) images[imageIndex].updateAndDraw();
-	   							}
-	   							images[imageIndex].setProperty("channel", String.format("%02d", imageIndex));
-	   							images[imageIndex].setProperty("subcamera",""+getSubCamera(imageIndex)); 
-	   							images[imageIndex].setProperty("subchannel", ""+getSubChannel(imageIndex));
-	   							//		private int [] motorsPosition=      null; // motors steps when the images were acquired (for null)
-	   							if (motorsPosition!=null) for (int m=0;m<motorsPosition.length;m++ ) {
-	   								images[imageIndex].setProperty("MOTOR"+(m+1), ""+motorsPosition[m]);
-	   							}
-	   							jp4_Instance.encodeProperiesToInfo(images[imageIndex]);
+	   							demuxChannel(imageIndex, jp4_Instance, timestamps, show);
 	   						}
 	   				}
 	   			};
@@ -1334,6 +1400,179 @@ public class CalibrationHardwareInterface {
 	   		return this.imagesIP;
 	   	}
 
+	   	/**
+	   	 * Decode image from the camera IP and add acquisition properties
+	   	 * @param jpeg already received image data or null to read it from the camera URL
+	   	 * @return true if the image was decoded
+	   	 */
+	   	private boolean openIPImage(int ipIndex, byte [] jpeg, double [] timestamps, boolean show){
+	   		if (this.debugLevel>2) System.out.println("getImages:" + this.imageURLs[ipIndex] );
+	   		if ((this.debugLevel>3) &&(this.imagesIP[ipIndex]!=null) && show){
+	   			System.out.println("=============== old image ==========");
+	   			this.jp4_Instances[ipIndex].listImageProperties(this.imagesIP[ipIndex]);
+
+	   		}
+	   		if (jpeg==null) {
+	   			this.imagesIP[ipIndex]=this.jp4_Instances[ipIndex].openURL( // gains inside were OK
+	   					this.imageURLs[ipIndex],
+	   					"",
+	   					true, //scale
+	   					this.imagesIP[ipIndex],
+	   					false); //show); // show image
+	   		} else {
+	   			this.imagesIP[ipIndex]=this.jp4_Instances[ipIndex].openURL(
+	   					jpeg,
+	   					this.imageURLs[ipIndex],
+	   					"",
+	   					true, //scale
+	   					this.imagesIP[ipIndex],
+	   					false); //show); // show image
+	   		}
+	   		if (this.imagesIP[ipIndex]==null) return false;
+	   		this.imagesIP[ipIndex].setProperty("timestamp", IJ.d2s(timestamps[ipIndex],6));
+	   		this.imagesIP[ipIndex].setProperty("MIRRORED","NO");
+	   		if (this.debugLevel>2) {
+	   			this.jp4_Instances[ipIndex].listImageProperties(this.imagesIP[ipIndex],true); // to console - properties old - fixed
+	   		}
+
+
+	   		if (show){
+	   			this.imagesIP[ipIndex].updateAndDraw(); /// Redisplays final image
+	   			if (this.debugLevel>2){
+	   				System.out.println("=============== new image ==========");
+	   				this.jp4_Instances[ipIndex].listImageProperties(this.imagesIP[ipIndex]);
+	   			}
+	   		}
+	   		return true;
+	   	}
+
+	   	/**
+	   	 * Demultiplex (or clone) sensor image from the image of its camera IP, add channel properties
+	   	 * @param jp4_Instance per-thread instance (does not need camera settings)
+	   	 */
+	   	private void demuxChannel(int imageIndex, JP46_Reader_camera jp4_Instance, double [] timestamps, boolean show){
+	   		ImagePlus []	images=this.images;
+	   		ImagePlus []	imagesIP=this.imagesIP;
+	   		int [][] channelMap = this.channelMap;
+	   		int [] motorsPosition=this.motorsPosition;
+	   		int debugLevel=this.debugLevel;
+	   		//		   	for (int i=0;i<this.images.length;i++) if ((i<acquire.length) && acquire[i]) {
+	   		int iIP=channelMap[imageIndex][0];
+	   		if (sensorPresent[iIP]==null) { // system board for this channel did not respond null pointer - check cameras were detected
+	   			images[imageIndex]=null;
+	   			return;
+	   		}
+	   		boolean singleSensor=true;
+	   		for (int s=0;s<sensorPresent[iIP].length;s++) singleSensor&= !sensorPresent[iIP][s];
+	   		if (singleSensor){ // no 10359 multiplexor
+	   			images[imageIndex]=jp4_Instance.demuxClone(imagesIP[iIP]); 
+	   		} else {
+	   			int subCam=channelMap[imageIndex][1];
+	   			if (!sensorPresent[iIP][subCam]){ // requested sensor does not exist
+	   				images[imageIndex]=null;
+	   				return;
+	   			}
+	   			// skip missing channels, then demux
+	   			for (int s=0;s<channelMap[imageIndex][1];s++) if (!sensorPresent[iIP][s]) subCam--;
+	   			images[imageIndex]=jp4_Instance.demuxImage(imagesIP[iIP],subCam);
+	   		}
+	   		//		   		this.images[i]=this.jp4_Instances[j].demuxImageOrClone(this.imagesIP[j],this.channelMap[i][1]);
+	   		if (images[imageIndex]==null) return;
+	   		if (debugLevel>2) jp4_Instance.listImageProperties(images[imageIndex]);
+	   		if (debugLevel>2) jp4_Instance.encodeProperiesToInfo(images[imageIndex]);
+	   		if (debugLevel>2) {
+	   			jp4_Instance.listImageProperties(images[imageIndex]);
+	   			jp4_Instance.decodeProperiesFromInfo(images[imageIndex]);
+	   			jp4_Instance.listImageProperties(images[imageIndex]);
+	   		}
+	   		String title=IJ.d2s(timestamps[iIP],6).replace('.','_')+String.format("-%02d.tiff", imageIndex); // sensor number
+	   		images[imageIndex].setTitle(title);
+
+	   		if (flipImages[imageIndex]) { // this is only for physical mirror
+	   			flipKeepBayer(images[imageIndex]);
+	   			if (debugLevel>2){
+	   				System.out.println("=============== flipKeepBayer ==========");
+	   				jp4_Instance.listImageProperties(images[imageIndex]);
+	   			}
+	   			if (show) images[imageIndex].updateAndDraw();
+	   		}
+	   		images[imageIndex].setProperty("channel", String.format("%02d", imageIndex));
+	   		images[imageIndex].setProperty("subcamera",""+getSubCamera(imageIndex)); 
+	   		images[imageIndex].setProperty("subchannel", ""+getSubChannel(imageIndex));
+	   		//		private int [] motorsPosition=      null; // motors steps when the images were acquired (for null)
+	   		if (motorsPosition!=null) for (int m=0;m<motorsPosition.length;m++ ) {
+	   			images[imageIndex].setProperty("MOTOR"+(m+1), ""+motorsPosition[m]);
+	   		}
+	   		jp4_Instance.encodeProperiesToInfo(images[imageIndex]);
+	   	}
+
+	   	/**
+	   	 * Request images from all selected cameras at once over the non-blocking connections. Each image is decoded
+	   	 * and demultiplexed by the worker threads as soon as it is received, without waiting for the other cameras.
+	   	 */
+	   	private ImagePlus [] getImagesAsync(final boolean [] acquire, final boolean [] acquireIPs, final double [] timestamps, final boolean show){
+	   		final byte [][] received=new byte[this.cameraIPs.length][];
+	   		final LinkedBlockingQueue<Integer> receivedQueue=new LinkedBlockingQueue<Integer>();
+	   		final Integer END_OF_WORK=-1;
+	   		final ImagePlus []	images=this.images;
+	   		final int [][] channelMap = this.channelMap;
+	   		final CameraHttpClient.LatencyHistogram [] cameraLatency=this.cameraLatency;
+	   		int numIPs=0;
+	   		for (int ipIndex=0;ipIndex<this.cameraIPs.length;ipIndex++) if ((ipIndex<acquireIPs.length) && acquireIPs[ipIndex]) numIPs++;
+	   		final Thread[] threads = newThreadArray(Math.min(this.maxNumberOfThreads, Math.max(numIPs,1)));
+	   		for (int ithread = 0; ithread < threads.length; ithread++) {
+	   			threads[ithread] = new Thread() {
+	   				public void run() {
+	   					// Next calls do not require image acquisition, so default settings for the new instance are OK
+	   					JP46_Reader_camera jp4_Instance= new JP46_Reader_camera(false);
+	   					while (true){
+	   						int ipIndex;
+	   						try {
+	   							ipIndex=receivedQueue.take();
+	   						} catch (InterruptedException e) {
+	   							throw new RuntimeException(e);
+	   						}
+	   						if (ipIndex==END_OF_WORK) break;
+	   						boolean decoded= (received[ipIndex]!=null) && openIPImage(ipIndex, received[ipIndex], timestamps, show);
+	   						received[ipIndex]=null;
+	   						for (int imageIndex=0;imageIndex<images.length;imageIndex++)
+	   							if ((imageIndex<acquire.length) && acquire[imageIndex] && (channelMap[imageIndex][0]==ipIndex)){
+	   								if (decoded) demuxChannel(imageIndex, jp4_Instance, timestamps, show);
+	   								else images[imageIndex]=null;
+	   							}
+	   					}
+	   				}
+	   			};
+	   		}
+	   		final ArrayList<String> failedURLs=new ArrayList<String>();
+	   		final ArrayList<IOException> failures=new ArrayList<IOException>();
+	   		long startTime=System.nanoTime();
+	   		startThreads(threads);
+	   		try {
+	   			getHttpClient().fetch(this.imageURLs, acquireIPs, new CameraHttpClient.ResponseHandler(){
+	   				public void onResponse(int ipIndex, byte [] data, long latencyNs){
+	   					cameraLatency[ipIndex].add(latencyNs);
+	   					received[ipIndex]=data;
+	   					receivedQueue.add(ipIndex);
+	   				}
+	   				public void onFailure(int ipIndex, String url, IOException e){
+	   					cameraLatency[ipIndex].addFailure();
+	   					failedURLs.add(url);
+	   					failures.add(e);
+	   					receivedQueue.add(ipIndex); // channels of this camera will be set to null
+	   				}
+	   			});
+	   			if (this.debugLevel>2) System.out.println("getImages(): all images received in "+IJ.d2s(0.000000001*(System.nanoTime()-startTime),3)+" sec");
+	   		} finally { // workers have to be stopped even if fetch() failed
+	   			for (int ithread = 0; ithread < threads.length; ithread++) receivedQueue.add(END_OF_WORK);
+	   			joinThreads(threads);
+	   		}
+	   		reportHttpErrors("getImages() ERROR", failedURLs, failures);
+	   		if (this.debugLevel>2) System.out.println("getImages(): "+numIPs+" camera images acquired and demuxed in "+IJ.d2s(0.000000001*(System.nanoTime()-startTime),3)+" sec");
+	   		if (this.debugLevel>2) printLatencyHistograms();
+	   		return this.imagesIP;
+	   	}
+
 	   	
 	// should be already triggered!   	
    	
@@ -1789,6 +2028,19 @@ public class CalibrationHardwareInterface {
 		 * From Stephan Preibisch's Multithreading.java class. See:
 		 * http://repo.or.cz/w/trakem2.git?a=blob;f=mpi/fruitfly/general/MultiThreading.java;hb=HEAD
 		 */
+		private static void startThreads(Thread[] threads){
+			for (int ithread = 0; ithread < threads.length; ++ithread) {
+				threads[ithread].setPriority(Thread.NORM_PRIORITY);
+				threads[ithread].start();
+			}
+		}
+		private static void joinThreads(Thread[] threads){
+			try {   
+				for (int ithread = 0; ithread < threads.length; ++ithread) threads[ithread].join();
+			} catch (InterruptedException ie) {
+				throw new RuntimeException(ie);
+			}
+		}
 		private static void startAndJoin(Thread[] threads)
 		{
 			for (int ithread = 0; ithread < threads.length; ++ithread)
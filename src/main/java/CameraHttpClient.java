@@ -0,0 +1,462 @@
+/**
+ ** -----------------------------------------------------------------------------**
+ ** CameraHttpClient.java
+ **
+ ** Non-blocking HTTP GET client for simultaneous acquisition from multiple cameras
+ **
+ ** This program is free software: you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation, either version 3 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY; without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ ** GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ** -----------------------------------------------------------------------------**
+ **
+ */
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * All requests of one fetch() call are multiplexed over a single selector in the calling thread,
+ * so acquisition from many cameras does not need a blocked thread per camera. Responses are handed
+ * to the ResponseHandler as soon as each of them is complete (in the order cameras answer), the handler
+ * is expected to pass the data to the worker threads and return quickly.
+ * Connections are kept open between frames when the server allows it (one idle connection per camera).
+ */
+public class CameraHttpClient {
+	public interface ResponseHandler{
+		/**
+		 * Called from the selector thread when the response body is received completely
+		 * @param index index of the URL in the array passed to fetch()
+		 * @param data response body
+		 * @param latencyNs time from the start of the request to the last byte received
+		 */
+		void onResponse(int index, byte [] data, long latencyNs);
+		void onFailure (int index, String url, IOException e);
+	}
+	public int maxConcurrent=0;     // maximal number of simultaneous requests, 0 - no limit
+	public int timeoutMs=   0;      // no data for this long - fail the request, 0 - no limit (image requests wait for the next frame)
+	public int debugLevel=  1;
+	private Selector selector=null;
+	private final HashMap<String,LinkedList<SocketChannel>> idleConnections=new HashMap<String,LinkedList<SocketChannel>>();
+	private final ByteBuffer readBuffer=ByteBuffer.allocateDirect(65536);
+
+	public CameraHttpClient(int maxConcurrent, int timeoutMs, int debugLevel){
+		this.maxConcurrent=maxConcurrent;
+		this.timeoutMs=timeoutMs;
+		this.debugLevel=debugLevel;
+	}
+
+	/**
+	 * Fetch all selected URLs, returns when all requests are finished (successfully or not)
+	 * @param urls array of URLs (http:// only)
+	 * @param selection which of the URLs to fetch (null - all)
+	 * @param handler receives each response/failure as soon as it is available
+	 */
+	public synchronized void fetch(String [] urls, boolean [] selection, ResponseHandler handler){
+		LinkedList<Integer> pending=new LinkedList<Integer>();
+		for (int i=0;i<urls.length;i++) if ((urls[i]!=null) && ((selection==null) || ((i<selection.length) && selection[i]))) pending.add(i);
+		List<Exchange> active=new ArrayList<Exchange>();
+		try {
+			if (this.selector==null) this.selector=Selector.open();
+		} catch (IOException e){
+			for (int index:pending) handler.onFailure(index, urls[index], e);
+			return;
+		}
+		try {
+			fetchLoop(urls, handler, pending, active);
+		} finally { // handler failed - do not leave unfinished requests registered, their responses would reach the next fetch()
+			for (Exchange exchange:active) exchange.close(); // closing the channel cancels its key
+			if (!active.isEmpty()){
+				if (this.debugLevel>0) System.out.println("CameraHttpClient: aborted "+active.size()+" unfinished request(s)");
+				try {
+					this.selector.selectNow(); // flush cancelled keys
+				} catch (IOException e){
+				}
+			}
+		}
+	}
+
+	private void fetchLoop(String [] urls, ResponseHandler handler, LinkedList<Integer> pending, List<Exchange> active){
+		while (!pending.isEmpty() || !active.isEmpty()){
+			while (!pending.isEmpty() && ((this.maxConcurrent<=0) || (active.size()<this.maxConcurrent))){
+				int index=pending.removeFirst();
+				try {
+					active.add(start(new Exchange(index,urls[index]),true));
+				} catch (IOException e){
+					handler.onFailure(index, urls[index], e);
+				}
+			}
+			if (active.isEmpty()) continue;
+			try {
+				this.selector.select(100);
+			} catch (IOException e){
+				for (Exchange exchange:active) fail(exchange, handler, e);
+				active.clear();
+				continue;
+			}
+			for (Iterator<SelectionKey> iter=this.selector.selectedKeys().iterator(); iter.hasNext();){
+				SelectionKey key=iter.next();
+				iter.remove();
+				Exchange exchange=(Exchange) key.attachment();
+				if ((exchange==null) || !key.isValid()) continue; // idle connection closed by the server
+				try {
+					if (!step(exchange,key)) continue;
+					active.remove(exchange);
+					finish(exchange, handler);
+				} catch (IOException e){
+					active.remove(exchange);
+					if (exchange.reused && (exchange.received==0)){ // stale keep-alive connection - retry once with a new one
+						exchange.close();
+						try {
+							active.add(start(new Exchange(exchange.index,exchange.url),false));
+						} catch (IOException e1){
+							handler.onFailure(exchange.index, exchange.url, e1);
+						}
+					} else fail(exchange, handler, e);
+				}
+			}
+			long now=System.nanoTime();
+			for (int i=active.size()-1;i>=0;i--){
+				Exchange exchange=active.get(i);
+				if ((this.timeoutMs>0) && ((now-exchange.lastActivity)>1000000L*this.timeoutMs)){
+					active.remove(i);
+					fail(exchange, handler, new IOException("Timeout ("+this.timeoutMs+" ms) reading "+exchange.url));
+				}
+			}
+		}
+	}
+
+	/** Close all idle connections */
+	public void close(){
+		for (LinkedList<SocketChannel> channels:this.idleConnections.values()) for (SocketChannel channel:channels){
+			try {
+				channel.close();
+			} catch (IOException e){
+			}
+		}
+		this.idleConnections.clear();
+		if (this.selector!=null){
+			try {
+				this.selector.close();
+			} catch (IOException e){
+			}
+			this.selector=null;
+		}
+	}
+
+	private Exchange start(Exchange exchange, boolean reuse) throws IOException {
+		LinkedList<SocketChannel> idle=this.idleConnections.get(exchange.hostPort);
+		while (reuse && (idle!=null) && !idle.isEmpty()){
+			SocketChannel channel=idle.removeFirst();
+			SelectionKey key=channel.keyFor(this.selector);
+			if (channel.isOpen() && channel.isConnected() && (key!=null) && key.isValid()){
+				exchange.channel=channel;
+				exchange.reused=true;
+				key.attach(exchange);
+				key.interestOps(SelectionKey.OP_WRITE);
+				if (this.debugLevel>2) System.out.println("CameraHttpClient: reusing connection to "+exchange.hostPort);
+				return exchange;
+			}
+			try {
+				channel.close();
+			} catch (IOException e){
+			}
+		}
+		exchange.channel=SocketChannel.open();
+		exchange.channel.configureBlocking(false);
+		exchange.channel.socket().setTcpNoDelay(true);
+		boolean connected=exchange.channel.connect(new InetSocketAddress(exchange.host, exchange.port));
+		exchange.channel.register(this.selector, connected?SelectionKey.OP_WRITE:SelectionKey.OP_CONNECT, exchange);
+		return exchange;
+	}
+
+	/**
+	 * Advance the exchange on a selected key
+	 * @return true when the response is complete
+	 */
+	private boolean step(Exchange exchange, SelectionKey key) throws IOException{
+		exchange.lastActivity=System.nanoTime();
+		if (key.isConnectable()){
+			exchange.channel.finishConnect();
+			key.interestOps(SelectionKey.OP_WRITE);
+			return false;
+		}
+		if (key.isWritable()){
+			exchange.channel.write(exchange.request);
+			if (!exchange.request.hasRemaining()) key.interestOps(SelectionKey.OP_READ);
+			return false;
+		}
+		if (!key.isReadable()) return false;
+		this.readBuffer.clear();
+		int n=exchange.channel.read(this.readBuffer);
+		if (n<0){
+			if (exchange.isComplete(true)) {
+				exchange.keepAlive=false;
+				return true;
+			}
+			throw new IOException("Connection closed after "+exchange.received+" bytes reading "+exchange.url);
+		}
+		this.readBuffer.flip();
+		exchange.append(this.readBuffer);
+		return exchange.isComplete(false);
+	}
+
+	private void finish(Exchange exchange, ResponseHandler handler){
+		SelectionKey key=exchange.channel.keyFor(this.selector);
+		if (exchange.keepAlive && (key!=null) && key.isValid()){
+			key.interestOps(0);
+			key.attach(null);
+			LinkedList<SocketChannel> idle=this.idleConnections.get(exchange.hostPort);
+			if (idle==null){
+				idle=new LinkedList<SocketChannel>();
+				this.idleConnections.put(exchange.hostPort, idle);
+			}
+			idle.add(exchange.channel);
+		} else exchange.close();
+		long latency=System.nanoTime()-exchange.startTime;
+		if ((exchange.status<200) || (exchange.status>=300)){
+			handler.onFailure(exchange.index, exchange.url, new IOException("HTTP status "+exchange.status+" for "+exchange.url));
+			return;
+		}
+		byte [] body;
+		try {
+			body=exchange.getBody();
+		} catch (IOException e){
+			handler.onFailure(exchange.index, exchange.url, e);
+			return;
+		}
+		if (this.debugLevel>2) System.out.println("CameraHttpClient: "+exchange.url+" - "+body.length+" bytes in "+(latency/1000000)+" ms");
+		handler.onResponse(exchange.index, body, latency);
+	}
+
+	private void fail(Exchange exchange, ResponseHandler handler, IOException e){
+		exchange.close();
+		handler.onFailure(exchange.index, exchange.url, e);
+	}
+
+	private static class Exchange{
+		final int index;
+		final String url;
+		final String host;
+		final int port;
+		final String hostPort;
+		final ByteBuffer request;
+		final long startTime;
+		long lastActivity;
+		SocketChannel channel=null;
+		boolean reused=false;
+		byte [] data=new byte[65536];
+		int received=0;
+		int headerLength=-1;   // including the empty line
+		int status=0;
+		int contentLength=-1;  // -1 - not specified
+		boolean chunked=false;
+		boolean keepAlive=false;
+		int chunkPos=-1;       // position of the next chunk size line not parsed yet (chunked responses)
+		int chunkedLength=0;   // total length of the chunks parsed so far
+		boolean lastChunk=false; // zero-length chunk is parsed, waiting for the final CRLF
+		final List<int []> chunks=new ArrayList<int []>(); // {position, length} of the parsed chunks
+
+		Exchange(int index, String url) throws IOException{
+			this.index=index;
+			this.url=url;
+			URL u=new URL(url);
+			if (!u.getProtocol().equals("http")) throw new IOException("Only http:// is supported, got "+url);
+			this.host=u.getHost();
+			this.port=(u.getPort()<0)?80:u.getPort();
+			this.hostPort=this.host+":"+this.port;
+			String path=u.getFile();
+			if (path.length()==0) path="/";
+			String header="GET "+path+" HTTP/1.1\r\n"+
+					"Host: "+this.host+((u.getPort()<0)?"":(":"+this.port))+"\r\n"+
+					"Connection: keep-alive\r\n"+
+					"\r\n";
+			this.request=ByteBuffer.wrap(header.getBytes("US-ASCII"));
+			this.startTime=System.nanoTime();
+			this.lastActivity=this.startTime;
+		}
+
+		void append(ByteBuffer buffer){
+			int n=buffer.remaining();
+			if ((this.received+n)>this.data.length){
+				int newLength=this.data.length*2;
+				while (newLength<(this.received+n)) newLength*=2;
+				if ((this.contentLength>0) && (newLength<(this.headerLength+this.contentLength))) newLength=this.headerLength+this.contentLength;
+				byte [] newData=new byte[newLength];
+				System.arraycopy(this.data, 0, newData, 0, this.received);
+				this.data=newData;
+			}
+			buffer.get(this.data, this.received, n);
+			this.received+=n;
+		}
+
+		/**
+		 * Parse header (once available) and check if the response is complete
+		 * @param closed connection is closed by the server
+		 */
+		boolean isComplete(boolean closed) throws IOException{
+			if (this.headerLength<0){
+				for (int i=3;i<this.received;i++){
+					if ((this.data[i]=='\n') && (this.data[i-1]=='\r') && (this.data[i-2]=='\n') && (this.data[i-3]=='\r')){
+						this.headerLength=i+1;
+						break;
+					}
+				}
+				if (this.headerLength<0) return false;
+				parseHeader(new String(this.data, 0, this.headerLength, "ISO-8859-1"));
+			}
+			if (this.chunked) return parseChunks();
+			if (this.contentLength>=0) return this.received>=(this.headerLength+this.contentLength);
+			return closed; // no length - body ends when the server closes connection
+		}
+
+		void parseHeader(String header) throws IOException{
+			String [] lines=header.split("\r\n");
+			String [] statusLine=lines[0].split(" ");
+			if ((statusLine.length<2) || !statusLine[0].startsWith("HTTP/")) throw new IOException("Bad HTTP response from "+this.url+": "+lines[0]);
+			try {
+				this.status=Integer.parseInt(statusLine[1]);
+			} catch (NumberFormatException e){
+				throw new IOException("Bad HTTP status from "+this.url+": "+lines[0]);
+			}
+			this.keepAlive=statusLine[0].equals("HTTP/1.1");
+			for (int i=1;i<lines.length;i++){
+				int colon=lines[i].indexOf(':');
+				if (colon<0) continue;
+				String name=lines[i].substring(0,colon).trim().toLowerCase();
+				String value=lines[i].substring(colon+1).trim().toLowerCase();
+				if (name.equals("content-length")) this.contentLength=Integer.parseInt(value);
+				else if (name.equals("transfer-encoding")) this.chunked=value.contains("chunked");
+				else if (name.equals("connection")) {
+					if      (value.contains("close"))      this.keepAlive=false;
+					else if (value.contains("keep-alive")) this.keepAlive=true;
+				}
+			}
+			if (!this.chunked && (this.contentLength<0)) this.keepAlive=false; // can only be terminated by closing connection
+		}
+
+		/**
+		 * Parse chunks received since the previous call (each chunk is parsed once, when it is received completely)
+		 * @return true when the terminating zero-length chunk and the final CRLF are received
+		 */
+		boolean parseChunks() throws IOException{
+			if (this.chunkPos<0) this.chunkPos=this.headerLength;
+			while (!this.lastChunk){
+				int eol=-1;
+				for (int i=this.chunkPos+1;i<this.received;i++) if ((this.data[i]=='\n') && (this.data[i-1]=='\r')){
+					eol=i;
+					break;
+				}
+				if (eol<0) return false;
+				String sizeLine=new String(this.data, this.chunkPos, eol-1-this.chunkPos, "ISO-8859-1");
+				int semicolon=sizeLine.indexOf(';');
+				if (semicolon>=0) sizeLine=sizeLine.substring(0,semicolon);
+				int size;
+				try {
+					size=Integer.parseInt(sizeLine.trim(),16);
+				} catch (NumberFormatException e){
+					throw new IOException("Bad chunk size from "+this.url+": "+sizeLine);
+				}
+				if (size==0) { // trailers are not supported, expecting just the final CRLF
+					this.chunkPos=eol+1;
+					this.lastChunk=true;
+					break;
+				}
+				if ((eol+1+size+2)>this.received) return false; // size line will be parsed again when the whole chunk is received
+				this.chunks.add(new int[] {eol+1,size});
+				this.chunkedLength+=size;
+				this.chunkPos=eol+1+size+2;
+			}
+			return (this.chunkPos+2)<=this.received;
+		}
+
+		/** @return decoded body of a complete chunked response */
+		byte [] getChunked() throws IOException{
+			if (!parseChunks()) throw new IOException("Incomplete chunked response from "+this.url);
+			byte [] body=new byte[this.chunkedLength];
+			int offset=0;
+			for (int [] chunk:this.chunks){
+				System.arraycopy(this.data, chunk[0], body, offset, chunk[1]);
+				offset+=chunk[1];
+			}
+			return body;
+		}
+
+		byte [] getBody() throws IOException{
+			if (this.chunked) return getChunked();
+			int length=(this.contentLength>=0)?this.contentLength:(this.received-this.headerLength);
+			byte [] body=new byte[length];
+			System.arraycopy(this.data, this.headerLength, body, 0, length);
+			return body;
+		}
+
+		void close(){
+			if (this.channel==null) return;
+			try {
+				this.channel.close();
+			} catch (IOException e){
+			}
+		}
+	}
+
+	/**
+	 * Latency histogram with logarithmic (power of 2 milliseconds) bins
+	 */
+	public static class LatencyHistogram{
+		public static final int NUM_BINS=16; // bin 0: <1ms, bin n: 2^(n-1)..2^n ms, last bin - everything above
+		private final long [] counts=new long[NUM_BINS];
+		private long number=0;
+		private double sumMs=0.0;
+		private double maxMs=0.0;
+		private int failures=0;
+
+		public synchronized void add(long latencyNs){
+			double ms=1.0E-6*latencyNs;
+			int bin=0;
+			while ((bin<(NUM_BINS-1)) && (ms>=(1L<<bin))) bin++;
+			this.counts[bin]++;
+			this.number++;
+			this.sumMs+=ms;
+			if (ms>this.maxMs) this.maxMs=ms;
+		}
+		public synchronized void addFailure(){
+			this.failures++;
+		}
+		public synchronized void reset(){
+			for (int i=0;i<NUM_BINS;i++) this.counts[i]=0;
+			this.number=0;
+			this.sumMs=0.0;
+			this.maxMs=0.0;
+			this.failures=0;
+		}
+		public synchronized long getNumber(){
+			return this.number;
+		}
+		public synchronized String toString(){
+			String s="n="+this.number+((this.failures>0)?(" failed="+this.failures):"");
+			if (this.number==0) return s;
+			s+=String.format(" mean=%.1fms max=%.1fms |",this.sumMs/this.number,this.maxMs);
+			for (int bin=0;bin<NUM_BINS;bin++) if (this.counts[bin]>0){
+				s+=" "+((bin==0)?"<1":(((bin==(NUM_BINS-1))?">":"<")+(1L<<(bin-((bin==(NUM_BINS-1))?1:0)))))+"ms:"+this.counts[bin];
+			}
+			return s;
+		}
+	}
+}
@@ -0,0 +1,226 @@
+/**
+** -----------------------------------------------------------------------------**
+** CameraHttpClientSelfTest.java
+**
+** Runs CameraHttpClient against a local stub HTTP server: Content-Length,
+** chunked and close-delimited bodies, error status, connection reuse and
+** cleanup after a failing response handler
+**
+** Copyright (C) 2014 Elphel, Inc.
+**
+** -----------------------------------------------------------------------------**
+**
+**  CameraHttpClientSelfTest.java is free software: you can redistribute it and/or modify
+**  it under the terms of the GNU General Public License as published by
+**  the Free Software Foundation, either version 3 of the License, or
+**  (at your option) any later version.
+**
+**  This program is distributed in the hope that it will be useful,
+**  but WITHOUT ANY WARRANTY; without even the implied warranty of
+**  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+**  GNU General Public License for more details.
+**
+**  You should have received a copy of the GNU General Public License
+**  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+** -----------------------------------------------------------------------------**
+**
+*/
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CameraHttpClientSelfTest {
+	private static int errors=0;
+
+	/**
+	 * Start the stub server and run all checks, exits with status 1 if any of them failed
+	 * @param args not used
+	 */
+	public static void main(String[] args) throws IOException{
+		final ServerSocket serverSocket=new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		final AtomicInteger connections=new AtomicInteger(0);
+		Thread acceptThread=new Thread(){
+			public void run(){
+				while (true){
+					final Socket socket;
+					try {
+						socket=serverSocket.accept();
+					} catch (IOException e){
+						return;
+					}
+					connections.incrementAndGet();
+					Thread connectionThread=new Thread(){
+						public void run(){
+							serveConnection(socket);
+						}
+					};
+					connectionThread.setDaemon(true);
+					connectionThread.start();
+				}
+			}
+		};
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+		String base="http://127.0.0.1:"+serverSocket.getLocalPort();
+		CameraHttpClient client=new CameraHttpClient(0, 10000, 1);
+
+		// all body types at once, one error status
+		String [] urls={base+"/length/100000", base+"/chunked/300000", base+"/close/5000", base+"/status/404"};
+		int [] lengths={100000, 300000, 5000, -1};
+		Result result=fetch(client, urls, -1);
+		for (int i=0;i<urls.length;i++){
+			if (lengths[i]<0) check(urls[i]+" fails", (result.data[i]==null) && (result.failures[i]!=null));
+			else              check(urls[i]+" body", checkBody(result.data[i], lengths[i]));
+		}
+
+		// kept-alive connections are reused (the close-delimited one and the failed one need new connections)
+		int wasConnections=connections.get();
+		result=fetch(client, new String[] {urls[0], urls[1]}, -1);
+		check("second fetch bodies", checkBody(result.data[0], lengths[0]) && checkBody(result.data[1], lengths[1]));
+		check("connections reused", connections.get()==wasConnections);
+
+		// large chunked body in small chunks - should not rescan the received data on every read
+		long startTime=System.nanoTime();
+		result=fetch(client, new String[] {base+"/chunked/4000000"}, -1);
+		double seconds=1.0E-9*(System.nanoTime()-startTime);
+		check("4MB chunked body", checkBody(result.data[0], 4000000));
+		System.out.println("4MB chunked body (1000 byte chunks) received in "+String.format("%.3f",seconds)+" sec");
+
+		// handler fails on the first response - unfinished requests are aborted and do not reach the next fetch()
+		boolean thrown=false;
+		try {
+			fetch(client, new String[] {base+"/length/10", base+"/slow/20"}, 0);
+		} catch (RuntimeException e){
+			thrown=true;
+		}
+		check("handler exception is passed to the caller", thrown);
+		try {
+			Thread.sleep(1500); // let the aborted slow response arrive, it should not be taken for index 1 of the next fetch
+		} catch (InterruptedException e){
+		}
+		result=fetch(client, new String[] {base+"/length/30", base+"/length/40"}, -1);
+		check("fetch after aborted one", checkBody(result.data[0], 30) && checkBody(result.data[1], 40) &&
+				(result.responses[0]==1) && (result.responses[1]==1));
+
+		client.close();
+		serverSocket.close();
+		System.out.println((errors==0)?"All checks passed":(errors+" check(s) FAILED"));
+		if (errors>0) System.exit(1);
+	}
+
+	private static class Result{
+		byte [][] data;
+		IOException [] failures;
+		int [] responses; // number of onResponse() calls per index
+	}
+
+	private static Result fetch(CameraHttpClient client, String [] urls, final int throwOn){
+		final Result result=new Result();
+		result.data=new byte[urls.length][];
+		result.failures=new IOException[urls.length];
+		result.responses=new int[urls.length];
+		client.fetch(urls, null, new CameraHttpClient.ResponseHandler(){
+			public void onResponse(int index, byte [] data, long latencyNs){
+				if (index==throwOn) throw new RuntimeException("Handler failure for "+index);
+				result.data[index]=data;
+				result.responses[index]++;
+			}
+			public void onFailure(int index, String url, IOException e){
+				result.failures[index]=e;
+			}
+		});
+		return result;
+	}
+
+	private static void check(String name, boolean ok){
+		System.out.println((ok?"OK:     ":"FAILED: ")+name);
+		if (!ok) errors++;
+	}
+
+	private static byte bodyByte(int i){
+		return (byte) ((i*31+(i>>8))&0xff);
+	}
+
+	private static boolean checkBody(byte [] data, int length){
+		if ((data==null) || (data.length!=length)) return false;
+		for (int i=0;i<length;i++) if (data[i]!=bodyByte(i)) return false;
+		return true;
+	}
+
+	/* Serve requests on one connection until it is closed, path is /<type>/<number> */
+	private static void serveConnection(Socket socket){
+		try {
+			InputStream in=socket.getInputStream();
+			OutputStream out=new BufferedOutputStream(socket.getOutputStream());
+			while (true){
+				String requestLine=readLine(in);
+				if (requestLine==null) break;
+				String line;
+				do {
+					line=readLine(in);
+					if (line==null) return;
+				} while (line.length()>0);
+				String [] path=requestLine.split(" ")[1].split("/");
+				String type=path[1];
+				int n=Integer.parseInt(path[2]);
+				if (type.equals("status")){
+					out.write(("HTTP/1.1 "+n+" Error\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+					out.flush();
+					break;
+				}
+				if (type.equals("slow")){
+					try {
+						Thread.sleep(1000);
+					} catch (InterruptedException e){
+					}
+				}
+				byte [] body=new byte[n];
+				for (int i=0;i<n;i++) body[i]=bodyByte(i);
+				if (type.equals("chunked")){
+					out.write("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n".getBytes("US-ASCII"));
+					for (int pos=0;pos<n;pos+=1000){
+						int size=Math.min(1000, n-pos);
+						out.write((Integer.toHexString(size)+"\r\n").getBytes("US-ASCII"));
+						out.write(body, pos, size);
+						out.write("\r\n".getBytes("US-ASCII"));
+						if ((pos % 64000)==0) out.flush(); // make the client receive it in many parts
+					}
+					out.write("0\r\n\r\n".getBytes("US-ASCII"));
+					out.flush();
+				} else if (type.equals("close")){
+					out.write("HTTP/1.0 200 OK\r\n\r\n".getBytes("US-ASCII"));
+					out.write(body);
+					out.flush();
+					break;
+				} else {
+					out.write(("HTTP/1.1 200 OK\r\nContent-Length: "+n+"\r\n\r\n").getBytes("US-ASCII"));
+					out.write(body);
+					out.flush();
+				}
+			}
+		} catch (IOException e){
+			// client closed the connection (aborted request)
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e){
+			}
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException{
+		StringBuilder line=new StringBuilder();
+		while (true){
+			int c=in.read();
+			if (c<0) return null;
+			if (c=='\n') break;
+			if (c!='\r') line.append((char) c);
+		}
+		return line.toString();
+	}
+}
@@ -28,7 +28,10 @@
 import ij.IJ;
 import ij.ImageStack;
 
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 public class DebayerScissors {
@@ -53,6 +56,25 @@ public class DebayerScissors {
   		  final int                               threadsMax, // maximal step in pixels on the maxRadius for 1 angular step (i.e. 0.5)
   		  final boolean                         updateStatus, // update status info
   		  final int globalDebugLevel)
+    {
+    	return aliasScissorsStack (
+    			imageStack,
+    			debayerParameters,
+    			generateDebayerEnergy,
+    			false, // double precision FHT
+    			threadsMax,
+    			updateStatus,
+    			globalDebugLevel);
+    }
+
+    public ImageStack aliasScissorsStack (
+  		  final ImageStack                        imageStack,  // stack with 3 colors/slices with the image
+  		  final EyesisCorrectionParameters.DebayerParameters          debayerParameters, // 64 - fft size
+  		  final boolean                generateDebayerEnergy,
+  		  final boolean                             useFloat, // use single precision FHT (FloatFHT), masks are still calculated in double
+  		  final int                               threadsMax, // maximal step in pixels on the maxRadius for 1 angular step (i.e. 0.5)
+  		  final boolean                         updateStatus, // update status info
+  		  final int globalDebugLevel)
 
     {
 //  	  final int wasDebugLevel=this.debugLevel;
@@ -94,18 +116,26 @@ public class DebayerScissors {
 
 //  	  outPixles=new float[nChn][length]; // GLOBAL same as input
   	  final Thread[] threads = newThreadArray(threadsMax);
-  	  final AtomicInteger ai = new AtomicInteger(0);
-  	  final int numberOfKernels=tilesY*tilesX;
+  	  /* Tiles (size x size, step=size/2) overlap with the neighbors, so they are processed as a checkerboard in 4 phases
+  	   * (tileX%2, tileY%2). Tiles of the same phase do not overlap and are accumulated without locking. */
+  	  final int phaseStep=debayerParameters.size/step;
+  	  final int numPhases=phaseStep*phaseStep;
+  	  final AtomicInteger [] aiPhase = new AtomicInteger[numPhases];
+  	  for (i=0;i<numPhases;i++) aiPhase[i]=new AtomicInteger(0);
+  	  final CyclicBarrier phaseBarrier=new CyclicBarrier(threads.length);
+  	  final AtomicReference<Throwable> phaseError=new AtomicReference<Throwable>(); // first failure in any of the threads
   	  final long startTime = System.nanoTime();
   	  for (int ithread = 0; ithread < threads.length; ithread++) {
   		  threads[ithread] = new Thread() {
   			  public void run() {
   				  double [][] tile=        new double[nChn][debayerParameters.size * debayerParameters.size ];
-  				  double [][] both_masks;
   				  float [][] pixels=       new float[nChn][];
-  				  int chn,tileY,tileX,i;
+  				  int chn,tileY,tileX;
   				  for (chn=0;chn<nChn;chn++) pixels[chn]= (float[]) imageStack.getPixels(chn+1);
   				  DoubleFHT       fht_instance =   new DoubleFHT(); // provide DoubleFHT instance to save on initializations (or null)
+  				  FloatFHT        fht_float =      useFloat?(new FloatFHT()):null;
+  				  float [][]      tileF=           useFloat?(new float[nChn][debayerParameters.size * debayerParameters.size]):null;
+  				  float [][]      masksF=          useFloat?(new float[2][debayerParameters.size * debayerParameters.size]):null;
   				  showDoubleFloatArrays SDFA_instance=null; // just for debugging?
 
   				  deBayerScissors debayer_instance=new deBayerScissors( debayerParameters.size, // size of the square array, centar is at size/2, size/2, only top half+line will be used
@@ -115,74 +145,59 @@ public class DebayerScissors {
   						  debayerParameters.debayerRelativeWidthRedblueMain, // green mask when applied to red/blue, main (center)
   						  debayerParameters.debayerRelativeWidthRedblueClones);// green mask when applied to red/blue, clones 
   				  
-  				  for (int nTile = ai.getAndIncrement(); nTile < numberOfKernels; nTile = ai.getAndIncrement()) {
-  					  tileY = nTile /tilesX;
-  					  tileX = nTile % tilesX;
-  					  if (tileX==0) {
-  						  if (updateStatus) IJ.showStatus("Reducing sampling aliases, row "+(tileY+1)+" of "+tilesY);
-  						  if (globalDebugLevel>2) System.out.println("Reducing sampling aliases, row "+(tileY+1)+" of "+tilesY+" : "+IJ.d2s(0.000000001*(System.nanoTime()-startTime),3));
+  				  for (int phase=0;phase<numPhases;phase++){
+  					  int phaseY=phase/phaseStep;
+  					  int phaseX=phase%phaseStep;
+  					  int phaseTilesX=(tilesX-phaseX+phaseStep-1)/phaseStep;
+  					  int phaseTilesY=(tilesY-phaseY+phaseStep-1)/phaseStep;
+  					  int numberOfKernels=phaseTilesY*phaseTilesX;
+  					  if (phase>0) {
+  						  try {
+  							  phaseBarrier.await(); // all tiles of the previous phase are accumulated
+  						  } catch (InterruptedException e) { // barrier is broken for the other threads too
+  							  phaseError.compareAndSet(null, e);
+  							  return;
+  						  } catch (BrokenBarrierException e) {
+  							  phaseError.compareAndSet(null, e);
+  							  return;
+  						  }
   					  }
+  					  try {
+  						  for (int nTile = aiPhase[phase].getAndIncrement(); nTile < numberOfKernels; nTile = aiPhase[phase].getAndIncrement()) {
+  							  if (phaseError.get()!=null) break; // some other thread failed - only pass the remaining barriers
+  							  tileY = phaseY+phaseStep*(nTile /phaseTilesX);
+  							  tileX = phaseX+phaseStep*(nTile % phaseTilesX);
+  							  if (tileX==0) {
+  								  if (updateStatus) IJ.showStatus("Reducing sampling aliases, row "+(tileY+1)+" of "+tilesY);
+  								  if (globalDebugLevel>2) System.out.println("Reducing sampling aliases, row "+(tileY+1)+" of "+tilesY+" : "+IJ.d2s(0.000000001*(System.nanoTime()-startTime),3));
+  							  }
   				  
-//  					  if ((tileY==yTileDebug) && (tileX==xTileDebug)) this.debugLevel=4;
-//  					  else this.debugLevel=wasDebugLevel;
-  					  for (chn=0;chn<nChn;chn++){
-  						  extractSquareTile( pixels[chn], // source pixel array,
-  								  tile[chn], // will be filled, should have correct size before call
-  								  slidingWindow, // window (same size as the kernel)
-  								  imgWidth, // width of pixels array
-  								  tileX*step, // left corner X
-  								  tileY*step); // top corner Y
-  					  }
-
-  					  /* Scale green channel x0.5 as there are twice more pixels there as in red or blue. Or move it somewhere else and multiply to original range ? */
-  					  for (i=0;i<tile[greenChn].length;i++) tile[greenChn][i]*=0.5;
-  					  if ((tileY==yTileDebug) && (tileX==xTileDebug)) {
-  						  if (SDFA_instance==null) SDFA_instance=      new showDoubleFloatArrays();
-  						  SDFA_instance.showArrays (tile.clone(),debayerParameters.size,debayerParameters.size, "x"+(tileX*step)+"_y"+(tileY*step));
-  					  }
-  					  for (chn=0;chn<nChn;chn++){
-  						  fht_instance.swapQuadrants(tile[chn]);
-  						  fht_instance.transform(tile[chn]);
-  					  }
-  					  if ((tileY==yTileDebug) && (tileX==xTileDebug) && (SDFA_instance!=null)) SDFA_instance.showArrays (tile.clone(),debayerParameters.size,debayerParameters.size, "tile-fht");
-  					  both_masks= debayer_instance.aliasScissors(tile[greenChn], // fht array for green, will be masked in-place
-  							  debayerParameters.debayerThreshold, // no high frequencies - use default uniform filter
-  							  debayerParameters.debayerGamma, // power function applied to the amplitudes before generating spectral masks
-  							  debayerParameters.debayerBonus, // scale far pixels as (1.0+bonus*r/rmax)
-  							  debayerParameters.mainToAlias,// relative main/alias amplitudes to enable lixels (i.e. 0.5 means that if alias is >0.5*main, the pixel will be masked out)
-  							  debayerParameters.debayerMaskBlur, // for both masks  sigma for gaussian blur of the binary masks (<0 -do not use "scissors")
-  							  debayerParameters.debayerUseScissors, // use "scissors", if false - just apply "diamond" ands "square" with DEBAYER_PARAMETERS.debayerRelativeWidthGreen and DEBAYER_PARAMETERS.debayerRelativeWidthRedblue
-  							  ((tileY==yTileDebug) && (tileX==xTileDebug))?4:1);
-  					  //                                               1); // internal debug level ((this.debugLevel>2) && (yTile==yTile0) && (xTile==xTile0))?3:1;
-  					  if ((tileY==yTileDebug) && (tileX==xTileDebug) && (SDFA_instance!=null)) {
-  						  SDFA_instance.showArrays (tile.clone(),debayerParameters.size,debayerParameters.size, "A00");
-  						  SDFA_instance.showArrays (both_masks.clone(),debayerParameters.size,debayerParameters.size, "masks");
-  					  }
-  					  if (debayerEnergy!=null) {
-  						  debayerEnergy[tileY*tilesX+tileX]=debayer_instance.getMidEnergy();
-  					  }
-  					  for (chn=0;chn<nChn;chn++) {
-  						  tile[chn]=fht_instance.multiply(tile[chn],both_masks[(chn==greenChn)?0:1],false);
-  						  fht_instance.inverseTransform(tile[chn]);
-  						  fht_instance.swapQuadrants(tile[chn]);
-  						  /* accumulate result */
-  						  /*This is synchronized method. It is possible to make threads to write to non-overlapping regions of the outPixles, but as the accumulation
-  						   * takes just small fraction of severtal FHTs, it should be OK - reasonable number of threads will spread and not "stay in line"
-  						   */
-
-  						  accumulateSquareTile(outPixles[chn], //  float pixels array to accumulate tile
-  								  tile[chn], // data to accumulate to the pixels array
-  								  imgWidth, // width of pixels array
-  								  tileX*step, // left corner X
-  								  tileY*step); // top corner Y
+	//  						  if ((tileY==yTileDebug) && (tileX==xTileDebug)) this.debugLevel=4;
+	//  						  else this.debugLevel=wasDebugLevel;
+  							  boolean debugTile=(tileY==yTileDebug) && (tileX==xTileDebug);
+  							  double midEnergy;
+  							  if (useFloat && !debugTile){ // debug tile uses double
+  								  midEnergy=debayerTile(pixels, outPixles, slidingWindow, tileF, masksF, fht_float, debayer_instance,
+  										  debayerParameters, greenChn, imgWidth, step, tileX, tileY);
+  							  } else {
+  								  if (debugTile && (SDFA_instance==null)) SDFA_instance= new showDoubleFloatArrays();
+  								  midEnergy=debayerTile(pixels, outPixles, slidingWindow, tile, fht_instance, debayer_instance,
+  										  debayerParameters, greenChn, imgWidth, step, tileX, tileY,
+  										  debugTile?SDFA_instance:null);
+  							  }
+  							  if (debayerEnergy!=null) {
+  								  debayerEnergy[tileY*tilesX+tileX]=midEnergy;
+  							  }
+  						  }
+  					  } catch (Throwable t){ // record the failure, but keep arriving at the barriers so other threads do not wait forever
+  						  phaseError.compareAndSet(null, t);
   					  }
-  					  if ((tileY==yTileDebug) && (tileX==xTileDebug) && (SDFA_instance!=null)) SDFA_instance.showArrays (tile.clone(),debayerParameters.size,debayerParameters.size, "B00");
-  					  
   				  }
   			  }
   		  };
   	  }		      
   	  startAndJoin(threads);
+  	  EyesisCorrections.rethrowThreadError(phaseError.get());
  // 	  this.debugLevel=wasDebugLevel;
   	  /* prepare result stack to return */
   	  ImageStack outStack=new ImageStack(imgWidth,imgHeight);
@@ -197,6 +212,125 @@ public class DebayerScissors {
   	  return outStack;
     }
 
+    /**
+     * Remove sampling aliases from one tile: extract windowed tile of each color, transform, apply masks generated
+     * from the green spectrum and accumulate the result
+     * @param pixels source pixels, per color
+     * @param outPixels output pixels to accumulate the tile to, per color
+     * @param slidingWindow window, size x size
+     * @param tile per-thread buffers, per color, size x size each (elements may be replaced)
+     * @param fht_instance per-thread DoubleFHT instance
+     * @param debayer_instance per-thread deBayerScissors instance
+     * @param debayerParameters debayer parameters
+     * @param greenChn index of the green color
+     * @param imgWidth image width
+     * @param step tile step (size/2)
+     * @param tileX horizontal tile number
+     * @param tileY vertical tile number
+     * @param SDFA_instance show intermediate results for this tile if not null
+     * @return mid-range spectral energy of the tile
+     */
+    private double debayerTile(
+    		float [][]            pixels,
+    		float [][]            outPixels,
+    		double []             slidingWindow,
+    		double [][]           tile,
+    		DoubleFHT             fht_instance,
+    		deBayerScissors       debayer_instance,
+    		EyesisCorrectionParameters.DebayerParameters debayerParameters,
+    		int                   greenChn,
+    		int                   imgWidth,
+    		int                   step,
+    		int                   tileX,
+    		int                   tileY,
+    		showDoubleFloatArrays SDFA_instance){
+    	int nChn=tile.length;
+    	for (int chn=0;chn<nChn;chn++){
+    		extractSquareTile( pixels[chn], // source pixel array,
+    				tile[chn], // will be filled, should have correct size before call
+    				slidingWindow, // window (same size as the kernel)
+    				imgWidth, // width of pixels array
+    				tileX*step, // left corner X
+    				tileY*step); // top corner Y
+    	}
+    	/* Scale green channel x0.5 as there are twice more pixels there as in red or blue. Or move it somewhere else and multiply to original range ? */
+    	for (int i=0;i<tile[greenChn].length;i++) tile[greenChn][i]*=0.5;
+    	if (SDFA_instance!=null) SDFA_instance.showArrays (tile.clone(),debayerParameters.size,debayerParameters.size, "x"+(tileX*step)+"_y"+(tileY*step));
+    	for (int chn=0;chn<nChn;chn++){
+    		fht_instance.swapQuadrants(tile[chn]);
+    		fht_instance.transform(tile[chn]);
+    	}
+    	if (SDFA_instance!=null) SDFA_instance.showArrays (tile.clone(),debayerParameters.size,debayerParameters.size, "tile-fht");
+    	double [][] both_masks= debayer_instance.aliasScissors(tile[greenChn], // fht array for green
+    			debayerParameters.debayerThreshold, // no high frequencies - use default uniform filter
+    			debayerParameters.debayerGamma, // power function applied to the amplitudes before generating spectral masks
+    			debayerParameters.debayerBonus, // scale far pixels as (1.0+bonus*r/rmax)
+    			debayerParameters.mainToAlias,// relative main/alias amplitudes to enable lixels (i.e. 0.5 means that if alias is >0.5*main, the pixel will be masked out)
+    			debayerParameters.debayerMaskBlur, // for both masks  sigma for gaussian blur of the binary masks (<0 -do not use "scissors")
+    			debayerParameters.debayerUseScissors, // use "scissors", if false - just apply "diamond" ands "square" with DEBAYER_PARAMETERS.debayerRelativeWidthGreen and DEBAYER_PARAMETERS.debayerRelativeWidthRedblue
+    			(SDFA_instance!=null)?4:1);
+    	if (SDFA_instance!=null) {
+    		SDFA_instance.showArrays (tile.clone(),debayerParameters.size,debayerParameters.size, "A00");
+    		SDFA_instance.showArrays (both_masks.clone(),debayerParameters.size,debayerParameters.size, "masks");
+    	}
+    	for (int chn=0;chn<nChn;chn++) {
+    		tile[chn]=fht_instance.multiply(tile[chn],both_masks[(chn==greenChn)?0:1],false);
+    		fht_instance.inverseTransform(tile[chn]);
+    		fht_instance.swapQuadrants(tile[chn]);
+    		/* accumulate result, not synchronized - tiles of the same phase do not overlap */
+    		accumulateSquareTile(outPixels[chn], //  float pixels array to accumulate tile
+    				tile[chn], // data to accumulate to the pixels array
+    				imgWidth, // width of pixels array
+    				tileX*step, // left corner X
+    				tileY*step); // top corner Y
+    	}
+    	if (SDFA_instance!=null) SDFA_instance.showArrays (tile.clone(),debayerParameters.size,debayerParameters.size, "B00");
+    	return debayer_instance.getMidEnergy();
+    }
+
+    /* Same as above, but in single precision (FloatFHT), masks are calculated in double and converted to masksF */
+    private double debayerTile(
+    		float [][]            pixels,
+    		float [][]            outPixels,
+    		double []             slidingWindow,
+    		float [][]            tileF,
+    		float [][]            masksF,
+    		FloatFHT              fht_float,
+    		deBayerScissors       debayer_instance,
+    		EyesisCorrectionParameters.DebayerParameters debayerParameters,
+    		int                   greenChn,
+    		int                   imgWidth,
+    		int                   step,
+    		int                   tileX,
+    		int                   tileY){
+    	int nChn=tileF.length;
+    	for (int chn=0;chn<nChn;chn++){
+    		EyesisCorrections.extractSquareTile(pixels[chn], tileF[chn], slidingWindow, imgWidth, tileX*step, tileY*step);
+    	}
+    	for (int i=0;i<tileF[greenChn].length;i++) tileF[greenChn][i]*=0.5f;
+    	for (int chn=0;chn<nChn;chn++){
+    		fht_float.swapQuadrants(tileF[chn]);
+    		fht_float.transform(tileF[chn]);
+    	}
+    	double [][] both_masks= debayer_instance.aliasScissors(tileF[greenChn],
+    			debayerParameters.debayerThreshold,
+    			debayerParameters.debayerGamma,
+    			debayerParameters.debayerBonus,
+    			debayerParameters.mainToAlias,
+    			debayerParameters.debayerMaskBlur,
+    			debayerParameters.debayerUseScissors,
+    			1);
+    	for (int n=0;n<2;n++) for (int i=0;i<masksF[n].length;i++) masksF[n][i]=(float) both_masks[n][i];
+    	for (int chn=0;chn<nChn;chn++) {
+    		fht_float.multiplyInPlace(tileF[chn],masksF[(chn==greenChn)?0:1],false);
+    		fht_float.inverseTransform(tileF[chn]);
+    		fht_float.swapQuadrants(tileF[chn]);
+    		/* not synchronized - tiles of the same phase do not overlap */
+    		EyesisCorrections.accumulateSquareTile(outPixels[chn], tileF[chn], imgWidth, tileX*step, tileY*step);
+    	}
+    	return debayer_instance.getMidEnergy();
+    }
+
     /* ======================================================================== */
     /**extract and multiply by window function (same size as kernel itself) */
      void extractSquareTile(float [] pixels, // source pixel array,
@@ -248,9 +382,9 @@ public class DebayerScissors {
      }
 
      
-   /* ======================================================================== */
-   /* accumulate square tile to the pixel array (tile may extend beyond the array, will be cropped) */
-     synchronized void  accumulateSquareTile(
+   /* accumulate square tile to the pixel array (tile may extend beyond the array, will be cropped).
+    * Not synchronized - caller should not accumulate overlapping tiles from different threads at the same time */
+     void  accumulateSquareTile(
    		  float [] pixels, //  float pixels array to accumulate tile
    		  double []  tile, // data to accumulate to the pixels array
    		  int       width, // width of pixels array
@@ -273,7 +407,7 @@ public class DebayerScissors {
    		  }
    	  }
      }
-     synchronized void  accumulateSquareTile(
+     void  accumulateSquareTile(
    		  double [] pixels, //  float pixels array to accumulate tile
    		  double []  tile, // data to accumulate to the pixels array
    		  int       width, // width of pixels array
@@ -152,11 +152,9 @@ public class DenseCorrespondence {
 		for (int i=0;i<imgPairs.length;i++) for (int n=0;n<2;n++) imgList[imgPairs[i][n]]=true;
 		int plane=cyclopeanTile.getForegroundIndex(); //foregroundIndex should be updated to point next to the  last processed foreground (may be after the last)
 //		for (;(plane<cyclopeanTile.getNumberOfPlanes()) && (cyclopeanTile.getPlaneDisparity(plane)<disparityMin);plane++);{
-		for (;(plane<cyclopeanTile.getNumberOfPlanes()) && (cyclopeanTile.getPlaneDisparity(plane)>=disparityMin);plane++);{
-//			if ((plane>=cyclopeanTile.getNumberOfPlanes()) || (cyclopeanTile.getPlaneDisparity(plane)>disparityMax)){
-//				return;// nothing left in this tile
-//			}
-			double disparity=cyclopeanTile.getPlaneDisparity(plane);
+		for (;(plane<cyclopeanTile.getNumberOfPlanes()) && (cyclopeanTile.getPlaneDisparity(plane)>=disparityMin);plane++){
+			double disparity=cyclopeanTile.getPlaneDisparity(plane); // plane is in range - checked by the loop condition
+			if (disparity>disparityMax) continue; // closer than the current range - already processed
 			double [][][] planeStrength=new double [cyclopeanTile.getNumberOfPlanes()][imgPairs.length][];
 			//disparityMin..disparityMax should contain not more than 1 plane (verify? enforce?)
 			for (int planeOther=plane; planeOther<cyclopeanTile.getNumberOfPlanes() ;planeOther++)  planeStrength[plane]=null;
@@ -208,8 +206,7 @@ public class DenseCorrespondence {
 
 		}
 	} // end of private void disparitySweepTile	
-	
-	
+
 	/**
 	 * Calculate disparity correction by processing selected pair of images (normally - all pairs)
 	 * @param visibility - square visibility array for each image twice the tile period (2*16=32), up-scaled by this.subpixel (normally 4)
@@ -378,6 +375,8 @@ public class DenseCorrespondence {
 		double [] maskTotal=new double [imgPairs.length];
 		double [] disparityArray=null;
 		double [] minCorr=new double [imgPairs.length];
+		// frequency domain image tiles, calculated at first use and reused for all the pairs that include the image
+		double [][][] imageSpectra=new double [imgList.length][][];
 		// calculate center correlations for each enabled channel, use blurred visibility masks
 		for (int nPair=0;nPair<imgPairs.length;nPair++){
 			int nImg=imgPairs[nPair][0];
@@ -436,13 +435,22 @@ public class DenseCorrespondence {
 				double [] combinedChnCorr=new double [scaledWindow.length];
 				for (int i=0;i<combinedChnCorr.length;i++) combinedChnCorr[i]=0.0;
 				double[][]  corr=new double [imageTiles[nImg].length][];
+				for (int n=0;n<2;n++){
+					int img=imgPairs[nPair][n];
+					if (imageSpectra[img]==null){
+						imageSpectra[img]=new double [imageTiles[img].length][];
+						for (int iChn=0;iChn<imageTiles[img].length;iChn++){
+							imageSpectra[img][iChn]=doubleFHT.directSpectrum(imageTiles[img][iChn].clone());
+						}
+					}
+				}
 				for (int iChn=0;iChn<imageTiles[nImg].length;iChn++){
-					corr[iChn]=doubleFHT.correlate (
-							imageTiles[sImg][iChn],
-							imageTiles[nImg][iChn],
+					corr[iChn]=doubleFHT.correlateSpectra (
+							imageSpectra[sImg][iChn],
+							imageSpectra[nImg][iChn],
 							refineHighPassSigma, // not scaled - they are in frequency domain
 							refineLowPassSigma/this.subpixel,  // scaled to keep the same
-							refinePhaseCoeff); // second will be modified
+							refinePhaseCoeff);
 					for (int i=0;i<combinedChnCorr.length;i++) combinedChnCorr[i]+=normCorrWeights[channelIndexWeights[iChn]]*corr[iChn][i];
 				}
 				if (debugLevel>3){ // for each channel - show per-channel and combine correlation shows imageStack for each image pair
@@ -1436,7 +1444,11 @@ public class DenseCorrespondence {
     		this.globPlaneOpaque=new float[this.numPlanes][];
     		this.imageTransparency=null;
     		this.enabledPlane=new boolean[this.numPlanes];
+    		this.planeModified=new AtomicBoolean(false);
+    		this.lastModifiedPlane=-1;
+    		this.planeSet=new AtomicBoolean[this.numPlanes];
     		for (int i=0;i<this.numPlanes;i++){
+    			this.planeSet[i]=new AtomicBoolean(false);
     			this.globPlaneOpaque[i]= null;
     			this.enabledPlane[i]=true;
     		}
@@ -39,12 +39,14 @@ import java.io.IOException;
 //import java.io.StringWriter;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Properties;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.SwingUtilities;
 
+import Jama.CholeskyDecomposition;
 import Jama.LUDecomposition;
 import Jama.Matrix;
 //import src.java.org.apache.commons.configuration.*;
@@ -129,6 +131,8 @@ public class Distortions {
     public int      extraDecimals=0;
 
     public boolean   threadedLMA=true; // use threaded/partial method to solve LMA 
+    public boolean   cacheImageLMA=true; // keep per-image Jt*J contributions, reuse them for the images with unchanged parameters and data
+    private ImageLMAContribution [] imageLMACache=null;
     public LMAArrays lMAArrays=null;
     public LMAArrays  savedLMAArrays=null;
     public long startTime=0;
@@ -166,6 +170,29 @@ public class Distortions {
         	return lma;
         }
     }
+    public class CompactJacobian {
+        public int    [] parIndices=null; // indices in the parameter vector of the parameters used by the image (ascending) 
+        public int    [] imageParIndices=null; // image parameter numbers corresponding to parIndices
+        public double [][] jacobian=null; // [index in parIndices][2*point+{0,1}]
+    }
+    /**
+     * Contribution of a single grid image to Jt*J and Jt*diff, indexed by the image parameter numbers,
+     * so it stays valid when other images are enabled/disabled and the parameter vector is rebuilt 
+     */
+    public class ImageLMAContribution {
+        public double []  imgVector=null;       // image parameters the contribution was calculated for
+        public boolean [] imgMask=null;         // image parameters that were fitted
+        public long       dataHash=0;           // hash of the image nodes target coordinates, measured values and weights
+        public long       modelHash=0;          // hash of the model state not included in the parameter vector (see modelStateHash())
+        public int    []  imageParIndices=null; // image parameter numbers of the active parameters
+        public double []  packedJtByJ=null;     // upper triangle of Jt*J for the active parameters, packed by rows
+        public double []  jTByDiff=null;        // Jt*diff for the active parameters
+        public double []  fX=null;              // calculated pixel coordinates of the image nodes
+        public boolean matches(double [] imgVector, boolean [] imgMask, long dataHash, long modelHash){
+        	return (this.dataHash==dataHash) && (this.modelHash==modelHash) &&
+        			Arrays.equals(this.imgVector, imgVector) && Arrays.equals(this.imgMask, imgMask);
+        }
+    }
     public Distortions (){}
 	public Distortions (
 			LensDistortionParameters lensDistortionParameters,
@@ -3396,6 +3423,7 @@ For each point in the image
 	 * @param lensDistortionParameters LensDistortionParameters class instance (may be reused between calls) 
 	 * @param calcJacobian calculate Jacobian matrix (if false - only FX)
 	 * @return partial Jacobian matrix, number of rows= vector.length, number of columns - 2*indexCount
+	 *   (rows for the parameters not used by this image are null)
 	 *   NOTE: this one is thread safe
 	 */
 	
@@ -3407,9 +3435,35 @@ For each point in the image
 			final int []  imageStartIndex, // start index in patternXYZ array (length - difference to the next, includes extra last element)
 			final LensDistortionParameters lensDistortionParameters, // initialize one per each thread? Or for each call?
 			boolean calcJacobian){ // when false, modifies only this.lensDistortionParameters.*
+		CompactJacobian compactJacobian=calculatePartialFxAndCompactJacobian(
+				numImage,
+				vector,
+				patternXYZ,
+				vectorFX,
+				imageStartIndex,
+				lensDistortionParameters,
+				calcJacobian);
+		if (compactJacobian==null) return null;
+		double [][] jacobian=new double[vector.length][];
+		for (int n=0;n<compactJacobian.parIndices.length;n++) jacobian[compactJacobian.parIndices[n]]=compactJacobian.jacobian[n];
+		return jacobian;
+	}
+	/**
+	 * Same as calculatePartialFxAndJacobian(), but Jacobian has rows only for the parameters used by this image,
+	 * so the cost does not depend on the total number of parameters 
+	 * @return compact Jacobian (list of active parameters and their rows) or null if calcJacobian is false
+	 *   NOTE: this one is thread safe
+	 */
+	public CompactJacobian calculatePartialFxAndCompactJacobian(
+			final int numImage,      // number of grid image
+			final double [] vector,  // parameters vector
+			final double [][] patternXYZ, // this.targetXYZ
+			final double [] vectorFX,     // non-overlapping segments will be filled
+			final int []  imageStartIndex, // start index in patternXYZ array (length - difference to the next, includes extra last element)
+			final LensDistortionParameters lensDistortionParameters, // initialize one per each thread? Or for each call?
+			boolean calcJacobian){ // when false, modifies only this.lensDistortionParameters.*
 		final int    indexStart=imageStartIndex[numImage];      // start index in patternXYZ array
 		final int    indexCount=imageStartIndex[numImage+1]-imageStartIndex[numImage]; // number of nodes in the current grid image
-		int fittedParNumber=vector.length; //this.currentVector.length;
 		if (this.debugLevel>3) {
 			System.out.println("calculatePartialFxAndJacobian(), calcJacobian="+calcJacobian+" indexStart="+indexStart+" indexCount="+indexCount);
 			for (int ii=0;ii<vector.length;ii++) System.out.println("vector["+ii+"]: "+vector[ii]);
@@ -3419,20 +3473,21 @@ For each point in the image
 		int []     imgMap=new int[vector.length];
 		for (int i=0;i<imgMap.length;i++) imgMap[i]=-1;
 		for (int i=0;i<imgRMap.length;i++) if (imgRMap[i]>=0)imgMap[imgRMap[i]]=i;
+		CompactJacobian compactJacobian=null;
 		double [][] jacobian=null;
+		double [][] activeInterDerivatives=null; // interParameterDerivatives rows for the active parameters
 		if (calcJacobian) {
-//			jacobian=new double[fittedParNumber][indexCount*2];
-//			for (int i=0;i<fittedParNumber;i++) for (int j=0;j<jacobian[0].length;j++) jacobian[i][j]=0.0;
-			jacobian=new double[fittedParNumber][];
-			// TODO: verify that only small number of rows is calculated
-			for (int i=0;i<fittedParNumber;i++) {
-				if (imgMap[i]>=0) {
-					jacobian[i]=new double [indexCount*2];
-					for (int j=0;j<jacobian[i].length;j++) jacobian[i][j]=0.0;
-				} else {
-					jacobian[i]=null;
-				}
-			}
+			int numActive=0;
+			for (int i=0;i<imgMap.length;i++) if (imgMap[i]>=0) numActive++;
+			compactJacobian=new CompactJacobian();
+			compactJacobian.parIndices=new int [numActive];
+			numActive=0;
+			for (int i=0;i<imgMap.length;i++) if (imgMap[i]>=0) compactJacobian.parIndices[numActive++]=i;
+			compactJacobian.imageParIndices=new int [numActive];
+			for (int n=0;n<numActive;n++) compactJacobian.imageParIndices[n]=imgMap[compactJacobian.parIndices[n]];
+			compactJacobian.jacobian=new double [numActive][indexCount*2];
+			jacobian=compactJacobian.jacobian;
+			activeInterDerivatives=new double [numActive][];
 		}
 		double [][] interParameterDerivatives=new double [getNumInputs()][];
 		//			initialize arrays for parameters and derivatives conversion
@@ -3450,6 +3505,9 @@ For each point in the image
 				calcJacobian?interParameterDerivatives:null, // [22][]
 						imgVector,
 						imgMask); // calculate only selected derivatives (all parVect values are still
+		if (calcJacobian) {
+			for (int n=0;n<activeInterDerivatives.length;n++) activeInterDerivatives[n]=interParameterDerivatives[imgMap[compactJacobian.parIndices[n]]];
+		}
 
 		// iterate through points, for each calculate pixelx, pixely and derivatives			
 		for (int pointNum=0;pointNum<indexCount;pointNum++){
@@ -3477,18 +3535,19 @@ For each point in the image
 					for (int ii=0;ii<derivatives.length;ii++) all+=" "+ii+":"+IJ.d2s(derivatives[ii][0],3)+"/"+IJ.d2s(derivatives[ii][1],3);
 					System.out.println(all);
 				}
-				for (int i=0;i<jacobian.length;i++) if (imgMap[i]>=0){
+				for (int n=0;n<jacobian.length;n++){
+					double [] interDerivatives=activeInterDerivatives[n];
 					double sX=0,sY=0;
 					for (int k=0;k<derivatives.length;k++){
-						sX+=interParameterDerivatives[imgMap[i]][k]*derivatives[k][0];
-						sY+=interParameterDerivatives[imgMap[i]][k]*derivatives[k][1];
+						sX+=interDerivatives[k]*derivatives[k][0];
+						sY+=interDerivatives[k]*derivatives[k][1];
 					}
-					jacobian[i][2*pointNum]=  sX;
-					jacobian[i][2*pointNum+1]=sY;
+					jacobian[n][2*pointNum]=  sX;
+					jacobian[n][2*pointNum+1]=sY;
 				}
 			}
 		}
-		return jacobian;
+		return compactJacobian;
 	}
 	
 	
@@ -4741,65 +4800,107 @@ List calibration
    		}
    		final AtomicInteger stopRequested=this.stopRequested;
 		final AtomicBoolean interruptedAtomic=new AtomicBoolean();
+// each thread accumulates Jt*J in its own packed upper-triangular buffer (row i starts at i*numPars-i*(i-1)/2), reduced after all images are processed
+		final double [][] threadJtByJ=   new double [threads.length][];
+		final double [][] threadJtByDiff=new double [threads.length][];
+		final AtomicInteger threadIndexAtomic = new AtomicInteger(0);
+		if (this.cacheImageLMA){
+			if ((this.imageLMACache==null) || (this.imageLMACache.length!=selectedImages.length)) this.imageLMACache=new ImageLMAContribution[selectedImages.length];
+		} else {
+			this.imageLMACache=null;
+		}
+		final ImageLMAContribution [] lmaCache=this.imageLMACache;
+		final long modelHash=(lmaCache!=null)?modelStateHash(lensDistortionParametersProto):0;
+		final AtomicInteger cachedImagesAtomic = new AtomicInteger(0);
    		for (int ithread = 0; ithread < threads.length; ithread++) {
    			threads[ithread] = new Thread() {
    				public void run() {
    					LensDistortionParameters lensDistortionParameters=lensDistortionParametersProto.clone(); // see - if that is needed - maybe new is OK
    					//   					LensDistortionParameters lensDistortionParameters= new LensDistortionParameters();
+   					int threadIndex=threadIndexAtomic.getAndIncrement();
+   					double [] packedJtByJ=null;     // allocated on the first image processed by this thread
+   					double [] partialJtByDiff=null;
+   					double [] weightedLine=null;
    					for (int numImage=imageNumberAtomic.getAndIncrement(); (numImage<selectedImages.length) && !interruptedAtomic.get();numImage=imageNumberAtomic.getAndIncrement()){
-   						double [][] partialJacobian= calculatePartialFxAndJacobian(
-   								numImage,      // number of grid image
-   								vector,  // parameters vector
-   								patternXYZ, // this.targetXYZ
-   								fX,     // non-overlapping segments will be filled
-   								imageStartIndex, // start index in patternXYZ array (length - difference to the next, includes extra last element)
-   								lensDistortionParameters, // initialize one per each tread? Or for each call?
-   								true); // when false, modifies only this.lensDistortionParameters.*
-
-   						int length=2*(imageStartIndex[numImage+1]-imageStartIndex[numImage]);
-   						int start= 2*imageStartIndex[numImage];
-
-   						double [][] partialJtByJmod=new double [numPars][numPars]; // out of heap space
-   						double []   partialJtByDiff=new double [numPars];
- 
-   						for (int i=0;i<numPars;i++) if (partialJacobian[i]!=null) {
-   							for (int j=i;j<numPars;j++) if (partialJacobian[j]!=null) {
-   								partialJtByJmod[i][j]=0.0;
+   						int indexStart=imageStartIndex[numImage];
+   						int length=2*(imageStartIndex[numImage+1]-indexStart);
+   						int start= 2*indexStart;
+   						if (packedJtByJ==null){
+   							packedJtByJ=    new double [numPars*(numPars+1)/2];
+   							partialJtByDiff=new double [numPars];
+   							threadJtByJ[threadIndex]=   packedJtByJ;
+   							threadJtByDiff[threadIndex]=partialJtByDiff;
+   						}
+   						ImageLMAContribution contribution=null;
+   						double []  imgVector=null;
+   						boolean [] imgMask=null;
+   						long       dataHash=0;
+   						if (lmaCache!=null){ // reuse contribution if neither image parameters nor its data changed
+   							imgVector=fittingStrategy.getImageParametersVector(numImage, vector);
+   							imgMask=  fittingStrategy.getImageParametersVectorMask(numImage);
+   							dataHash= imageDataHash(Y, weightFunction, patternXYZ, indexStart, length/2);
+   							contribution=lmaCache[numImage];
+   							if ((contribution!=null) && contribution.matches(imgVector, imgMask, dataHash, modelHash)){
+   								System.arraycopy(contribution.fX, 0, fX, start, length);
+   								cachedImagesAtomic.getAndIncrement();
+   							} else {
+   								contribution=null;
+   							}
+   						}
+   						if (contribution==null){
+   							CompactJacobian partialJacobian= calculatePartialFxAndCompactJacobian(
+   									numImage,      // number of grid image
+   									vector,  // parameters vector
+   									patternXYZ, // this.targetXYZ
+   									fX,     // non-overlapping segments will be filled
+   									imageStartIndex, // start index in patternXYZ array (length - difference to the next, includes extra last element)
+   									lensDistortionParameters, // initialize one per each tread? Or for each call?
+   									true); // when false, modifies only this.lensDistortionParameters.*
+   							int numActive=partialJacobian.parIndices.length;
+   							contribution=new ImageLMAContribution();
+   							contribution.imageParIndices=partialJacobian.imageParIndices;
+   							contribution.packedJtByJ=new double [numActive*(numActive+1)/2];
+   							contribution.jTByDiff=   new double [numActive];
+   							if ((weightedLine==null) || (weightedLine.length<length)) weightedLine=new double [length];
+   							int index=0;
+   							for (int ni=0;ni<numActive;ni++){
+   								double [] line=partialJacobian.jacobian[ni];
    								if (weightFunction!=null) {
-   									for (int k=0;k<length;k++) partialJtByJmod[i][j]+=partialJacobian[i][k]*partialJacobian[j][k]*weightFunction[start+k];
-   								} else {
-   									for (int k=0;k<length;k++) partialJtByJmod[i][j]+=partialJacobian[i][k]*partialJacobian[j][k];
+   									for (int k=0;k<length;k++) weightedLine[k]=line[k]*weightFunction[start+k];
+   									line=weightedLine;
    								}
-   							}	
-   						}
-
-   						double [] partialDiff=new double[length];
-   						for (int k=0;k<length;k++) 	partialDiff[k]=Y[start+k]-fX[start+k];
-
-   						for (int i=0;i<numPars;i++) if (partialJacobian[i]!=null) {
-   							partialJtByDiff[i]=0.0;
-   							if (weightFunction!=null)
-   								for (int k=0;k<length;k++) partialJtByDiff[i]+=partialJacobian[i][k]*partialDiff[k]*weightFunction[start+k];
-   							else
-   								for (int k=0;k<length;k++) partialJtByDiff[i]+=partialJacobian[i][k]*partialDiff[k];
-
+   								for (int nj=ni;nj<numActive;nj++){
+   									double [] line2=partialJacobian.jacobian[nj];
+   									double d=0.0;
+   									for (int k=0;k<length;k++) d+=line[k]*line2[k];
+   									contribution.packedJtByJ[index++]=d;
+   								}
+   								double d=0.0;
+   								for (int k=0;k<length;k++) d+=line[k]*(Y[start+k]-fX[start+k]);
+   								contribution.jTByDiff[ni]=d;
+   							}
+   							if (lmaCache!=null){
+   								contribution.imgVector=imgVector;
+   								contribution.imgMask=  imgMask;
+   								contribution.dataHash= dataHash;
+   								contribution.modelHash=modelHash;
+   								contribution.fX=Arrays.copyOfRange(fX, start, start+length);
+   								lmaCache[numImage]=contribution;
+   							}
    						}
-   						// wrong! fix it
-/*   						
-   						synchronized(this){
-   							for (int i=0;i<numPars;i++) if (partialJacobian[i]!=null){
-   								JtByDiff[i]+=partialJtByDiff[i];
-   								for (int j=i;j<numPars;j++) JtByJmod[i][j]+=partialJtByJmod[i][j];
+   						// add image contribution using the current parameter vector layout (it may change when images are enabled/disabled)
+   						int [] imgRMap=fittingStrategy.getImageParametersVectorReverseMap(numImage);
+   						int [] imageParIndices=contribution.imageParIndices;
+   						int index=0;
+   						for (int ni=0;ni<imageParIndices.length;ni++){
+   							int i=imgRMap[imageParIndices[ni]];
+   							for (int nj=ni;nj<imageParIndices.length;nj++){
+   								int j=imgRMap[imageParIndices[nj]];
+   								if (i<=j) packedJtByJ[i*numPars-(i*(i-1))/2-i+j]+=contribution.packedJtByJ[index++]; // packed index of (i,j) is i*numPars-i*(i-1)/2-i+j
+   								else      packedJtByJ[j*numPars-(j*(j-1))/2-j+i]+=contribution.packedJtByJ[index++];
    							}
+   							partialJtByDiff[i]+=contribution.jTByDiff[ni];
    						}
- */  						
-   						synchronizedCombinePartialJacobians(
-   								JtByJmod, //Transposed Jacobian multiplied by Jacobian
-   								JtByDiff,
-   								partialJacobian,
-   								partialJtByDiff,
-   								partialJtByJmod,
-   								numPars	);
    						
    						final int numFinished=imageFinishedAtomic.getAndIncrement();
 //   						IJ.showProgress(progressValues[numFinished]);
@@ -4821,10 +4922,31 @@ List calibration
    			};
    		}
    		startAndJoin(threads);
+   		if (!interruptedAtomic.get()) {
+   			// reduce per-thread buffers, rows are distributed between threads
+   			final AtomicInteger rowAtomic = new AtomicInteger(0);
+   			for (int ithread = 0; ithread < threads.length; ithread++) {
+   				threads[ithread] = new Thread() {
+   					public void run() {
+   						for (int i=rowAtomic.getAndIncrement(); i<numPars;i=rowAtomic.getAndIncrement()){
+   							int rowBase=i*numPars-(i*(i-1))/2-i;
+   							double [] row=JtByJmod[i];
+   							for (int t=0;t<threadJtByJ.length;t++) if (threadJtByJ[t]!=null){
+   								double [] packed=threadJtByJ[t];
+   								for (int j=i;j<numPars;j++) row[j]+=packed[rowBase+j];
+   								JtByDiff[i]+=threadJtByDiff[t][i];
+   							}
+   						}
+   					}
+   				};
+   			}
+   			startAndJoin(threads);
+   		}
    		if (interruptedAtomic.get()) {
    			System.out.println("calculateJacobianArrays() aborted by user request");
    			return null;
    		}
+   		if ((lmaCache!=null) && (debugLevel>1)) System.out.println("calculateJacobianArrays(): reused cached Jt*J for "+cachedImagesAtomic.get()+" of "+numSelectedImages+" images");
    		if (debugLevel>3){
    			String msg="calculateJacobianArrays() ALL_trace=";
    			for (int ii=0;ii<numPars;ii++) msg+=IJ.d2s(JtByJmod[ii][ii],5);
@@ -4847,23 +4969,45 @@ List calibration
    		return lMAArrays;
 	}
 
-	public synchronized void synchronizedCombinePartialJacobians(
-			double [][] JtByJmod, //Transposed Jacobian multiplied by Jacobian
-			double []   JtByDiff,
-			double [][] partialJacobian,
-			double []   partialJtByDiff,
-			double [][] partialJtByJmod,
-			int numPars
-	){
-		for (int i=0;i<numPars;i++) if (partialJacobian[i]!=null){
-			JtByDiff[i]+=partialJtByDiff[i];
-			for (int j=i;j<numPars;j++) JtByJmod[i][j]+=partialJtByJmod[i][j];
-		}
-	}
-
 	
 	
 	
+	/**
+	 * Hash of the model state used by calcInterParamers() and LensDistortionParameters.calcPartialDerivatives() that is not
+	 * a part of the image parameter vector - cached image contributions are invalid when it changes
+	 * @param lensDistortionParametersProto prototype cloned by the threads (provides sensor constants)
+	 * @return 64-bit hash
+	 */
+	public long modelStateHash(LensDistortionParameters lensDistortionParametersProto){
+		long hash=0xcbf29ce484222325L;
+		hash=(hash^(this.fittingStrategy.distortionCalibrationData.eyesisCameraParameters.isTripod?1:0))*0x100000001b3L;
+		hash=(hash^(lensDistortionParametersProto.flipVertical?1:0))*0x100000001b3L;
+		hash=(hash^Double.doubleToLongBits(lensDistortionParametersProto.pixelSize))*0x100000001b3L;
+		hash=(hash^Double.doubleToLongBits(lensDistortionParametersProto.distortionRadius))*0x100000001b3L;
+		return hash;
+	}
+
+	/**
+	 * Hash of the data that influences image contribution to LMA, other than the image parameters
+	 * @param Y measured pixel coordinates (x,y interleaved)
+	 * @param weightFunction weights (x,y interleaved) or null
+	 * @param patternXYZ target coordinates of the nodes
+	 * @param indexStart first node of the image
+	 * @param numNodes number of image nodes
+	 * @return 64-bit hash
+	 */
+	public long imageDataHash(double [] Y, double [] weightFunction, double [][] patternXYZ, int indexStart, int numNodes){
+		long hash=0xcbf29ce484222325L;
+		for (int n=indexStart;n<(indexStart+numNodes);n++){
+			for (int i=0;i<patternXYZ[n].length;i++) hash=(hash^Double.doubleToLongBits(patternXYZ[n][i]))*0x100000001b3L;
+			for (int i=2*n;i<(2*n+2);i++){
+				hash=(hash^Double.doubleToLongBits(Y[i]))*0x100000001b3L;
+				if (weightFunction!=null) hash=(hash^Double.doubleToLongBits(weightFunction[i]))*0x100000001b3L;
+			}
+		}
+		return hash^numNodes;
+	}
+	
 	public double [] solveLMA(
 			LMAArrays lMAArrays,
 			double lambda){
@@ -4905,6 +5049,129 @@ List calibration
 	    return Ma.getColumnPackedCopy();
 		
 	}
+	/**
+	 * Solve LMA step using arrow-shaped structure of Jt*J: parameters that belong to a single image (or several images
+	 * with the same timestamp) only couple to themselves and to the shared (global) parameters. Each such block is
+	 * eliminated with the Schur complement, the reduced system for the global parameters is solved with Cholesky
+	 * decomposition, then the per-block parameters are back-substituted. Blocks are built from the actual non-zero
+	 * pattern of Jt*J, so extra couplings (i.e. added by parameter variances) just merge the blocks.
+	 * @param lMAArrays Jt*J and Jt*diff
+	 * @param lambda Marquardt lambda
+	 * @param localParameters per parameter vector element - true if it is used by the images of a single timestamp
+	 * @return parameter deltas, or null if the matrix is singular (same as solveLMA)
+	 */
+	public double [] solveLMASparse(
+			LMAArrays lMAArrays,
+			double lambda,
+			boolean [] localParameters){
+		double [][] jTByJ=lMAArrays.jTByJ;
+		int numPars=jTByJ.length;
+		if ((localParameters==null) || (localParameters.length!=numPars)) return solveLMA(lMAArrays,lambda);
+// group local parameters into blocks (union-find over non-zero elements of Jt*J)
+		int [] parent=new int[numPars];
+		for (int i=0;i<numPars;i++) parent[i]=i;
+		for (int i=0;i<numPars;i++) if (localParameters[i]) {
+			for (int j=i+1;j<numPars;j++) if (localParameters[j] && (jTByJ[i][j]!=0.0)){
+				int ri=i,rj=j;
+				while (parent[ri]!=ri) ri=parent[ri];
+				while (parent[rj]!=rj) rj=parent[rj];
+				if (ri!=rj) parent[Math.max(ri, rj)]=Math.min(ri, rj);
+			}
+		}
+		int [] blockIndex=new int[numPars];
+		int numBlocks=0;
+		int numGlobal=0;
+		for (int i=0;i<numPars;i++){
+			if (localParameters[i]) {
+				int r=i;
+				while (parent[r]!=r) r=parent[r];
+				parent[i]=r;
+				if (r==i) blockIndex[i]=numBlocks++;
+				else blockIndex[i]=blockIndex[r];
+			} else {
+				blockIndex[i]=-1;
+				numGlobal++;
+			}
+		}
+		if (numBlocks==0) return solveLMA(lMAArrays,lambda);
+		int [] global=new int[numGlobal];
+		int [] blockSize=new int [numBlocks];
+		numGlobal=0;
+		for (int i=0;i<numPars;i++){
+			if (blockIndex[i]<0) global[numGlobal++]=i;
+			else blockSize[blockIndex[i]]++;
+		}
+		int [][] blocks=new int[numBlocks][];
+		for (int b=0;b<numBlocks;b++) {
+			blocks[b]=new int[blockSize[b]];
+			blockSize[b]=0;
+		}
+		for (int i=0;i<numPars;i++) if (blockIndex[i]>=0) blocks[blockIndex[i]][blockSize[blockIndex[i]]++]=i;
+		if (this.debugLevel>2) System.out.println("solveLMASparse(): "+numPars+" parameters, "+numGlobal+" global, "+numBlocks+" blocks");
+// reduced system for the global parameters
+		double [][] S=new double[numGlobal][numGlobal];
+		double [] rhs=new double[numGlobal];
+		for (int i=0;i<numGlobal;i++){
+			for (int j=0;j<numGlobal;j++) S[i][j]=jTByJ[global[i]][global[j]];
+			S[i][i]+=lambda*jTByJ[global[i]][global[i]];
+			rhs[i]=lMAArrays.jTByDiff[global[i]];
+		}
+		double [][][] blockX=new double[numBlocks][][]; // A_b^-1 * C_b
+		double [][]   blockY=new double[numBlocks][];   // A_b^-1 * r_b
+		for (int b=0;b<numBlocks;b++){
+			int [] block=blocks[b];
+			int nb=block.length;
+			double [][] A=new double[nb][nb];
+			double [][] C=new double[nb][numGlobal];
+			double [][] r=new double[nb][1];
+			for (int i=0;i<nb;i++){
+				for (int j=0;j<nb;j++) A[i][j]=jTByJ[block[i]][block[j]];
+				A[i][i]+=lambda*jTByJ[block[i]][block[i]];
+				for (int j=0;j<numGlobal;j++) C[i][j]=jTByJ[block[i]][global[j]];
+				r[i][0]=lMAArrays.jTByDiff[block[i]];
+			}
+			CholeskyDecomposition choleskyA=new CholeskyDecomposition(new Matrix(A));
+			if (!choleskyA.isSPD()) {
+				if (this.debugLevel>1) System.out.println("solveLMASparse(): block "+b+" is not positive definite, using dense solver");
+				return solveLMA(lMAArrays,lambda);
+			}
+			double [][] X=choleskyA.solve(new Matrix(C)).getArray();
+			double [] y= choleskyA.solve(new Matrix(r)).getColumnPackedCopy();
+			for (int i=0;i<numGlobal;i++){
+				for (int k=0;k<nb;k++) if (C[k][i]!=0.0) {
+					double c=C[k][i];
+					rhs[i]-=c*y[k];
+					double [] Xk=X[k];
+					double [] Si=S[i];
+					for (int j=i;j<numGlobal;j++) Si[j]-=c*Xk[j]; // upper half only
+				}
+			}
+			blockX[b]=X;
+			blockY[b]=y;
+		}
+		for (int i=0;i<numGlobal;i++) for (int j=0;j<i;j++) S[i][j]=S[j][i]; // Jama Cholesky needs exact symmetry
+		double [] deltas=new double[numPars];
+		double [] deltasGlobal=new double[numGlobal];
+		if (numGlobal>0){
+			CholeskyDecomposition choleskyS=new CholeskyDecomposition(new Matrix(S));
+			if (!choleskyS.isSPD()) {
+				if (this.debugLevel>1) System.out.println("solveLMASparse(): reduced matrix is not positive definite, using dense solver");
+				return solveLMA(lMAArrays,lambda);
+			}
+			deltasGlobal=choleskyS.solve(new Matrix(rhs,numGlobal)).getColumnPackedCopy();
+			for (int i=0;i<numGlobal;i++) deltas[global[i]]=deltasGlobal[i];
+		}
+		for (int b=0;b<numBlocks;b++){
+			int [] block=blocks[b];
+			for (int i=0;i<block.length;i++){
+				double d=blockY[b][i];
+				for (int j=0;j<numGlobal;j++) d-=blockX[b][i][j]*deltasGlobal[j];
+				deltas[block[i]]=d;
+			}
+		}
+		return deltas;
+	}
+	
 	
 	
 	/**
@@ -5025,7 +5292,8 @@ List calibration
 // calculate deltas
 //    	double [] deltas=solveLevenbergMarquardt(this.currentfX,fittingStrategy.getLambda());
     	
-		deltas=solveLMA(this.lMAArrays,	this.lambda	);
+		if (this.fittingStrategy.sparseLMA) deltas=solveLMASparse(this.lMAArrays,	this.lambda, this.fittingStrategy.localParameters());
+		else                                deltas=solveLMA(this.lMAArrays,	this.lambda	);
 		
     	boolean matrixNonSingular=true;
     	if (deltas==null) {
@@ -5203,6 +5471,8 @@ List calibration
 		gd.addCheckbox("Show debug images after correction", this.showNextImages);
 		gd.addNumericField("Maximal number of threads",   this.threadsMax, 0);
 		gd.addCheckbox("Use memory-saving/multithreaded version", this.threadedLMA);
+		gd.addCheckbox("Use block-sparse (Schur complement) solver", this.fittingStrategy.sparseLMA);
+		gd.addCheckbox("Reuse Jacobian of unchanged images", this.cacheImageLMA);
 	    gd.showDialog();
 	    if (gd.wasCanceled()) return false;
 	    this.seriesNumber=     (int) gd.getNextNumber();
@@ -5221,6 +5491,8 @@ List calibration
 		this.showNextImages=         gd.getNextBoolean();
 		this.threadsMax=       (int) gd.getNextNumber();
 		this.threadedLMA=            gd.getNextBoolean();
+		this.fittingStrategy.sparseLMA=gd.getNextBoolean();
+		this.cacheImageLMA=          gd.getNextBoolean();
 	    return true;
     }
     
@@ -18546,6 +18818,7 @@ I* - special case when the subcamera is being adjusted/replaced. How to deal wit
     	public int [][][] parameterGroups=null; // per series, per-parameter - null or array of group numbers (1 element per image)
     	public int [][] zGroups=null;
     	public boolean saveUnusedGroups=false; // purge groups for parameters when saving to XML, preserve if true 
+    	public boolean sparseLMA=false; // solve LMA using block structure of per-image parameters (Schur complement)
     	public double [] lambdas=null;   // LMA initial lambda for each step
     	public double defaultLambda=0.001;
     	public int [][] parameterList=null; // list of all parameters in the system, each has subcamera number and parameters index
@@ -18654,6 +18927,7 @@ I* - special case when the subcamera is being adjusted/replaced. How to deal wit
     			this.parameterList[i][1]=Integer.parseInt(hConfig.getString("parameterMap.par_"+i+".index"));
     			this.parameterEnable[i]= (Integer.parseInt(hConfig.getString("parameterMap.par_"+i+".visible"))>0);
     		}
+			if (hConfig.getString("sparseLMA")!=null) this.sparseLMA=Boolean.parseBoolean(hConfig.getString("sparseLMA"));
 			int nSer=Integer.parseInt(hConfig.getString("series.number","0"));
 			if (nSer==0) return; // arrays will just be null
 			this.selectedImages=new boolean[nSer][];
@@ -18795,6 +19069,7 @@ I* - special case when the subcamera is being adjusted/replaced. How to deal wit
         		hConfig.addProperty("parameterMap.par_"+i+".visible",this.parameterEnable[i]?"1":"0");
     		}
         	
+    		hConfig.addProperty("sparseLMA",this.sparseLMA);
     		hConfig.addProperty("series","");
     		hConfig.addProperty("series.number",this.selectedImages.length);
     		
@@ -19086,6 +19361,31 @@ I* - special case when the subcamera is being adjusted/replaced. How to deal wit
     		return this.parameterMap.length;
     	}
     	
+    	/**
+    	 * Find parameter vector elements that are used only by the images with the same timestamp (so they do not
+    	 * couple to other images in LMA), needs buildParameterMap() to be run first
+    	 * @return per parameter vector element - true if it is local to a single timestamp
+    	 */
+    	public boolean [] localParameters(){
+    		if ((this.parameterMap==null) || (this.reverseParameterMap==null)) return null;
+    		boolean [] local=new boolean[this.parameterMap.length];
+    		boolean [] used= new boolean[this.parameterMap.length];
+    		double [] timestamps=new double[this.parameterMap.length];
+    		for (int numImg=0;numImg<this.reverseParameterMap.length;numImg++){
+    			double ts=this.distortionCalibrationData.getImageTimestamp(numImg);
+    			for (int numPar=0;numPar<this.reverseParameterMap[numImg].length;numPar++){
+    				int index=this.reverseParameterMap[numImg][numPar];
+    				if (index<0) continue;
+    				if (!used[index]){
+    					used[index]=true;
+    					local[index]=true;
+    					timestamps[index]=ts;
+    				} else if (timestamps[index]!=ts) local[index]=false;
+    			}
+    		}
+    		return local;
+    	}
+    	
     	/**
     	 * Prepare data for calculating additional LMA terms for parameter variances
     	 * @param numSeries fitting series to use
@@ -23,7 +23,9 @@
  **
  */
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import ij.*;
 import ij.process.FHT;
@@ -61,6 +63,21 @@ public class DoubleFHT  {
 	private int translateFHTN=0;
 	public boolean debug=false;
 	private showDoubleFloatArrays SDFA_INSTANCE= new showDoubleFloatArrays(); // just for debugging?
+/*
+ * Process-wide registry of the size-dependent tables (sin/cos, bit-reverse, 1d windows). The tables are
+ * immutable once built, so all DoubleFHT instances (one per worker thread) share a single copy per size
+ * instead of rebuilding them. Per-instance arrays above just keep references to the shared ones.
+ */
+	private static final int SHARED_MAX_SIZE=20;       // same as maxSize
+	private static final int SHARED_MAX_WINDOWS=256;   // do not cache more windows (different min/lowPass) than that
+	private static final double [][][] sharedCS=    new double[SHARED_MAX_SIZE][][];
+	private static final int [][]      sharedBitrev=new int [SHARED_MAX_SIZE][];
+	private static final HashMap<String,double[]> sharedWindows=new HashMap<String,double[]>();
+	private static final AtomicLongArray sharedTableHits=    new AtomicLongArray(SHARED_MAX_SIZE);
+	private static final AtomicLongArray sharedTableMisses=  new AtomicLongArray(SHARED_MAX_SIZE);
+	private static final AtomicLongArray sharedWindowHits=   new AtomicLongArray(SHARED_MAX_SIZE);
+	private static final AtomicLongArray sharedWindowMisses= new AtomicLongArray(SHARED_MAX_SIZE);
+
 	public DoubleFHT() {
 	  this.C = null;
 	  this.S = null;
@@ -370,6 +387,46 @@ public class DoubleFHT  {
     	 }
     	 return correlate (first, second,phaseCoeff,this.freqMask);
      }
+     /**
+      * Convert data to the frequency domain the same way correlate() does (swap quadrants, direct FHT), in place
+      * @param data square array, will be modified
+      * @return same array, now in frequency domain (or null on error)
+      */
+     public double [] directSpectrum (double [] data){
+    	 swapQuadrants(data);
+    	 if (!transform(data,false)) return null; // direct FHT
+    	 return data;
+     }
+     /**
+      * Same as correlate(first,second,highPassSigma,lowPassSigma,phaseCoeff), but both arguments are already converted
+      * by directSpectrum(). Arguments are not modified, so each spectrum may be reused for several image pairs
+      * @param firstFHT frequency domain first array
+      * @param secondFHT frequency domain second array
+      * @param highPassSigma high-pass filter sigma
+      * @param lowPassSigma low-pass filter sigma
+      * @param phaseCoeff 0.0 - normal correlation, 1.0 - phase correlation
+      * @return correlation (pixel domain, center in the middle)
+      */
+     public double [] correlateSpectra (
+    		 double [] firstFHT,
+    		 double [] secondFHT,
+    		 double highPassSigma,
+    		 double lowPassSigma,
+    		 double phaseCoeff){
+    	 if (firstFHT.length!=secondFHT.length) {
+    		 IJ.showMessage("Error","Correlation arrays should be the same size");
+    		 return null;
+    	 }
+    	 updateMaxN(firstFHT);
+    	 createFrequencyFilter(highPassSigma,lowPassSigma); // for repetitive calls will reuse mask
+    	 double [] product=(phaseCoeff<=0.0)?
+    			 multiply(firstFHT, secondFHT, true): // correlation, not convolution
+    			 phaseMultiply(firstFHT, secondFHT, phaseCoeff);
+    	 if (this.freqMask!=null) multiplyByReal(product, this.freqMask);
+    	 transform(product,true) ; // inverse transform
+    	 swapQuadrants(product);
+    	 return product;
+     }
      public double [] correlate (
     			double [] first,
     			double [] second,
@@ -554,7 +611,10 @@ public class DoubleFHT  {
 			IJ.showMessage("Error",msg);
 			throw new IllegalArgumentException (msg);
 		}
-		int n=(int) Math.sqrt(data.length);
+		return updateMaxN((int) Math.sqrt(data.length));
+	}
+
+ 	private boolean updateMaxN(int n){
 		boolean differentSize=(n!=this.maxN);
 		this.maxN =n;
 		if (differentSize){
@@ -577,11 +637,10 @@ public class DoubleFHT  {
 				this.freqPass_cache[this.ln2]=new double[2];
 				this.freqPass_cache[this.ln2][0]=0.0;
 				this.freqPass_cache[this.ln2][1]=0.0;
-				makeSinCosTables(this.maxN);
-				this.CS_cache[this.ln2]=new double[2][];
-				this.CS_cache[this.ln2][0]=this.C;
-				this.CS_cache[this.ln2][1]=this.S;
-				makeBitReverseTable(this.maxN);
+				this.CS_cache[this.ln2]=getSharedSinCosTables(this.ln2);
+				this.C=this.CS_cache[this.ln2][0];
+				this.S=this.CS_cache[this.ln2][1];
+				this.bitrev=getSharedBitReverseTable(this.ln2);
 				this.bitrev_cache[this.ln2]=this.bitrev;
 				
 			} else {
@@ -626,12 +685,8 @@ public class DoubleFHT  {
     		throw new IllegalArgumentException (msg);
 		}
 		if ((this.hamming1d[ln2]==null) || (this.hamming1dMin[ln2]!=min)){
-			this.hamming1d[ln2]=new double[n];
+			this.hamming1d[ln2]=getSharedHamming1d(ln2,min);
 			this.hamming1dMin[ln2]=min;
-			double C054=0.5*(1+min);
-			double C046=0.5*(1-min);
-			for (int i=0; i<=n/2;i++) this.hamming1d[ln2][i]=  (C054-C046*Math.cos((i*2.0*Math.PI)/n));
-			for (int i=1; i<=n/2;i++) this.hamming1d[ln2][n-i]= this.hamming1d[ln2][i];
 		}
  		return this.hamming1d[ln2];
  	}
@@ -662,47 +717,169 @@ public class DoubleFHT  {
     		IJ.showMessage("Error",msg);
     		throw new IllegalArgumentException (msg);
 		}
-		if (this.gaussian1d[ln2]==null){
-			this.gaussian1d[ln2]=new double[n];
-			this.gaussian1dWidths[ln2]=-1.0;
-		}
-		if (this.gaussian1dWidths[ln2]!=lowPass){
+		if ((this.gaussian1d[ln2]==null) || (this.gaussian1dWidths[ln2]!=lowPass)){
+			this.gaussian1d[ln2]=getSharedGaussian1d(ln2,lowPass);
 			this.gaussian1dWidths[ln2]=lowPass;
-	    	 double kLo= (lowPass>0)?(1.0/lowPass/lowPass/n/n):0;
-	    	 double mx2;
-    	 
-	    	 for (int i=0;i<=n/2;i++) {
-	    		 mx2=-i*i;
-	    		 this.gaussian1d[ln2][n/2-i]=(kLo>0.0)?Math.exp(mx2*kLo):1.0;
-	    	 }
-			for (int i=1; i<=n/2;i++) this.gaussian1d[ln2][n-i]= this.gaussian1d[ln2][i];
 		}
  		return this.gaussian1d[ln2];
  	}
  	
- 	
- 	private void makeSinCosTables(int maxN) {
- 		int ln2;
- 		for (ln2=0;maxN>(1<<ln2); ln2++);
+/**
+ * Get sin/cos tables for the FHT of the specified size from the process-wide registry, build them if missing
+ * @param ln2 log2 of the FHT size
+ * @return pair of arrays {C,S}, shared between all instances - should not be modified
+ */
+ 	static synchronized double [][] getSharedSinCosTables(int ln2){
+ 		if (sharedCS[ln2]!=null){
+ 			sharedTableHits.incrementAndGet(ln2);
+ 		} else {
+ 			sharedTableMisses.incrementAndGet(ln2);
+ 			sharedCS[ln2]=makeSinCosTables(1<<ln2);
+ 		}
+ 		return sharedCS[ln2];
+ 	}
+
+ 	static synchronized int [] getSharedBitReverseTable(int ln2){
+ 		if (sharedBitrev[ln2]==null) sharedBitrev[ln2]=makeBitReverseTable(1<<ln2);
+ 		return sharedBitrev[ln2];
+ 	}
+
+ 	private static synchronized double [] getSharedHamming1d(int ln2, double min){
+ 		String key="hamming:"+ln2+":"+min;
+ 		double [] window=sharedWindows.get(key);
+ 		if (window!=null){
+ 			sharedWindowHits.incrementAndGet(ln2);
+ 			return window;
+ 		}
+ 		sharedWindowMisses.incrementAndGet(ln2);
+ 		int n=1<<ln2;
+ 		window=new double[n];
+ 		double C054=0.5*(1+min);
+ 		double C046=0.5*(1-min);
+ 		for (int i=0; i<=n/2;i++) window[i]=  (C054-C046*Math.cos((i*2.0*Math.PI)/n));
+ 		for (int i=1; i<=n/2;i++) window[n-i]= window[i];
+ 		if (sharedWindows.size()<SHARED_MAX_WINDOWS) sharedWindows.put(key, window);
+ 		return window;
+ 	}
+
+ 	private static synchronized double [] getSharedGaussian1d(int ln2, double lowPass){
+ 		String key="gaussian:"+ln2+":"+lowPass;
+ 		double [] window=sharedWindows.get(key);
+ 		if (window!=null){
+ 			sharedWindowHits.incrementAndGet(ln2);
+ 			return window;
+ 		}
+ 		sharedWindowMisses.incrementAndGet(ln2);
+ 		int n=1<<ln2;
+ 		window=new double[n];
+ 		double kLo= (lowPass>0)?(1.0/lowPass/lowPass/n/n):0;
+ 		double mx2;
+ 		for (int i=0;i<=n/2;i++) {
+ 			mx2=-i*i;
+ 			window[n/2-i]=(kLo>0.0)?Math.exp(mx2*kLo):1.0;
+ 		}
+ 		for (int i=1; i<=n/2;i++) window[n-i]= window[i];
+ 		if (sharedWindows.size()<SHARED_MAX_WINDOWS) sharedWindows.put(key, window);
+ 		return window;
+ 	}
+
+/**
+ * Report usage of the shared FHT tables registry - hits/misses per FHT size (only sizes that were used)
+ * @return multi-line text, one line per FHT size
+ */
+ 	public static String getSharedTablesStatistics(){
+ 		StringBuffer sb=new StringBuffer();
+ 		sb.append("DoubleFHT shared tables (size: tables hits/misses, windows hits/misses)\n");
+ 		for (int ln2=0;ln2<SHARED_MAX_SIZE;ln2++){
+ 			long tHits=  sharedTableHits.get(ln2);
+ 			long tMisses=sharedTableMisses.get(ln2);
+ 			long wHits=  sharedWindowHits.get(ln2);
+ 			long wMisses=sharedWindowMisses.get(ln2);
+ 			if ((tHits+tMisses+wHits+wMisses)>0){
+ 				sb.append("  "+(1<<ln2)+": "+tHits+"/"+tMisses+", "+wHits+"/"+wMisses+"\n");
+ 			}
+ 		}
+ 		return sb.toString();
+ 	}
+
+ 	public static void resetSharedTablesStatistics(){
+ 		for (int ln2=0;ln2<SHARED_MAX_SIZE;ln2++){
+ 			sharedTableHits.set(ln2,0);
+ 			sharedTableMisses.set(ln2,0);
+ 			sharedWindowHits.set(ln2,0);
+ 			sharedWindowMisses.set(ln2,0);
+ 		}
+ 	}
+
+ 	static double [][] makeSinCosTables(int maxN) { // also used by FloatFHT, bypassing the hit/miss statistics
  		int n = maxN/4;
- 		this.C = new double[n];
- 		this.S = new double[n];
+ 		double [][] CS = new double[2][n];
  		double theta = 0.0;
  		double dTheta = 2.0 * Math.PI/maxN;
  		for (int i=0; i<n; i++) {
- 			this.C[i] = (double)Math.cos(theta);
- 			this.S[i] = (double)Math.sin(theta);
+ 			CS[0][i] = (double)Math.cos(theta);
+ 			CS[1][i] = (double)Math.sin(theta);
  			theta += dTheta;
  		}
+ 		return CS;
  	}
 	
- 	private void makeBitReverseTable(int maxN) {
-		bitrev = new int[maxN];
+ 	private static int [] makeBitReverseTable(int maxN) {
+		int [] bitrev = new int[maxN];
 		int nLog2 = log2(maxN);
 		for (int i=0; i<maxN; i++)
 			bitrev[i] = bitRevX(i, nLog2);
+		return bitrev;
 	}
 
+	/**
+	 * Batched forward 2D FHT of several same-size square tiles stored one after another in a single array
+	 * @param data  numTiles*size*size array, each tile in line scan order. Data is modified in-place
+	 * @param size  tile size (power of 2)
+	 * @param numTiles number of tiles in data
+	 * @return true
+	 */
+	public boolean transformTiles(double [] data, int size, int numTiles) {
+		return transformTiles(data, size, numTiles, false);
+	}
+
+	public boolean inverseTransformTiles(double [] data, int size, int numTiles) {
+		return transformTiles(data, size, numTiles, true);
+	}
+
+	/**
+	 * Batched 2D FHT of several same-size square tiles stored one after another in a single array.
+	 * Result for each tile is the same as transform(tile, inverse), but tables are set up once for
+	 * all tiles and the column pass is performed on whole rows (no transposition), so the inner loops
+	 * run over contiguous memory while the tile is still in cache after the row pass
+	 * @param data  numTiles*size*size array, each tile in line scan order. Data is modified in-place
+	 * @param size  tile size (power of 2)
+	 * @param numTiles number of tiles in data
+	 * @param inverse true for inverse transform
+	 * @return true
+	 */
+	public boolean transformTiles(double [] data, int size, int numTiles, boolean inverse) {
+		if (!powerOf2Size(size*size)) {
+			String msg="Tile size is not power of 2: "+size;
+			IJ.showMessage("Error",msg);
+			throw new IllegalArgumentException (msg);
+		}
+		if (data.length<(numTiles*size*size)) {
+			String msg="Data array is too short for "+numTiles+" tiles of "+size+"x"+size+": "+data.length;
+			IJ.showMessage("Error",msg);
+			throw new IllegalArgumentException (msg);
+		}
+		updateMaxN(size);
+		int tileLength=size*size;
+		for (int nTile=0;nTile<numTiles;nTile++){
+			int tileBase=nTile*tileLength;
+			for (int row=0; row<size; row++) dfht3(data, tileBase+row*size, inverse, size);
+			dfht3Columns(data, tileBase, inverse, size);
+			hartleyFromRowColumn(data, tileBase, size);
+		}
+		return true;
+	}
+	
 	/* Performs a 2D FHT (Fast Hartley Transform). */
 	public void rc2DFHT(double[] x, boolean inverse, int maxN) {
 		//IJ.write("FFT: rc2DFHT (row-column Fast Hartley Transform)");
@@ -737,6 +914,123 @@ public class DoubleFHT  {
 		progress(0.95);
 	}
 	
+	/* Combine row-column transform of a square tile into actual Hartley transform (same as at the end of rc2DFHT) */
+	private void hartleyFromRowColumn(double[] x, int base, int maxN) {
+		int mRow, mCol;
+		double A,B,C,D,E;
+		for (int row=0; row<=maxN/2; row++) {
+			int rowBase=base+row * maxN;
+			mRow = (maxN - row) % maxN;
+			int mRowBase=base+mRow * maxN;
+			for (int col=0; col<=maxN/2; col++) {
+				mCol = (maxN - col)  % maxN;
+				A = x[rowBase + col];
+				B = x[mRowBase + col];
+				C = x[rowBase + mCol];
+				D = x[mRowBase + mCol];
+				E = ((A + D) - (B + C)) / 2;
+				x[rowBase + col] = A - E;
+				x[mRowBase + col] = B + E;
+				x[rowBase + mCol] = C + E;
+				x[mRowBase + mCol] = D - E;
+			}
+		}
+	}
+
+	/**
+	 * 1D FHT of all columns of a square tile at once, same butterflies as dfht3(), but each
+	 * "element" is a whole row, so the innermost loops run along the rows
+	 * @param x data array
+	 * @param base index of the tile start in x
+	 * @param inverse true for inverse transform
+	 * @param maxN tile size
+	 */
+	private void dfht3Columns (double[] x, int base, boolean inverse, int maxN) {
+		int i, stage, gpNum, gpSize, numGps, Nlog2;
+		int bfNum, numBfs;
+		int Ad0, Ad1, Ad2, Ad3, Ad4, CSAd;
+		double rt1, rt2, rt3, rt4, c, s, a2, a4;
+		Nlog2 = log2(maxN);
+		// bit-reverse rows (bitrev is an involution - swap pairs once)
+		for (i=0; i<maxN; i++) {
+			int j=this.bitrev[i];
+			if (j>i) {
+				int b1=base+i*maxN;
+				int b2=base+j*maxN;
+				System.arraycopy(x, b1, this.tempArr, 0, maxN);
+				System.arraycopy(x, b2, x, b1, maxN);
+				System.arraycopy(this.tempArr, 0, x, b2, maxN);
+			}
+		}
+		gpSize = 2;     //first & second stages - do radix 4 butterflies once thru
+		numGps = maxN / 4;
+		for (gpNum=0; gpNum<numGps; gpNum++)  {
+			Ad1 = base + (gpNum * 4)*maxN;
+			Ad2 = Ad1 + maxN;
+			Ad3 = Ad1 + gpSize*maxN;
+			Ad4 = Ad2 + gpSize*maxN;
+			for (int col=0; col<maxN; col++){
+				rt1 = x[Ad1+col] + x[Ad2+col];   // a + b
+				rt2 = x[Ad1+col] - x[Ad2+col];   // a - b
+				rt3 = x[Ad3+col] + x[Ad4+col];   // c + d
+				rt4 = x[Ad3+col] - x[Ad4+col];   // c - d
+				x[Ad1+col] = rt1 + rt3;      // a + b + (c + d)
+				x[Ad2+col] = rt2 + rt4;      // a - b + (c - d)
+				x[Ad3+col] = rt1 - rt3;      // a + b - (c + d)
+				x[Ad4+col] = rt2 - rt4;      // a - b - (c - d)
+			}
+		}
+		if (Nlog2 > 2) {
+			gpSize = 4;
+			numBfs = 2;
+			numGps = numGps / 2;
+			for (stage=2; stage<Nlog2; stage++) {
+				for (gpNum=0; gpNum<numGps; gpNum++) {
+					Ad0 = gpNum * gpSize * 2;
+					Ad1 = base + Ad0*maxN;     // 1st butterfly is different from others - no mults needed
+					Ad2 = Ad1 + gpSize*maxN;
+					Ad3 = Ad1 + (gpSize / 2)*maxN;
+					Ad4 = Ad3 + gpSize*maxN;
+					for (int col=0; col<maxN; col++){
+						rt1 = x[Ad1+col];
+						x[Ad1+col] = rt1 + x[Ad2+col];
+						x[Ad2+col] = rt1 - x[Ad2+col];
+						rt1 = x[Ad3+col];
+						x[Ad3+col] = rt1 + x[Ad4+col];
+						x[Ad4+col] = rt1 - x[Ad4+col];
+					}
+					for (bfNum=1; bfNum<numBfs; bfNum++) {
+						Ad1 = base + (bfNum + Ad0)*maxN;
+						Ad2 = Ad1 + gpSize*maxN;
+						Ad3 = base + (gpSize - bfNum + Ad0)*maxN;
+						Ad4 = Ad3 + gpSize*maxN;
+						CSAd = bfNum * numGps;
+						c=this.C[CSAd];
+						s=this.S[CSAd];
+						for (int col=0; col<maxN; col++){
+							a2=x[Ad2+col];
+							a4=x[Ad4+col];
+							rt1 = a2 * c + a4 * s;
+							rt2 = a4 * c - a2 * s;
+							x[Ad2+col] = x[Ad1+col] - rt1;
+							x[Ad1+col] = x[Ad1+col] + rt1;
+							x[Ad4+col] = x[Ad3+col] + rt2;
+							x[Ad3+col] = x[Ad3+col] - rt2;
+						}
+					}
+				}
+				gpSize *= 2;
+				numBfs *= 2;
+				numGps = numGps / 2;
+			}
+		}
+		if (inverse)  {
+			int end=base+maxN*maxN;
+			for (i=base; i<end; i++)
+			x[i] = x[i] / maxN;
+		}
+	}
+
 	void progress(double percent) {
 		if (showProgress)
 			IJ.showProgress(percent);
@@ -840,14 +1134,14 @@ public class DoubleFHT  {
 		}
 	}
 	
-	int log2 (int x) {
+	static int log2 (int x) {
 		int count = 15;
 		while (!btst(x, count))
 			count--;
 		return count;
 	}
 	
-	private boolean btst (int  x, int bit) {
+	private static boolean btst (int  x, int bit) {
 		//int mask = 1;
 		return ((x & (1<<bit)) != 0);
 	}
@@ -859,7 +1153,7 @@ public class DoubleFHT  {
 			x[base+i] = tempArr[i];
 	}
 
-	private int bitRevX (int  x, int bitlen) {
+	private static int bitRevX (int  x, int bitlen) {
 		int  temp = 0;
 		for (int i=0; i<=bitlen; i++)
 			if ((x & (1<<i)) !=0)
@@ -2023,6 +2317,38 @@ public class DoubleFHT  {
 		return product;
 	}
 	
+	/**
+	 * Same as multiply(), but the product replaces h1 (no new arrays are allocated). Each pair of mirrored
+	 * points (r,c) and (-r,-c) is processed together, so the result is exactly the same as of multiply()
+	 * @param h1 first FHT array, will be replaced by the product
+	 * @param h2 second FHT array (not modified)
+	 * @param conjugate true - correlation, false - convolution
+	 */
+	public void multiplyInPlace(double [] h1, double [] h2, boolean  conjugate) {
+		int rowMod, colMod, i1, i2;
+		double h2e, h2o, p1, p2;
+		for (int r =0; r<maxN; r++) {
+			rowMod = (maxN - r) % maxN;
+			for (int c=0; c<maxN; c++) {
+				colMod = (maxN - c) % maxN;
+				i1=r * maxN + c;
+				i2=rowMod * maxN + colMod;
+				if (i2<i1) continue; // already processed as a pair
+				h2e = (h2[i1] + h2[i2]) / 2;
+				h2o = (h2[i1] - h2[i2]) / 2;
+				if (conjugate) {
+					p1= h1[i1] * h2e - h1[i2] * h2o;
+					p2= h1[i2] * h2e + h1[i1] * h2o;
+				} else {
+					p1= h1[i1] * h2e + h1[i2] * h2o;
+					p2= h1[i2] * h2e - h1[i1] * h2o;
+				}
+				h1[i1]=p1;
+				h1[i2]=p2;
+			}
+		}
+	}
+	
 	public double [] phaseMultiply(double [] h1, double [] h2, double phaseCoeff) {
 		int rowMod, colMod;
 		double h2e, h2o,d;
@@ -45,6 +45,14 @@ public class EyesisCorrectionParameters {
   		public boolean saveDebayerEnergy =     true;
   		public boolean deconvolve =            true;
   		public boolean combine =               true;
+  		public boolean kernelsFHT =            false; // pre-transform kernel stacks to frequency domain once, reuse for all images of a channel
+  		public boolean saveKernelsFHT =        false; // save pre-transformed kernels next to the kernel files, reuse in the next runs
+  		public double  kernelCacheMB =         2048.0; // memory budget for kernel stacks reused between images (limited to a half of the heap)
+  		public int     pipelineDepth =         0;      // decode next images and save results while processing (0 - process images one by one)
+  		public int     pipelineSaveThreads =   1;      // number of threads to encode/write results in pipeline mode
+  		public boolean deconvolveFloat =       false;  // use single precision FHT for deconvolution
+  		public boolean debayerFloat =          false;  // use single precision FHT for debayer (alias removal)
+  		public double  floatTolerance =        0.0;    // compare single precision results of the first image with double precision (max relative error), 0 - do not compare
   		public boolean showDenoiseMask =       false;
   		public boolean saveDenoiseMask =       true;
   		public boolean showChromaDenoiseMask = false;
@@ -62,6 +70,9 @@ public class EyesisCorrectionParameters {
   		public boolean imageJTags=             false; // encode ImageJ info data to the TIFF output header 
   		
   		public String tiffCompression =        "UNCOMPRESSED"; // tiff compression codec
+  		public int     tiffTileSize =          0;     // 0 - write strips, >0 - tiled TIFF with this tile size (multiple of 16)
+  		public boolean tiffBigTiff =           false; // write BigTIFF (64-bit offsets, no 4GB limit)
+  		public int     tiffOverviewLevels =    0;     // number of reduced resolution (2x, 4x, ...) images to add to the TIFF
   		public boolean jpeg =                  true;  // convert to RGB and save JPEG (if save is true)
   		public boolean save =                  true;
   		public boolean save16 =                false; // save 16-bit tiff also if the end result is 8 bit 
@@ -113,6 +124,14 @@ public class EyesisCorrectionParameters {
   			properties.setProperty(prefix+"saveDebayerEnergy",this.saveDebayerEnergy+"");
   			properties.setProperty(prefix+"deconvolve",this.deconvolve+"");
   			properties.setProperty(prefix+"combine",this.combine+"");
+  			properties.setProperty(prefix+"kernelsFHT",this.kernelsFHT+"");
+  			properties.setProperty(prefix+"saveKernelsFHT",this.saveKernelsFHT+"");
+  			properties.setProperty(prefix+"kernelCacheMB",this.kernelCacheMB+"");
+  			properties.setProperty(prefix+"pipelineDepth",this.pipelineDepth+"");
+  			properties.setProperty(prefix+"pipelineSaveThreads",this.pipelineSaveThreads+"");
+  			properties.setProperty(prefix+"deconvolveFloat",this.deconvolveFloat+"");
+  			properties.setProperty(prefix+"debayerFloat",this.debayerFloat+"");
+  			properties.setProperty(prefix+"floatTolerance",this.floatTolerance+"");
   			properties.setProperty(prefix+"showDenoiseMask",this.showDenoiseMask+"");
   			properties.setProperty(prefix+"saveDenoiseMask",this.saveDenoiseMask+"");
   			properties.setProperty(prefix+"showChromaDenoiseMask",this.showChromaDenoiseMask+"");
@@ -128,6 +147,10 @@ public class EyesisCorrectionParameters {
   			properties.setProperty(prefix+"outputRangeInt",this.outputRangeInt+"");
   			properties.setProperty(prefix+"outputRangeFP",this.outputRangeFP+"");
   			properties.setProperty(prefix+"imageJTags",this.imageJTags+"");
+  			properties.setProperty(prefix+"tiffCompression",this.tiffCompression);
+  			properties.setProperty(prefix+"tiffTileSize",this.tiffTileSize+"");
+  			properties.setProperty(prefix+"tiffBigTiff",this.tiffBigTiff+"");
+  			properties.setProperty(prefix+"tiffOverviewLevels",this.tiffOverviewLevels+"");
   			properties.setProperty(prefix+"jpeg",this.jpeg+"");
   			properties.setProperty(prefix+"save",this.save+"");
   			properties.setProperty(prefix+"save16",this.save16+"");
@@ -188,6 +211,14 @@ public class EyesisCorrectionParameters {
   		    if (properties.getProperty(prefix+"saveDebayerEnergy")!=null) this.saveDebayerEnergy=Boolean.parseBoolean(properties.getProperty(prefix+"saveDebayerEnergy"));
   		    if (properties.getProperty(prefix+"deconvolve")!=null) this.deconvolve=Boolean.parseBoolean(properties.getProperty(prefix+"deconvolve"));
   		    if (properties.getProperty(prefix+"combine")!=null) this.combine=Boolean.parseBoolean(properties.getProperty(prefix+"combine"));
+  		    if (properties.getProperty(prefix+"kernelsFHT")!=null) this.kernelsFHT=Boolean.parseBoolean(properties.getProperty(prefix+"kernelsFHT"));
+  		    if (properties.getProperty(prefix+"saveKernelsFHT")!=null) this.saveKernelsFHT=Boolean.parseBoolean(properties.getProperty(prefix+"saveKernelsFHT"));
+  		    if (properties.getProperty(prefix+"kernelCacheMB")!=null) this.kernelCacheMB=Double.parseDouble(properties.getProperty(prefix+"kernelCacheMB"));
+  		    if (properties.getProperty(prefix+"pipelineDepth")!=null) this.pipelineDepth=Integer.parseInt(properties.getProperty(prefix+"pipelineDepth"));
+  		    if (properties.getProperty(prefix+"pipelineSaveThreads")!=null) this.pipelineSaveThreads=Integer.parseInt(properties.getProperty(prefix+"pipelineSaveThreads"));
+  		    if (properties.getProperty(prefix+"deconvolveFloat")!=null) this.deconvolveFloat=Boolean.parseBoolean(properties.getProperty(prefix+"deconvolveFloat"));
+  		    if (properties.getProperty(prefix+"debayerFloat")!=null) this.debayerFloat=Boolean.parseBoolean(properties.getProperty(prefix+"debayerFloat"));
+  		    if (properties.getProperty(prefix+"floatTolerance")!=null) this.floatTolerance=Double.parseDouble(properties.getProperty(prefix+"floatTolerance"));
   		    if (properties.getProperty(prefix+"showDenoiseMask")!=null) this.showDenoiseMask=Boolean.parseBoolean(properties.getProperty(prefix+"showDenoiseMask"));
   		    if (properties.getProperty(prefix+"saveDenoiseMask")!=null) this.saveDenoiseMask=Boolean.parseBoolean(properties.getProperty(prefix+"saveDenoiseMask"));
   		    if (properties.getProperty(prefix+"showChromaDenoiseMask")!=null) this.showChromaDenoiseMask=Boolean.parseBoolean(properties.getProperty(prefix+"showChromaDenoiseMask"));
@@ -203,6 +234,9 @@ public class EyesisCorrectionParameters {
   		    if (properties.getProperty(prefix+"outputRangeInt")!=null) this.outputRangeInt=Double.parseDouble(properties.getProperty(prefix+"outputRangeInt"));
   		    if (properties.getProperty(prefix+"outputRangeFP")!=null) this.outputRangeFP=Double.parseDouble(properties.getProperty(prefix+"outputRangeFP"));
   		    if (properties.getProperty(prefix+"tiffCompression")!=null) this.tiffCompression=properties.getProperty(prefix+"tiffCompression");
+  		    if (properties.getProperty(prefix+"tiffTileSize")!=null) this.tiffTileSize=Integer.parseInt(properties.getProperty(prefix+"tiffTileSize"));
+  		    if (properties.getProperty(prefix+"tiffBigTiff")!=null) this.tiffBigTiff=Boolean.parseBoolean(properties.getProperty(prefix+"tiffBigTiff"));
+  		    if (properties.getProperty(prefix+"tiffOverviewLevels")!=null) this.tiffOverviewLevels=Integer.parseInt(properties.getProperty(prefix+"tiffOverviewLevels"));
   		    if (properties.getProperty(prefix+"imageJTags")!=null) this.imageJTags=Boolean.parseBoolean(properties.getProperty(prefix+"imageJTags"));
   		    if (properties.getProperty(prefix+"jpeg")!=null) this.jpeg=Boolean.parseBoolean(properties.getProperty(prefix+"jpeg"));   // convert to RGB and save jpeg (if save is true)
   		    if (properties.getProperty(prefix+"save")!=null) this.save=Boolean.parseBoolean(properties.getProperty(prefix+"save"));
@@ -275,6 +309,14 @@ public class EyesisCorrectionParameters {
     		gd.addCheckbox ("Save de-mosaic middle-frequency 'energy",          this.saveDebayerEnergy);
     		gd.addCheckbox ("Sharpen (convolve with calibration kernels)",      this.deconvolve);
     		gd.addCheckbox ("Denoise (convolve with Gaussian in smooth areas)", this.combine);
+    		gd.addCheckbox ("Pre-transform kernels to frequency domain once per channel (uses 4x kernel memory)", this.kernelsFHT);
+    		gd.addCheckbox ("Save/reuse pre-transformed kernels next to the kernel files", this.saveKernelsFHT);
+    		gd.addNumericField("Memory to keep kernels between images (0 - re-read for each image)", this.kernelCacheMB, 0,6,"MB");
+    		gd.addNumericField("Pipeline depth: decode/save images while processing (0 - sequential)", this.pipelineDepth, 0,3,"images");
+    		gd.addNumericField("Threads to save results in pipeline mode", this.pipelineSaveThreads, 0,3,"");
+    		gd.addCheckbox    ("Use single precision FHT for deconvolution", this.deconvolveFloat);
+    		gd.addCheckbox    ("Use single precision FHT for debayer", this.debayerFloat);
+    		gd.addNumericField("Compare single precision results with double ones, maximal relative error (0 - do not compare)", this.floatTolerance, 6,10,"");
     		gd.addCheckbox ("Show denoise mask (white - use hi-res, black - low-res)", this.showDenoiseMask);
     		gd.addCheckbox ("Save denoise mask (white - use hi-res, black - low-res)", this.saveDenoiseMask);
     		gd.addCheckbox ("Show kernel noise gains",                          this.showNoiseGains);
@@ -299,6 +341,9 @@ public class EyesisCorrectionParameters {
     		gd.addNumericField("Map 1.0 intensity to this value in 32-bit floating point output mode", this.outputRangeFP, 2,6,"");
     		gd.addCheckbox ("Encode ImageJ specific Info metadata to the output file TIFF header", this.imageJTags);
     		gd.addChoice("TIFF lossless compression codec",tiffCompressionChoices,tiffCompressionChoices[tiffCompressionIndex]);
+    		gd.addNumericField("TIFF tile size (multiple of 16, 0 - strips)",  this.tiffTileSize,0);
+    		gd.addCheckbox ("Write BigTIFF (no 4GB limit)",                     this.tiffBigTiff);
+    		gd.addNumericField("Number of TIFF overview (reduced resolution) levels", this.tiffOverviewLevels,0);
    		
 			gd.addCheckbox ("Convert to RGB48",                                 this.toRGB);
     		gd.addCheckbox ("Convert to 8 bit RGB (and save JPEG if save is enabled)", this.jpeg);
@@ -363,6 +408,15 @@ public class EyesisCorrectionParameters {
     		this.saveDebayerEnergy= gd.getNextBoolean();
     		this.deconvolve=        gd.getNextBoolean();
     		this.combine=           gd.getNextBoolean();
+    		this.kernelsFHT=        gd.getNextBoolean();
+    		this.saveKernelsFHT=    gd.getNextBoolean();
+    		this.kernelCacheMB=     gd.getNextNumber();
+    		this.pipelineDepth=     (int) gd.getNextNumber();
+    		this.pipelineSaveThreads=(int) gd.getNextNumber();
+    		if (this.pipelineSaveThreads<1) this.pipelineSaveThreads=1;
+    		this.deconvolveFloat=   gd.getNextBoolean();
+    		this.debayerFloat=      gd.getNextBoolean();
+    		this.floatTolerance=    gd.getNextNumber();
     		this.showDenoiseMask=   gd.getNextBoolean();
     		this.saveDenoiseMask=   gd.getNextBoolean();
     		this.showNoiseGains=    gd.getNextBoolean();
@@ -378,6 +432,9 @@ public class EyesisCorrectionParameters {
     		this.outputRangeFP=     gd.getNextNumber();
     		this.imageJTags=        gd.getNextBoolean();
     		this.tiffCompression=   tiffCompressionChoices[gd.getNextChoiceIndex()];
+    		this.tiffTileSize=(int) gd.getNextNumber();
+    		this.tiffBigTiff=       gd.getNextBoolean();
+    		this.tiffOverviewLevels=(int) gd.getNextNumber();
     		this.toRGB=             gd.getNextBoolean();
     		this.jpeg=              gd.getNextBoolean();
     		this.save=              gd.getNextBoolean();
@@ -1751,6 +1808,7 @@ public class EyesisCorrectionParameters {
 		public int longitudeWidth=      3000; //pix
 		public boolean clearFullMap=      true;
 		public boolean clearAllMaps=      true;
+		public boolean separableLanczos=  true; // warp with separable Lanczos kernels (faster, same result as 2d kernel stack)
 		
 		public boolean needRebuild=      false;
 // common plane parameters (dual camera, triclope camera)
@@ -1797,6 +1855,7 @@ public class EyesisCorrectionParameters {
     		
     		properties.setProperty(prefix+"clearFullMap",this.clearFullMap+"");
     		properties.setProperty(prefix+"clearAllMaps",this.clearAllMaps+"");
+    		properties.setProperty(prefix+"separableLanczos",this.separableLanczos+"");
     		properties.setProperty(prefix+"generateCommonPlane",this.generateCommonPlane+"");
     		properties.setProperty(prefix+"projectionElevation",this.projectionElevation+"");
     		properties.setProperty(prefix+"projectionYaw",this.projectionYaw+"");
@@ -1835,6 +1894,7 @@ public class EyesisCorrectionParameters {
     		
     		if (properties.getProperty(prefix+"clearFullMap")!=null)this.clearFullMap=   Boolean.parseBoolean(properties.getProperty(prefix+"clearFullMap"));
     		if (properties.getProperty(prefix+"clearAllMaps")!=null)this.clearAllMaps=   Boolean.parseBoolean(properties.getProperty(prefix+"clearAllMaps"));
+    		if (properties.getProperty(prefix+"separableLanczos")!=null)this.separableLanczos=   Boolean.parseBoolean(properties.getProperty(prefix+"separableLanczos"));
       		
     		if (properties.getProperty(prefix+"generateCommonPlane")!=null)this.generateCommonPlane=       Boolean.parseBoolean(properties.getProperty(prefix+"generateCommonPlane"));
     		if (properties.getProperty(prefix+"projectionElevation")!=null)this.projectionElevation=       Double.parseDouble(properties.getProperty(prefix+"projectionElevation"));
@@ -1880,6 +1940,7 @@ public class EyesisCorrectionParameters {
 			gd.addNumericField("Crop files horizontally to ", this.longitudeWidth,0,4,"longitude pix");
 			gd.addCheckbox    ("Clear full map",    this.clearFullMap);
 			gd.addCheckbox    ("Clear all data",    this.clearFullMap);
+			gd.addCheckbox    ("Use separable Lanczos kernels for warping (faster)",    this.separableLanczos);
 			gd.addMessage("Parameters for the common projection plane (binocular/trinocular cameras)");
 			gd.addCheckbox    ("Generate common projection plane",    this.generateCommonPlane);
 			gd.addNumericField("View axis elevation (orthogonal to projection plane)",this.projectionElevation,2,6,"degrees");
@@ -1909,6 +1970,7 @@ public class EyesisCorrectionParameters {
 			this.longitudeWidth=   (int) gd.getNextNumber();
 			this.clearFullMap=           gd.getNextBoolean();
 			this.clearAllMaps=           gd.getNextBoolean();
+			this.separableLanczos=       gd.getNextBoolean();
     		this.generateCommonPlane =   gd.getNextBoolean();
 			this.projectionElevation=    gd.getNextNumber();
 			this.projectionYaw=          gd.getNextNumber();
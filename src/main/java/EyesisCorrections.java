@@ -36,8 +36,19 @@ import ij.process.ColorProcessor;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import loci.common.services.DependencyException;
 import loci.common.services.ServiceException;
@@ -48,6 +59,13 @@ public class EyesisCorrections {
 	JP46_Reader_camera JP4_INSTANCE=       new JP46_Reader_camera(false);
 	showDoubleFloatArrays SDFA_INSTANCE=   new showDoubleFloatArrays();
 	DebayerScissors debayerScissors=null;
+	private ImagePlus jp4Composite=null;   // last decoded JP4 composite image (reused for all its subchannels)
+	private int       jp4CompositeFile=-1; // source file index of jp4Composite
+	private ThreadPoolExecutor saveExecutor=null; // when not null (pipeline mode), results are encoded and written in the background
+	private AtomicLong saveNanos=   new AtomicLong(0); // total time of background saving
+	private AtomicInteger maxSaveQueue=new AtomicInteger(0);
+	private boolean debayerFloatChecked=     false; // single precision debayer was already compared with the double one
+	private boolean deconvolveFloatChecked=  false; // single precision deconvolution was already compared with the double one
     public AtomicInteger stopRequested=null; // 1 - stop now, 2 - when convenient
 	public PixelMapping pixelMapping=null;
 	public EyesisCorrectionParameters.CorrectionParameters correctionsParameters=null;
@@ -60,6 +78,7 @@ public class EyesisCorrections {
 	public ImagePlus [] imageNoiseGains=null;
 	public String [] sharpKernelPaths=null;
 	public String [] smoothKernelPaths=null;
+	public KernelStackCache kernelStackCache=new KernelStackCache(0); // decoded (and FHT-transformed) kernel stacks, budget is set in processChannelImages
 	public int debugLevel;
 	public String [] stackColorNames= {"Red","Green","Blue"};
 	public int psfSubpixelShouldBe4=4;         // sub-pixel decimation
@@ -86,6 +105,7 @@ public class EyesisCorrections {
 	public void initSensorFiles(int debugLevel){
 		this.sharpKernelPaths=null;
 		this.smoothKernelPaths=null;
+		this.kernelStackCache.clear();
 		String [] sensorPaths=correctionsParameters.selectSensorFiles(this.debugLevel);
 		this.pixelMapping=new PixelMapping(sensorPaths,debugLevel);
 		this.usedChannels= usedChannels(correctionsParameters.getSourcePaths());
@@ -186,6 +206,7 @@ public class EyesisCorrections {
 			int        debugLevel){
 		this.sharpKernelPaths=null;
 		this.smoothKernelPaths=null;
+		this.kernelStackCache.clear();
 		String [] sensorPaths=correctionsParameters.selectSensorFiles(this.debugLevel);
 		String directory= correctionsParameters.selectEquirectangularDirectory(true,true);
 		if (directory==null) {
@@ -558,6 +579,13 @@ public class EyesisCorrections {
 			final boolean    updateStatus,
 			final int        debugLevel){
 		  this.startTime=System.nanoTime();
+		  this.debayerFloatChecked=    false; // compare single precision with double once per run
+		  this.deconvolveFloatChecked= false;
+		  this.kernelStackCache.setMaxBytes(Math.min(
+				  (long) (correctionsParameters.kernelCacheMB*1024*1024),
+				  Runtime.getRuntime().maxMemory()/2)); // never use more than a half of the heap for the kernels
+		  this.kernelStackCache.resetStatistics();
+		  if (this.pixelMapping!=null) this.pixelMapping.separableLanczos=equirectangularParameters.separableLanczos;
 		  String [] sourceFiles=correctionsParameters.getSourcePaths();
 		  boolean [] enabledFiles=new boolean[sourceFiles.length];
 		  for (int i=0;i<enabledFiles.length;i++) enabledFiles[i]=false;
@@ -603,46 +631,79 @@ public class EyesisCorrections {
 				  }
 			  }
 		  }
+		  this.jp4Composite=null;
+		  this.jp4CompositeFile=-1;
+		  final boolean pipelined=correctionsParameters.pipelineDepth>0;
+		  final int [][] fFileIndices=fileIndices;
+		  final String [] fSourceFiles=sourceFiles;
+		  final ArrayBlockingQueue<DecodedImage> decodedQueue=pipelined?(new ArrayBlockingQueue<DecodedImage>(correctionsParameters.pipelineDepth)):null;
+		  final AtomicLong decodeNanos=    new AtomicLong(0); // time spent reading/decoding source files
+		  final AtomicLong decodeWaitNanos=new AtomicLong(0); // time decoder waited for the processing to catch up (queue full)
+		  long processNanos=0;     // time spent processing (including synchronous saving)
+		  long processWaitNanos=0; // time processing waited for decoded images (queue empty)
+		  int  maxDecodedQueue=0;
+		  Thread decodeThread=null;
+		  if (pipelined){
+			  int saveThreads=Math.max(correctionsParameters.pipelineSaveThreads,1);
+			  this.saveExecutor=new ThreadPoolExecutor(
+					  saveThreads,
+					  saveThreads,
+					  0L, TimeUnit.MILLISECONDS,
+					  new ArrayBlockingQueue<Runnable>(correctionsParameters.pipelineDepth),
+					  new ThreadPoolExecutor.CallerRunsPolicy()); // when the queue is full, processing thread saves itself
+			  this.saveNanos.set(0);
+			  this.maxSaveQueue.set(0);
+			  decodeThread = new Thread() {
+				  public void run() {
+					  try {
+						  for (int iImage=0;iImage<fFileIndices.length;iImage++){
+							  long t0=System.nanoTime();
+							  DecodedImage decoded=new DecodedImage();
+							  try {
+								  decoded.imp=readChannelImage(iImage, fFileIndices, fSourceFiles, debugLevel);
+							  } catch (Throwable t){ // processing thread will rethrow it, as the serial mode does
+								  decoded.error=t;
+							  }
+							  long t1=System.nanoTime();
+							  decodedQueue.put(decoded);
+							  decodeNanos.addAndGet(t1-t0);
+							  decodeWaitNanos.addAndGet(System.nanoTime()-t1);
+							  if (decoded.error!=null) break;
+						  }
+					  } catch (InterruptedException ie){
+						  // processing was stopped
+					  }
+				  }
+			  };
+			  decodeThread.start();
+		  }
+		  try {
 		  for (int iImage=0;iImage<fileIndices.length;iImage++){
 			  int nFile=fileIndices[iImage][0];
 			  ImagePlus imp_src=null;
-//			  int srcChannel=correctionsParameters.getChannelFromSourceTiff(sourceFiles[nFile]);
 			  int srcChannel=fileIndices[iImage][1];
-			  if (correctionsParameters.isJP4()){
-				  int subchannel=this.pixelMapping.getSubChannel(srcChannel);
-				  if (this.correctionsParameters.swapSubchannels01) {
-					  switch (subchannel){
-					  case 0: subchannel=1; break;
-					  case 1: subchannel=0; break;
-					  }
+			  if (pipelined){
+				  maxDecodedQueue=Math.max(maxDecodedQueue,decodedQueue.size());
+				  long t0=System.nanoTime();
+				  DecodedImage decoded;
+				  try {
+					  decoded=decodedQueue.take();
+				  } catch (InterruptedException ie){
+					  throw new RuntimeException(ie);
 				  }
-				  if (debugLevel>0) System.out.println("Processing channel "+fileIndices[iImage][1]+" - subchannel "+subchannel+" of "+sourceFiles[nFile]);
-				  ImagePlus imp_composite=JP4_INSTANCE.open(
-								  "", // path,
-								  sourceFiles[nFile],
-								  "",  //arg - not used in JP46 reader
-								  true, // un-apply camera color gains
-								  null, // new window
-								  false); // do not show
-				  imp_src=JP4_INSTANCE.demuxImage(imp_composite, subchannel);
-				  if (imp_src==null) imp_src=imp_composite; // not a composite image
-				  
-// do we need to add any properties?				  
-			  } else { 
-				  imp_src=new ImagePlus(sourceFiles[nFile]);
-//				  (new JP46_Reader_camera(false)).decodeProperiesFromInfo(imp_src); // decode existent properties from info
-				  JP4_INSTANCE.decodeProperiesFromInfo(imp_src); // decode existent properties from info
-				  if (debugLevel>0) System.out.println("Processing "+sourceFiles[nFile]);
+				  processWaitNanos+=System.nanoTime()-t0;
+				  rethrowThreadError(decoded.error);
+				  imp_src=decoded.imp;
+			  } else {
+				  imp_src=readChannelImage(iImage, fileIndices, sourceFiles, debugLevel);
 			  }
+			  long processStartTime=System.nanoTime();
 			  double scaleExposure=1.0;
 			  if (!Double.isNaN(referenceExposures[nFile]) && (imp_src.getProperty("EXPOSURE")!=null)){
 				  scaleExposure=referenceExposures[nFile]/Double.parseDouble((String) imp_src.getProperty("EXPOSURE"));
 //				  imp_src.setProperty("scaleExposure", scaleExposure); // it may already have channel
 				  if (debugLevel>0) System.out.println("Will scale intensity (to compensate for exposure) by  "+scaleExposure);
 			  }
-			  imp_src.setProperty("name",    correctionsParameters.getNameFromSourceTiff(sourceFiles[nFile]));
-			  imp_src.setProperty("channel", srcChannel); // it may already have channel
-			  imp_src.setProperty("path",    sourceFiles[nFile]); // it may already have channel
 //			  ImagePlus result=processChannelImage( // returns ImagePlus, but it already should be saved/shown
 			  processChannelImage( // returns ImagePlus, but it already should be saved/shown
 					  imp_src, // should have properties "name"(base for saving results), "channel","path"
@@ -664,6 +725,7 @@ public class EyesisCorrections {
 			  }
 			  //pixelMapping
 			  Runtime.getRuntime().gc();
+			  processNanos+=System.nanoTime()-processStartTime;
 			  if (debugLevel>0) System.out.println("Processing image "+(iImage+1)+" (of "+fileIndices.length+") finished at "+
 					  IJ.d2s(0.000000001*(System.nanoTime()-this.startTime),3)+" sec, --- Free memory="+Runtime.getRuntime().freeMemory()+" (of "+Runtime.getRuntime().totalMemory()+")");
 			  if (this.stopRequested.get()>0) {
@@ -671,8 +733,99 @@ public class EyesisCorrections {
 				  return;
 			  }
 		  }
+		  } finally {
+			  if (pipelined){
+				  decodeThread.interrupt(); // if it is still waiting for the queue after stop
+				  this.saveExecutor.shutdown();
+				  try {
+					  this.saveExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS); // finish pending saves
+				  } catch (InterruptedException ie){
+					  throw new RuntimeException(ie);
+				  }
+				  this.saveExecutor=null;
+				  if (debugLevel>0) {
+					  System.out.println("Pipeline: decode "+IJ.d2s(0.000000001*decodeNanos.get(),3)+" sec (waited for queue "+
+							  IJ.d2s(0.000000001*decodeWaitNanos.get(),3)+" sec), process "+IJ.d2s(0.000000001*processNanos,3)+
+							  " sec (waited for decoder "+IJ.d2s(0.000000001*processWaitNanos,3)+" sec), save "+
+							  IJ.d2s(0.000000001*this.saveNanos.get(),3)+" sec");
+					  System.out.println("Pipeline: max decoded queue "+maxDecodedQueue+", max save queue "+this.maxSaveQueue.get()+
+							  " (depth "+correctionsParameters.pipelineDepth+", save threads "+correctionsParameters.pipelineSaveThreads+")");
+				  }
+			  }
+		  }
+		  if (debugLevel>0) System.out.println(this.kernelStackCache.getStatistics());
+		  if (debugLevel>1) System.out.print(DoubleFHT.getSharedTablesStatistics());
 	}
 	
+	/**
+	 * Pipeline item passed from the decode thread to the processing one - decoded image or the decode failure
+	 */
+	private static class DecodedImage{
+		ImagePlus imp=  null;
+		Throwable error=null;
+	}
+
+	/**
+	 * Read (decode) source image for the specified entry of the processing list and set properties used by processChannelImage().
+	 * JP4 composite images are decoded once for all subchannels that follow each other in the list. In pipeline mode
+	 * it runs in a separate thread, so it should not use anything modified by the processing.
+	 * @param iImage index in fileIndices
+	 * @param fileIndices list of {file index, channel number}
+	 * @param sourceFiles source file paths
+	 * @param debugLevel debug level
+	 * @return image with properties "name", "channel" and "path" set
+	 */
+	private ImagePlus readChannelImage(
+			int         iImage,
+			int [][]    fileIndices,
+			String []   sourceFiles,
+			int         debugLevel){
+		int nFile=fileIndices[iImage][0];
+		ImagePlus imp_src=null;
+		int srcChannel=fileIndices[iImage][1];
+		if (correctionsParameters.isJP4()){
+			int subchannel=this.pixelMapping.getSubChannel(srcChannel);
+			if (this.correctionsParameters.swapSubchannels01) {
+				switch (subchannel){
+				case 0: subchannel=1; break;
+				case 1: subchannel=0; break;
+				}
+			}
+			if (debugLevel>0) System.out.println("Processing channel "+fileIndices[iImage][1]+" - subchannel "+subchannel+" of "+sourceFiles[nFile]);
+			if (nFile!=this.jp4CompositeFile){
+				this.jp4Composite=JP4_INSTANCE.open(
+						"", // path,
+						sourceFiles[nFile],
+						"",  //arg - not used in JP46 reader
+						true, // un-apply camera color gains
+						null, // new window
+						false); // do not show
+				this.jp4CompositeFile=nFile;
+			} else {
+				if (debugLevel>1) System.out.println("Reusing decoded "+sourceFiles[nFile]);
+			}
+			boolean lastForFile=(iImage==(fileIndices.length-1)) || (fileIndices[iImage+1][0]!=nFile);
+			imp_src=JP4_INSTANCE.demuxImage(this.jp4Composite, subchannel);
+			if (imp_src==null) { // not a composite image
+				imp_src=lastForFile?this.jp4Composite:JP4_INSTANCE.demuxClone(this.jp4Composite); // it will be modified, keep original for other channels
+			}
+			if (lastForFile) { // free memory
+				this.jp4Composite=null;
+				this.jp4CompositeFile=-1;
+			}
+// do we need to add any properties?				  
+		} else { 
+			imp_src=new ImagePlus(sourceFiles[nFile]);
+//			(new JP46_Reader_camera(false)).decodeProperiesFromInfo(imp_src); // decode existent properties from info
+			JP4_INSTANCE.decodeProperiesFromInfo(imp_src); // decode existent properties from info
+			if (debugLevel>0) System.out.println("Processing "+sourceFiles[nFile]);
+		}
+		imp_src.setProperty("name",    correctionsParameters.getNameFromSourceTiff(sourceFiles[nFile]));
+		imp_src.setProperty("channel", srcChannel); // it may already have channel
+		imp_src.setProperty("path",    sourceFiles[nFile]); // it may already have channel
+		return imp_src;
+	}
+
 	public void saveTiffWithAlpha(
 			ImagePlus imp,
 			EyesisCorrectionParameters.CorrectionParameters correctionsParameters)
@@ -700,13 +853,38 @@ public class EyesisCorrections {
 			if (path!=null){
 				path+=Prefs.getFileSeparator()+imp.getTitle()+".tiff";
 	 			 if (this.debugLevel>0) System.out.println("Saving equirectangular result to "+path);
-				(new EyesisTiff(correctionsParameters.tiffCompression)).saveTiff(
-						imp,
-						path,
-						correctionsParameters.equirectangularFormat,
-						((correctionsParameters.equirectangularFormat==3)?correctionsParameters.outputRangeFP:correctionsParameters.outputRangeInt),
-						correctionsParameters.imageJTags,	
-						debugLevel);
+	 			 if ((this.saveExecutor==null) || (this.debugLevel>1)){
+	 				 EyesisTiff eyesisTiff=new EyesisTiff(correctionsParameters.tiffCompression);
+	 				 eyesisTiff.setLayout(correctionsParameters.tiffTileSize, correctionsParameters.tiffBigTiff, correctionsParameters.tiffOverviewLevels);
+	 				 eyesisTiff.saveTiff(
+	 						 imp,
+	 						 path,
+	 						 correctionsParameters.equirectangularFormat,
+	 						 ((correctionsParameters.equirectangularFormat==3)?correctionsParameters.outputRangeFP:correctionsParameters.outputRangeInt),
+	 						 correctionsParameters.imageJTags,	
+	 						 debugLevel);
+	 			 } else {
+	 				 final ImagePlus fImp=imp;
+	 				 final String fPath=path;
+	 				 final EyesisCorrectionParameters.CorrectionParameters fCorrectionsParameters=correctionsParameters;
+	 				 saveInBackground(new Runnable() {
+	 					 public void run() {
+	 						 try {
+	 							 EyesisTiff eyesisTiff=new EyesisTiff(fCorrectionsParameters.tiffCompression);
+	 							 eyesisTiff.setLayout(fCorrectionsParameters.tiffTileSize, fCorrectionsParameters.tiffBigTiff, fCorrectionsParameters.tiffOverviewLevels);
+	 							 eyesisTiff.saveTiff(
+	 									 fImp,
+	 									 fPath,
+	 									 fCorrectionsParameters.equirectangularFormat,
+	 									 ((fCorrectionsParameters.equirectangularFormat==3)?fCorrectionsParameters.outputRangeFP:fCorrectionsParameters.outputRangeInt),
+	 									 fCorrectionsParameters.imageJTags,	
+	 									 debugLevel);
+	 						 } catch (Exception e){ // IOException, FormatException, ServiceException, DependencyException
+	 							 throw new RuntimeException(e);
+	 						 }
+	 					 }
+	 				 });
+	 			 }
 			}
 		}
 	}
@@ -954,12 +1132,30 @@ public class EyesisCorrections {
 		// Demosaic image
 		if (debayerScissors==null) debayerScissors=new DebayerScissors(this.stopRequested);
 		debayerScissors.setDebug(debugLevel);
+		ImageStack stackBayer=stack;
 		stack= debayerScissors.aliasScissorsStack(stack,  // stack with 3 colors/slices with the image
 				debayerParameters,
 				(this.correctionsParameters.saveDebayerEnergy || this.correctionsParameters.showDebayerEnergy),
+				this.correctionsParameters.debayerFloat, // single precision FHT
 				threadsMax, // number of image pixels/ sensor pixels (each direction) == 2
 				updateStatus,// update status info
 				debugLevel);
+		if (this.correctionsParameters.debayerFloat && ((this.correctionsParameters.floatTolerance>0.0) || (debugLevel>2)) && !this.debayerFloatChecked){ // compare with the double precision result (first image only, it reprocesses every tile)
+			this.debayerFloatChecked=true;
+			checkFloatError(
+					stack,
+					(new DebayerScissors(this.stopRequested)).aliasScissorsStack(stackBayer,
+							debayerParameters,
+							false,
+							false, // double precision
+							threadsMax,
+							updateStatus,
+							debugLevel),
+					title+"-DEBAYER",
+					this.correctionsParameters.floatTolerance,
+					debugLevel);
+		}
+		stackBayer=null;
 		if (this.correctionsParameters.saveDebayerEnergy || this.correctionsParameters.showDebayerEnergy) {
 			if (debayerScissors.getDebayerEnergy()!=null) {
 				ImagePlus debayerMask=SDFA_INSTANCE.makeArrays (debayerScissors.getDebayerEnergy(),
@@ -990,22 +1186,47 @@ public class EyesisCorrections {
 				return null;
 			}
 			// Read deconvolution kernels
-			ImagePlus imp_sharp_kernels=new ImagePlus(this.sharpKernelPaths[channel]);
-			if (imp_sharp_kernels.getStackSize()<3) {
-				System.out.println("Need a 3-layer stack with kernels - file "+this.sharpKernelPaths[channel]);
-				return null;
+			ImageStack convolutionSharpKernelStack=null;
+			if (this.correctionsParameters.kernelsFHT){
+				convolutionSharpKernelStack=getKernelStackFHT(
+						this.sharpKernelPaths[channel],
+						convolveFFTSize,
+						threadsMax,
+						updateStatus,
+						debugLevel);
+				if (convolutionSharpKernelStack==null) return null;
+			} else {
+				convolutionSharpKernelStack=getKernelStack(this.sharpKernelPaths[channel], debugLevel);
+				if (convolutionSharpKernelStack==null) return null;
 			}
-			ImageStack convolutionSharpKernelStack=imp_sharp_kernels.getStack();
 			if (debugLevel>1) System.out.println("Using kernel stack "+this.sharpKernelPaths[channel]+" for convolution with "+result.getTitle());
 			ImageStack stackDeconvolvedSharp= convolveStackWithKernelStack( //  stack_d
 					stack,  // stack with 3 colors/slices with the image
 					convolutionSharpKernelStack, // stack with 3 colors/slices convolution kernels
+					this.correctionsParameters.kernelsFHT, // kernels are already in frequency domain
+					this.correctionsParameters.deconvolveFloat, // single precision FHT
 					convolveFFTSize, // 128 - fft size, kernel size should be size/2 
 					threadsMax,
 					updateStatus, // update status info
 					debugLevel);
-			imp_sharp_kernels=null; // free memory
-			convolutionSharpKernelStack=null;
+			if (this.correctionsParameters.deconvolveFloat && ((this.correctionsParameters.floatTolerance>0.0) || (debugLevel>2)) && !this.deconvolveFloatChecked){ // compare with the double precision result (first image only, it reprocesses every tile)
+				this.deconvolveFloatChecked=true;
+				checkFloatError(
+						stackDeconvolvedSharp,
+						convolveStackWithKernelStack(
+								stack,
+								convolutionSharpKernelStack,
+								this.correctionsParameters.kernelsFHT,
+								false, // double precision
+								convolveFFTSize,
+								threadsMax,
+								updateStatus,
+								debugLevel),
+						title+"-DECONV",
+						this.correctionsParameters.floatTolerance,
+						debugLevel);
+			}
+			convolutionSharpKernelStack=null; // free memory (if not cached)
 			Runtime.getRuntime().gc();
 			titleFull=title+"-DECONV";
 			if (this.correctionsParameters.combine) {
@@ -1020,22 +1241,30 @@ public class EyesisCorrections {
 					System.out.println("Smooth kernel path does not exist");
 					return null;
 				}
-				ImagePlus imp_smooth_kernels=new ImagePlus(this.smoothKernelPaths[channel]);
-				if (imp_smooth_kernels.getStackSize()<3) {
-					System.out.println("Need a 3-layer stack with kernels - file "+this.smoothKernelPaths[channel]);
-					return null;
+				ImageStack convolutionSmoothKernelStack=null;
+				if (this.correctionsParameters.kernelsFHT){
+					convolutionSmoothKernelStack=getKernelStackFHT(
+							this.smoothKernelPaths[channel],
+							convolveFFTSize,
+							threadsMax,
+							updateStatus,
+							debugLevel);
+					if (convolutionSmoothKernelStack==null) return null;
+				} else {
+					convolutionSmoothKernelStack=getKernelStack(this.smoothKernelPaths[channel], debugLevel);
+					if (convolutionSmoothKernelStack==null) return null;
 				}
-				ImageStack convolutionSmoothKernelStack=imp_smooth_kernels.getStack();
 				if (debugLevel>1) System.out.println("Using smooth kernel stack "+this.smoothKernelPaths[channel]+" for convolution with "+result.getTitle());
 				ImageStack stackDeconvolvedSmooth = convolveStackWithKernelStack( //stack_g
 						stack,  // stack with 3 colors/slices with the image
 						convolutionSmoothKernelStack, // stack with 3 colors/slices convolution kernels
+						this.correctionsParameters.kernelsFHT, // kernels are already in frequency domain
+						this.correctionsParameters.deconvolveFloat, // single precision FHT
 						convolveFFTSize, // 128 - fft size, kernel size should be size/2 
 						threadsMax,
 						updateStatus, // update status info
 						debugLevel);
-				imp_smooth_kernels=null; // free memory
-				convolutionSmoothKernelStack=null;
+				convolutionSmoothKernelStack=null; // free memory (if not cached)
 				Runtime.getRuntime().gc();
 				// Combine Smooth and Sharp images
 				double [][] noiseMask= extractNoiseMask(
@@ -1131,6 +1360,8 @@ public class EyesisCorrections {
 			ImageStack stackDeconvolvedSmooth = convolveStackWithKernelStack( // stack_g
 					stack,  // stack with 3 colors/slices with the image
 					convolutionSmoothKernelStack, // stack with 3 colors/slices convolution kernels
+					false, // kernels are in space domain
+					this.correctionsParameters.deconvolveFloat, // single precision FHT
 					convolveFFTSize, // 128 - fft size, kernel size should be size/2 
 					threadsMax,
 					updateStatus, // update status info
@@ -1689,6 +1920,27 @@ public class EyesisCorrections {
 			  final int          threadsMax,  // maximal number of threads to launch                         
 			  final boolean    updateStatus, // update status info
 			  final int globalDebugLevel)
+	  {
+		  return convolveStackWithKernelStack (
+				  imageStack,
+				  kernelStack,
+				  false,         // kernels are in space domain
+				  false,         // double precision FHT
+				  size,
+				  threadsMax,
+				  updateStatus,
+				  globalDebugLevel);
+	  }
+
+	  public ImageStack convolveStackWithKernelStack (
+			  final ImageStack  imageStack,  // stack with 3 colors/slices with the image
+			  final ImageStack kernelStack, // stack with 3 colors/slices convolution kernels
+			  final boolean     kernelsFHT, // kernelStack is already transformed (see transformKernelStack()), size x size per kernel
+			  final boolean       useFloat, // use single precision FHT (FloatFHT) for the tiles
+			  final int               size, // 128 - fft size, kernel size should be size/2 
+			  final int          threadsMax,  // maximal number of threads to launch                         
+			  final boolean    updateStatus, // update status info
+			  final int globalDebugLevel)
 	  {
 		  if ((imageStack==null) || (kernelStack==null)) return null;
 		  final int imgWidth=imageStack.getWidth();
@@ -1699,7 +1951,7 @@ public class EyesisCorrections {
 		  final int tilesX=imgWidth/step-1; // horizontal number of overlapping tiles in the source image (should be expanded from the registerd one by "step" in each direction)
 		  final int tilesY=imgHeight/step-1; // vertical number of overlapping tiles in the source image (should be expanded from the registerd one by "step" in each direction)
 		  final int kernelWidth=kernelStack.getWidth();
-		  final int kernelNumHor=kernelWidth/(size/2);
+		  final int kernelNumHor=kernelWidth/(kernelsFHT?size:(size/2));
 
 		  final int nChn=imageStack.getSize();
 		  final float [][] outPixels=new float[nChn][length]; // GLOBAL same as input
@@ -1708,88 +1960,84 @@ public class EyesisCorrections {
 		  for (i=0;i<nChn;i++) for (j=0;j<length;j++) outPixels[i][j]=0.0f;
 		  final double [] slidingWindow=getSlidingMask(kernelSize); // 64x64
 		  final Thread[] threads = newThreadArray(threadsMax);
-		  final AtomicInteger ai = new AtomicInteger(0);
-		  final int numberOfKernels=     tilesY*tilesX*nChn;
-		  final int numberOfKernelsInChn=tilesY*tilesX;
+		  /* Output tile (size x size) overlaps with 3 neighbors in each direction (step=size/4), so tiles are processed in
+		   * 16 phases (tileX%4, tileY%4). Tiles of the same phase never overlap and are accumulated without locking,
+		   * threads wait for each other between the phases. */
+		  final int phaseStep=size/step;
+		  final int numPhases=phaseStep*phaseStep;
+		  final AtomicInteger [] aiPhase = new AtomicInteger[numPhases];
+		  for (i=0;i<numPhases;i++) aiPhase[i]=new AtomicInteger(0);
+		  final CyclicBarrier phaseBarrier=new CyclicBarrier(threads.length);
+		  final AtomicReference<Throwable> phaseError=new AtomicReference<Throwable>(); // first failure in any of the threads
 		  final long startTime = System.nanoTime();
 		  for (int ithread = 0; ithread < threads.length; ithread++) {
 			  threads[ithread] = new Thread() {
 				  public void run() {
 					  float [] pixels=null;       // will be initialized at first use
 					  float [] kernelPixels=null; // will be initialized at first use
-					  double [] kernel=       new double[kernelSize*kernelSize];
-					  double [] inTile=       new double[kernelSize*kernelSize];
-					  double [] outTile=      new double[size * size];
-					  double [] doubleKernel= new double[size * size];
+					  double [] kernel=       useFloat?null:(new double[kernelSize*kernelSize]);
+					  double [] inTile=       useFloat?null:(new double[kernelSize*kernelSize]);
+					  double [] outTile=      useFloat?null:(new double[size * size]);
+					  double [] doubleKernel= useFloat?null:(new double[size * size]);
+					  float  [] kernelF=       useFloat?(new float[kernelSize*kernelSize]):null;
+					  float  [] inTileF=       useFloat?(new float[kernelSize*kernelSize]):null;
+					  float  [] outTileF=      useFloat?(new float[size * size]):null;
+					  float  [] doubleKernelF= useFloat?(new float[size * size]):null;
 					  int chn,tileY,tileX;
 					  int chn0=-1;
 //					  double debug_sum;
 //					  int i;
-					  DoubleFHT fht_instance =new DoubleFHT(); // provide DoubleFHT instance to save on initializations (or null)
-					  for (int nTile = ai.getAndIncrement(); nTile < numberOfKernels; nTile = ai.getAndIncrement()) {
-						  chn=nTile/numberOfKernelsInChn;
-						  tileY =(nTile % numberOfKernelsInChn)/tilesX;
-						  tileX = nTile % tilesX;
-						  if (tileX==0) {
-							  if (updateStatus) IJ.showStatus("Convolving image with kernels, channel "+(chn+1)+" of "+nChn+", row "+(tileY+1)+" of "+tilesY);
-							  if (globalDebugLevel>2) System.out.println("Processing kernels, channel "+(chn+1)+" of "+nChn+", row "+(tileY+1)+" of "+tilesY+" : "+IJ.d2s(0.000000001*(System.nanoTime()-startTime),3));
+					  DoubleFHT fht_instance =useFloat?null:(new DoubleFHT()); // provide DoubleFHT instance to save on initializations (or null)
+					  FloatFHT fht_float=useFloat?(new FloatFHT()):null;
+					  for (int phase=0;phase<numPhases;phase++){
+						  int phaseY=phase/phaseStep;
+						  int phaseX=phase%phaseStep;
+						  int phaseTilesX=(tilesX-phaseX+phaseStep-1)/phaseStep;
+						  int phaseTilesY=(tilesY-phaseY+phaseStep-1)/phaseStep;
+						  int numberOfKernelsInChn=phaseTilesY*phaseTilesX;
+						  int numberOfKernels=     numberOfKernelsInChn*nChn;
+						  if (phase>0) {
+							  try {
+								  phaseBarrier.await(); // all tiles of the previous phase are accumulated
+							  } catch (InterruptedException e) { // barrier is broken for the other threads too
+								  phaseError.compareAndSet(null, e);
+								  return;
+							  } catch (BrokenBarrierException e) {
+								  phaseError.compareAndSet(null, e);
+								  return;
+							  }
 						  }
+						  try {
+							  for (int nTile = aiPhase[phase].getAndIncrement(); nTile < numberOfKernels; nTile = aiPhase[phase].getAndIncrement()) {
+								  if (phaseError.get()!=null) break; // some other thread failed - only pass the remaining barriers
+								  chn=nTile/numberOfKernelsInChn;
+								  tileY =phaseY+phaseStep*((nTile % numberOfKernelsInChn)/phaseTilesX);
+								  tileX =phaseX+phaseStep*(nTile % phaseTilesX);
+								  if (tileX==0) {
+									  if (updateStatus) IJ.showStatus("Convolving image with kernels, channel "+(chn+1)+" of "+nChn+", row "+(tileY+1)+" of "+tilesY);
+									  if (globalDebugLevel>2) System.out.println("Processing kernels, channel "+(chn+1)+" of "+nChn+", row "+(tileY+1)+" of "+tilesY+" : "+IJ.d2s(0.000000001*(System.nanoTime()-startTime),3));
+								  }
 						  
-						  if (chn!=chn0) {
-							  pixels=      (float[]) imageStack.getPixels(chn+1);
-							  kernelPixels=(float[]) kernelStack.getPixels(chn+1);
-							  chn0=chn;
+								  if (chn!=chn0) {
+									  pixels=      (float[]) imageStack.getPixels(chn+1);
+									  kernelPixels=(float[]) kernelStack.getPixels(chn+1);
+									  chn0=chn;
+								  }
+								  /* not synchronized - tiles of the same phase do not overlap */
+								  if (useFloat) convolveTile(pixels, kernelPixels, outPixels[chn], slidingWindow, inTileF, outTileF, kernelF, doubleKernelF,
+										  fht_float, kernelsFHT, kernelNumHor, imgWidth, size, tileX, tileY);
+								  else          convolveTile(pixels, kernelPixels, outPixels[chn], slidingWindow, inTile, outTile, kernel, doubleKernel,
+										  fht_instance, kernelsFHT, kernelNumHor, imgWidth, size, tileX, tileY);
+							  }
+						  } catch (Throwable t){ // record the failure, but keep arriving at the barriers so other threads do not wait forever
+							  phaseError.compareAndSet(null, t);
 						  }
-						  /* Read source image tile */
-						  extractSquareTile( pixels, // source pixel array,
-								  inTile, // will be filled, should have correct size before call
-								  slidingWindow, // window (same size as the kernel)
-								  imgWidth, // width of pixels array
-								  tileX*step, // left corner X
-								  tileY*step); // top corner Y
-						  /* zero pad twice the original size*/
-						  outTile=extendFFTInputTo (inTile, size);
-						  /* FHT transform of the source image data*/
-						  fht_instance.swapQuadrants(outTile);
-						  fht_instance.transform(    outTile);
-						  /* read convolution kernel */
-						  extractOneKernel(kernelPixels, //  array of combined square kernels, each 
-								  kernel, // will be filled, should have correct size before call
-								  kernelNumHor, // number of kernels in a row
-								  //tileX*kernelSize, // horizontal number of kernel to extract
-								  //tileY*kernelSize); // vertical number of kernel to extract
-								  tileX, // horizontal number of kernel to extract
-								  tileY); // vertical number of kernel to extract
-						  /* zero pad twice the original size*/
-						  doubleKernel=extendFFTInputTo (kernel, size);
-//						  debug_sum=0;
-//						  for (i=0;i<doubleKernel.length;i++) debug_sum+=doubleKernel[i];
-//						  if (globalDebugLevel>1) System.out.println("kernel sum="+debug_sum);
-						  
-						  //if ((tileY==tilesY/2) && (tileX==tilesX/2))  SDFA_INSTANCE.showArrays(doubleKernel,size,size, "doubleKernel-"+chn);
-						  /* FHT transform of the kernel */
-						  fht_instance.swapQuadrants(doubleKernel);
-						  fht_instance.transform(    doubleKernel);
-						  /* multiply in frequency domain */
-						  outTile=     fht_instance.multiply(outTile, doubleKernel, false);
-						  /* FHT inverse transform of the product - back to space domain */
-						  fht_instance.inverseTransform(outTile);
-						  fht_instance.swapQuadrants(outTile);
-						  /* accumulate result */
-						  //if ((tileY==tilesY/2) && (tileX==tilesX/2))  SDFA_INSTANCE.showArrays(outTile,size,size, "out-"+chn);
-						  /*This is synchronized method. It is possible to make threads to write to non-overlapping regions of the outPixels, but as the accumulation
-						   * takes just small fraction of severtal FHTs, it should be OK - reasonable number of threads will spread and not "stay in line"
-						   */
-						  accumulateSquareTile(outPixels[chn], //  float pixels array to accumulate tile
-								  outTile, // data to accumulate to the pixels array
-								  imgWidth, // width of pixels array
-								  (tileX-1)*step, // left corner X
-								  (tileY-1)*step); // top corner Y
 					  }
 				  }
 			  };
 		  }		      
 		  startAndJoin(threads);
+		  rethrowThreadError(phaseError.get());
 		  if (globalDebugLevel > 1) System.out.println("Threads done at "+IJ.d2s(0.000000001*(System.nanoTime()-startTime),3));
 
 		  /* prepare result stack to return */
@@ -1799,6 +2047,299 @@ public class EyesisCorrections {
 		  }
 		  return outStack;
 	  }
+	  /**
+	   * Convolve one image tile with its kernel (both zero-padded to size x size) and accumulate the result,
+	   * per-thread buffers are provided by the caller
+	   * @param pixels image channel pixels
+	   * @param kernelPixels combined kernels of the same channel (space domain or already transformed if kernelsFHT)
+	   * @param outPixels output channel pixels to accumulate the tile to
+	   * @param slidingWindow window for the image tile, (size/2) x (size/2)
+	   * @param inTile buffer for the windowed image tile, (size/2) x (size/2)
+	   * @param outTile buffer for the padded image tile and the result, size x size
+	   * @param kernel buffer for the space domain kernel, (size/2) x (size/2)
+	   * @param doubleKernel buffer for the padded/transformed kernel, size x size
+	   * @param fht_instance per-thread DoubleFHT instance
+	   * @param kernelsFHT kernels are already transformed, size x size each
+	   * @param kernelNumHor number of kernels in a row
+	   * @param imgWidth image width
+	   * @param size FHT size
+	   * @param tileX horizontal tile number (step=size/4)
+	   * @param tileY vertical tile number
+	   */
+	  private void convolveTile(
+			  float []     pixels,
+			  float []     kernelPixels,
+			  float []     outPixels,
+			  double []    slidingWindow,
+			  double []    inTile,
+			  double []    outTile,
+			  double []    kernel,
+			  double []    doubleKernel,
+			  DoubleFHT    fht_instance,
+			  boolean      kernelsFHT,
+			  int          kernelNumHor,
+			  int          imgWidth,
+			  int          size,
+			  int          tileX,
+			  int          tileY){
+		  int step=size/4;
+		  /* Read source image tile */
+		  extractSquareTile( pixels, // source pixel array,
+				  inTile, // will be filled, should have correct size before call
+				  slidingWindow, // window (same size as the kernel)
+				  imgWidth, // width of pixels array
+				  tileX*step, // left corner X
+				  tileY*step); // top corner Y
+		  /* zero pad twice the original size*/
+		  extendFFTInputTo (inTile, outTile, size); // reuse the same per-thread buffers for every tile
+		  /* FHT transform of the source image data (single-tile transformTiles() - column pass without transposition)*/
+		  fht_instance.swapQuadrants(outTile);
+		  fht_instance.transformTiles(outTile, size, 1);
+		  if (kernelsFHT){
+			  /* read pre-transformed convolution kernel, already size x size */
+			  extractOneKernel(kernelPixels, //  array of combined square kernels, each 
+					  doubleKernel, // will be filled, should have correct size before call
+					  kernelNumHor, // number of kernels in a row
+					  tileX, // horizontal number of kernel to extract
+					  tileY); // vertical number of kernel to extract
+		  } else {
+			  /* read convolution kernel */
+			  extractOneKernel(kernelPixels, //  array of combined square kernels, each 
+					  kernel, // will be filled, should have correct size before call
+					  kernelNumHor, // number of kernels in a row
+					  tileX, // horizontal number of kernel to extract
+					  tileY); // vertical number of kernel to extract
+			  /* zero pad twice the original size*/
+			  extendFFTInputTo (kernel, doubleKernel, size);
+			  /* FHT transform of the kernel */
+			  fht_instance.swapQuadrants(doubleKernel);
+			  fht_instance.transformTiles(doubleKernel, size, 1);
+		  }
+		  /* multiply in frequency domain */
+		  fht_instance.multiplyInPlace(outTile, doubleKernel, false);
+		  /* FHT inverse transform of the product - back to space domain */
+		  fht_instance.inverseTransformTiles(outTile, size, 1);
+		  fht_instance.swapQuadrants(outTile);
+		  /* accumulate result */
+		  accumulateSquareTile(outPixels, //  float pixels array to accumulate tile
+				  outTile, // data to accumulate to the pixels array
+				  imgWidth, // width of pixels array
+				  (tileX-1)*step, // left corner X
+				  (tileY-1)*step); // top corner Y
+	  }
+
+	  /* Same as above, but in single precision (FloatFHT) */
+	  private void convolveTile(
+			  float []     pixels,
+			  float []     kernelPixels,
+			  float []     outPixels,
+			  double []    slidingWindow,
+			  float []     inTile,
+			  float []     outTile,
+			  float []     kernel,
+			  float []     doubleKernel,
+			  FloatFHT     fht_float,
+			  boolean      kernelsFHT,
+			  int          kernelNumHor,
+			  int          imgWidth,
+			  int          size,
+			  int          tileX,
+			  int          tileY){
+		  int step=size/4;
+		  extractSquareTile(pixels, inTile, slidingWindow, imgWidth, tileX*step, tileY*step);
+		  extendFFTInputTo (inTile, outTile, size);
+		  fht_float.swapQuadrants(outTile);
+		  fht_float.transform(    outTile);
+		  if (kernelsFHT){
+			  extractOneKernel(kernelPixels, doubleKernel, kernelNumHor, tileX, tileY);
+		  } else {
+			  extractOneKernel(kernelPixels, kernel, kernelNumHor, tileX, tileY);
+			  extendFFTInputTo (kernel, doubleKernel, size);
+			  fht_float.swapQuadrants(doubleKernel);
+			  fht_float.transform(    doubleKernel);
+		  }
+		  fht_float.multiplyInPlace(outTile, doubleKernel, false);
+		  fht_float.inverseTransform(outTile);
+		  fht_float.swapQuadrants(outTile);
+		  accumulateSquareTile(outPixels, outTile, imgWidth, (tileX-1)*step, (tileY-1)*step);
+	  }
+
+	  /**
+	   * Compare the single precision result with the double precision one, per slice. Maximal and RMS errors are
+	   * relative to the maximal absolute value of the double precision slice
+	   * @param floatStack result calculated with FloatFHT
+	   * @param doubleStack result calculated with DoubleFHT
+	   * @param title name to print
+	   * @param tolerance maximal relative error allowed (<=0 - do not check, just report)
+	   * @param debugLevel debug level (errors are printed when debugLevel>2, exceeded tolerance - always)
+	   * @return false if the error of any slice exceeds the tolerance
+	   */
+	  public boolean checkFloatError(
+			  ImageStack floatStack,
+			  ImageStack doubleStack,
+			  String     title,
+			  double     tolerance,
+			  int        debugLevel){
+		  if ((floatStack==null) || (doubleStack==null)) return true;
+		  boolean ok=true;
+		  for (int n=1;n<=floatStack.getSize();n++){
+			  float [] fPixels=(float[]) floatStack.getPixels(n);
+			  float [] dPixels=(float[]) doubleStack.getPixels(n);
+			  double maxErr=0.0, sum2=0.0, maxAbs=0.0;
+			  for (int i=0;i<fPixels.length;i++){
+				  double d=Math.abs(fPixels[i]-dPixels[i]);
+				  if (d>maxErr) maxErr=d;
+				  sum2+=d*d;
+				  if (Math.abs(dPixels[i])>maxAbs) maxAbs=Math.abs(dPixels[i]);
+			  }
+			  double rmsErr=Math.sqrt(sum2/fPixels.length);
+			  if (maxAbs>0.0){
+				  maxErr/=maxAbs;
+				  rmsErr/=maxAbs;
+			  }
+			  boolean exceeded=(tolerance>0.0) && (maxErr>tolerance);
+			  if (exceeded) ok=false;
+			  if (exceeded || (debugLevel>2)) System.out.println((exceeded?"WARNING: ":"")+title+" ("+doubleStack.getSliceLabel(n)+
+					  "): float vs double relative max error="+maxErr+", RMS error="+rmsErr+" (max value="+maxAbs+
+					  ((tolerance>0.0)?(", tolerance="+tolerance):"")+")");
+		  }
+		  return ok;
+	  }
+	  /**
+	   * Read kernel stack from file or get it from kernelStackCache if the file was not modified since
+	   * @param kernelPath path to the kernel stack file (3 color slices)
+	   * @param debugLevel debug level
+	   * @return kernel stack or null on failure
+	   */
+	  public ImageStack getKernelStack(
+			  String             kernelPath,
+			  int                debugLevel){
+		  String key=KernelStackCache.makeKey(kernelPath, "");
+		  ImageStack stack=this.kernelStackCache.get(key);
+		  if (stack!=null) return stack;
+		  ImagePlus imp_kernels=new ImagePlus(kernelPath);
+		  if (imp_kernels.getStackSize()<3) {
+			  System.out.println("Need a 3-layer stack with kernels - file "+kernelPath);
+			  return null;
+		  }
+		  stack=imp_kernels.getStack();
+		  this.kernelStackCache.put(key, stack);
+		  return stack;
+	  }
+
+	  /**
+	   * Get kernel stack transformed to the frequency domain (for convolveStackWithKernelStack() with kernelsFHT=true).
+	   * Transformed stacks are kept in memory (kernelStackCache) and, if correctionsParameters.saveKernelsFHT is set, saved
+	   * next to the kernel file and reused if they are not older than the kernel file itself
+	   * @param kernelPath path to the kernel stack file (3 color slices of size/2 x size/2 kernels)
+	   * @param size FFT size (128)
+	   * @param threadsMax maximal number of threads to launch
+	   * @param updateStatus update status info
+	   * @param debugLevel debug level
+	   * @return stack of size x size FHT-domain kernels (same tile layout as the source) or null on failure
+	   */
+	  public ImageStack getKernelStackFHT(
+			  String             kernelPath,
+			  int                      size,
+			  int                threadsMax,
+			  boolean          updateStatus,
+			  int                debugLevel){
+		  File kernelFile=new File(kernelPath);
+		  String key=KernelStackCache.makeKey(kernelPath, "fht"+size);
+		  ImageStack stackFHT=this.kernelStackCache.get(key);
+		  if (stackFHT!=null) return stackFHT;
+		  String fhtPath=kernelPath+"-fht"+size+".tiff";
+		  File fhtFile=new File(fhtPath);
+		  if (this.correctionsParameters.saveKernelsFHT && fhtFile.exists() && (fhtFile.lastModified()>=kernelFile.lastModified())){
+			  ImagePlus imp_fht=new ImagePlus(fhtPath);
+			  if (imp_fht.getStackSize()>=3){
+				  if (debugLevel>0) System.out.println("Using pre-transformed kernels from "+fhtPath);
+				  stackFHT=imp_fht.getStack();
+			  }
+		  }
+		  if (stackFHT==null){
+			  ImagePlus imp_kernels=new ImagePlus(kernelPath);
+			  if (imp_kernels.getStackSize()<3) {
+				  System.out.println("Need a 3-layer stack with kernels - file "+kernelPath);
+				  return null;
+			  }
+			  if (debugLevel>0) System.out.println("Transforming kernels from "+kernelPath+" to frequency domain");
+			  stackFHT=transformKernelStack(
+					  imp_kernels.getStack(),
+					  size,
+					  threadsMax,
+					  updateStatus,
+					  debugLevel);
+			  if (this.correctionsParameters.saveKernelsFHT){
+				  if (debugLevel>0) System.out.println("Saving pre-transformed kernels to "+fhtPath);
+				  (new FileSaver(new ImagePlus(imp_kernels.getTitle()+"-fht"+size, stackFHT))).saveAsTiffStack(fhtPath);
+			  }
+		  }
+		  this.kernelStackCache.put(key, stackFHT);
+		  return stackFHT;
+	  }
+
+	  /**
+	   * Transform each kernel of the stack to the frequency domain the same way convolveStackWithKernelStack() does it for every tile
+	   * (zero-pad to size x size, swap quadrants, FHT)
+	   * @param kernelStack stack with 3 colors/slices convolution kernels, size/2 x size/2 each
+	   * @param size FFT size (128)
+	   * @param threadsMax maximal number of threads to launch
+	   * @param updateStatus update status info
+	   * @param globalDebugLevel debug level
+	   * @return stack with the same kernel layout, but size x size per kernel (4 times larger than the source)
+	   */
+	  public ImageStack transformKernelStack (
+			  final ImageStack kernelStack, // stack with 3 colors/slices convolution kernels
+			  final int               size, // 128 - fft size, kernel size should be size/2 
+			  final int          threadsMax,  // maximal number of threads to launch                         
+			  final boolean    updateStatus, // update status info
+			  final int globalDebugLevel)
+	  {
+		  if (kernelStack==null) return null;
+		  final int kernelSize=size/2;
+		  final int kernelNumHor=kernelStack.getWidth()/kernelSize;
+		  final int kernelNumVert=kernelStack.getHeight()/kernelSize;
+		  final int outWidth=kernelNumHor*size;
+		  final int nChn=kernelStack.getSize();
+		  final float [][] outPixels=new float[nChn][outWidth*kernelNumVert*size];
+		  final Thread[] threads = newThreadArray(threadsMax);
+		  final AtomicInteger ai = new AtomicInteger(0);
+		  final int numberOfKernelsInChn=kernelNumHor*kernelNumVert;
+		  final int numberOfKernels=     numberOfKernelsInChn*nChn;
+		  for (int ithread = 0; ithread < threads.length; ithread++) {
+			  threads[ithread] = new Thread() {
+				  public void run() {
+					  double [] kernel=       new double[kernelSize*kernelSize];
+					  double [] doubleKernel= new double[size * size];
+					  DoubleFHT fht_instance =new DoubleFHT();
+					  for (int nKernel = ai.getAndIncrement(); nKernel < numberOfKernels; nKernel = ai.getAndIncrement()) {
+						  int chn=nKernel/numberOfKernelsInChn;
+						  int kernelY =(nKernel % numberOfKernelsInChn)/kernelNumHor;
+						  int kernelX = nKernel % kernelNumHor;
+						  if (updateStatus && (kernelX==0)) IJ.showStatus("Transforming kernels, channel "+(chn+1)+" of "+nChn+", row "+(kernelY+1)+" of "+kernelNumVert);
+						  extractOneKernel((float[]) kernelStack.getPixels(chn+1),
+								  kernel,
+								  kernelNumHor,
+								  kernelX,
+								  kernelY);
+						  extendFFTInputTo (kernel, doubleKernel, size);
+						  fht_instance.swapQuadrants(doubleKernel);
+						  fht_instance.transformTiles(doubleKernel, size, 1);
+						  int base=kernelY*size*outWidth+kernelX*size;
+						  for (int i=0;i<size;i++) for (int j=0;j<size;j++) outPixels[chn][base+i*outWidth+j]=(float) doubleKernel[i*size+j];
+					  }
+				  }
+			  };
+		  }		      
+		  startAndJoin(threads);
+		  ImageStack outStack=new ImageStack(outWidth,kernelNumVert*size);
+		  for (int i=0;i<nChn;i++) {
+			  outStack.addSlice(kernelStack.getSliceLabel(i+1), outPixels[i]);
+		  }
+		  return outStack;
+	  }
+
 	  /* Adds zero pixels around the image, "extending canvas" */
 
 	  public double [][] extendFFTInputTo (double[][] input_pixels,
@@ -1836,6 +2377,20 @@ public class EyesisCorrections {
 	                                          int subDivFreq) {
 	    if (input_pixels==null) return null;
 	    double [] pixels=new double[input_pixels.length*subDivFreq*subDivFreq];
+	    extendFFTInput (input_pixels, pixels, width, subDivFreq);
+	    return pixels;
+	  }
+	  /* Same as extendFFTInputTo(), but uses provided output array (newSize*newSize) to avoid allocation */
+	  public void extendFFTInputTo (double[] input_pixels,
+	                                      double[] pixels,
+	                                      int newSize) {
+	    int width=(int)Math.sqrt (input_pixels.length);
+	    extendFFTInput (input_pixels, pixels, width, newSize/width);
+	  }
+	  public void extendFFTInput (double[] input_pixels,
+	                                      double[] pixels,   // output array, should have correct size (input_pixels.length*subDivFreq*subDivFreq)
+	                                      int width,   // width of the image
+	                                      int subDivFreq) {
 	    int j,base,x,y;
 	    int height=input_pixels.length/width;
 	    for (j=0;j<pixels.length;j++) pixels[j]=0.0;
@@ -1844,7 +2399,6 @@ public class EyesisCorrections {
 	      base=width*(subDivFreq-1)*(width*subDivFreq +1)/2+y*width*subDivFreq;
 	      for (x=0;x<width;x++) pixels[base+x]=input_pixels[j++];
 	    }
-	    return pixels;
 	  }
 	  
 	  
@@ -1903,8 +2457,64 @@ public class EyesisCorrections {
 
 	     
 	   /* ======================================================================== */
-	   /* accumulate square tile to the pixel array (tile may extend beyond the array, will be cropped) */
-	     synchronized void  accumulateSquareTile(
+	     /* single precision versions of extractSquareTile(), extendFFTInputTo() and accumulateSquareTile() for FloatFHT,
+	      * static - also used by DebayerScissors */
+	     static void extractSquareTile(float [] pixels, // source pixel array,
+	    		 float [] tile, // will be filled, should have correct size before call
+	    		 double [] window, // window (same size as the kernel)
+	    		 int width, // width of pixels array
+	    		 int x0, // left corner X
+	    		 int y0) { // top corner Y
+	    	 int size=(int) Math.sqrt(tile.length);
+	    	 int height=pixels.length/width;
+	    	 int index=0;
+	    	 for (int i=0;i<size;i++) {
+	    		 int y=y0+i;
+	    		 if ((y>=0) && (y<height)) {
+	    			 index=i*size;
+	    			 for (int j=0;j<size;j++) {
+	    				 int x=x0+j;
+	    				 if ((x>=0) && (x<width)) tile [index]=(float) (pixels[y*width+x]*window[index]);
+	    				 index++;
+	    			 }
+	    		 }
+	    	 }
+	     }
+	     static void extendFFTInputTo (float[] input_pixels,
+	    		 float[] pixels, // output array newSize*newSize
+	    		 int newSize) {
+	    	 int width=(int)Math.sqrt (input_pixels.length);
+	    	 int subDivFreq=newSize/width;
+	    	 int j=0;
+	    	 for (j=0;j<pixels.length;j++) pixels[j]=0.0f;
+	    	 for (int y=0;y<width;y++) {
+	    		 int base=width*(subDivFreq-1)*(width*subDivFreq +1)/2+y*width*subDivFreq;
+	    		 System.arraycopy(input_pixels, y*width, pixels, base, width);
+	    	 }
+	     }
+	     static void  accumulateSquareTile(
+	    		 float [] pixels, //  float pixels array to accumulate tile
+	    		 float []   tile, // data to accumulate to the pixels array
+	    		 int       width, // width of pixels array
+	    		 int          x0, // left corner X
+	    		 int          y0) { // top corner Y
+	    	 int size=(int) Math.sqrt(tile.length);
+	    	 int height=pixels.length/width;
+	    	 for (int i=0;i<size;i++) {
+	    		 int y=y0+i;
+	    		 if ((y>=0) && (y<height)) {
+	    			 int index=i*size;
+	    			 for (int j=0;j<size;j++) {
+	    				 int x=x0+j;
+	    				 if ((x>=0) && (x<width)) pixels[y*width+x]+=tile [index];
+	    				 index++;
+	    			 }
+	    		 }
+	    	 }
+	     }
+	   /* accumulate square tile to the pixel array (tile may extend beyond the array, will be cropped).
+	    * Not synchronized - caller should not accumulate overlapping tiles from different threads at the same time */
+	     void  accumulateSquareTile(
 	   		  float [] pixels, //  float pixels array to accumulate tile
 	   		  double []  tile, // data to accumulate to the pixels array
 	   		  int       width, // width of pixels array
@@ -1927,7 +2537,7 @@ public class EyesisCorrections {
 	   		  }
 	   	  }
 	     }
-	     synchronized void  accumulateSquareTile(
+	     void  accumulateSquareTile(
 	   		  double [] pixels, //  float pixels array to accumulate tile
 	   		  double []  tile, // data to accumulate to the pixels array
 	   		  int       width, // width of pixels array
@@ -2113,6 +2723,23 @@ public class EyesisCorrections {
 		  for (i=0;i<size;i++) for (j=0;j<size;j++) kernel [i*size+j]=pixels[base+i*pixelsWidth+j];
 	  }
 
+	  void extractOneKernel(float [] pixels, //  array of combined square kernels, each 
+			  float [] kernel, // will be filled, should have correct size before call
+			  int numHor, // number of kernels in a row
+			  int xTile, // horizontal number of kernel to extract
+			  int yTile) { // vertical number of kernel to extract
+		  int size=(int) Math.sqrt(kernel.length);
+		  int pixelsWidth=numHor*size;
+		  int numVert=(pixels.length/pixelsWidth)/size;
+		  /* limit tile numbers - effectively add margins around the known kernels */
+		  if (xTile<0) xTile=0;
+		  else if (xTile>=numHor) xTile=numHor-1;
+		  if (yTile<0) yTile=0;
+		  else if (yTile>=numVert) yTile=numVert-1;
+		  int base=(yTile*pixelsWidth+xTile)*size;
+		  for (int i=0;i<size;i++) System.arraycopy(pixels, base+i*pixelsWidth, kernel, i*size, size);
+	  }
+
 	  /* Extract noise mask (proportional to noise gain of the kernels), the denoise mask should be divided by this
 	   *  
 	   */
@@ -2184,17 +2811,28 @@ public class EyesisCorrections {
 		 	 
 		 	  if (path!=null) {
 		 		  path+=Prefs.getFileSeparator()+imp.getTitle();
+		 		  final String fPath=path;
+		 		  final ImagePlus fImp=imp;
 	 		  if (((imp.getStackSize()==1)) && (jpegQuality!=0) && ((imp.getFileInfo().fileType== FileInfo.RGB) || (jpegQuality>0))) {
 	 			  if (this.debugLevel>0) System.out.println("Saving result to "+path+".jpeg");
-	 			  FileSaver fs=new FileSaver(imp);
+	 			  // JPEG quality is static in FileSaver - set it here, not in the (concurrent) save threads
 	 			  if (jpegQuality>0) FileSaver.setJpegQuality(jpegQuality);
-	 			  fs.saveAsJpeg(path+".jpeg");
+	 			  saveInBackground(new Runnable() {
+	 				  public void run() {
+	 					  FileSaver fs=new FileSaver(fImp);
+	 					  fs.saveAsJpeg(fPath+".jpeg");
+	 				  }
+	 			  });
 	 		  }
 	 		  else {
 	 			  if (this.debugLevel>0) System.out.println("Saving result to "+path+".tiff");
-	 			  FileSaver fs=new FileSaver(imp);
-	 			  if (imp.getStackSize()>1)  fs.saveAsTiffStack(path+".tiff");
-	 			  else fs.saveAsTiff(path+".tiff");
+	 			  saveInBackground(new Runnable() {
+	 				  public void run() {
+	 					  FileSaver fs=new FileSaver(fImp);
+	 					  if (fImp.getStackSize()>1)  fs.saveAsTiffStack(fPath+".tiff");
+	 					  else fs.saveAsTiff(fPath+".tiff");
+	 				  }
+	 			  });
 	 		  }
 	 	  }
 	 	  if (show) {
@@ -2236,9 +2874,15 @@ public class EyesisCorrections {
 	 	  if (path!=null) {
 	 		  path+=Prefs.getFileSeparator()+compositeImage.getTitle();
 	 		  if (this.debugLevel>0) System.out.println("Saving result to "+path+".tiff");
-	 		  FileSaver fs=new FileSaver(compositeImage);
-	 		  if (compositeImage.getStackSize()>1)  fs.saveAsTiffStack(path+".tiff");
-	 		  else fs.saveAsTiff(path+".tiff");
+	 		  final String fPath=path;
+	 		  final CompositeImage fCompositeImage=compositeImage;
+	 		  saveInBackground(new Runnable() {
+	 			  public void run() {
+	 				  FileSaver fs=new FileSaver(fCompositeImage);
+	 				  if (fCompositeImage.getStackSize()>1)  fs.saveAsTiffStack(fPath+".tiff");
+	 				  else fs.saveAsTiff(fPath+".tiff");
+	 			  }
+	 		  });
 	 	  }
 
 	 	  if (show) {
@@ -2246,6 +2890,33 @@ public class EyesisCorrections {
 	 	  }
 	   }
 
+	   /**
+	    * Run file encoding/writing in the save thread pool when processing is pipelined, otherwise - immediately.
+	    * Debug images (debugLevel>1) may share stacks that are modified later, so they are always saved synchronously.
+	    * Path selection (it may open a dialog) should be done by the caller.
+	    * @param saveTask task that encodes and writes the file
+	    */
+	   private void saveInBackground(final Runnable saveTask){
+		   ThreadPoolExecutor executor=this.saveExecutor;
+		   if ((executor==null) || (this.debugLevel>1)){
+			   saveTask.run();
+			   return;
+		   }
+		   int queued=executor.getQueue().size()+1;
+		   if (queued>this.maxSaveQueue.get()) this.maxSaveQueue.set(queued); // statistics only, races are OK
+		   executor.execute(new Runnable() {
+			   public void run() {
+				   long t0=System.nanoTime();
+				   try {
+					   saveTask.run();
+				   } catch (Exception e){
+					   System.out.println("Failed to save result: "+e);
+					   e.printStackTrace();
+				   }
+				   saveNanos.addAndGet(System.nanoTime()-t0);
+			   }
+		   });
+	   }
 	 
 		/* ======================================================================== */
 		/* Create a Thread[] array as large as the number of processors available.
@@ -2261,6 +2932,14 @@ public class EyesisCorrections {
 			 * From Stephan Preibisch's Multithreading.java class. See:
 			 * http://repo.or.cz/w/trakem2.git?a=blob;f=mpi/fruitfly/general/MultiThreading.java;hb=HEAD
 			 */
+			/* Rethrow the failure recorded by one of the worker threads (if any) in the caller thread */
+			public static void rethrowThreadError(Throwable t){
+				if (t==null) return;
+				if (t instanceof RuntimeException) throw (RuntimeException) t;
+				if (t instanceof Error) throw (Error) t;
+				throw new RuntimeException(t);
+			}
+
 			public static void startAndJoin(Thread[] threads)
 			{
 				for (int ithread = 0; ithread < threads.length; ++ithread)
@@ -2278,6 +2957,73 @@ public class EyesisCorrections {
 					throw new RuntimeException(ie);
 				}
 			}
-    
+
+	/**
+	 * Least recently used cache of kernel stacks (read from files or derived from them) with the total size limit,
+	 * so the same kernel files are not re-read for every processed image
+	 */
+	public static class KernelStackCache{
+		private long maxBytes;
+		private long bytes=0;
+		private long hits=0;
+		private long misses=0;
+		private long evictions=0;
+		private LinkedHashMap<String,ImageStack> stacks=new LinkedHashMap<String,ImageStack>(16, 0.75f, true); // access order
+		public KernelStackCache(long maxBytes){
+			this.maxBytes=maxBytes;
+		}
+		/**
+		 * Make cache key, so modified kernel files will not match the cached data
+		 * @param path kernel file path
+		 * @param variant distinguishes different data derived from the same file ("" - file itself)
+		 * @return cache key
+		 */
+		public static String makeKey(String path, String variant){
+			return path+":"+(new File(path)).lastModified()+":"+variant;
+		}
+		public static long getBytes(ImageStack stack){
+			return 4L*stack.getWidth()*stack.getHeight()*stack.getSize(); // float pixels
+		}
+		public synchronized void setMaxBytes(long maxBytes){
+			this.maxBytes=maxBytes;
+			evict(0);
+		}
+		public synchronized ImageStack get(String key){
+			ImageStack stack=this.stacks.get(key);
+			if (stack!=null) this.hits++;
+			else             this.misses++;
+			return stack;
+		}
+		public synchronized void put(String key, ImageStack stack){
+			long stackBytes=getBytes(stack);
+			if (stackBytes>this.maxBytes) return; // will not fit anyway, do not flush other stacks
+			ImageStack old=this.stacks.remove(key);
+			if (old!=null) this.bytes-=getBytes(old);
+			evict(stackBytes);
+			this.stacks.put(key, stack);
+			this.bytes+=stackBytes;
+		}
+		private void evict(long extraBytes){
+			Iterator<Map.Entry<String,ImageStack>> iterator=this.stacks.entrySet().iterator();
+			while (((this.bytes+extraBytes)>this.maxBytes) && iterator.hasNext()){
+				this.bytes-=getBytes(iterator.next().getValue());
+				iterator.remove();
+				this.evictions++;
+			}
+		}
+		public synchronized void clear(){
+			this.stacks.clear();
+			this.bytes=0;
+		}
+		public synchronized void resetStatistics(){
+			this.hits=0;
+			this.misses=0;
+			this.evictions=0;
+		}
+		public synchronized String getStatistics(){
+			return "Kernel cache: "+this.stacks.size()+" stacks, "+(this.bytes/1048576)+" of "+(this.maxBytes/1048576)+" MB, hits="+
+					this.hits+", misses="+this.misses+", evictions="+this.evictions;
+		}
+	}
 
 }
@@ -28,9 +28,17 @@
 import java.awt.Frame;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Array;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.LoggerFactory;
 import ch.qos.logback.classic.Level;
@@ -61,6 +69,11 @@ public class EyesisTiff {
 //	private static org.apache.log4j.Logger log= Logger.getLogger(EyesisTiff.class); 
 	
 private String codec="UNCOMPRESSED";
+private int threadsMax=100;     // maximal number of threads to compress strips
+private int stripBytes=1<<20;   // approximate size of the uncompressed strip (rows per strip are calculated from it)
+private int tileSize=0;         // 0 - write strips, >0 - square tiles of this size (multiple of 16)
+private boolean bigTiff=false;  // write BigTIFF (also used automatically when the classic TIFF may exceed 4GB)
+private int overviewLevels=0;   // number of 2x reduced resolution images to add after the full resolution one
 
 public EyesisTiff(){
 //	Please initialize the log4j system properly
@@ -73,6 +86,23 @@ public EyesisTiff(String codec){
 	this.codec=codec;
 }
 
+public EyesisTiff(String codec, int threadsMax){
+	this.codec=codec;
+	this.threadsMax=threadsMax;
+}
+
+/**
+ * Configure layout of the RGBA images written by saveTiff()
+ * @param tileSize 0 - strips, >0 - square tiles (rounded up to a multiple of 16)
+ * @param bigTiff write BigTIFF (64-bit offsets)
+ * @param overviewLevels number of reduced resolution (2x, 4x, ...) images (IFDs) to add after the full resolution one
+ */
+public void setLayout(int tileSize, boolean bigTiff, int overviewLevels){
+	this.tileSize=(tileSize>0)?(((tileSize+15)/16)*16):0;
+	this.bigTiff=bigTiff;
+	this.overviewLevels=Math.max(overviewLevels,0);
+}
+
 	public void saveTiff(
 			ImagePlus imp,
 			String path,
@@ -87,11 +117,11 @@ public EyesisTiff(String codec){
 
 		if (imp.getType()==ImagePlus.COLOR_RGB) {
 			if (debugLevel>1) System.out.println("Saving 8-bit TIFF with alpha-channel: "+path);
-			saveTiffARGB32(imp, path, imageJTags, debugLevel);
+			saveTiffARGBTiled(imp, path, 0, 1.0, imageJTags, this.tileSize, this.bigTiff, this.overviewLevels, debugLevel);
 			return;
 		} else if (imp.getStackSize()==4) {
 			if (debugLevel>1) System.out.println("Saving 32-bit float TIFF with alpha-channel: "+path);
-			saveTiffARGB(imp, path, mode, scale, imageJTags,debugLevel);
+			saveTiffARGBTiled(imp, path, mode, scale, imageJTags, this.tileSize, this.bigTiff, this.overviewLevels, debugLevel);
 			return;
 			
 		}
@@ -345,6 +375,489 @@ public EyesisTiff(String codec){
 	
 	
 	
+	/**
+	 * Save 4-channel (RGBA) image as a TIFF organized in strips or tiles. Strips/tiles are converted and compressed
+	 * (with the configured codec) in parallel and written to the file as soon as they are ready, so the whole image
+	 * is never converted to a single buffer. Writes the same tags as saveTiffARGB()/saveTiffARGB32().
+	 * Optional overview levels are written as additional reduced resolution IFDs (NewSubfileType=1) in the same file.
+	 * @param imp either RGB (COLOR_RGB, alpha in the high byte) or 4-slice float stack
+	 * @param path file path
+	 * @param mode 0 - 8-bit, 1 - 16-bit, 2 - 32-bit unsigned, 3 - 32FP (only for the 4-slice float stack)
+	 * @param scale full scale, absolute (not used for the RGB image)
+	 * @param imageJTags write ImageJ Info
+	 * @param tileSize 0 - strips, >0 - square tiles (multiple of 16)
+	 * @param bigTiff write BigTIFF (switched on automatically if the uncompressed data exceeds classic TIFF limits)
+	 * @param overviewLevels number of 2x reduced resolution images to add
+	 * @param debugLevel debug level
+	 */
+	public void saveTiffARGBTiled(
+			ImagePlus imp,
+			String path,
+			int mode,     // 0 - 8-bit, 1 - 16-bit, 2 - 32-bit unsigned, 3 - 32FP (only if source image is a 4-stack of FP)
+			double scale, // full scale, absolute
+			boolean imageJTags,
+			int tileSize,
+			boolean bigTiff,
+			int overviewLevels,
+			int debugLevel
+	) throws IOException, FormatException{
+		final int [] bitsPerSample={8,16,32,32};
+		final int [] sampleFormat= {1, 1, 1, 3}; // 1 - unsigned integer, 3 - IEEE floating point
+		if ((mode<0) || (mode>=bitsPerSample.length) || ((mode!=0) && (imp.getType()==ImagePlus.COLOR_RGB))){
+			IJ.error("saveTiffARGBTiled", "Unsupported output format mode ="+mode);
+			return;
+		}
+		if ((tileSize%16)!=0){
+			IJ.error("saveTiffARGBTiled", "Tile size should be a multiple of 16, got "+tileSize);
+			return;
+		}
+		long startTime=System.nanoTime();
+		int width=imp.getWidth();
+		int height=imp.getHeight();
+		int bw=bitsPerSample[mode]/8;
+		int [] argbPixels=(imp.getType()==ImagePlus.COLOR_RGB)?((int []) imp.getProcessor().getPixels()):null;
+		float [][] imagePixels= null;
+		if (argbPixels==null){
+			imagePixels= new float [4][];
+			for (int c=0;c<imagePixels.length;c++) imagePixels[c]=	(float []) imp.getStack().getPixels(c+1);
+		}
+		if (!bigTiff && ((4L*bw*width*height*(overviewLevels>0?4:3)/3)>0xf0000000L)){ // with overviews data is up to 4/3 of the full image
+			if (debugLevel>0) System.out.println("saveTiffARGBTiled(): image may not fit in 4GB, using BigTIFF for "+path);
+			bigTiff=true;
+		}
+		TiffCompression compression=TiffCompression.valueOf(codec);
+		(new File(path)).delete();
+		RandomAccessFile out=new RandomAccessFile(path, "rw");
+		long numBytes=0;
+		try {
+			if (bigTiff) out.write(new byte[] {'M','M',0,43, 0,8,0,0, 0,0,0,0, 0,0,0,0}); // big endian, 8-byte offsets, IFD offset will be written later
+			else         out.write(new byte[] {'M','M',0,42,         0,0,0,0}); // big endian, IFD offset will be written later
+			long nextIFDPointer=bigTiff?8:4;
+			for (int level=0;level<=overviewLevels;level++){
+				if (level>0){
+					if ((width<2) || (height<2)) break;
+					if (argbPixels!=null) argbPixels= downsampleARGB(argbPixels, width, height);
+					else                  imagePixels=downsampleARGB(imagePixels, width, height);
+					width= (width+1)/2;
+					height=(height+1)/2;
+				}
+				int chunkWidth= (tileSize>0)?tileSize:width;
+				int chunkHeight=(tileSize>0)?tileSize:Math.max(1, Math.min(height, this.stripBytes/(width*4*bw)));
+				long [][] chunks=writeChunks(out, imagePixels, argbPixels, width, height, chunkWidth, chunkHeight, tileSize>0, mode, scale, bw, compression);
+				for (long count:chunks[1]) numBytes+=count;
+				int offsetsType=bigTiff?IFDEntry.LONG8:IFDEntry.LONG;
+				List<IFDEntry> entries=getARGBEntries(imp, imageJTags && (level==0), level, width, height, compression.getCode(), bitsPerSample[mode], sampleFormat[mode]);
+				if (overviewLevels>0) entries.add(new IFDEntry(IFD.NEW_SUBFILE_TYPE, IFDEntry.LONG, new long[] {(level>0)?1:0})); // 1 - reduced resolution
+				if (tileSize>0){
+					entries.add(new IFDEntry(IFD.TILE_WIDTH,          IFDEntry.LONG, new long[] {chunkWidth}));
+					entries.add(new IFDEntry(IFD.TILE_LENGTH,         IFDEntry.LONG, new long[] {chunkHeight}));
+					entries.add(new IFDEntry(IFD.TILE_OFFSETS,        offsetsType,   chunks[0]));
+					entries.add(new IFDEntry(IFD.TILE_BYTE_COUNTS,    offsetsType,   chunks[1]));
+				} else {
+					entries.add(new IFDEntry(IFD.ROWS_PER_STRIP,      IFDEntry.LONG, new long[] {chunkHeight}));
+					entries.add(new IFDEntry(IFD.STRIP_OFFSETS,       offsetsType,   chunks[0]));
+					entries.add(new IFDEntry(IFD.STRIP_BYTE_COUNTS,   offsetsType,   chunks[1]));
+				}
+				long [] ifd=writeIFD(out, entries, bigTiff);
+				out.seek(nextIFDPointer); // link from the header or the previous IFD
+				if (bigTiff) out.writeLong(ifd[0]);
+				else         out.writeInt((int) ifd[0]);
+				nextIFDPointer=ifd[1];
+				if (!bigTiff && (out.length()>0xffffffffL)) throw new IOException("Classic TIFF can not exceed 4GB, use BigTIFF for "+path);
+			}
+		} finally {
+			out.close();
+		}
+		if (debugLevel>1) System.out.println("saveTiffARGBTiled(): "+((tileSize>0)?(tileSize+"x"+tileSize+" tiles"):"strips")+
+				((overviewLevels>0)?(", "+overviewLevels+" overview levels"):"")+(bigTiff?", BigTIFF":"")+", "+
+				numBytes+" bytes of image data written in "+IJ.d2s(0.000000001*(System.nanoTime()-startTime),3)+" sec");
+	}
+
+	/**
+	 * Convert, compress (in parallel) and write image strips or tiles at the end of file, in order
+	 * @param chunkWidth strip/tile width (equals image width for strips)
+	 * @param chunkHeight rows per strip or tile height
+	 * @param tiled tiles are always full size (padded with zeros), last strip is not
+	 * @return {offsets, byte counts} of strips/tiles
+	 */
+	private long [][] writeChunks(
+			RandomAccessFile out,
+			final float [][] imagePixels,
+			final int [] argbPixels,
+			final int width,
+			final int height,
+			final int chunkWidth,
+			final int chunkHeight,
+			final boolean tiled,
+			final int mode,
+			final double scale,
+			final int bw,
+			final TiffCompression compression
+			) throws IOException, FormatException{
+		final int chunksX=(width+ chunkWidth- 1)/chunkWidth;
+		final int numChunks=chunksX*((height+chunkHeight-1)/chunkHeight);
+		final byte [][] compressedChunks=new byte[numChunks][];
+		final AtomicReference<Throwable> failure=new AtomicReference<Throwable>(); // first failure in any of the threads
+		final LinkedBlockingQueue<Integer> doneQueue=new LinkedBlockingQueue<Integer>();
+		final AtomicInteger chunkAtomic= new AtomicInteger(0);
+		final Thread[] threads = newThreadArray(Math.min(this.threadsMax,numChunks));
+		final Semaphore window=new Semaphore(2*threads.length); // chunks compressed, but not yet written
+		for (int ithread = 0; ithread < threads.length; ithread++) {
+			threads[ithread] = new Thread() {
+				public void run() {
+					while (true){
+						window.acquireUninterruptibly();
+						int chunk=chunkAtomic.getAndIncrement();
+						if (chunk>=numChunks) {
+							window.release();
+							break;
+						}
+						try {
+							int x0=(chunk % chunksX)*chunkWidth;
+							int y0=(chunk / chunksX)*chunkHeight;
+							int outWidth= tiled?chunkWidth: Math.min(chunkWidth, width-x0);
+							int outHeight=tiled?chunkHeight:Math.min(chunkHeight,height-y0);
+							byte [] bytes=packARGB(imagePixels, argbPixels, width, height, x0, y0, outWidth, outHeight, mode, scale);
+							if (compression!=TiffCompression.UNCOMPRESSED) {
+								IFD chunkIFD=new IFD();
+								chunkIFD.put(new Integer(IFD.LITTLE_ENDIAN), new Boolean(false));
+								chunkIFD.put(new Integer(IFD.IMAGE_WIDTH), outWidth);
+								chunkIFD.put(new Integer(IFD.IMAGE_LENGTH), outHeight);
+								chunkIFD.put(new Integer(IFD.SAMPLES_PER_PIXEL), 4);
+								chunkIFD.put(new Integer(IFD.BITS_PER_SAMPLE), new int[] {8*bw,8*bw,8*bw,8*bw});
+								bytes=compression.compress(bytes, compression.getCompressionCodecOptions(chunkIFD));
+							}
+							compressedChunks[chunk]=bytes;
+						} catch (Throwable t){
+							failure.compareAndSet(null, t);
+						} finally {
+							doneQueue.add(chunk); // writer waits for every chunk it has not seen yet
+						}
+					}
+				}
+			};
+		}
+		long [] offsets=   new long[numChunks];
+		long [] byteCounts=new long[numChunks];
+		out.seek(out.length());
+		startThreads(threads);
+		boolean [] done=new boolean[numChunks];
+		int nextChunk=0;
+		try {
+			while (nextChunk<numChunks){
+				int chunk;
+				try {
+					chunk=doneQueue.take();
+				} catch (InterruptedException ie) {
+					throw new RuntimeException(ie);
+				}
+				if (failure.get()!=null) break;
+				done[chunk]=true;
+				for (;(nextChunk<numChunks) && done[nextChunk];nextChunk++){ // keep strips/tiles in order
+					offsets[nextChunk]=out.getFilePointer();
+					byteCounts[nextChunk]=compressedChunks[nextChunk].length;
+					out.write(compressedChunks[nextChunk]);
+					compressedChunks[nextChunk]=null;
+					window.release();
+				}
+			}
+		} finally { // also when the write failed - do not leave threads waiting for the window
+			chunkAtomic.set(numChunks); // stop other threads
+			window.release(threads.length);
+			joinThreads(threads);
+		}
+		Throwable t=failure.get();
+		if (t instanceof FormatException) throw (FormatException) t;
+		EyesisCorrections.rethrowThreadError(t);
+		long [][] result={offsets,byteCounts};
+		return result;
+	}
+
+	/**
+	 * Convert rectangle of pixels to big-endian interleaved RGBA samples, pixels outside of the image are zeros
+	 * @param imagePixels 4-slice float data (used if argbPixels==null)
+	 * @param argbPixels RGB image pixels with alpha in the high byte (mode should be 0) or null
+	 * @param width image width
+	 * @param height image height
+	 * @param x0 left column of the rectangle
+	 * @param y0 top row of the rectangle
+	 * @param outWidth rectangle width
+	 * @param outHeight rectangle height
+	 * @param mode 0 - 8-bit, 1 - 16-bit, 2 - 32-bit unsigned, 3 - 32FP
+	 * @param scale full scale, absolute (alpha is scaled to full range for integer modes)
+	 */
+	public static byte [] packARGB(
+			float [][] imagePixels,
+			int [] argbPixels,
+			int width,
+			int height,
+			int x0,
+			int y0,
+			int outWidth,
+			int outHeight,
+			int mode,
+			double scale){
+		int [] bytesPerSample={1,2,4,4};
+		int pixelBytes=4*bytesPerSample[mode];
+		byte [] bytes=new byte[outWidth*outHeight*pixelBytes];
+		int rowWidth=Math.min(outWidth, width-x0);
+		long maxVal=(1L<<(8*bytesPerSample[mode]))-1;
+		double [] s ={scale*maxVal,scale*maxVal,scale*maxVal,maxVal};
+		for (int row=0;row<Math.min(outHeight, height-y0);row++){
+			int pIndex=row*outWidth*pixelBytes;
+			int start=(y0+row)*width+x0;
+			if (argbPixels!=null){
+				for (int i=start;i<(start+rowWidth);i++){
+					bytes[pIndex++]=(byte) ((argbPixels[i]>>16)& 0xff); // R
+					bytes[pIndex++]=(byte) ((argbPixels[i]>> 8)& 0xff); // G
+					bytes[pIndex++]=(byte) ((argbPixels[i]>> 0)& 0xff); // B
+					bytes[pIndex++]=(byte) ((argbPixels[i]>>24)& 0xff); // alpha
+				}
+			} else if (mode==3){
+				for (int i=start;i<(start+rowWidth);i++) for (int c=0;c<imagePixels.length;c++){ // r,g,b,alpha
+					int d;
+					if (scale==1.0) d=Float.floatToIntBits(imagePixels[c][i]);
+					else d=Float.floatToIntBits((float) (imagePixels[c][i]*scale));
+					bytes[pIndex++]=(byte) ((d>>24 )& 0xff);
+					bytes[pIndex++]=(byte) ((d>>16 )& 0xff);
+					bytes[pIndex++]=(byte) ((d>> 8 )& 0xff);
+					bytes[pIndex++]=(byte) ((d>> 0 )& 0xff);
+				}
+			} else {
+				for (int i=start;i<(start+rowWidth);i++) for (int c=0;c<imagePixels.length;c++){ // r,g,b,alpha
+					long d= (long) (imagePixels[c][i]*s[c]);
+					if (d<0) d=0;
+					else if (d>maxVal) d= maxVal;
+					for (int sh=8*(bytesPerSample[mode]-1);sh>=0;sh-=8) bytes[pIndex++]=(byte) ((d>>sh)& 0xff);
+				}
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Reduce resolution of the 4-slice (r,g,b,alpha) float image twice, averaging 2x2 pixels (fewer on the odd edges).
+	 * Colors are weighted by alpha, so transparent pixels do not darken the edges of the image; alpha is a plain average
+	 */
+	public static float [][] downsampleARGB(float [][] imagePixels, int width, int height){
+		int outWidth= (width+1)/2;
+		int outHeight=(height+1)/2;
+		float [][] result=new float[imagePixels.length][outWidth*outHeight];
+		double [] weights=new double[4];
+		for (int y=0;y<outHeight;y++) for (int x=0;x<outWidth;x++){
+			int x1=Math.min(2*x+1,width-1), y1=Math.min(2*y+1,height-1);
+			int [] indices={2*y*width+2*x, 2*y*width+x1, y1*width+2*x, y1*width+x1}; // duplicates on the edges are OK for averaging
+			double sumAlpha=0.0, sumWeights=0.0;
+			for (int i=0;i<indices.length;i++){
+				sumAlpha+=imagePixels[3][indices[i]];
+				weights[i]=Math.max(imagePixels[3][indices[i]],0.0);
+				sumWeights+=weights[i];
+			}
+			for (int c=0;c<3;c++){
+				double sum=0.0;
+				if (sumWeights>0.0){
+					for (int i=0;i<indices.length;i++) sum+=weights[i]*imagePixels[c][indices[i]];
+					sum/=sumWeights;
+				} else { // all transparent
+					for (int i=0;i<indices.length;i++) sum+=imagePixels[c][indices[i]];
+					sum/=indices.length;
+				}
+				result[c][y*outWidth+x]=(float) sum;
+			}
+			result[3][y*outWidth+x]=(float) (sumAlpha/indices.length);
+		}
+		return result;
+	}
+
+	/**
+	 * Reduce resolution of the ARGB (alpha in the high byte) image twice, averaging 2x2 pixels (fewer on the odd edges).
+	 * Colors are weighted by alpha, alpha is a plain average
+	 */
+	public static int [] downsampleARGB(int [] argbPixels, int width, int height){
+		int outWidth= (width+1)/2;
+		int outHeight=(height+1)/2;
+		int [] result=new int[outWidth*outHeight];
+		for (int y=0;y<outHeight;y++) for (int x=0;x<outWidth;x++){
+			int x1=Math.min(2*x+1,width-1), y1=Math.min(2*y+1,height-1);
+			int [] indices={2*y*width+2*x, 2*y*width+x1, y1*width+2*x, y1*width+x1}; // duplicates on the edges are OK for averaging
+			int sumAlpha=0;
+			for (int index:indices) sumAlpha+=(argbPixels[index]>>>24) & 0xff;
+			int pixel=((sumAlpha+2)/4)<<24;
+			for (int sh=0;sh<24;sh+=8){
+				int sum=0;
+				if (sumAlpha>0){
+					for (int index:indices) sum+=((argbPixels[index]>>>24) & 0xff)*((argbPixels[index]>>>sh) & 0xff);
+					sum=(sum+sumAlpha/2)/sumAlpha;
+				} else { // all transparent
+					for (int index:indices) sum+=(argbPixels[index]>>>sh) & 0xff;
+					sum=(sum+2)/4;
+				}
+				pixel|=sum<<sh;
+			}
+			result[y*outWidth+x]=pixel;
+		}
+		return result;
+	}
+
+	/**
+	 * Create IFD entries common for all RGBA images (all but the image data layout)
+	 */
+	private List<IFDEntry> getARGBEntries(
+			ImagePlus imp,
+			boolean imageJTags,
+			int level, // overview level, 0 - full resolution (position tags are only written for full resolution)
+			int width,
+			int height,
+			int compressionCode,
+			int bitsPerSample,
+			int sampleFormat) throws UnsupportedEncodingException{
+		int IFDImageFullWidth= 0x8214; // not defined in loci.formats.tiff.IFD
+		int IFDImageFullLength=0x8215; // not defined in loci.formats.tiff.IFD
+		int IFDImageJByteCounts= 0xc696; // was array {12( if no slices, roi, etc.), bytes in info}
+		int IFDImageJInfo=       0xc697; // ImageJ info, starting with magic IJIJinfo,
+		byte [] ImageJInfoMagic={73,74,73,74,105,110,102,111,0,0,0,1}; 
+		int pixelsDenominator=1000;
+		String description=(imp.getProperty("description")!=null)?((String) imp.getProperty("description")):"Elphel Eyesis4pi";
+		List<IFDEntry> entries=new ArrayList<IFDEntry>();
+		entries.add(new IFDEntry(IFD.IMAGE_WIDTH,                IFDEntry.LONG,  new long[] {width}));
+		entries.add(new IFDEntry(IFD.IMAGE_LENGTH,               IFDEntry.LONG,  new long[] {height}));
+		entries.add(new IFDEntry(IFD.BITS_PER_SAMPLE,            IFDEntry.SHORT, new long[] {bitsPerSample,bitsPerSample,bitsPerSample,bitsPerSample}));
+		entries.add(new IFDEntry(IFD.COMPRESSION,                IFDEntry.SHORT, new long[] {compressionCode}));
+		entries.add(new IFDEntry(IFD.PHOTOMETRIC_INTERPRETATION, IFDEntry.SHORT, new long[] {2})); // RGB
+		entries.add(new IFDEntry(IFD.IMAGE_DESCRIPTION,          description));
+		entries.add(new IFDEntry(IFD.SAMPLES_PER_PIXEL,          IFDEntry.SHORT, new long[] {4}));
+		entries.add(new IFDEntry(IFD.PLANAR_CONFIGURATION,       IFDEntry.SHORT, new long[] {1})); // chunky
+		entries.add(new IFDEntry(IFD.SOFTWARE,                   "Elphel Eyesis"));
+		entries.add(new IFDEntry(IFD.EXTRA_SAMPLES,              IFDEntry.SHORT, new long[] {2})); // Unassociated alpha data
+		entries.add(new IFDEntry(IFD.SAMPLE_FORMAT,              IFDEntry.SHORT, new long[] {sampleFormat,sampleFormat,sampleFormat,sampleFormat}));
+		if (level>0) return entries;
+		if (imp.getProperty("XPosition")!=null) {
+			entries.add(new IFDEntry(IFD.X_POSITION,IFDEntry.RATIONAL,
+					new long[] {Math.round(pixelsDenominator*Double.parseDouble((String) imp.getProperty("XPosition"))) , pixelsDenominator}));
+		}
+		if (imp.getProperty("YPosition")!=null) {
+			entries.add(new IFDEntry(IFD.Y_POSITION,IFDEntry.RATIONAL,
+					new long[] {Math.round(pixelsDenominator*Double.parseDouble((String) imp.getProperty("YPosition"))) , pixelsDenominator}));
+		}
+		if (imp.getProperty("ImageFullWidth")!=null){
+			entries.add(new IFDEntry(IFDImageFullWidth, IFDEntry.LONG, new long[] {Integer.parseInt((String) imp.getProperty("ImageFullWidth"))}));
+		}
+		if (imp.getProperty("ImageFullLength")!=null){
+			entries.add(new IFDEntry(IFDImageFullLength,IFDEntry.LONG, new long[] {Integer.parseInt((String) imp.getProperty("ImageFullLength"))}));
+		}
+		if (imageJTags && (imp.getProperty("Info")!=null) && (imp.getProperty("Info") instanceof String)){
+			int skipFirstBytes=2; // byte order mark
+			byte [] bInfoBody=((String) imp.getProperty("Info")).getBytes("UTF-16");
+			byte [] bInfo = new byte [ImageJInfoMagic.length+bInfoBody.length-skipFirstBytes];
+			System.arraycopy(ImageJInfoMagic, 0, bInfo, 0, ImageJInfoMagic.length);
+			System.arraycopy(bInfoBody, skipFirstBytes, bInfo, ImageJInfoMagic.length, bInfoBody.length-skipFirstBytes);
+			entries.add(new IFDEntry(IFDImageJByteCounts, IFDEntry.LONG, new long[] {12, bInfoBody.length-skipFirstBytes}));
+			entries.add(new IFDEntry(IFDImageJInfo,       bInfo)); // ImageJ expects BYTE type here
+		}
+		return entries;
+	}
+
+	/**
+	 * Write IFD (with the data that does not fit in the entries) at the end of file, word-aligned
+	 * @param bigTiff write BigTIFF IFD (8-byte counts and offsets)
+	 * @return {IFD offset, file position of the next IFD offset (set to 0)}
+	 */
+	private static long [] writeIFD(RandomAccessFile out, List<IFDEntry> entries, boolean bigTiff) throws IOException{
+		Collections.sort(entries);
+		int inlineBytes=bigTiff?8:4;
+		long ifdOffset=out.length();
+		if ((ifdOffset & 1) !=0) ifdOffset++;
+		long nextIFDPointer=ifdOffset+(bigTiff?(8+20*entries.size()):(2+12*entries.size()));
+		long dataOffset=nextIFDPointer+inlineBytes;
+		out.seek(ifdOffset);
+		if (bigTiff) out.writeLong(entries.size());
+		else         out.writeShort(entries.size());
+		for (IFDEntry entry:entries){
+			out.writeShort(entry.tag);
+			out.writeShort(entry.type);
+			if (bigTiff) out.writeLong(entry.count);
+			else         out.writeInt((int) entry.count);
+			if (entry.data.length<=inlineBytes) {
+				out.write(entry.data);
+				for (int i=entry.data.length;i<inlineBytes;i++) out.write(0);
+			} else {
+				if (bigTiff) out.writeLong(dataOffset);
+				else         out.writeInt((int) dataOffset);
+				dataOffset+=entry.data.length+(entry.data.length & 1);
+			}
+		}
+		if (bigTiff) out.writeLong(0); // no more IFDs (yet)
+		else         out.writeInt(0);
+		for (IFDEntry entry:entries) if (entry.data.length>inlineBytes) {
+			out.write(entry.data);
+			if ((entry.data.length & 1) !=0) out.write(0);
+		}
+		long [] result={ifdOffset,nextIFDPointer};
+		return result;
+	}
+
+	/**
+	 * TIFF directory entry with the value(s) already encoded as big-endian bytes
+	 */
+	private static class IFDEntry implements Comparable<IFDEntry>{
+		static final int BYTE=    1;
+		static final int ASCII=   2;
+		static final int SHORT=   3;
+		static final int LONG=    4;
+		static final int RATIONAL=5;
+		static final int LONG8=  16; // BigTIFF
+		static final int [] TYPE_SIZE={0,1,1,2,4,8,1,1,2,4,8,4,8,4,0,0,8};
+		final int tag;
+		final int type;
+		final long count;
+		final byte [] data;
+		IFDEntry(int tag, int type, long [] values){ // for RATIONAL values are pairs numerator, denominator
+			this.tag=tag;
+			this.type=type;
+			this.count=(type==RATIONAL)?(values.length/2):values.length;
+			this.data=new byte[(int) this.count*TYPE_SIZE[type]];
+			int bytesPerValue=(type==RATIONAL)?4:TYPE_SIZE[type];
+			int index=0;
+			for (long value:values) for (int sh=8*(bytesPerValue-1);sh>=0;sh-=8) this.data[index++]=(byte) ((value>>sh)& 0xff);
+		}
+		IFDEntry(int tag, String value){
+			this.tag=tag;
+			this.type=ASCII;
+			byte [] bytes=value.getBytes();
+			this.data=Arrays.copyOf(bytes, bytes.length+1); // null-terminated
+			this.count=this.data.length;
+		}
+		IFDEntry(int tag, byte [] value){
+			this.tag=tag;
+			this.type=BYTE;
+			this.data=value;
+			this.count=value.length;
+		}
+		public int compareTo(IFDEntry other){
+			return this.tag-other.tag;
+		}
+	}
+
+	private static Thread[] newThreadArray(int maxCPUs) {
+		int n_cpus = Runtime.getRuntime().availableProcessors();
+		if (n_cpus>maxCPUs)n_cpus=maxCPUs;
+		if (n_cpus<1) n_cpus=1;
+		return new Thread[n_cpus];
+	}
+	private static void startThreads(Thread[] threads){
+		for (int ithread = 0; ithread < threads.length; ++ithread) {
+			threads[ithread].setPriority(Thread.NORM_PRIORITY);
+			threads[ithread].start();
+		}
+	}
+	private static void joinThreads(Thread[] threads){
+		try {   
+			for (int ithread = 0; ithread < threads.length; ++ithread) threads[ithread].join();
+		} catch (InterruptedException ie) {
+			throw new RuntimeException(ie);
+		}
+	}
+
 	public void propertiesTiff(ImagePlus imp){
 		FileInfo fi = imp.getOriginalFileInfo();
 		if ((fi==null) ||(fi.directory==null) ||  (fi.fileFormat!=FileInfo.TIFF)) {
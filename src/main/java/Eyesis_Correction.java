@@ -2455,6 +2455,8 @@ private Panel panel1,panel2,panel3,panel4,panel5,panel5a, panel6,panel7,panelPos
     			POST_PROCESSING.disparityCorrelationParameters.debugRow,
     			POST_PROCESSING.disparityCorrelationParameters.debugColumn,
     			0 ,// int combineMode, // different image pairs - 0 
+    			POST_PROCESSING.disparityCorrelationParameters.filter2PyramidLevels, //int       pyramidLevels,
+    			POST_PROCESSING.disparityCorrelationParameters.filter2PyramidWindow, //double    pyramidWindow,
     			POST_PROCESSING.disparityCorrelationParameters.filter2DisparityMax, //double    disparityMax,
     			POST_PROCESSING.disparityCorrelationParameters.filter2DisaprityMin, //double    disaprityMin,
     			(POST_PROCESSING.disparityCorrelationParameters.filter2UpdateMax?POST_PROCESSING.disparityCorrelationParameters.filter2MinAbsolute:Double.NaN), //double    minAbsolute, // or NaN - will use enabled/disabled state of the tile
@@ -2468,6 +2470,7 @@ private Panel panel1,panel2,panel3,panel4,panel5,panel5a, panel6,panel7,panelPos
     			POST_PROCESSING.disparityCorrelationParameters.matchStatVarianceBlurScale,
     			POST_PROCESSING.disparityCorrelationParameters.matchStatKLocal,
     			POST_PROCESSING.disparityCorrelationParameters.matchStatMode,
+    			POST_PROCESSING.disparityCorrelationParameters.filter2ReleasePlaneData, //boolean   releasePlaneData,
     			THREADS_MAX, //int threadsMax,
     			UPDATE_STATUS, //boolean showProgress,
     			DEBUG_LEVEL); //int debugLevel)
@@ -4025,7 +4028,7 @@ private Panel panel1,panel2,panel3,panel4,panel5,panel5a, panel6,panel7,panelPos
 							  tileX*step, // left corner X
 							  tileY*step); // top corner Y
 					  /* zero pad twice the original size*/
-					  outTile=extendFFTInputTo (inTile, size);
+					  extendFFTInputTo (inTile, outTile, size); // reuse the same per-thread buffers for every tile
 					  /* FHT transform of the source image data*/
 					  fht_instance.swapQuadrants(outTile);
 					  fht_instance.transform(    outTile);
@@ -4038,7 +4041,7 @@ private Panel panel1,panel2,panel3,panel4,panel5,panel5a, panel6,panel7,panelPos
 							  tileX, // horizontal number of kernel to extract
 							  tileY); // vertical number of kernel to extract
 					  /* zero pad twice the original size*/
-					  doubleKernel=extendFFTInputTo (kernel, size);
+					  extendFFTInputTo (kernel, doubleKernel, size);
 //					  debug_sum=0;
 //					  for (i=0;i<doubleKernel.length;i++) debug_sum+=doubleKernel[i];
 //					  if (MASTER_DEBUG_LEVEL>1) System.out.println("kernel sum="+debug_sum);
@@ -4048,7 +4051,7 @@ private Panel panel1,panel2,panel3,panel4,panel5,panel5a, panel6,panel7,panelPos
 					  fht_instance.swapQuadrants(doubleKernel);
 					  fht_instance.transform(    doubleKernel);
 					  /* multiply in frequency domain */
-					  outTile=     fht_instance.multiply(outTile, doubleKernel, false);
+					  fht_instance.multiplyInPlace(outTile, doubleKernel, false);
 					  /* FHT inverse transform of the product - back to space domain */
 					  fht_instance.inverseTransform(outTile);
 					  fht_instance.swapQuadrants(outTile);
@@ -4878,6 +4881,20 @@ private Panel panel1,panel2,panel3,panel4,panel5,panel5a, panel6,panel7,panelPos
                                           int subDivFreq) {
     if (input_pixels==null) return null;
     double [] pixels=new double[input_pixels.length*subDivFreq*subDivFreq];
+    extendFFTInput (input_pixels, pixels, width, subDivFreq);
+    return pixels;
+  }
+  /* Same as extendFFTInputTo(), but uses provided output array (newSize*newSize) to avoid allocation */
+  public void extendFFTInputTo (double[] input_pixels,
+                                      double[] pixels,
+                                      int newSize) {
+    int width=(int)Math.sqrt (input_pixels.length);
+    extendFFTInput (input_pixels, pixels, width, newSize/width);
+  }
+  public void extendFFTInput (double[] input_pixels,
+                                      double[] pixels,   // output array, should have correct size (input_pixels.length*subDivFreq*subDivFreq)
+                                      int width,   // width of the image
+                                      int subDivFreq) {
     int j,base,x,y;
     int height=input_pixels.length/width;
     for (j=0;j<pixels.length;j++) pixels[j]=0.0;
@@ -4886,7 +4903,6 @@ private Panel panel1,panel2,panel3,panel4,panel5,panel5a, panel6,panel7,panelPos
       base=width*(subDivFreq-1)*(width*subDivFreq +1)/2+y*width*subDivFreq;
       for (x=0;x<width;x++) pixels[base+x]=input_pixels[j++];
     }
-    return pixels;
   }
 
 /* ======================================================================== */
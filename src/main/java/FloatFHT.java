@@ -0,0 +1,287 @@
+/**
+ **
+ ** FloatFHT - single precision version of the DoubleFHT transform, swapQuadrants
+ ** and multiply methods for the tile processing (deconvolution, debayer)
+ **
+ ** Copyright (C) 2010-2014 Elphel, Inc.
+ **
+ ** -----------------------------------------------------------------------------**
+ **  
+ **  FloatFHT.java is free software: you can redistribute it and/or modify
+ **  it under the terms of the GNU General Public License as published by
+ **  the Free Software Foundation, either version 3 of the License, or
+ **  (at your option) any later version.
+ **
+ **  This program is distributed in the hope that it will be useful,
+ **  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **  GNU General Public License for more details.
+ **
+ **  You should have received a copy of the GNU General Public License
+ **  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ** -----------------------------------------------------------------------------**
+ **
+ */
+import ij.IJ;
+
+/*
+ * Same algorithm as DoubleFHT (row-column FHT with radix-4 first stages), but on float[] data. Image tiles are
+ * 32-bit in the stacks, so this halves memory traffic of the per-tile transforms. Sin/cos tables are rounded from the
+ * DoubleFHT shared ones, bit-reverse tables are shared with DoubleFHT.
+ */
+public class FloatFHT {
+	private static final int SHARED_MAX_SIZE=20; // same as in DoubleFHT
+	private static final float [][][] sharedCS=new float[SHARED_MAX_SIZE][][];
+	private int maxN=-1; // undefined
+	private int ln2=-1; // undefined
+	private float [] C;
+	private float [] S;
+	private int [] bitrev;
+	private float [] tempArr;
+
+	public FloatFHT() {
+	}
+
+	static synchronized float [][] getSharedSinCosTables(int ln2){
+		if (sharedCS[ln2]==null){
+			double [][] dCS=DoubleFHT.makeSinCosTables(1<<ln2); // not through DoubleFHT registry - do not skew its statistics
+			float [][] CS=new float[2][dCS[0].length];
+			for (int i=0;i<dCS[0].length;i++){
+				CS[0][i]=(float) dCS[0][i];
+				CS[1][i]=(float) dCS[1][i];
+			}
+			sharedCS[ln2]=CS;
+		}
+		return sharedCS[ln2];
+	}
+
+	public boolean powerOf2Size(float [] data) {
+		int len=data.length;
+		int i=4;
+		while(i<len) i *= 4;
+		return i==len;
+	}
+
+	private boolean updateMaxN(float [] data){
+		if (data==null) return false; // do nothing
+		if (!powerOf2Size(data)) {
+			String msg="Image is not power of 2 size";
+			IJ.showMessage("Error",msg);
+			throw new IllegalArgumentException (msg);
+		}
+		int n=(int) Math.sqrt(data.length);
+		boolean differentSize=(n!=this.maxN);
+		if (differentSize){
+			this.maxN=n;
+			for (this.ln2=0;maxN>(1<<this.ln2); this.ln2++);
+			if (this.ln2>=SHARED_MAX_SIZE) {
+				String msg="Too large image, maximal FHT size is 2^"+(SHARED_MAX_SIZE-1)+", wanted 2^"+this.ln2+")";
+				IJ.showMessage("Error",msg);
+				throw new IllegalArgumentException (msg);
+			}
+			float [][] CS=getSharedSinCosTables(this.ln2);
+			this.C=CS[0];
+			this.S=CS[1];
+			this.bitrev=DoubleFHT.getSharedBitReverseTable(this.ln2);
+			this.tempArr = new float[maxN];
+		}
+		return differentSize;
+	}
+
+	public void swapQuadrants(float [] data) {
+		if (data==null) return;
+		int size= (int) Math.sqrt(data.length);
+		int hsize=size/2;
+		int shift03=(size+1)*hsize;
+		int shift12=(size-1)*hsize;
+		int i,j,index;
+		float d;
+		for (i=0;i<hsize;i++)  for (j=0;j<hsize;j++) {
+			index=i*size+j;
+			d=data[index];
+			data[index]=data[index+shift03];
+			data[index+shift03]=d;
+			index+=hsize;
+			d=data[index];
+			data[index]=data[index+shift12];
+			data[index+shift12]=d;
+		}
+	}
+
+	/* Performs a forward transform, converting this image into the frequency domain. 
+		The image contained in data must be square and its width must be a power of 2. */
+	public boolean transform(float [] data) {
+		return transform(data, false);
+	}
+
+	/* Performs an inverse transform, converting this image into the space domain. 
+		The image contained in data must be square and its width must be a power of 2. */
+	public boolean inverseTransform(float [] data) {
+		return transform(data, true);
+	}
+
+	public boolean transform(float [] data, boolean inverse) {
+		updateMaxN(data);
+		rc2DFHT(data, inverse, this.maxN);
+		return true;
+	}
+
+	/* Performs a 2D FHT (Fast Hartley Transform). */
+	public void rc2DFHT(float[] x, boolean inverse, int maxN) {
+		for (int row=0; row<maxN; row++)
+			dfht3(x, row*maxN, inverse, maxN);		
+		transposeR(x, maxN);
+		for (int row=0; row<maxN; row++)		
+			dfht3(x, row*maxN, inverse, maxN);
+		transposeR(x, maxN);
+
+		int mRow, mCol;
+		float A,B,C,D,E;
+		for (int row=0; row<=maxN/2; row++) { // Now calculate actual Hartley transform
+			for (int col=0; col<=maxN/2; col++) {
+				mRow = (maxN - row) % maxN;
+				mCol = (maxN - col)  % maxN;
+				A = x[row * maxN + col];	//  see Bracewell, 'Fast 2D Hartley Transf.' IEEE Procs. 9/86
+				B = x[mRow * maxN + col];
+				C = x[row * maxN + mCol];
+				D = x[mRow * maxN + mCol];
+				E = ((A + D) - (B + C)) / 2;
+				x[row * maxN + col] = A - E;
+				x[mRow * maxN + col] = B + E;
+				x[row * maxN + mCol] = C + E;
+				x[mRow * maxN + mCol] = D - E;
+			}
+		}
+	}
+
+	/* Performs an optimized 1D FHT. */
+	public void dfht3 (float[] x, int base, boolean inverse, int maxN) {
+		int i, stage, gpNum, gpSize, numGps, Nlog2;
+		int bfNum, numBfs;
+		int Ad0, Ad1, Ad2, Ad3, Ad4, CSAd;
+		float rt1, rt2, rt3, rt4;
+
+		Nlog2 = DoubleFHT.log2(maxN);
+		BitRevRArr(x, base, maxN);	//bitReverse the input array
+		gpSize = 2;     //first & second stages - do radix 4 butterflies once thru
+		numGps = maxN / 4;
+		for (gpNum=0; gpNum<numGps; gpNum++)  {
+			Ad1 = gpNum * 4;
+			Ad2 = Ad1 + 1;
+			Ad3 = Ad1 + gpSize;
+			Ad4 = Ad2 + gpSize;
+			rt1 = x[base+Ad1] + x[base+Ad2];   // a + b
+			rt2 = x[base+Ad1] - x[base+Ad2];   // a - b
+			rt3 = x[base+Ad3] + x[base+Ad4];   // c + d
+			rt4 = x[base+Ad3] - x[base+Ad4];   // c - d
+			x[base+Ad1] = rt1 + rt3;      // a + b + (c + d)
+			x[base+Ad2] = rt2 + rt4;      // a - b + (c - d)
+			x[base+Ad3] = rt1 - rt3;      // a + b - (c + d)
+			x[base+Ad4] = rt2 - rt4;      // a - b - (c - d)
+		}
+
+		if (Nlog2 > 2) {
+			// third + stages computed here
+			gpSize = 4;
+			numBfs = 2;
+			numGps = numGps / 2;
+			for (stage=2; stage<Nlog2; stage++) {
+				for (gpNum=0; gpNum<numGps; gpNum++) {
+					Ad0 = gpNum * gpSize * 2;
+					Ad1 = Ad0;     // 1st butterfly is different from others - no mults needed
+					Ad2 = Ad1 + gpSize;
+					Ad3 = Ad1 + gpSize / 2;
+					Ad4 = Ad3 + gpSize;
+					rt1 = x[base+Ad1];
+					x[base+Ad1] = x[base+Ad1] + x[base+Ad2];
+					x[base+Ad2] = rt1 - x[base+Ad2];
+					rt1 = x[base+Ad3];
+					x[base+Ad3] = x[base+Ad3] + x[base+Ad4];
+					x[base+Ad4] = rt1 - x[base+Ad4];
+					for (bfNum=1; bfNum<numBfs; bfNum++) {
+						// subsequent BF's dealt with together
+						Ad1 = bfNum + Ad0;
+						Ad2 = Ad1 + gpSize;
+						Ad3 = gpSize - bfNum + Ad0;
+						Ad4 = Ad3 + gpSize;
+
+						CSAd = bfNum * numGps;
+						rt1 = x[base+Ad2] * C[CSAd] + x[base+Ad4] * S[CSAd];
+						rt2 = x[base+Ad4] * C[CSAd] - x[base+Ad2] * S[CSAd];
+
+						x[base+Ad2] = x[base+Ad1] - rt1;
+						x[base+Ad1] = x[base+Ad1] + rt1;
+						x[base+Ad4] = x[base+Ad3] + rt2;
+						x[base+Ad3] = x[base+Ad3] - rt2;
+					} /* end bfNum loop */
+				} /* end gpNum loop */
+				gpSize *= 2;
+				numBfs *= 2;
+				numGps = numGps / 2;
+			} /* end for all stages */
+		} /* end if Nlog2 > 2 */
+
+		if (inverse)  {
+			float scale=1.0f/maxN; // maxN is a power of 2, so it is exact
+			for (i=0; i<maxN; i++)
+				x[base+i] *= scale;
+		}
+	}
+
+	void transposeR (float[] x, int maxN) {
+		int   r, c;
+		float  rTemp;
+		for (r=0; r<maxN; r++)  {
+			for (c=r+1; c<maxN; c++) {
+				rTemp = x[r*maxN + c];
+				x[r*maxN + c] = x[c*maxN + r];
+				x[c*maxN + r] = rTemp;
+			}
+		}
+	}
+
+	void BitRevRArr (float[] x, int base, int maxN) {
+		for (int i=0; i<maxN; i++)
+			tempArr[i] = x[base+bitrev[i]];
+		for (int i=0; i<maxN; i++)
+			x[base+i] = tempArr[i];
+	}
+
+	public float [] multiply(float [] h1, float [] h2, boolean  conjugate) {
+		float [] product=h1.clone();
+		multiplyInPlace(product, h2, conjugate);
+		return product;
+	}
+
+	/**
+	 * Multiply two FHT arrays (convolution or correlation in space domain), the product replaces h1
+	 * @param h1 first FHT array, will be replaced by the product
+	 * @param h2 second FHT array (not modified)
+	 * @param conjugate true - correlation, false - convolution
+	 */
+	public void multiplyInPlace(float [] h1, float [] h2, boolean  conjugate) {
+		int rowMod, colMod, i1, i2;
+		float h2e, h2o, p1, p2;
+		updateMaxN(h1);
+		for (int r =0; r<maxN; r++) {
+			rowMod = (maxN - r) % maxN;
+			for (int c=0; c<maxN; c++) {
+				colMod = (maxN - c) % maxN;
+				i1=r * maxN + c;
+				i2=rowMod * maxN + colMod;
+				if (i2<i1) continue; // already processed as a pair
+				h2e = (h2[i1] + h2[i2]) / 2;
+				h2o = (h2[i1] - h2[i2]) / 2;
+				if (conjugate) {
+					p1= h1[i1] * h2e - h1[i2] * h2o;
+					p2= h1[i2] * h2e + h1[i1] * h2o;
+				} else {
+					p1= h1[i1] * h2e + h1[i2] * h2o;
+					p2= h1[i2] * h2e - h1[i1] * h2o;
+				}
+				h1[i1]=p1;
+				h1[i2]=p2;
+			}
+		}
+	}
+}
@@ -3114,25 +3114,49 @@ d_s2/d_x0= 2*delta_x*delta_y^2/r2^2
 //    	final double [][] fJacobian=this.jacobian;
     	final AtomicInteger lineAtomic = new AtomicInteger(0);
     	final Thread[] threads = newThreadArray(threadsMax);
-    	
+    	// range of non-zero elements in each Jacobian line {first, last+1} - most parameters influence only some samples
+    	final int [][] nonZeroRange=new int [numPars][2];
+    	for (int ithread = 0; ithread < threads.length; ithread++) {
+    		threads[ithread] = new Thread() {
+    			public void run() {
+    				for (int line=lineAtomic.getAndIncrement(); line<numPars;line=lineAtomic.getAndIncrement()){
+    					double [] jLine=jacobian[line];
+    					int first=0;
+    					while ((first<jLine.length) && (jLine[first]==0.0)) first++;
+    					int last=jLine.length;
+    					while ((last>first) && (jLine[last-1]==0.0)) last--;
+    					nonZeroRange[line][0]=first;
+    					nonZeroRange[line][1]=last;
+    				}
+    			}
+    		};
+    	}
+    	startAndJoin(threads);
+    	lineAtomic.set(0);
     	for (int ithread = 0; ithread < threads.length; ithread++) {
     		threads[ithread] = new Thread() {
     			public void run() {
+    				double [] weightedLine=(fWeights!=null)?(new double [diff.length]):null; // reused for all lines of this thread
     				for (int line=lineAtomic.getAndIncrement(); line<numPars;line=lineAtomic.getAndIncrement()){
+    					int first=nonZeroRange[line][0];
+    					int last= nonZeroRange[line][1];
     					double [] sLine=jacobian[line];
     					if (fWeights!=null){
-    						sLine=jacobian[line].clone();
-    						for (int i=0;i<sLine.length;i++) sLine[i]*=fWeights[i];
+    						for (int i=first;i<last;i++) weightedLine[i]=sLine[i]*fWeights[i];
+    						sLine=weightedLine;
     					}
     					for (int line2=line;line2<numPars;line2++){
+    						int first2=Math.max(first, nonZeroRange[line2][0]);
+    						int last2= Math.min(last,  nonZeroRange[line2][1]);
+    						double [] jLine2=jacobian[line2];
     						double d=0;
-    						for (int i=0;i<sLine.length;i++) if (sLine[i]!=0.0){
-    							d+=sLine[i]*jacobian[line2][i];
+    						for (int i=first2;i<last2;i++) if (sLine[i]!=0.0){
+    							d+=sLine[i]*jLine2[i];
     						}
     						JtByJmod[line][line2]=d;
     					}
     					double d=0;
-    					for (int i=0;i<sLine.length;i++) if (sLine[i]!=0.0){
+    					for (int i=first;i<last;i++) if (sLine[i]!=0.0){
     						d+=sLine[i]*diff[i];
     					}
     					JtByDiff[line]=d;
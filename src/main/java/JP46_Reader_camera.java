@@ -77,6 +77,8 @@ public class JP46_Reader_camera implements PlugIn, ActionListener {
 	public String imageTitle="cameraImage";
 	private int ExifOffset=0x0c;
 	private Boolean headless=GraphicsEnvironment.getLocalGraphicsEnvironment().isHeadlessInstance(); 
+	public boolean pureJavaDecoder=headless; // decode JP4/JP46 with JP4Decoder instead of AWT toolkit
+	private JP4Decoder jp4Decoder=null;
 
 	public void run(String arg) {
 	}
@@ -234,6 +236,7 @@ public class JP46_Reader_camera implements PlugIn, ActionListener {
 		gd.addStringField("JP46 Parameters: ", camera_jp46settings, 50);
 		gd.addCheckbox("Demux composite frame? ", demux);
 		gd.addCheckbox("Silent? ", IS_SILENT);
+		gd.addCheckbox("Decode without AWT (pure Java JP4/JP46 decoder)", pureJavaDecoder);
 		//      gd.addCheckbox("JP4 (not JP46)? ", IS_JP4);
 
 
@@ -254,6 +257,7 @@ public class JP46_Reader_camera implements PlugIn, ActionListener {
 		camera_jp46settings = gd.getNextString();
 		demux=gd.getNextBoolean();
 		IS_SILENT=gd.getNextBoolean();
+		pureJavaDecoder=gd.getNextBoolean();
 		return true;
 	}
 	public ImagePlus open(String directory, String fileName, String arg, boolean scale) {
@@ -277,16 +281,23 @@ public class JP46_Reader_camera implements PlugIn, ActionListener {
 		boolean showDemux=showImage && demux;
 		if (demux) showImage=false;
 		double [] xtraExif=new double[1]; // ExposureTime
+		boolean deblocked=false;
 		try {
-			imp = openJpegOrGif(directory, fileName);
+			byte [] jpeg=JP4Decoder.readStream(new FileInputStream(directory + fileName)); // file is read only once
+			ElphelMakerNote = parseElphelMakerNote(jpeg, MAKER_NOTE_LENGTHS, xtraExif, directory + fileName);
+			if (this.pureJavaDecoder) {
+				imp=decodeJP4(jpeg, fileName, ElphelMakerNote, imp_src);
+				FileInfo fi = new FileInfo();
+				fi.fileFormat = FileInfo.GIF_OR_JPG;
+				fi.fileName = fileName;
+				fi.directory = directory;
+				imp.setFileInfo(fi);
+				deblocked=true;
+			} else imp = openJpegOrGif(jpeg, directory, fileName);
 			if (imp == null) {
 				IJ.showMessage("JP46 Reader Error", "Could not open "+directory+"" + fileName + " as JPEG/JP46");
-			} else {
+			} else if (!deblocked) {
 				if ((imp_src==null)&& showImage) imp.show(); /* Shows before re-ordering*/
-				ElphelMakerNote = readElphelMakerNote(directory, fileName, 16,xtraExif); /* after or 8.2.2 */
-				if (ElphelMakerNote==null) ElphelMakerNote = readElphelMakerNote(directory, fileName, 14,xtraExif); /* after or 8.0.8.32 */
-				if (ElphelMakerNote==null) ElphelMakerNote = readElphelMakerNote(directory, fileName, 12,xtraExif); /* after or 8.0.7.3 */
-				if (ElphelMakerNote==null) ElphelMakerNote = readElphelMakerNote(directory, fileName, 8 ,xtraExif); /* before 8.0.7.3 */
 			}
 		} catch (IOException e) {
 			IJ.showStatus("");
@@ -296,7 +307,7 @@ public class JP46_Reader_camera implements PlugIn, ActionListener {
 			return null;
 		}
 		if (imp!=null) {
-			reuse_imp=jp46Reorder(imp, ElphelMakerNote, scale, imp_src);
+			reuse_imp=jp46Reorder(imp, ElphelMakerNote, scale, imp_src, deblocked);
 			if (reuse_imp) {
 				imp=imp_src;
 			} else if ((imp_src!=null)&& showImage) { /* tried to reuse, but wrong size */
@@ -340,6 +351,34 @@ public class JP46_Reader_camera implements PlugIn, ActionListener {
 			boolean scale,
 			ImagePlus imp_src,
 			boolean showImage) {
+		byte [] jpeg=null;
+		try {
+			if (!this.ABSOLUTELY_SILENT) System.out.println("loading image from: " + url);
+			// single request per frame - Exif is parsed from the same data as the image itself (no separate "/towp/wait"-less re-read)
+			jpeg=JP4Decoder.readStream(new URL(url).openStream());
+		} catch (IOException e) {
+			IJ.showStatus("");
+			String error = e.getMessage();
+			if (error==null || error.equals(""))
+				error = ""+e;
+			IJ.showMessage("JP46 Reader", ""+error);
+			return null;
+		}
+		return openURL(jpeg, url, arg, scale, imp_src, showImage);
+	}
+
+	/**
+	 * Decode image data already received from the camera (i.e. by the asynchronous acquisition)
+	 * @param jpeg complete JPEG/JP4 file data
+	 * @param url URL the data was received from (used for file info and messages)
+	 */
+	public ImagePlus openURL(
+			byte [] jpeg,
+			String url,
+			String arg,
+			boolean scale,
+			ImagePlus imp_src,
+			boolean showImage) {
 		long[] ElphelMakerNote=null;
 		ImagePlus imp = null;
 		boolean reuse_imp=false;
@@ -348,21 +387,28 @@ public class JP46_Reader_camera implements PlugIn, ActionListener {
 		double [] xtraExif=new double[1]; // ExposureTime
 
 //		System.out.println("imp_src is "+((imp_src!=null)?"not ":"")+"null");
+		boolean deblocked=false;
 		try {
-			imp = openJpegOrGifUsingURL(url);
-			if (imp == null) {
+			if (this.pureJavaDecoder) {
+				imp=null;
+			} else imp = openJpegOrGifUsingURL(jpeg, url);
+			if ((imp == null) && !this.pureJavaDecoder) {
 				IJ.showMessage("JP46 Reader Error", "Could not open the URL: " + url + " as JPEG/JP46");
 			} else {
-				if ((imp_src==null) && showImage) {
+				if ((imp_src==null) && showImage && (imp!=null)) {
 //					System.out.println("show() 1");
 					imp.show(); /* Shows before re-ordering*/
 				}
-				/// get rid of the "/towp/wait" if any - there is a chance to re-read the same image
-				ElphelMakerNote = readElphelMakerNoteURL(url.replaceFirst("/towp/wait",""), 16,xtraExif); /* after or 8.2.2 */
-				if (ElphelMakerNote==null) ElphelMakerNote = readElphelMakerNoteURL(url.replaceFirst("/towp/wait",""), 14,xtraExif); /* after or 8.0.8.32 */
-				if (ElphelMakerNote==null) ElphelMakerNote = readElphelMakerNoteURL(url.replaceFirst("/towp/wait",""), 12,xtraExif); /* after or 8.0.7.3 */
-				if (ElphelMakerNote==null) ElphelMakerNote = readElphelMakerNoteURL(url.replaceFirst("/towp/wait",""), 8 ,xtraExif ); /* before 8.0.7.3 */
-
+				ElphelMakerNote = parseElphelMakerNote(jpeg, MAKER_NOTE_LENGTHS, xtraExif, url);
+				if (imp==null){
+					imp=decodeJP4(jpeg, imageTitle, ElphelMakerNote, imp_src);
+					FileInfo fi = new FileInfo();
+					fi.fileFormat = FileInfo.GIF_OR_JPG;
+					fi.fileName = "aquired from camera";
+					fi.directory = url;
+					imp.setFileInfo(fi);
+					deblocked=true;
+				}
 			}
 		} catch (IOException e) {
 			IJ.showStatus("");
@@ -373,7 +419,7 @@ public class JP46_Reader_camera implements PlugIn, ActionListener {
 			return null;
 		}
 		if (imp!=null) {
-			reuse_imp=jp46Reorder(imp, ElphelMakerNote, scale, imp_src);
+			reuse_imp=jp46Reorder(imp, ElphelMakerNote, scale, imp_src, deblocked);
 			if (reuse_imp) {
 				imp=imp_src;
 			} else if ((imp_src!=null) && showImage) { /* tried to reuse, but wrong size */
@@ -412,6 +458,13 @@ public class JP46_Reader_camera implements PlugIn, ActionListener {
 		arr[j]=tmp;
 	}
 	boolean  jp46Reorder(ImagePlus imp, long[] MakerNote, boolean scale, ImagePlus imp_src) {
+		return jp46Reorder(imp, MakerNote, scale, imp_src, false);
+	}
+	/**
+	 * Apply MakerNote (gains, gammas, flips) to the image, re-order JP4/JP46 macroblocks into Bayer mosaic
+	 * @param deblocked image is already re-ordered (decoded by JP4Decoder), only gains/gammas/flips are needed
+	 */
+	boolean  jp46Reorder(ImagePlus imp, long[] MakerNote, boolean scale, ImagePlus imp_src, boolean deblocked) {
 		//    int MARGIN=2; // 2 pixels in JP4/JP46 mode around WOI
 		double[] gains= new double[4];
 		double[] blacks= new double[4];
@@ -653,8 +706,8 @@ public class JP46_Reader_camera implements PlugIn, ActionListener {
 		float [] pixels = (float[])ip.getPixels();
 		float [][] macroblock=new float[16][16];
 		float [] pixels1= null;
-		boolean IS_JP4=(COLOR_MODE==5);
-		boolean IS_JP46=(COLOR_MODE==2);
+		boolean IS_JP4= (COLOR_MODE==5) && !deblocked;
+		boolean IS_JP46=(COLOR_MODE==2) && !deblocked;
 		if (IS_JP4) pixels1= pixels.clone(); ///JP4 mode
 
 		boolean use_imp_src= (imp_src!=null) && (imp_src.getWidth()==imp.getWidth()) && (imp_src.getHeight()==imp.getHeight());
@@ -779,51 +832,29 @@ public class JP46_Reader_camera implements PlugIn, ActionListener {
 	}
 
 
-	long[] readElphelMakerNote(String directory, String fileName, int len, double [] xtraExif) throws IOException  {
-		byte [] sig=  {(byte) 0x92 ,0x7c, /* MakerNote*/
-				0x00 ,0x04, /* type (long)*/
-				0x00 ,0x00 ,0x00 ,0x08 }; /* number*/
-		/* should always read all MakerNote - verify that format did not change (edit here when it does). */
-		sig[7]=(byte) (len & 0xff);
-		sig[6]=(byte) ((len>>8) & 0xff);
-		sig[5]=(byte) ((len>>16) & 0xff);
-		sig[4]=(byte) ((len>>24) & 0xff);
+	/** MakerNote lengths (in longs) to try, newest firmware first: after or 8.2.2, 8.0.8.32, 8.0.7.3, before 8.0.7.3 */
+	public static final int [] MAKER_NOTE_LENGTHS={16,14,12,8};
+	/** Exif/MakerNote is searched only in the beginning of the file */
+	public static final int EXIF_HEAD_LENGTH=4096;
 
+	long[] readElphelMakerNote(String directory, String fileName, int len, double [] xtraExif) throws IOException  {
 		RandomAccessFile in = new RandomAccessFile(directory + fileName, "r");
-		byte[] head = new byte[4096]; /* just read the beginning of the file */
+		byte[] head = new byte[EXIF_HEAD_LENGTH]; /* just read the beginning of the file */
 		in.readFully(head);
 		in.close(); // was no close()! -? "too many open files"
-		if ((head[this.ExifOffset]!=0x4d) || (head[this.ExifOffset+1]!=0x4d)) {
-			IJ.showMessage("JP46 Reader", "Exif Header not found in " + directory + fileName);
-			return null;
-		}
-		/* search for MakerNote */
-		long [] note=getExifData (sig, head, len);
-		if (xtraExif!=null){
-			if (xtraExif.length>0){ // get exposure time
-				byte [] exposureTime={
-						(byte) 0x82,(byte) 0x9a,0x00,0x05,
-						0x00,0x00,0x00,0x01};
-				long [] nomDenom=getExifData (exposureTime, head, 2);
-				if (nomDenom==null) xtraExif[0]=Double.NaN;
-				else {
-					xtraExif[0]=(1.0*nomDenom[0])/nomDenom[1];
-				}
-			}
-		}
-		return note;
+		return parseElphelMakerNote(head, new int[] {len}, xtraExif, directory + fileName);
 	}
 
 	long[] readElphelMakerNoteURL(String url, int len, double [] xtraExif) throws IOException  {
 		URL camURL = null;
 		URLConnection urlConn = null;
-		byte[] data = new byte[4096];
+		byte[] data = new byte[EXIF_HEAD_LENGTH];
 		//      System.out.println("loading exif from: " + url);
 
 		try {
 			camURL  = new URL(url);
 			urlConn = camURL.openConnection();
-			int contentLength = 4096; /* just read the beginning of the file */ //urlConn.getContentLength();    
+			int contentLength = EXIF_HEAD_LENGTH; /* just read the beginning of the file */ //urlConn.getContentLength();    
 			//inStream = new InputStreamReader(urlConn.getInputStream());
 
 			int bytesRead = 0;
@@ -843,28 +874,41 @@ public class JP46_Reader_camera implements PlugIn, ActionListener {
 		} catch(IOException  e1){
 			System.out.println("Can't read  from the Internet: "+ e1.toString() ); 
 		}
-		byte [] sig=  {(byte) 0x92 ,0x7c, /* MakerNote*/
-				0x00 ,0x04, /* type (long)*/
-				0x00 ,0x00 ,0x00 ,0x08 }; /* number*/
-		/* should always read all MakerNote - verify that format did not change (edit here when it does). */
-		sig[7]=(byte) (len & 0xff);
-		sig[6]=(byte) ((len>>8) & 0xff);
-		sig[5]=(byte) ((len>>16) & 0xff);
-		sig[4]=(byte) ((len>>24) & 0xff);
-
-		//in = new RandomAccess(RandomAccessFactory.createRO(camURL), "r");
-
-		byte[] head = new byte[4096]; /* just read the beginning of the file */
-		head = data;
-		//in.readFully(head);
+		return parseElphelMakerNote(data, new int[] {len}, xtraExif, url);
+	}
 
-		if ((head[this.ExifOffset] != 0x4d) || (head[this.ExifOffset+1] != 0x4d)) {
-			IJ.showMessage("JP46 Reader", "Exif Header not found in " + url);
+	/**
+	 * Parse Elphel MakerNote and exposure time from the already read file data (only the first EXIF_HEAD_LENGTH bytes are used)
+	 * @param data file data (complete JPEG or just its beginning)
+	 * @param lengths MakerNote lengths to try, in order, first found is returned
+	 * @param xtraExif if not null and not empty will receive exposure time (NaN if not found)
+	 * @param source file name or URL for the error message
+	 * @return MakerNote or null
+	 */
+	long[] parseElphelMakerNote(byte [] data, int [] lengths, double [] xtraExif, String source) {
+		byte[] head=data;
+		if (head.length>EXIF_HEAD_LENGTH) {
+			head = new byte[EXIF_HEAD_LENGTH];
+			System.arraycopy(data, 0, head, 0, EXIF_HEAD_LENGTH);
+		}
+		if ((head.length < (this.ExifOffset+2)) || (head[this.ExifOffset]!=0x4d) || (head[this.ExifOffset+1]!=0x4d)) {
+			IJ.showMessage("JP46 Reader", "Exif Header not found in " + source);
 			return null;
 		}
+		byte [] sig=  {(byte) 0x92 ,0x7c, /* MakerNote*/
+				0x00 ,0x04, /* type (long)*/
+				0x00 ,0x00 ,0x00 ,0x08 }; /* number*/
 		/* search for MakerNote */
-//		return getExifData (sig, head, len);
-		long [] note=getExifData (sig, head, len);
+		long [] note=null;
+		for (int len:lengths) {
+			/* should always read all MakerNote - verify that format did not change (edit here when it does). */
+			sig[7]=(byte) (len & 0xff);
+			sig[6]=(byte) ((len>>8) & 0xff);
+			sig[5]=(byte) ((len>>16) & 0xff);
+			sig[4]=(byte) ((len>>24) & 0xff);
+			note=getExifData (sig, head, len);
+			if (note!=null) break;
+		}
 		if (xtraExif!=null){
 			if (xtraExif.length>0){ // get exposure time
 				byte [] exposureTime={
@@ -878,11 +922,8 @@ public class JP46_Reader_camera implements PlugIn, ActionListener {
 			}
 		}
 		return note;
-
 	}
-	
-	
-	
+
 	long [] getExifData (byte [] sig, byte [] head, int len){
 		/* search for sig array */
 		int i = this.ExifOffset + 2;
@@ -916,8 +957,13 @@ public class JP46_Reader_camera implements PlugIn, ActionListener {
 
 	/* Modified from Opener.java */
 	ImagePlus openJpegOrGif(String dir, String name) {
+		return openJpegOrGif(Toolkit.getDefaultToolkit().createImage(dir+name), dir, name);
+	}
+	ImagePlus openJpegOrGif(byte [] data, String dir, String name) {
+		return openJpegOrGif(Toolkit.getDefaultToolkit().createImage(data), dir, name);
+	}
+	ImagePlus openJpegOrGif(Image img, String dir, String name) {
 		ImagePlus imp = null;
-		Image img = Toolkit.getDefaultToolkit().createImage(dir+name);
 		if (img!=null) {
 			try {
 				imp = new ImagePlus(name, img);
@@ -940,6 +986,24 @@ public class JP46_Reader_camera implements PlugIn, ActionListener {
 		}
 		return imp;
 	}
+	/**
+	 * Decode JP4/JP46 data without AWT, reusing the pixel array of imp_src if it has the same size
+	 * @param jpeg complete JPEG file data
+	 * @param title image title
+	 * @param makerNote Elphel MakerNote (provides COLOR_MODE) or null
+	 * @param imp_src image to reuse (or null)
+	 * @return 32-bit image with already re-ordered Bayer mosaic (not yet gamma/gain corrected)
+	 */
+	ImagePlus decodeJP4(byte [] jpeg, String title, long [] makerNote, ImagePlus imp_src) throws IOException {
+		int colorMode=((makerNote!=null) && (makerNote.length>=12))?((int) ((makerNote[10]>>4) & 0x0f)):JP4Decoder.COLOR_MODE_MONO;
+		float [] reusePixels=null;
+		if ((imp_src!=null) && (imp_src.getProcessor()!=null) && (imp_src.getProcessor().getPixels() instanceof float[])){
+			reusePixels=(float []) imp_src.getProcessor().getPixels();
+		}
+		if (this.jp4Decoder==null) this.jp4Decoder=new JP4Decoder();
+		float [] pixels=this.jp4Decoder.decode(jpeg, colorMode, reusePixels);
+		return new ImagePlus(title, new FloatProcessor(this.jp4Decoder.getWidth(), this.jp4Decoder.getHeight(), pixels, null));
+	}
 	public void setTitle (String title) {
 		imageTitle=title;
 	}
@@ -968,6 +1032,16 @@ public class JP46_Reader_camera implements PlugIn, ActionListener {
 
 		img = Toolkit.getDefaultToolkit().createImage(url);
 		if (!this.ABSOLUTELY_SILENT) System.out.println("loading image from: " + url);
+		return openJpegOrGifUsingURL(img, cameraurl);
+	}
+	/**
+	 * Decode JPEG data already received from the camera (single request for both image and Exif)
+	 */
+	ImagePlus openJpegOrGifUsingURL (byte [] data, String cameraurl) {   
+		return openJpegOrGifUsingURL(Toolkit.getDefaultToolkit().createImage(data), cameraurl);
+	}
+	ImagePlus openJpegOrGifUsingURL (Image img, String cameraurl) {   
+		ImagePlus imp = null;
 		//      imp = new ImagePlus("test", img);
 		imp = new ImagePlus(imageTitle, img);
 
@@ -0,0 +1,423 @@
+/**
+** -----------------------------------------------------------------------------**
+** JP4Decoder.java
+**
+** Pure Java baseline JPEG decoder for Elphel JP4/JP46 images, writes de-blocked
+** Bayer mosaic directly to a float array (no AWT toolkit needed)
+**
+** Copyright (C) 2014 Elphel, Inc.
+**
+** -----------------------------------------------------------------------------**
+**
+**  JP4Decoder.java is free software: you can redistribute it and/or modify
+**  it under the terms of the GNU General Public License as published by
+**  the Free Software Foundation, either version 3 of the License, or
+**  (at your option) any later version.
+**
+**  This program is distributed in the hope that it will be useful,
+**  but WITHOUT ANY WARRANTY; without even the implied warranty of
+**  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+**  GNU General Public License for more details.
+**
+**  You should have received a copy of the GNU General Public License
+**  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+** -----------------------------------------------------------------------------**
+**
+*/
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Only the luma (first) component is used - JP4/JP46 store Bayer data there, chroma (if present) is decoded
+ * just to advance the bit stream. Each decoded 8x8 block is written straight to its place in the Bayer mosaic,
+ * so the result is the same as JP46_Reader_camera.openJpegOrGif() followed by the re-ordering part of jp46Reorder()
+ */
+public class JP4Decoder {
+	public static final int COLOR_MODE_MONO=0; // same values as COLOR_MODE in Elphel MakerNote, anything else - as mono
+	public static final int COLOR_MODE_JP46=2;
+	public static final int COLOR_MODE_JP4= 5;
+	private static final int [] ZIGZAG={
+		 0, 1, 8,16, 9, 2, 3,10,
+		17,24,32,25,18,11, 4, 5,
+		12,19,26,33,40,48,41,34,
+		27,20,13, 6, 7,14,21,28,
+		35,42,49,56,57,50,43,36,
+		29,22,15,23,30,37,44,51,
+		58,59,52,45,38,31,39,46,
+		53,60,61,54,47,55,62,63};
+	private static final double [] IDCT_TABLE=createIDCTTable(); // [x*8+u] = C(u)/2*cos((2x+1)*u*pi/16)
+	private int [][] qTables=new int [4][];
+	private HuffmanTable [][] hTables=new HuffmanTable[2][4]; // [0 - DC, 1 - AC][table id]
+	private int width=0;
+	private int height=0;
+	private int numComponents=0;
+	private int [] componentId;
+	private int [] hSamp;
+	private int [] vSamp;
+	private int [] qIndex;
+	private int [] dcPred;
+	private int hMax,vMax;
+	private int restartInterval=0;
+	// entropy decoder state
+	private byte [] data;
+	private int pos;
+	private long bitBuffer;
+	private int bitCount;
+	private int [] coefficients=new int [64];
+	private double [] tmpBlock=new double [64];
+	private double [] tmpRows= new double [64];
+	public int debugLevel=0;
+
+	private class HuffmanTable{
+		int [] maxCode=new int [18];
+		int [] valPtr= new int [17];
+		int [] minCode=new int [17];
+		int [] values;
+		int [] lookup=new int [256]; // (length<<8) | value for codes not longer than 8 bits, 0 - use slow path
+		HuffmanTable(int [] counts, int [] values){
+			this.values=values;
+			int code=0,k=0;
+			for (int l=1;l<=16;l++){
+				this.valPtr[l]=k;
+				this.minCode[l]=code;
+				for (int i=0;i<counts[l-1];i++){
+					if (l<=8){
+						int shift=8-l;
+						for (int j=0;j<(1<<shift);j++) this.lookup[(code<<shift)|j]=(l<<8) | values[k];
+					}
+					code++;
+					k++;
+				}
+				this.maxCode[l]=(counts[l-1]>0)?(code-1):-1;
+				code<<=1;
+			}
+			this.maxCode[17]=Integer.MAX_VALUE;
+		}
+	}
+
+	public int getWidth(){return this.width;}
+	public int getHeight(){return this.height;}
+
+	/**
+	 * Decode JP4/JP46 (or plain monochrome) JPEG image into de-blocked Bayer mosaic
+	 * @param jpeg complete JPEG file data
+	 * @param colorMode COLOR_MODE from Elphel MakerNote (5 - JP4, 2 - JP46, other - no re-ordering)
+	 * @param pixels destination array to reuse, will be allocated if null or of the wrong size
+	 * @return width*height array of the pixels (0..255) in scanline order, width/height are available with getWidth()/getHeight()
+	 * @throws IOException for malformed or unsupported (not baseline/extended sequential Huffman) JPEG data
+	 */
+	public float [] decode(byte [] jpeg, int colorMode, float [] pixels) throws IOException{
+		this.data=jpeg;
+		this.pos=0;
+		this.restartInterval=0;
+		this.numComponents=0;
+		if ((nextByte()!=0xff) || (nextByte()!=0xd8)) throw new IOException("Not a JPEG file (no SOI marker)");
+		boolean frameDone=false;
+		while (!frameDone){
+			int marker=nextMarker();
+			switch (marker){
+			case 0xc0: // baseline
+			case 0xc1: // extended sequential, Huffman
+				readFrameHeader();
+				if ((pixels==null) || (pixels.length!=(this.width*this.height))) pixels=new float [this.width*this.height];
+				break;
+			case 0xc2: case 0xc3: case 0xc5: case 0xc6: case 0xc7: case 0xc9: case 0xca: case 0xcb: case 0xcd: case 0xce: case 0xcf:
+				throw new IOException("Unsupported JPEG process (SOF marker 0x"+Integer.toHexString(marker)+")");
+			case 0xc4:
+				readHuffmanTables();
+				break;
+			case 0xdb:
+				readQuantizationTables();
+				break;
+			case 0xdd:
+				nextWord(); // length==4
+				this.restartInterval=nextWord();
+				break;
+			case 0xda:
+				if (this.numComponents==0) throw new IOException("SOS before SOF");
+				decodeScan(pixels, colorMode);
+				break;
+			case 0xd9: // EOI
+				frameDone=true;
+				break;
+			default: // APPn, COM, DNL... - skip
+				this.pos+=nextWord()-2;
+			}
+		}
+		this.data=null;
+		return pixels;
+	}
+
+	private int nextByte() throws IOException{
+		if (this.pos>=this.data.length) throw new IOException("Unexpected end of JPEG data");
+		return this.data[this.pos++] & 0xff;
+	}
+	private int nextWord() throws IOException{
+		return (nextByte()<<8) | nextByte();
+	}
+	private int nextMarker() throws IOException{
+		int b=nextByte();
+		while (b!=0xff) b=nextByte(); // skip garbage
+		while (b==0xff) b=nextByte(); // fill bytes
+		return b;
+	}
+
+	private void readFrameHeader() throws IOException{
+		nextWord();
+		int precision=nextByte();
+		if (precision!=8) throw new IOException("Only 8-bit JPEG is supported, got "+precision);
+		this.height=nextWord();
+		this.width= nextWord();
+		this.numComponents=nextByte();
+		this.componentId=new int [this.numComponents];
+		this.hSamp=new int [this.numComponents];
+		this.vSamp=new int [this.numComponents];
+		this.qIndex=new int [this.numComponents];
+		this.dcPred=new int [this.numComponents];
+		this.hMax=1;
+		this.vMax=1;
+		for (int i=0;i<this.numComponents;i++){
+			this.componentId[i]=nextByte();
+			int s=nextByte();
+			this.hSamp[i]=s>>4;
+			this.vSamp[i]=s & 0xf;
+			this.qIndex[i]=nextByte() & 3;
+			if (this.hSamp[i]>this.hMax) this.hMax=this.hSamp[i];
+			if (this.vSamp[i]>this.vMax) this.vMax=this.vSamp[i];
+		}
+		if (this.debugLevel>1) System.out.println("JP4Decoder: "+this.width+"x"+this.height+", "+this.numComponents+" component(s), luma sampling "+
+				this.hSamp[0]+"x"+this.vSamp[0]);
+	}
+
+	private void readHuffmanTables() throws IOException{
+		int end=this.pos+nextWord();
+		while (this.pos<end){
+			int tc=nextByte();
+			int [] counts=new int [16];
+			int total=0;
+			for (int i=0;i<16;i++) total+=(counts[i]=nextByte());
+			int [] values=new int [total];
+			for (int i=0;i<total;i++) values[i]=nextByte();
+			this.hTables[(tc>>4) & 1][tc & 3]=new HuffmanTable(counts,values);
+		}
+	}
+
+	private void readQuantizationTables() throws IOException{
+		int end=this.pos+nextWord();
+		while (this.pos<end){
+			int pq=nextByte();
+			int [] table=new int [64];
+			for (int i=0;i<64;i++) table[ZIGZAG[i]]=((pq>>4)!=0)?nextWord():nextByte(); // stored in natural order
+			this.qTables[pq & 3]=table;
+		}
+	}
+
+	private void decodeScan(float [] pixels, int colorMode) throws IOException{
+		nextWord();
+		int scanComponents=nextByte();
+		int [] comps=new int [scanComponents];
+		HuffmanTable [] dcTables=new HuffmanTable [scanComponents];
+		HuffmanTable [] acTables=new HuffmanTable [scanComponents];
+		for (int i=0;i<scanComponents;i++){
+			int id=nextByte();
+			int tables=nextByte();
+			comps[i]=-1;
+			for (int n=0;n<this.numComponents;n++) if (this.componentId[n]==id) comps[i]=n;
+			if (comps[i]<0) throw new IOException("Unknown component id "+id+" in SOS");
+			dcTables[i]=this.hTables[0][tables>>4];
+			acTables[i]=this.hTables[1][tables & 0xf];
+		}
+		this.pos+=3; // Ss, Se, Ah/Al - fixed for sequential
+		int mcusX,mcusY;
+		if (scanComponents==1){ // non-interleaved - one block per MCU
+			int c=comps[0];
+			mcusX=(((this.width*this.hSamp[c]+this.hMax-1)/this.hMax)+7)/8;
+			mcusY=(((this.height*this.vSamp[c]+this.vMax-1)/this.vMax)+7)/8;
+		} else {
+			mcusX=(this.width +8*this.hMax-1)/(8*this.hMax);
+			mcusY=(this.height+8*this.vMax-1)/(8*this.vMax);
+		}
+		resetDecoder();
+		int mcu=0;
+		int numMCUs=mcusX*mcusY;
+		for (int my=0;my<mcusY;my++) for (int mx=0;mx<mcusX;mx++){
+			for (int i=0;i<scanComponents;i++){
+				int c=comps[i];
+				int bh=(scanComponents==1)?1:this.hSamp[c];
+				int bv=(scanComponents==1)?1:this.vSamp[c];
+				for (int v=0;v<bv;v++) for (int h=0;h<bh;h++){
+					decodeBlock(c,dcTables[i],acTables[i]);
+					if (c==0) {
+						idctBlock(this.qTables[this.qIndex[c]]);
+						storeBlock(pixels, 8*(mx*bh+h), 8*(my*bv+v), colorMode);
+					}
+				}
+			}
+			mcu++;
+			if ((this.restartInterval>0) && ((mcu % this.restartInterval)==0) && (mcu<numMCUs)){
+				// skip to the RSTn marker
+				while ((this.pos<(this.data.length-1)) &&
+						!((this.data[this.pos]==(byte)0xff) && ((this.data[this.pos+1] & 0xf8)==0xd0))) this.pos++;
+				this.pos+=2;
+				resetDecoder();
+			}
+		}
+		// position at the next marker
+		while ((this.pos<(this.data.length-1)) &&
+				!((this.data[this.pos]==(byte)0xff) && (this.data[this.pos+1]!=0) && (this.data[this.pos+1]!=(byte)0xff))) this.pos++;
+	}
+
+	private void resetDecoder(){
+		this.bitBuffer=0;
+		this.bitCount=0;
+		for (int i=0;i<this.dcPred.length;i++) this.dcPred[i]=0;
+	}
+
+	private void fillBits(){
+		while (this.bitCount<=48){
+			int b=0;
+			if (this.pos<this.data.length){
+				b=this.data[this.pos] & 0xff;
+				if (b==0xff){
+					int next=(this.pos<(this.data.length-1))?(this.data[this.pos+1] & 0xff):0xd9;
+					if (next==0) this.pos+=2;  // stuffed 0xff
+					else         b=0;          // marker - do not consume, feed zeros
+				} else this.pos++;
+			}
+			this.bitBuffer=(this.bitBuffer<<8) | b;
+			this.bitCount+=8;
+		}
+	}
+	private int getBits(int n){
+		if (n==0) return 0;
+		if (this.bitCount<n) fillBits();
+		this.bitCount-=n;
+		return (int) ((this.bitBuffer>>>this.bitCount) & ((1L<<n)-1));
+	}
+	private int receiveExtend(int s){
+		int v=getBits(s);
+		return (v<(1<<(s-1)))?(v-(1<<s)+1):v;
+	}
+	private int decodeHuffman(HuffmanTable table) throws IOException{
+		if (this.bitCount<16) fillBits();
+		int look=table.lookup[(int) ((this.bitBuffer>>>(this.bitCount-8)) & 0xff)];
+		if (look!=0){
+			this.bitCount-=look>>8;
+			return look & 0xff;
+		}
+		int code=getBits(1);
+		int l=1;
+		while (code>table.maxCode[l]){
+			code=(code<<1) | getBits(1);
+			if (++l>16) throw new IOException("Bad Huffman code at offset "+this.pos);
+		}
+		return table.values[table.valPtr[l]+code-table.minCode[l]];
+	}
+
+	private void decodeBlock(int c, HuffmanTable dcTable, HuffmanTable acTable) throws IOException{
+		int [] coef=this.coefficients;
+		for (int i=0;i<64;i++) coef[i]=0;
+		int t=decodeHuffman(dcTable);
+		this.dcPred[c]+=(t==0)?0:receiveExtend(t);
+		coef[0]=this.dcPred[c];
+		for (int k=1;k<64;){
+			int rs=decodeHuffman(acTable);
+			int r=rs>>4, s=rs & 0xf;
+			if (s==0){
+				if (r!=15) break; // EOB
+				k+=16;
+			} else {
+				k+=r;
+				if (k>63) break; // corrupted
+				coef[ZIGZAG[k++]]=receiveExtend(s);
+			}
+		}
+	}
+
+	private static double [] createIDCTTable(){
+		double [] table=new double [64];
+		for (int x=0;x<8;x++) for (int u=0;u<8;u++){
+			table[x*8+u]=((u==0)?Math.sqrt(0.5):1.0)*0.5*Math.cos((2*x+1)*u*Math.PI/16);
+		}
+		return table;
+	}
+
+	/**
+	 * Separable inverse DCT of this.coefficients (natural order, dequantized here), result in this.tmpBlock, level-shifted
+	 */
+	private void idctBlock(int [] qTable){
+		int [] coef=this.coefficients;
+		double [] rows=this.tmpRows;
+		for (int v=0;v<8;v++){ // horizontal pass
+			int base=v*8;
+			boolean zero=true;
+			for (int u=1;u<8;u++) if (coef[base+u]!=0) {zero=false; break;}
+			if (zero){
+				double dc=coef[base]*qTable[base]*IDCT_TABLE[0];
+				for (int x=0;x<8;x++) rows[base+x]=dc;
+				continue;
+			}
+			for (int x=0;x<8;x++){
+				double s=0.0;
+				for (int u=0;u<8;u++) s+=coef[base+u]*qTable[base+u]*IDCT_TABLE[x*8+u];
+				rows[base+x]=s;
+			}
+		}
+		for (int x=0;x<8;x++){ // vertical pass
+			for (int y=0;y<8;y++){
+				double s=0.0;
+				for (int v=0;v<8;v++) s+=rows[v*8+x]*IDCT_TABLE[y*8+v];
+				this.tmpBlock[y*8+x]=s+128.0;
+			}
+		}
+	}
+
+	/**
+	 * Write decoded luma block to the destination, re-ordering JP4/JP46 macroblocks into Bayer mosaic
+	 * @param pixels destination (width*height)
+	 * @param x0 block left column in the luma plane
+	 * @param y0 block top row in the luma plane
+	 * @param colorMode 5 - JP4, 2 - JP46, other - no re-ordering
+	 */
+	private void storeBlock(float [] pixels, int x0, int y0, int colorMode){
+		int ox=x0, oy=y0, sx=1, sy=1;
+		if (colorMode==COLOR_MODE_JP46){ // macroblock quadrants are interleaved 2x2 Bayer
+			ox=((x0>>4)<<4) | ((x0>>3) & 1);
+			oy=((y0>>4)<<4) | ((y0>>3) & 1);
+			sx=2;
+			sy=2;
+		} else if (colorMode==COLOR_MODE_JP4){ // 16-row stripes: first half of macroblocks in top 8 rows, second - in the bottom 8
+			int column=((y0 & 8)==0)?x0:(x0+this.width);
+			int nb=(column>>3) & 3;
+			ox=((column>>5)<<4) | (nb & 1);
+			oy=((y0>>4)<<4) | (nb>>1);
+			sx=2;
+			sy=2;
+		}
+		for (int y=0;y<8;y++){
+			int dy=oy+y*sy;
+			if (dy>=this.height) break;
+			int index=dy*this.width+ox;
+			for (int x=0;x<8;x++){
+				if ((ox+x*sx)>=this.width) break;
+				double d=Math.round(this.tmpBlock[y*8+x]);
+				pixels[index+x*sx]=(float) ((d<0.0)?0.0:((d>255.0)?255.0:d));
+			}
+		}
+	}
+
+	/**
+	 * Read the whole stream into a byte array (closes the stream)
+	 */
+	public static byte [] readStream(InputStream in) throws IOException{
+		ByteArrayOutputStream out=new ByteArrayOutputStream(1<<20);
+		byte [] buffer=new byte [65536];
+		try {
+			for (int n=in.read(buffer);n>=0;n=in.read(buffer)) out.write(buffer,0,n);
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+}
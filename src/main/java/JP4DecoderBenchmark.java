@@ -0,0 +1,80 @@
+/**
+** -----------------------------------------------------------------------------**
+** JP4DecoderBenchmark.java
+**
+** Compares JP4Decoder with the AWT toolkit decoding path of JP46_Reader_camera
+** (speed and luma pixel values) on a directory of JP4/JP46 files
+**
+** Copyright (C) 2014 Elphel, Inc.
+**
+** -----------------------------------------------------------------------------**
+**
+**  JP4DecoderBenchmark.java is free software: you can redistribute it and/or modify
+**  it under the terms of the GNU General Public License as published by
+**  the Free Software Foundation, either version 3 of the License, or
+**  (at your option) any later version.
+**
+**  This program is distributed in the hope that it will be useful,
+**  but WITHOUT ANY WARRANTY; without even the implied warranty of
+**  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+**  GNU General Public License for more details.
+**
+**  You should have received a copy of the GNU General Public License
+**  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+** -----------------------------------------------------------------------------**
+**
+*/
+import ij.ImagePlus;
+import ij.process.ImageConverter;
+
+import java.awt.Image;
+import java.awt.Toolkit;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+public class JP4DecoderBenchmark {
+	/**
+	 * Benchmark against the AWT path of JP46_Reader_camera (Toolkit.createImage + convertToGray32), luma plane only
+	 * @param args directory with JP4/JP46 files, optional number of repetitions
+	 */
+	public static void main(String[] args) throws IOException{
+		if (args.length<1){
+			System.out.println("Usage: JP4DecoderBenchmark <directory with jp4/jp46 files> [repetitions]");
+			return;
+		}
+		int repeat=(args.length>1)?Integer.parseInt(args[1]):3;
+		File [] files=(new File(args[0])).listFiles();
+		if (files==null) throw new IOException("Can not list "+args[0]);
+		JP4Decoder decoder=new JP4Decoder();
+		float [] pixels=null;
+		long timeAWT=0,timeDecoder=0;
+		int numFiles=0;
+		double maxDiff=0.0;
+		for (File file:files){
+			String name=file.getName().toLowerCase();
+			if (!name.endsWith(".jp4") && !name.endsWith(".jp46") && !name.endsWith(".jpg") && !name.endsWith(".jpeg")) continue;
+			float [] awtPixels=null;
+			for (int i=0;i<repeat;i++){
+				long startTime=System.nanoTime();
+				Image img = Toolkit.getDefaultToolkit().createImage(file.getPath());
+				ImagePlus imp=new ImagePlus(name,img);
+				new ImageConverter(imp).convertToGray32();
+				awtPixels=(float []) imp.getProcessor().getPixels();
+				timeAWT+=System.nanoTime()-startTime;
+				startTime=System.nanoTime();
+				pixels=decoder.decode(JP4Decoder.readStream(new FileInputStream(file)),JP4Decoder.COLOR_MODE_MONO,pixels);
+				timeDecoder+=System.nanoTime()-startTime;
+			}
+			double diff=0.0;
+			for (int i=0;i<pixels.length;i++) diff=Math.max(diff,Math.abs(pixels[i]-awtPixels[i]));
+			System.out.println(file.getName()+": "+decoder.getWidth()+"x"+decoder.getHeight()+" max difference "+diff);
+			if (diff>maxDiff) maxDiff=diff;
+			numFiles++;
+		}
+		if (numFiles>0){
+			System.out.println(numFiles+" files, AWT: "+(1E-6*timeAWT/numFiles/repeat)+" ms/frame, JP4Decoder: "+
+					(1E-6*timeDecoder/numFiles/repeat)+" ms/frame, max difference "+maxDiff);
+		}
+	}
+}
@@ -26,10 +26,21 @@
 */
 
 import java.awt.Rectangle;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.List;
+import java.util.Properties;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.SwingUtilities;
@@ -65,6 +76,12 @@ public class PixelMapping {
 	public int oversampled=2;
 	public int binsPerHalfPixel=50;
 	public double [][][][] lanczos=null;
+	public boolean separableLanczos=true; // warp with 1d kernels (lanczos1d) instead of the 2d stack, same default as EquirectangularParameters
+	public double [][] lanczos1d=null;     // [fractional pixels][delta pixel], 2d kernel is lanczos1d[indxY][ipy]*lanczos1d[indxX][ipx]
+	private int lanczos1dOversampled=0;    // parameters lanczos1d was generated with
+	private int lanczos1dA=0;
+	private int lanczos1dBins=0;
+	public static final int WARP_TILE_SIZE=32; // output tile size for the separable warping (tiles are processed in line-scan order)
 	public int maxSensors=100;
 	InterSensor lastUsedInterSensor=null;
 //	public enum cellTypes {EMPTY_CELL, BAD_CELL, OLD_CELL,NEW_CELL}
@@ -368,7 +385,7 @@ public class PixelMapping {
     }
     public void  deleteEquirectangularMapFull(int channel){
     	if ((this.sensors!=null) && (this.sensors.length>channel) && (this.sensors[channel]!=null) && (this.sensors[channel].equirectangularMap!=null)){
-    		this.sensors[channel].equirectangularMap.map=null;
+    		this.sensors[channel].equirectangularMap.deleteFullMap();
     	}
     }
 
@@ -399,7 +416,7 @@ public class PixelMapping {
 			IJ.showMessage("No equirectangular map for channel "+channel);
 			return null;
 		}
-		if (this.lanczos==null)   generateLanczosStack();
+		if ((this.lanczos==null) && !this.separableLanczos)   generateLanczosStack();
 
 		if (imp.getType()==ImagePlus.COLOR_RGB) {
 			return resampleToEquirectangularRGB24(imp, channel, sourceImageScale, maxThreads);
@@ -438,6 +455,9 @@ public class PixelMapping {
 		for (int c=0;c<imagePixels.length;c++) imagePixels[c]=	(float []) imp.getStack().getPixels(c+1);
 		final float [][] outPixels=new float [4][erm.mapWOI.width*erm.mapWOI.height];
 		System.out.println("resampleToEquirectangularRGBFP32(): imagePixels[0].length.length="+imagePixels[0].length);
+		if (this.separableLanczos){
+			warpSeparable(erm, width, height, scale, imagePixels, null, outPixels, null, channel, maxThreads);
+		} else {
 		if (this.oversampled!=scale) generateLanczosStack(
         		this.lanczosA,
         		scale,
@@ -531,6 +551,7 @@ public class PixelMapping {
    			};
    		}
    		startAndJoin(threads);
+		}
    		ImageStack outStack=new ImageStack(erm.mapWOI.width,erm.mapWOI.height);
    		outStack.addSlice("Red",   outPixels[0]);
    		outStack.addSlice("Green", outPixels[1]);
@@ -562,6 +583,9 @@ public class PixelMapping {
 		}
 		final int [] imagePixels=(int []) imp.getProcessor().getPixels();
 		final int [] outPixels=new int [erm.mapWOI.width*erm.mapWOI.height];
+		if (this.separableLanczos){
+			warpSeparable(erm, width, height, scale, null, imagePixels, null, outPixels, channel, maxThreads);
+		} else {
 		if (this.oversampled!=scale) generateLanczosStack(
         		this.lanczosA,
         		scale,
@@ -636,6 +660,7 @@ public class PixelMapping {
    			};
    		}
    		startAndJoin(threads);
+		}
 		ColorProcessor cp=new ColorProcessor(erm.mapWOI.width,erm.mapWOI.height);
 		cp.setPixels(outPixels);
 		ImagePlus impOut=new ImagePlus(imp.getTitle()+"_EQR",cp);
@@ -649,8 +674,196 @@ public class PixelMapping {
 		return impOut;
     }
 
-    
-     
+
+
+    /**
+     * Warp image with separable Lanczos kernels (same as lanczos[indxY][indxX][ipy][ipx]=lanczos1d[indxY][ipy]*lanczos1d[indxX][ipx]).
+     * Uses small 1d tables instead of the 4d stack, clamps source coordinates only near the image borders and
+     * processes the output in WARP_TILE_SIZE x WARP_TILE_SIZE tiles, so the source pixels used stay in cache.
+     * Either FP (3 slices, output 4 - RGBA) or RGB24 (output ARGB) arrays should be provided
+     * @param erm equirectangular map of the channel
+     * @param width source image width
+     * @param height source image height
+     * @param scale source image scale (normally 2x)
+     * @param imagePixelsFP source R,G,B slices or null
+     * @param imagePixelsRGB source RGB24 pixels or null
+     * @param outPixelsFP output R,G,B,A slices (for imagePixelsFP)
+     * @param outPixelsRGB output ARGB pixels (for imagePixelsRGB)
+     * @param channel sensor channel number (for status)
+     * @param maxThreads maximal number of threads to use
+     */
+    private void warpSeparable(
+    		final SensorData.EquirectangularMap erm,
+    		final int width,
+    		final int height,
+    		final int scale,
+    		final float [][] imagePixelsFP,
+    		final int []     imagePixelsRGB,
+    		final float [][] outPixelsFP,
+    		final int []     outPixelsRGB,
+    		int channel,
+    		int maxThreads){
+    	if ((this.lanczos1d==null) || (this.lanczos1dOversampled!=scale) || (this.lanczos1dA!=this.lanczosA) || (this.lanczos1dBins!=this.binsPerHalfPixel)){
+    		generateLanczos1d(this.lanczosA, scale, this.binsPerHalfPixel);
+    	}
+    	final double [][] lanczos1d=this.lanczos1d;
+    	final int taps=lanczos1d[0].length;
+    	final int center=taps/2;
+    	final int binsPerHalfPixel=this.binsPerHalfPixel;
+    	final int outWidth= erm.mapWOI.width;
+    	final int outHeight=erm.mapWOI.height;
+    	final int tilesX=(outWidth+ WARP_TILE_SIZE-1)/WARP_TILE_SIZE;
+    	final int tilesY=(outHeight+WARP_TILE_SIZE-1)/WARP_TILE_SIZE;
+    	final boolean fp=(imagePixelsFP!=null);
+    	final Thread[] threads = newThreadArray(maxThreads);
+    	final AtomicInteger tileAtomic     = new AtomicInteger(0);
+    	final AtomicInteger tileDoneAtomic = new AtomicInteger(1);
+    	IJ.showStatus("Warping image channel "+channel);
+    	for (int ithread = 0; ithread < threads.length; ithread++) {
+    		threads[ithread] = new Thread() {
+    			public void run() {
+    				int [] rowIndex=new int [taps]; // clamped source rows (border only)
+    				int [] colIndex=new int [taps]; // clamped source columns (border only)
+    				for (int nTile=tileAtomic.getAndIncrement(); nTile<(tilesX*tilesY);nTile=tileAtomic.getAndIncrement()){
+    					int opy0=(nTile/tilesX)*WARP_TILE_SIZE;
+    					int opx0=(nTile%tilesX)*WARP_TILE_SIZE;
+    					int opy1=Math.min(opy0+WARP_TILE_SIZE,outHeight);
+    					int opx1=Math.min(opx0+WARP_TILE_SIZE,outWidth);
+    					for (int opy=opy0;opy<opy1;opy++) for (int opx=opx0;opx<opx1;opx++){
+    						int oIndex=opy*outWidth+opx;
+    						double alpha=erm.partialMap[2][oIndex];
+    						if (!(alpha>0)){ // do not convolve pixels with alpha=0;
+    							if (fp){
+    								outPixelsFP[0][oIndex]=0.0F;
+    								outPixelsFP[1][oIndex]=0.0F;
+    								outPixelsFP[2][oIndex]=0.0F;
+    								outPixelsFP[3][oIndex]=(float) alpha;
+    							} else {
+    								outPixelsRGB[oIndex]=0;
+    							}
+    							continue;
+    						}
+    						double x=scale*erm.partialMap[0][oIndex];
+    						double y=scale*erm.partialMap[1][oIndex];
+    						int ix= (int) Math.round(x);
+    						int iy= (int) Math.round(y);
+    						double [] wx=lanczos1d[(int) Math.round((2*(x-ix)+1)*binsPerHalfPixel)];
+    						double [] wy=lanczos1d[(int) Math.round((2*(y-iy)+1)*binsPerHalfPixel)];
+    						int ipx0=ix-center;
+    						int ipy0=iy-center;
+    						boolean interior=(ipx0>=0) && (ipy0>=0) && ((ipx0+taps)<=width) && ((ipy0+taps)<=height);
+    						if (!interior){
+    							for (int i=0;i<taps;i++){
+    								int ipy=ipy0+i;
+    								if (ipy<0) ipy=0;
+    								else if (ipy>=height) ipy=height-1;
+    								rowIndex[i]=ipy*width;
+    								int ipx=ipx0+i;
+    								if (ipx<0) ipx=0;
+    								else if (ipx>=width) ipx=width-1;
+    								colIndex[i]=ipx;
+    							}
+    						}
+    						double r=0.0,g=0.0,b=0.0;
+    						for (int i=0;i<taps;i++) {
+    							double wi=wy[i];
+    							if (wi==0.0) continue;
+    							double rr=0.0,gr=0.0,br=0.0;
+    							if (interior){
+    								int base=(ipy0+i)*width+ipx0;
+    								if (fp){
+    									float [] pr=imagePixelsFP[0], pg=imagePixelsFP[1], pb=imagePixelsFP[2];
+    									for (int j=0;j<taps;j++){
+    										rr+=pr[base+j]*wx[j];
+    										gr+=pg[base+j]*wx[j];
+    										br+=pb[base+j]*wx[j];
+    									}
+    								} else {
+    									for (int j=0;j<taps;j++){
+    										int pix=imagePixelsRGB[base+j];
+    										rr+=((pix>>16) & 0xff)*wx[j];
+    										gr+=((pix>>8)  & 0xff)*wx[j];
+    										br+=( pix      & 0xff)*wx[j];
+    									}
+    								}
+    							} else {
+    								int base=rowIndex[i];
+    								for (int j=0;j<taps;j++){
+    									if (fp){
+    										rr+=imagePixelsFP[0][base+colIndex[j]]*wx[j];
+    										gr+=imagePixelsFP[1][base+colIndex[j]]*wx[j];
+    										br+=imagePixelsFP[2][base+colIndex[j]]*wx[j];
+    									} else {
+    										int pix=imagePixelsRGB[base+colIndex[j]];
+    										rr+=((pix>>16) & 0xff)*wx[j];
+    										gr+=((pix>>8)  & 0xff)*wx[j];
+    										br+=( pix      & 0xff)*wx[j];
+    									}
+    								}
+    							}
+    							r+=wi*rr;
+    							g+=wi*gr;
+    							b+=wi*br;
+    						}
+    						if (fp){
+    							outPixelsFP[0][oIndex]=(float) r;
+    							outPixelsFP[1][oIndex]=(float) g;
+    							outPixelsFP[2][oIndex]=(float) b;
+    							outPixelsFP[3][oIndex]=(float) alpha;
+    						} else {
+    							double [] RGBA={255*alpha,r,g,b};
+    							int c=0;
+    							for (int i=0;i<4;i++){
+    								if      (RGBA[i]< 0.0)    RGBA[i]=0.0;
+    								else if (RGBA[i] > 255.0) RGBA[i]=255.0;
+    								c=(c<<8) | ((int) RGBA[i]);
+    							}
+    							outPixelsRGB[oIndex]=c;
+    						}
+    					}
+    					final int numFinished=tileDoneAtomic.getAndIncrement();
+    					SwingUtilities.invokeLater(new Runnable() {
+    						public void run() {
+    							IJ.showProgress(numFinished,tilesX*tilesY);
+    						}
+    					});
+    				}
+    			}
+    		};
+    	}
+    	startAndJoin(threads);
+    }
+
+    /**
+     * Generate 1d Lanczos kernels for the separable warping, same values as the factors used in generateLanczosStack()
+     * @param lanczosA - value of "a" in sinc(x)*sinc(x/a)
+     * @param oversampled reduce resolution of the image if it was over-sampled (2 for current Eeyesis software)
+     * @param binsPerHalfPixel calculate for this number of fractional pixels (oversampled pixels, not sensor ones)
+     * @return [fractional pixels][delta pixel]
+     */
+    public double [][] generateLanczos1d(
+    		int lanczosA,
+    		int oversampled,
+    		int binsPerHalfPixel){
+    	double [][] lanczos1d= new double [2*binsPerHalfPixel+1][2*lanczosA*oversampled+1];
+    	double step=0.5/binsPerHalfPixel;
+    	double centerPix=lanczosA*oversampled;
+    	double pi2=Math.PI*Math.PI;
+    	double s=lanczosA/pi2/oversampled;
+    	double sync0=1.0/oversampled;
+    	for (int ib=0;ib<lanczos1d.length;ib++){
+    		double c=-0.5+ib*step;
+    		for (int ip=0;ip<lanczos1d[0].length;ip++){
+    			double p=(ip-centerPix-c)/oversampled;
+    			lanczos1d[ib][ip]=(Math.abs(p)>=lanczosA)?0.0:((p==0.0)?sync0:(s*Math.sin(p*Math.PI)*Math.sin(p*Math.PI/lanczosA)/(p*p)));
+    		}
+    	}
+    	this.lanczos1d=lanczos1d;
+    	this.lanczos1dA=lanczosA;
+    	this.lanczos1dOversampled=oversampled;
+    	this.lanczos1dBins=binsPerHalfPixel;
+    	return lanczos1d;
+    }
     
     /**
      * Generate a stack of Lanczos kernels to for re-sampling
@@ -1003,7 +1216,7 @@ public class PixelMapping {
     				pixelStep, //double pixelStep,
     				maxThreads);
     		sensors[channelNumber].equirectangularMap.createPartialMap(longitudeCrop);
-    		if (deleteFull) sensors[channelNumber].equirectangularMap.map=null;
+    		if (deleteFull) sensors[channelNumber].equirectangularMap.deleteFullMap();
     		String channelPath=path.substring(0,indexSuffix)+String.format("%02d",channelNumber)+path.substring(indexPeriod);
     		msg="Saving equirectangular map to "+channelPath;
     		IJ.showStatus(msg);
@@ -1131,15 +1344,13 @@ public class PixelMapping {
     		String path, //
     		int debugLevel
     		){
-		Opener opener=new Opener();
-		ImagePlus impMap=opener.openImage("", path);
+		ImagePlus impMap=openMapFile(path,debugLevel);
     	if (impMap==null) {
     		String msg="Failed to read plane-to-sensor map file "+path;
     		IJ.showMessage("Error",msg);
     		throw new IllegalArgumentException (msg);
     	}
 		if (debugLevel>0) System.out.println("Read "+path+" as a plane-to-sensor map");
-    	(new JP46_Reader_camera(false)).decodeProperiesFromInfo(impMap);
     	InterSensor interSensor=new InterSensor(impMap,debugLevel);
     	this.lastUsedInterSensor=interSensor;
     	for (int iChn=0;iChn<interSensor.channel.length;iChn++){
@@ -2191,6 +2402,7 @@ public class PixelMapping {
     	public double [] imagePlane=new double[3];  // X,Y,Z components of the unity vector normal to the image plane. Plane X axis is defined by projection of the interVector
 //    	double [] interVector=null; //"X,Y,Z components of the vector from camera1 to camera2 centers, in camera coord system, mm"
     	public float [][] map; //{pixelx1,pixely1,alpha1,pixelX2,pixelY2,alpha2}[]  // may have now 3 (more) components
+    	private ImageStack mapStack=null; // source of the map layers, each is read on the first getMapLayer()
     	public double [][] overlapImages=null; // {alpha1, Y1, Cb1, Cr1, alpha2, Y2, Cb2, Cr2}[pixels] 
     	public double [][] sobelY=null; // edge-detection ran on {Y1,Y2}, same format;
     	public boolean [][] booleanEdges=null;
@@ -2273,6 +2485,16 @@ public class PixelMapping {
         	}
     		return requiredProperties;
     	}
+    	/**
+    	 * Map layer, read from the map image stack on the first use (binary maps copy only the layers actually used
+    	 * from the page cache)
+    	 * @param n layer number (0-based)
+    	 * @return layer data
+    	 */
+    	public synchronized float [] getMapLayer(int n){
+    		if ((this.map[n]==null) && (this.mapStack!=null)) this.map[n]=(float[]) this.mapStack.getPixels(n+1);
+    		return this.map[n];
+    	}
     	public InterSensor(ImagePlus imp, int debugLevel){
     		this.debugLevel=debugLevel;
     		int minNumPlanes=3; // was 6, trying for a single cameras
@@ -2307,9 +2529,8 @@ public class PixelMapping {
     			IJ.showMessage("Error",msg);
     			throw new IllegalArgumentException (msg);
     		}
-    		ImageStack stack = imp.getStack();
-    		this.map =new float[stack.getSize()][];
-    		for (int i=0;i<this.map.length;i++) this.map[i]= (float[]) stack.getPixels(i+1);
+    		this.mapStack = imp.getStack();
+    		this.map =new float[this.mapStack.getSize()][]; // layers are read on first use, see getMapLayer()
     		this.mapWidth=imp.getWidth();
     		this.mapHeight=imp.getHeight();
     		if (imp.getProperty("path")!=null) this.path=(String) imp.getProperty("path");
@@ -7511,99 +7732,6 @@ public class PixelMapping {
     		public void planeLikely(
 //    				int nImg,
 //    				int [] sImg, // list of second images
-    				double [][][] imageData, // [img]{Alpha, Y,Cb,Cr, Ext}. Alpha may be null - will handle later?
-    				int imageFullWidth,
-    				double blurVarianceSigma,
-    				int refineTilePeriod,
-    				double subTilePhaseCoeff,
-    				double subTileHighPassSigma,
-    				double subTileLowPassSigma,
-//    				double refineCorrMaxDistance,
-//    				double refineCorrThreshold,
-    				int refineSubPixel,
-    				double zMapMinForeground,
-    				int zMapVarMask,
-    				double [] zMapVarThresholds,
-    				double [] zMapVarWeights,
-    				int       auxVarMode,
-        			int     normalizeCorrelation,
-    				int zMapCorrMask,
-    				double [] zMapCorrThresholds,
-    				double [] zMapCorrThresholdsRel,
-    				double [] zMapCorrWeights,
-    				int debugRow,
-    				int debugColumn,
-    				int combineMode, // different image pairs - 0 
-
-    				double disparityMax,
-    				double disaprityMin,
-    				double minAbsolute, // or NaN - will use enabled/disabled state of the tile
-    				double minRelative,
-    				boolean filterByForeground, // apply known certain masks
-    				double filterByForegroundMargin,
-    				boolean filterByDisabled,
-    				double disparityTolearnce,
-    				double maskBlurSigma,
-    				double corrHighPassSigma, // subtract blurred version to minimize correlation caused by masks
-    				double varianceBlurScale,
-    				double kLocal,
-    				int matchStatMode,
-    				int threadsMax,
-    				boolean showProgress,
-    				int debugLevel){
-    			// process all image pairs
-    			for (int nImg=0;nImg<this.disparityScales.length;nImg++){
-    				int [] sImg=new int [this.disparityScales.length-1];
-    				for (int j=0;j<sImg.length;j++)sImg[j]=(j<nImg)?j:(j+1); 
-    				planeLikely(
-    	    				nImg,
-    	    				sImg, // list of second images
-    	    				imageData, // [img]{Alpha, Y,Cb,Cr, Ext}. Alpha may be null - will handle later?
-    	    				imageFullWidth,
-    	    				blurVarianceSigma,
-    	    				refineTilePeriod,
-    	    				subTilePhaseCoeff,
-    	    				subTileHighPassSigma,
-    	    				subTileLowPassSigma,
-//    	    				refineCorrMaxDistance,
-//    	    				refineCorrThreshold,
-    	    				refineSubPixel,
-    	    				zMapMinForeground,
-    	    				zMapVarMask,
-    	    				zMapVarThresholds,
-    	    				zMapVarWeights,
-    	    				auxVarMode,
-    	        			normalizeCorrelation,
-    	    				zMapCorrMask,
-    	    				zMapCorrThresholds,
-    	    				zMapCorrThresholdsRel,
-    	    				zMapCorrWeights,
-    	    				debugRow,
-    	    				debugColumn,
-    	    				combineMode, // different image pairs - 0 
-
-    	    				disparityMax,
-    	    				disaprityMin,
-    	    				minAbsolute, // or NaN - will use enabled/disabled state of the tile
-    	    				minRelative,
-    	    				filterByForeground, // apply known certain masks
-    	    				filterByForegroundMargin,
-    	    				filterByDisabled,
-    	    				disparityTolearnce,
-    	    				maskBlurSigma,
-    	    				corrHighPassSigma, // subtract blurred version to minimize correlation caused by masks
-    	    				varianceBlurScale,
-    	    				kLocal,
-    	    				matchStatMode,
-    	    				threadsMax,
-    	    				showProgress,
-    	    				debugLevel);
-    			}
-    		}
-
-        	public void planeLikely(
-    				final int nImg,
-    				final int [] sImg, // list of second images
     				final double [][][] imageData, // [img]{Alpha, Y,Cb,Cr, Ext}. Alpha may be null - will handle later?
     				final int imageFullWidth,
     				final double blurVarianceSigma,
@@ -7611,8 +7739,8 @@ public class PixelMapping {
     				final double subTilePhaseCoeff,
     				final double subTileHighPassSigma,
     				final double subTileLowPassSigma,
-//    				final double refineCorrMaxDistance,
-//    				final double refineCorrThreshold,
+//    				double refineCorrMaxDistance,
+//    				double refineCorrThreshold,
     				final int refineSubPixel,
     				final double zMapMinForeground,
     				final int zMapVarMask,
@@ -7627,6 +7755,8 @@ public class PixelMapping {
     				final int debugRow,
     				final int debugColumn,
     				final int combineMode, // different image pairs - 0 
+    				final int pyramidLevels, // 0 - search full disparity range, >0 - number of 2x downsampling steps for the coarse estimation
+    				final double pyramidWindow, // search +/- this around the coarse estimation (pix)
 
     				final double disparityMax,
     				final double disaprityMin,
@@ -7641,45 +7771,81 @@ public class PixelMapping {
     				final double varianceBlurScale,
     				final double kLocal,
     				final int matchStatMode,
+    				final boolean releasePlaneData, // free per-plane tile data not needed after the tile pass
     				final int threadsMax,
     				final boolean showProgress,
     				final int debugLevel){
+    			final DisparityPyramid pyramid=(pyramidLevels>0)?(new DisparityPyramid(imageData,imageFullWidth,pyramidLevels)):null;
         		final int debugThreshold=2;
         		final Rectangle zMapWOI=this.zMapWOI;
         		final ZTile [][][] zMapFinal=this.zMap;
         		final int tilesX=this.zMapWOI.width;
-        		final int tiles=this.zMapWOI.width*this.zMapWOI.height;
-        		if (debugLevel>2) System.out.println("setupZMap() zMapWOI.x="+zMapWOI.x+" zMapWOI.y="+zMapWOI.y+
+        		final int numImages=this.disparityScales.length;
+        		if (debugLevel>2) System.out.println("planeLikely() zMapWOI.x="+zMapWOI.x+" zMapWOI.y="+zMapWOI.y+
         				" zMapWOI.width="+zMapWOI.width+" zMapWOI.height="+zMapWOI.height);
-        		final Thread[] threads = newThreadArray(threadsMax);
-		   		final AtomicInteger tileIndexAtomic     = new AtomicInteger(0);
-		   		if (showProgress) IJ.showProgress(0.0);
-		   		if (showProgress) IJ.showStatus("planeLikely for image "+nImg+" ("+(nImg+1)+" of "+this.disparityScales.length+") ...");
+        		final int [][] sImgs=new int [numImages][]; // list of second images for each image
+        		final double [][] coarseDisparity=new double [numImages][]; // null - search full disparity range
+        		for (int nImg=0;nImg<numImages;nImg++){
+        			sImgs[nImg]=new int [numImages-1];
+        			for (int j=0;j<sImgs[nImg].length;j++)sImgs[nImg][j]=(j<nImg)?j:(j+1);
+        			coarseDisparity[nImg]=(pyramid==null)?null:estimateCoarseDisparity(
+        					nImg,
+        					sImgs[nImg],
+        					pyramid,
+        					disaprityMin,
+        					disparityMax,
+        					threadsMax,
+        					showProgress,
+        					debugLevel);
+        		}
+        		/*
+        		 * Each image is a separate pass of the tile scheduler. Tile of image nImg writes only its own ZTile (enabled planes),
+        		 * but with filterByForeground it reads enabled planes of the other images tiles around the tile shifted by disparity.
+        		 * Tile may start the next image as soon as all tiles within that radius finished the previous one - the same order
+        		 * of reads and writes as when processing the images one after another.
+        		 */
+        		int neighborRadius=0;
+        		if (filterByForeground){
+        			double maxDisparity=Math.max(Math.abs(disparityMax),Math.abs(disaprityMin));
+        			double maxShift=0.0;
+        			for (int nImg=0;nImg<numImages;nImg++) for (int sImg=0;sImg<numImages;sImg++) for (int dir=0;dir<2;dir++){
+        				maxShift=Math.max(maxShift,maxDisparity*Math.abs(this.disparityScales[sImg][dir]-this.disparityScales[nImg][dir]));
+        			}
+        			neighborRadius=((int) Math.ceil(maxShift/this.overlapStep))+1; // getNonOccluded() reads 2x2 tiles around the shifted center
+        		}
 				final int debugTile=debugRow*tilesX+debugColumn;
-				//TODO: define here		    				
-//				final double [] window=new double [4*this.overlapStep*this.overlapStep];
-//    			window[0]=Double.NaN;
-//				final double [] refineWindow=new double [refineTilePeriod*refineTilePeriod*4];
-//				refineWindow[0]=Double.NaN;
-				final int size=2*this.overlapStep;
-		   		for (int ithread = 0; ithread < threads.length; ithread++) {
-		   			threads[ithread] = new Thread() {
-		   				public void run() {
-		    				DoubleFHT doubleFHT = new DoubleFHT();
-		    				final double [] window=new double [size*size];
-		        			window[0]=Double.NaN;
-		        			final double [] subTileWindow=new double [refineTilePeriod*refineTilePeriod*4];
-		        			subTileWindow[0]=Double.NaN;
-		    				DoubleFHT subTileFHT= new DoubleFHT();
-		   					for (int tile=tileIndexAtomic.getAndIncrement(); tile<tiles;tile=tileIndexAtomic.getAndIncrement()){
+        		final Thread[] threads = newThreadArray(threadsMax);
+        		// per-thread scratch data, created at first use by the thread and reused for all its tiles
+        		final DisparityWorkspace [] workspaces=new DisparityWorkspace[threads.length];
+		   		if (showProgress) IJ.showStatus("planeLikely for "+numImages+" images ...");
+		   		if (debugLevel>1) System.out.println("planeLikely(): "+numImages+" passes, neighbor radius="+neighborRadius+" tiles");
+		   		(new TileGraphScheduler(zMapWOI,numImages,neighborRadius)).run(
+		   				new TileGraphScheduler.TileTask(){
+		   					public void processTile(int tileX, int tileY, int nImg, int threadIndex){
+		   						if (workspaces[threadIndex]==null){
+		   							workspaces[threadIndex]=new DisparityWorkspace(
+		   									numImages-1,
+		   									refineTilePeriod,
+		   									zMapVarMask,
+		   									zMapVarWeights,
+		   									zMapCorrMask,
+		   									zMapCorrWeights);
+		   						}
+		   						int tile=(tileY-zMapWOI.y)*tilesX+(tileX-zMapWOI.x);
 		   						boolean debugThis= (debugLevel>=debugThreshold) && (tile==debugTile);
 		   						int thisDebugLevel=debugLevel+(debugThis?2:0);
+		   						double tileDisparityMax=disparityMax;
+		   						double tileDisaprityMin=disaprityMin;
+		   						if ((coarseDisparity[nImg]!=null) && !Double.isNaN(coarseDisparity[nImg][tile])){ // NaN - no texture, keep full range
+		   							tileDisparityMax=Math.min(coarseDisparity[nImg][tile]+pyramidWindow,disparityMax);
+		   							tileDisaprityMin=Math.max(coarseDisparity[nImg][tile]-pyramidWindow,disaprityMin);
+		   						}
 		   						planeLikelyTile (
-		   								zMapWOI.x+tile%tilesX, //int tileX,
-		   								zMapWOI.y+tile/tilesX, //int tileY,
-		   								zMapFinal,
+		   			    				tileX,
+		   			    				tileY,
+		   			    				zMapFinal,
 		   			    				nImg,
-		   			    				sImg, // list of second images
+		   			    				sImgs[nImg], // list of second images
 		   			    				imageData, // [img]{Alpha, Y,Cb,Cr, Ext}. Alpha may be null - will handle later?
 		   			    				imageFullWidth,
 		   			    				blurVarianceSigma,
@@ -7700,13 +7866,10 @@ public class PixelMapping {
 		   			    				zMapCorrThresholds,
 		   			    				zMapCorrThresholdsRel,
 		   			    				zMapCorrWeights,
-		   			    				window,
-		   			    				doubleFHT,
-		   			    				subTileWindow,
-		   			    				subTileFHT,
+		   			    				workspaces[threadIndex],
 		   			    				combineMode, // different image pairs - 0 
-		   			    				disparityMax,
-		   			    				disaprityMin,
+		   			    				tileDisparityMax,
+		   			    				tileDisaprityMin,
 		   			    				minAbsolute, // or NaN - will use enabled/disabled state of the tile
 		   			    				minRelative,
 		   			    				filterByForeground, // apply known certain masks
@@ -7721,25 +7884,307 @@ public class PixelMapping {
 		   			    				threadsMax,
 		   			    				showProgress,
 		   			    				thisDebugLevel);
-		   						if (showProgress){
-		   							final int finalTile=tile;
-		   							SwingUtilities.invokeLater(new Runnable() {
-		   								public void run() {
-		   									IJ.showProgress(finalTile,tiles);
-		   								}
-		   							});
-		   						}
+		   						// likely/unlikely of a tile are not read by the other images tiles, so they can go right after its pass
+		   						if (releasePlaneData) zMapFinal[nImg][tileY][tileX].releasePlaneData();
 		   					}
-		   				}
-		   			};
-		   		}
-		   		startAndJoin(threads);
-		   		IJ.showProgress(1.0);
+		   				},
+		   				threads,
+		   				showProgress,
+		   				debugLevel);
+    		}
+
+
+        	/**
+        	 * Y (and alpha) of the images downsampled 2x per level, level 0 is the original data
+        	 */
+        	public class DisparityPyramid{
+        		public int levels;
+        		public int [] width;
+        		public int [] height;
+        		public double [][][] y;     // [level][nImg][pixel]
+        		public double [][][] alpha; // [level][nImg][pixel], null if image has no alpha
+        		public DisparityPyramid(
+        				double [][][] imageData, // [img]{Alpha, Y,Cb,Cr, Ext}. Alpha may be null
+        				int imageFullWidth,
+        				int levels){
+        			this.levels=levels;
+        			this.width= new int [levels+1];
+        			this.height=new int [levels+1];
+        			this.y=     new double [levels+1][imageData.length][];
+        			this.alpha= new double [levels+1][imageData.length][];
+        			this.width[0]= imageFullWidth;
+        			this.height[0]=imageData[0][1].length/imageFullWidth;
+        			for (int nImg=0;nImg<imageData.length;nImg++){
+        				this.y[0][nImg]=    imageData[nImg][1];
+        				this.alpha[0][nImg]=imageData[nImg][0];
+        			}
+        			for (int level=1;level<=levels;level++){
+        				this.width[level]= this.width[level-1]/2;
+        				this.height[level]=this.height[level-1]/2;
+        				for (int nImg=0;nImg<imageData.length;nImg++){
+        					this.y[level][nImg]=downsample2x(this.y[level-1][nImg],this.width[level-1],this.height[level-1]);
+        					this.alpha[level][nImg]=(this.alpha[level-1][nImg]==null)?null:
+        						downsample2x(this.alpha[level-1][nImg],this.width[level-1],this.height[level-1]);
+        				}
+        			}
+        		}
+        		/**
+        		 * Downsample data 2x by averaging 2x2 pixel squares
+        		 * @param data pixels in scanline order
+        		 * @param width data width
+        		 * @param height data height
+        		 * @return (width/2)*(height/2) array
+        		 */
+        		private double [] downsample2x(double [] data, int width, int height){
+        			int halfWidth=width/2;
+        			int halfHeight=height/2;
+        			double [] result=new double [halfWidth*halfHeight];
+        			for (int y=0;y<halfHeight;y++){
+        				int index=2*y*width;
+        				for (int x=0;x<halfWidth;x++){
+        					result[y*halfWidth+x]=0.25*(data[index]+data[index+1]+data[index+width]+data[index+width+1]);
+        					index+=2;
+        				}
+        			}
+        			return result;
+        		}
+        	}
+
+        	/**
+        	 * Coarse-to-fine estimation of the zMap tile disparities of image nImg for the current WOI. Full disparity range is
+        	 * searched on the coarsest pyramid level with a step of one coarse pixel, each finer level (down to 2x) only
+        	 * searches around the previous estimate. Match is the zero-mean normalized correlation of Y, averaged over (nImg, sImg) pairs
+        	 * @param nImg reference image number (zMap tiles are in this image coordinates)
+        	 * @param sImg list of second images
+        	 * @param pyramid downsampled image data
+        	 * @param disparityMin lowest disparity to search (pixels)
+        	 * @param disparityMax highest disparity to search (pixels)
+        	 * @return per-tile disparity, [(tileY-zMapWOI.y)*zMapWOI.width+(tileX-zMapWOI.x)], NaN if undefined (no texture)
+        	 */
+        	public double [] estimateCoarseDisparity(
+        			final int nImg,
+        			final int [] sImg,
+        			final DisparityPyramid pyramid,
+        			final double disparityMin,
+        			final double disparityMax,
+        			final int threadsMax,
+        			final boolean showProgress,
+        			final int debugLevel){
+        		final Rectangle zMapWOI=this.zMapWOI;
+        		final int tilesX=this.zMapWOI.width;
+        		final int tiles=this.zMapWOI.width*this.zMapWOI.height;
+        		double maxScale=0.0;
+        		for (int sIndex=0;sIndex<sImg.length;sIndex++){
+        			double dX=this.disparityScales[sImg[sIndex]][0]-this.disparityScales[nImg][0];
+        			double dY=this.disparityScales[sImg[sIndex]][1]-this.disparityScales[nImg][1];
+        			double s=Math.sqrt(dX*dX+dY*dY);
+        			if (s>maxScale) maxScale=s;
+        		}
+        		if (maxScale==0.0) maxScale=1.0;
+        		final double finalMaxScale=maxScale;
+        		final double [] coarseDisparity=new double [tiles];
+        		final AtomicInteger numDefined=new AtomicInteger(0);
+        		final Thread[] threads = newThreadArray(threadsMax);
+        		final AtomicInteger tileIndexAtomic     = new AtomicInteger(0);
+        		long startTime=System.nanoTime();
+        		if (showProgress) IJ.showStatus("Coarse disparity estimation for image "+nImg+" ...");
+        		for (int ithread = 0; ithread < threads.length; ithread++) {
+        			threads[ithread] = new Thread() {
+        				public void run() {
+        					for (int tile=tileIndexAtomic.getAndIncrement(); tile<tiles;tile=tileIndexAtomic.getAndIncrement()){
+        						double cx=(zMapWOI.x+tile%tilesX)*overlapStep+overlapStep/2; // tile center in full resolution image pixels
+        						double cy=(zMapWOI.y+tile/tilesX)*overlapStep+overlapStep/2;
+        						double estimated=Double.NaN;
+        						double searchMin=disparityMin;
+        						double searchMax=disparityMax;
+        						for (int level=pyramid.levels;level>0;level--){
+        							int scale=1<<level;
+        							double step=scale/finalMaxScale; // disparity change that shifts the farthest image by one pixel of this level
+        							double bestMatch=Double.NaN;
+        							double bestDisparity=Double.NaN;
+        							for (double disparity=searchMin;disparity<=searchMax+0.5*step;disparity+=step){
+        								double d=Math.min(disparity,searchMax);
+        								double match=pyramidTileMatch(pyramid,level,nImg,sImg,cx,cy,d);
+        								if (!Double.isNaN(match) && (Double.isNaN(bestMatch) || (match>bestMatch))){
+        									bestMatch=match;
+        									bestDisparity=d;
+        								}
+        							}
+        							if (Double.isNaN(bestDisparity)) break; // keep the previous level estimate
+        							estimated=bestDisparity;
+        							if (level==1){ // finest level - parabolic interpolation between the neighbor steps
+        								double matchMinus=pyramidTileMatch(pyramid,level,nImg,sImg,cx,cy,bestDisparity-step);
+        								double matchPlus= pyramidTileMatch(pyramid,level,nImg,sImg,cx,cy,bestDisparity+step);
+        								double a=matchMinus+matchPlus-2*bestMatch;
+        								if (!Double.isNaN(a) && (a<0.0)) {
+        									double offset=0.5*(matchMinus-matchPlus)/a;
+        									if (Math.abs(offset)<=0.5) estimated=Math.min(Math.max(bestDisparity+offset*step,disparityMin),disparityMax);
+        								}
+        							}
+        							searchMin=Math.max(estimated-step,disparityMin);
+        							searchMax=Math.min(estimated+step,disparityMax);
+        						}
+        						if (!Double.isNaN(estimated)) numDefined.getAndIncrement();
+        						coarseDisparity[tile]=estimated;
+        					}
+        				}
+        			};
+        		}
+        		startAndJoin(threads);
+        		if (debugLevel>0){
+        			double seconds=1E-9*(System.nanoTime()-startTime);
+        			System.out.println("estimateCoarseDisparity(): image "+nImg+", "+pyramid.levels+" levels, "+numDefined.get()+" of "+tiles+
+        					" tiles defined in "+IJ.d2s(seconds,3)+" sec, "+IJ.d2s((seconds>0)?(tiles/seconds):0.0,1)+" tiles/sec");
+        		}
+        		return coarseDisparity;
         	}
 
+        	/**
+        	 * Zero-mean normalized correlation of the tile (2*overlapStep square) between nImg and each of sImg at the specified disparity
+        	 * @param pyramid downsampled image data
+        	 * @param level pyramid level (scale 2^level)
+        	 * @param nImg reference image number
+        	 * @param sImg list of second images
+        	 * @param cx tile center X in full resolution pixels of the reference image
+        	 * @param cy tile center Y in full resolution pixels of the reference image
+        	 * @param disparity disparity in full resolution pixels
+        	 * @return correlation averaged over pairs, NaN if no pair has enough (textured) pixels
+        	 */
+        	private double pyramidTileMatch(
+        			DisparityPyramid pyramid,
+        			int level,
+        			int nImg,
+        			int [] sImg,
+        			double cx,
+        			double cy,
+        			double disparity){
+        		int scale=1<<level;
+        		int width= pyramid.width[level];
+        		int height=pyramid.height[level];
+        		int halfSize=Math.max(this.overlapStep/scale,2);
+        		int minSamples=halfSize*halfSize; // at least a quarter of the window
+        		double sumMatch=0.0;
+        		int numMatch=0;
+        		int [] imgs=new int [2];
+        		double [][] xy0=new double[2][2];
+        		double [] vals=new double[2];
+        		imgs[0]=nImg;
+        		for (int sIndex=0;sIndex<sImg.length;sIndex++){
+        			imgs[1]=sImg[sIndex];
+        			for (int n=0;n<2;n++){ // top left corner of the window, level pixels
+        				xy0[n][0]=(cx+(this.disparityScales[imgs[n]][0]-this.disparityScales[nImg][0])*disparity)/scale-0.5-halfSize;
+        				xy0[n][1]=(cy+(this.disparityScales[imgs[n]][1]-this.disparityScales[nImg][1])*disparity)/scale-0.5-halfSize;
+        			}
+        			double s1=0.0,s2=0.0,s11=0.0,s22=0.0,s12=0.0;
+        			int num=0;
+        			for (int v=0;v<2*halfSize;v++) for (int u=0;u<2*halfSize;u++){
+        				boolean valid=true;
+        				for (int n=0;(n<2) && valid;n++){
+        					double x=xy0[n][0]+u, y=xy0[n][1]+v;
+        					int ix=(int) Math.floor(x), iy=(int) Math.floor(y);
+        					if ((ix<0) || (iy<0) || (ix>=(width-1)) || (iy>=(height-1))) {
+        						valid=false;
+        						break;
+        					}
+        					double dx=x-ix, dy=y-iy;
+        					int index=iy*width+ix;
+        					double [] a=pyramid.alpha[level][imgs[n]];
+        					if ((a!=null) && ((a[index]<=0.0) || (a[index+1]<=0.0) || (a[index+width]<=0.0) || (a[index+width+1]<=0.0))){
+        						valid=false;
+        						break;
+        					}
+        					double [] d=pyramid.y[level][imgs[n]];
+        					vals[n]=(1-dy)*((1-dx)*d[index]+dx*d[index+1])+dy*((1-dx)*d[index+width]+dx*d[index+width+1]);
+        				}
+        				if (!valid) continue;
+        				s1+=vals[0];
+        				s2+=vals[1];
+        				s11+=vals[0]*vals[0];
+        				s22+=vals[1]*vals[1];
+        				s12+=vals[0]*vals[1];
+        				num++;
+        			}
+        			if (num<minSamples) continue;
+        			double var1=s11-s1*s1/num;
+        			double var2=s22-s2*s2/num;
+        			if ((var1<=0.0) || (var2<=0.0)) continue; // no texture
+        			sumMatch+=(s12-s1*s2/num)/Math.sqrt(var1*var2);
+        			numMatch++;
+        		}
+        		return (numMatch>0)?(sumMatch/numMatch):Double.NaN;
+        	}
+
+
        		
        		
        		
+       		/**
+       		 * Scratch data for planeLikelyTile(), one instance per thread, reused for all the tiles processed by that thread
+       		 */
+       		private class DisparityWorkspace{
+       			public int size;      // 2*overlapStep
+       			public int length;    // size*size
+       			public double [] zeros;
+       			public double [] window;        // Double.isNaN(window[0]) triggers initialization
+       			public double [] subTileWindow; // Double.isNaN(subTileWindow[0]) triggers initialization
+       			public DoubleFHT doubleFHT;
+       			public DoubleFHT subTileFHT;
+       			public int [] dirs1;
+       			public double [][][][] slices;  // [sIndex][][][]
+       			public double [] normVarWeights;
+       			public double [] normCorrWeights;
+       			public double [] corrTile;
+       			public double [] linearMatchWeightNorm;
+       			private double [][][] pairs=null;    // [chn]{first,second}[pixel], allocated when used
+       			private double [][][] variance=null; // [chn]{first,second}[pixel], allocated when used
+       			private int [] planeIndex=null;      // [paddedLength]
+
+       			public DisparityWorkspace(
+       					int numSecond,        // number of second images (sImgSet.length)
+       					int refineTilePeriod, // sub-tile window is 2*refineTilePeriod square
+       					int zMapVarMask,
+       					double [] zMapVarWeights,
+       					int zMapCorrMask,
+       					double [] zMapCorrWeights){
+       				this.size=overlapStep*2;
+       				this.length=this.size*this.size;
+       				this.zeros=new double [this.length];
+       				for (int i=0;i<this.length;i++) this.zeros[i]=0.0;
+       				this.window=new double [this.length];
+       				this.window[0]=Double.NaN;
+       				this.subTileWindow=new double [refineTilePeriod*refineTilePeriod*4];
+       				this.subTileWindow[0]=Double.NaN;
+       				this.doubleFHT= new DoubleFHT();
+       				this.subTileFHT=new DoubleFHT();
+       				int [] dirs1={1,this.size+1,this.size,this.size-1,-1,-this.size-1,-this.size,-this.size+1,0};
+       				this.dirs1=dirs1;
+       				this.slices=new double [numSecond][][][];
+       				this.normVarWeights= normalizeWeights(zMapVarMask,zMapVarWeights);
+       				this.normCorrWeights=normalizeWeights(zMapCorrMask,zMapCorrWeights);
+       				this.corrTile=new double [this.length];
+       				this.linearMatchWeightNorm=new double [this.length];
+       			}
+       			public double [][] getPair(int chn){
+       				if ((this.pairs==null) || (this.pairs.length<=chn)) this.pairs=grow(this.pairs,chn+1);
+       				if (this.pairs[chn]==null) this.pairs[chn]=new double [2][this.length];
+       				return this.pairs[chn];
+       			}
+       			public double [][] getVariance(int chn){
+       				if ((this.variance==null) || (this.variance.length<=chn)) this.variance=grow(this.variance,chn+1);
+       				if (this.variance[chn]==null) this.variance[chn]=new double [2][this.length];
+       				return this.variance[chn];
+       			}
+       			public int [] getPlaneIndex(int paddedLength){
+       				if ((this.planeIndex==null) || (this.planeIndex.length!=paddedLength)) this.planeIndex=new int [paddedLength];
+       				return this.planeIndex;
+       			}
+       			private double [][][] grow(double [][][] data, int newLength){
+       				double [][][] result=new double [newLength][][];
+       				for (int i=0;i<newLength;i++) result[i]=((data!=null) && (i<data.length))?data[i]:null;
+       				return result;
+       			}
+       		}
+
        		private void planeLikelyTile ( // false if nothing left in the current foreground, may repeat
     				int tileX,
     				int tileY,
@@ -7766,10 +8211,7 @@ public class PixelMapping {
     				double [] zMapCorrThresholds,
     				double [] zMapCorrThresholdsRel,
     				double [] zMapCorrWeights,
-    				double [] window,
-    				DoubleFHT doubleFHT,
-    				double [] subTileWindow,
-    				DoubleFHT subTileFHT,
+    				DisparityWorkspace workspace, // per-thread scratch data, reused for all tiles
     				// new arguments
     				int combineMode, // different image pairs - 0 
     				double disparityMax,
@@ -7791,20 +8233,23 @@ public class PixelMapping {
     				int debugLevel){
        			// TODO: also calculate "unlikely" - high autocorrelation, not occluded, low inter-correlation
        			
-    			double [] normVarWeights= normalizeWeights(zMapVarMask,zMapVarWeights);
-    			double [] normCorrWeights=normalizeWeights(zMapCorrMask,zMapCorrWeights);
+    			double [] normVarWeights= workspace.normVarWeights;
+    			double [] normCorrWeights=workspace.normCorrWeights;
 //                int auxChannelNumber=3;
     			ZTile zTile=allZMap[nImg][tileY][tileX];
     			int tileOverlap=zTile.getOverlap();
     			int paddedSize=zTile.getPaddedSize();
     			int paddedLength=zTile.getPaddedLength();
-    			int size=this.overlapStep*2;
-    			int length=size*size;
-				double[] zeros=new double [length];
-				for (int i=0;i<length;i++) zeros[i]=0.0;
+    			int size=workspace.size;
+    			int length=workspace.length;
+				double[] zeros=workspace.zeros;
     			int margin=size/4-tileOverlap;
-    			double [][][][] slices=new double [sImgSet.length][][][];
-    			int [] dirs1={1,size+1,size,size-1,-1,-size-1,-size,-size+1,0};
+    			double [][][][] slices=workspace.slices;
+    			int [] dirs1=workspace.dirs1;
+    			double [] window=workspace.window;
+    			DoubleFHT doubleFHT=workspace.doubleFHT;
+    			double [] subTileWindow=workspace.subTileWindow;
+    			DoubleFHT subTileFHT=workspace.subTileFHT;
 //    			double [][][][] variance=new double [sImgSet.length][][][]; // [sIndex][pair 0/1][chn][pixel
 //    			int length=4*this.overlapStep*this.overlapStep; // initialize it to a correct value right here?
     			int [] borderMask=zTile.getBorderMask();
@@ -8004,9 +8449,9 @@ public class PixelMapping {
         					for (int chn=0;chn<(slices[sIndex].length-1);chn++) if ((zMapCorrMask& (1<<chn))!=0){ // should work with all channels disabled
         						//    						int length=slices[sIndex][chn+1][0].length;
         						//    						size=(int) Math.sqrt(length)
-        						pairs[chn]=new double[2][length]; //slices[sIndex][chn+1]; // skip alpha
+        						pairs[chn]=workspace.getPair(chn); //slices[sIndex][chn+1]; // skip alpha
         						for (int n=0;n<2;n++) {
-        							pairs[chn][n]=slices[sIndex][chn+1][n].clone();
+        							System.arraycopy(slices[sIndex][chn+1][n], 0, pairs[chn][n], 0, length);
         							//high-pass each image in the pair (to reduce mask influence
         							if (corrHighPassSigma>0.0){
         								double [] loPass=pairs[chn][n].clone();
@@ -8089,7 +8534,7 @@ public class PixelMapping {
         		        		int topLeft=(size+1)*(size/4-tileSize/4);
         		        		int numTilesRow=size/(2*tileStep); // 4
                 				// accumulate result
-        		        		double [] corrTile=new double [length];
+        		        		double [] corrTile=workspace.corrTile;
         		        		for (int i=0;i<corrTile.length;i++) corrTile[i]=0.0;
         		        		for (int subTileY=0;subTileY<numTilesRow;subTileY++) for (int subTileX=0;subTileX<numTilesRow;subTileX++) {
         		        			int index=topLeft+ tileStep*(subTileY*size+ subTileX);
@@ -8120,7 +8565,7 @@ public class PixelMapping {
         		        			sumWindow+=window[i];
         		        		}
         		        		// Normalize for Bayesian
-        		        		double [] linearMatchWeightNorm=new double[length];
+        		        		double [] linearMatchWeightNorm=workspace.linearMatchWeightNorm;
         		        		double scaleLMW=sumWindow/sumLMW;
         		        		for (int i=0;i<length;i++) linearMatchWeightNorm[i]=scaleLMW*linearMatchWeight[i]-window[i]; 
         		        		
@@ -8145,7 +8590,7 @@ public class PixelMapping {
 
             					for (int chn=0;chn<slices[sIndex].length-1;chn++){
             						if ((zMapVarMask& (1<<chn))!=0) {
-                						variance[chn]=new double[2][length];
+                						variance[chn]=workspace.getVariance(chn); // only pixels with linearMatchWeightNorm[i]!=0.0 are used
             							staging[chn]=this.photometric.initStaging(); // combined for all channels
             							double sumWV2=0.0;
             							double sumW=0.0;
@@ -8372,7 +8817,7 @@ public class PixelMapping {
 				float [] aux0=new float[paddedLength];
 //				float [] aux1=new float[paddedLength];
        		
-        		int [] planeIndex=new int[paddedLength];
+        		int [] planeIndex=workspace.getPlaneIndex(paddedLength);
         		for (int i=0;i<paddedLength;i++)planeIndex[i]=-1;
         		for (int plane=0;plane<zTile.getNumberOfPlanes();plane++) if (planeStrengthCombo[plane]!=null) {
         			int numUsed_dbg=0;
@@ -9457,6 +9902,14 @@ public class PixelMapping {
         			return this.auxData[n];
         		}
 
+        		/**
+        		 * Free per-plane data that is not needed after the tile pass (likely/unlikely), enabled/certain
+        		 * pixels are kept as they are still read by the other images and by getZmap()
+        		 */
+        		public void releasePlaneData(){
+        			this.likely=null;
+        			this.unlikely=null;
+        		}
         		public void initLikely(){
         			this.likely=new float[this.numPlanes][];
         			for (int i=0;i<this.numPlanes;i++) this.likely[i]=null;
@@ -11031,6 +11484,19 @@ public class PixelMapping {
     			}
     		}
     		double [][] corr=new double[numLayers*pairs.length][length];
+    		DoubleFHT doubleFHT=new DoubleFHT();
+    		// window and transform each image layer once, reuse for all the pairs it participates in
+    		double [][] windowed=(debugLevel>2)?(new double[numSensors*numLayers][]):null; // only to show the windowed tiles
+    		double [][] spectrum=new double[numSensors*numLayers][];
+    		for (int nPair=0;nPair<pairs.length;nPair++) for (int n=0;n<2;n++) {
+    			int nImg=pairs[nPair][n];
+    			for (int l=1;l<numLayers;l++) if (spectrum[numLayers*nImg+l]==null){
+    				double [] windowedLayer=selection[numLayers*nImg+l].clone();
+    				normalizeAndWindow(windowedLayer, window[nImg],true);
+    				if (windowed!=null) windowed[numLayers*nImg+l]=windowedLayer.clone();
+    				spectrum[numLayers*nImg+l]=doubleFHT.directSpectrum(windowedLayer); // transformed in place
+    			}
+    		}
     		for (int nPair=0;nPair<pairs.length;nPair++) {
     			int iFirst=pairs[nPair][0];
     			int iSecond=pairs[nPair][1];
@@ -11040,11 +11506,9 @@ public class PixelMapping {
     				int layerSecond=numLayers*iSecond+l;
     				int layerResult0=numLayers*nPair;
     				int layerResult=layerResult0+l;
-    				double [] first= selection[layerFirst].clone();
-    				double [] second=selection[layerSecond].clone();
-    				normalizeAndWindow(first, window[iFirst],true);
-    				normalizeAndWindow(second,window[iSecond],true);
     				if ((debugLevel>2) && (l==1)){
+    					double [] first= windowed[layerFirst];
+    					double [] second=windowed[layerSecond];
     					double [][] firstSecond={first,second};
     					String [] firstSecondTitles={"first","second"};
     					(new showDoubleFloatArrays()).showArrays(
@@ -11056,10 +11520,9 @@ public class PixelMapping {
     							"windowed-Y"+iFirst+"-:"+iSecond,
     							firstSecondTitles);
     				}
-    				// TODO: use common (per-thread) DoubleFHT instance to use caching of sin,cos, filter tables   			
-    				corr[layerResult]=(new DoubleFHT()).correlate (
-    						first,
-    						second,
+    				corr[layerResult]=doubleFHT.correlateSpectra (
+    						spectrum[layerFirst],
+    						spectrum[layerSecond],
     						correlationHighPassSigma,
     						correlationLowPassSigma,
     						phaseCorrelationFraction);
@@ -15431,7 +15894,7 @@ public class PixelMapping {
     			return null;
     		}
 //    		boolean second=(channel ==this.channel[1]);
-    		final float [][] map={this.map[index*3],this.map[index*3+1],this.map[index*3+2]};
+    		final float [][] map={getMapLayer(index*3),getMapLayer(index*3+1),getMapLayer(index*3+2)};
     		final int [] imagePixels=(int []) imp.getProcessor().getPixels();
     		final int mapWidth= this.mapWidth;
     		final int mapHeight=this.mapHeight;
@@ -15778,7 +16241,9 @@ public class PixelMapping {
 	    	public double pixelStep;
 	    	public double minAlpha=0.1; // ignore pixels with mask below this value
 	    	public int    numLayers;
-	    	public float [][] map; // saving memory : first index - pixel #, empty -  null, otherwise {x,y,alpha, ...)
+	    	// full map is stored as runs of defined pixels in each latitude row, with per-row flat layers (x,y,alpha, ...)
+	    	public int   [][]   rowRuns=null;   // [iLat]{start0,end0,start1,end1,...} longitude indices of defined pixels (end exclusive), null - no pixels in the row
+	    	public float [][][] rowLayers=null; // [iLat][layer][n] - layer values of the defined pixels, runs concatenated in rowRuns order
 	    	public float [][] partialMap; //
 	    	public Rectangle mapWOI=null;  // selection of the partialMap in the overall map. May
 	    	
@@ -15821,7 +16286,71 @@ public class PixelMapping {
 		    	this.y0=y0;
 		    	this.pixelStep=pixelStep;
 		    	this.numLayers=numLayers;
-		    	this.map=new float[this.pixelsVertical*this.pixelsHorizontal][];
+		    	this.rowRuns=  new int  [this.pixelsVertical][];
+		    	this.rowLayers=new float[this.pixelsVertical][][];
+		    }
+		    
+		    public boolean hasFullMap(){
+		    	return this.rowRuns!=null;
+		    }
+		    
+		    public void deleteFullMap(){
+		    	this.rowRuns=null;
+		    	this.rowLayers=null;
+		    }
+		    /**
+		     * Store one latitude row of the full map, keeping only the defined pixels. Rows are independent,
+		     * so different threads may set different rows concurrently.
+		     * @param iLat latitude row index
+		     * @param defined per-longitude flags of the defined pixels
+		     * @param rowBuffer [layer][iLong] values for the whole row (only defined pixels are used)
+		     * @return number of defined pixels in the row
+		     */
+		    public int setRow(int iLat, boolean [] defined, float [][] rowBuffer){
+		    	int numRuns=0;
+		    	int numPix=0;
+		    	for (int iLong=0;iLong<this.pixelsHorizontal;iLong++) if (defined[iLong]){
+		    		numPix++;
+		    		if ((iLong==0) || !defined[iLong-1]) numRuns++;
+		    	}
+		    	if (numPix==0){
+		    		this.rowRuns[iLat]=  null;
+		    		this.rowLayers[iLat]=null;
+		    		return 0;
+		    	}
+		    	int [] runs=new int [2*numRuns];
+		    	float [][] layers=new float [rowBuffer.length][numPix];
+		    	int iRun=0;
+		    	int index=0;
+		    	for (int iLong=0;iLong<this.pixelsHorizontal;iLong++) if (defined[iLong]){
+		    		if ((iLong==0) || !defined[iLong-1]) runs[iRun++]=iLong;
+		    		for (int n=0;n<layers.length;n++) layers[n][index]=rowBuffer[n][iLong];
+		    		index++;
+		    		if ((iLong==(this.pixelsHorizontal-1)) || !defined[iLong+1]) runs[iRun++]=iLong+1;
+		    	}
+		    	this.rowLayers[iLat]=layers;
+		    	this.rowRuns[iLat]=  runs;
+		    	return numPix;
+		    }
+		    /**
+		     * Expand one layer of the full map to a dense pixelsHorizontal*pixelsVertical array (for display)
+		     * @param n layer number (0 - x, 1 - y, 2 - alpha, ...)
+		     * @return dense layer, undefined pixels are 0
+		     */
+		    public float [] getFullMapLayer(int n){
+		    	if (this.rowRuns==null) return null;
+		    	float [] layer=new float [this.pixelsVertical*this.pixelsHorizontal];
+		    	for (int iLat=0;iLat<this.pixelsVertical;iLat++) if (this.rowRuns[iLat]!=null){
+		    		int [] runs=this.rowRuns[iLat];
+		    		float [] src=this.rowLayers[iLat][n];
+		    		int index=0;
+		    		for (int iRun=0;iRun<runs.length;iRun+=2){
+		    			int len=runs[iRun+1]-runs[iRun];
+		    			System.arraycopy(src, index, layer, iLat*this.pixelsHorizontal+runs[iRun], len);
+		    			index+=len;
+		    		}
+		    	}
+		    	return layer;
 		    }
 		    
 		    
@@ -15868,14 +16397,12 @@ public class PixelMapping {
 	        }
 	
 	        public void setMapFromImageStack(String path){
-	        	Opener opener=new Opener();
-	        	ImagePlus imp=opener.openImage("", path);
+	        	ImagePlus imp=openMapFile(path,debugLevel);
 	        	if (imp==null) {
 	        		String msg="Failed to read map file "+path;
 	        		IJ.showMessage("Error",msg);
 	        		throw new IllegalArgumentException (msg);
 	        	}
-	        	(new JP46_Reader_camera(false)).decodeProperiesFromInfo(imp);
 	        	this.mapWOI=new Rectangle();
 	        	this.mapWOI.width=imp.getWidth();
 	        	this.mapWOI.height=imp.getHeight();
@@ -15918,13 +16445,10 @@ public class PixelMapping {
 		    	for (int i=0;i<this.pixelsHorizontal;i++) histogram[i]=0;
 		    	int minILat=this.pixelsVertical;
 		    	int maxILat=0;
-		    	int index=0;
-		    	int numLayers=-1;
-		    	for (int iLat=0;iLat<pixelsVertical;iLat++) for (int iLong=0;iLong<pixelsHorizontal;iLong++) if (this.map[index++]!=null){
-		    		if (numLayers<0) {
-		    			numLayers=this.map[index-1].length;
-		    		}
-		    		histogram[iLong]++;
+		    	int numLayers=this.numLayers;
+		    	for (int iLat=0;iLat<pixelsVertical;iLat++) if (this.rowRuns[iLat]!=null){
+		    		int [] runs=this.rowRuns[iLat];
+		    		for (int iRun=0;iRun<runs.length;iRun+=2) for (int iLong=runs[iRun];iLong<runs[iRun+1];iLong++) histogram[iLong]++;
 		    		if (minILat>iLat) minILat=iLat;  
 		    		if (maxILat<iLat) maxILat=iLat;  
 		    	}
@@ -15946,19 +16470,24 @@ public class PixelMapping {
 		    		if (histogram[maxILong]<histogram[minILong1]) minILong=minILong1; //>=0
 		    	}
 		    	this.mapWOI=new Rectangle(minILong,minILat,width,maxILat-minILat+1);
-		    	this.partialMap=new float [numLayers][this.mapWOI.width*this.mapWOI.height];
-		    	int indexDst=0;
+		    	this.partialMap=new float [numLayers][this.mapWOI.width*this.mapWOI.height]; // undefined pixels stay 0
 		    	int numPix=0;
 		    	for (int iLat=0;iLat<this.mapWOI.height;iLat++) {
 		    		int iLatSrc=iLat+this.mapWOI.y;
-		    		for (int iLong=0;iLong<this.mapWOI.width;iLong++){
-		    			int iLongSrc=(iLong+this.mapWOI.x)%this.pixelsHorizontal;
-		    			int indexSrc=iLatSrc*this.pixelsHorizontal+iLongSrc;
-		    			if (this.map[indexSrc]!=null){
-		    				for (int n=0;n<numLayers;n++) this.partialMap[n][indexDst]=this.map[indexSrc][n];
-		    				numPix++;
-		    			}	else                          for (int n=0;n<numLayers;n++) this.partialMap[n][indexDst]=0;
-		    			indexDst++;
+		    		int [] runs=this.rowRuns[iLatSrc];
+		    		if (runs==null) continue;
+		    		float [][] layers=this.rowLayers[iLatSrc];
+		    		int indexSrc=0;
+		    		for (int iRun=0;iRun<runs.length;iRun+=2){
+		    			for (int iLongSrc=runs[iRun];iLongSrc<runs[iRun+1];iLongSrc++){
+		    				int iLong=(iLongSrc-this.mapWOI.x+this.pixelsHorizontal)%this.pixelsHorizontal;
+		    				if (iLong<this.mapWOI.width){
+		    					int indexDst=iLat*this.mapWOI.width+iLong;
+		    					for (int n=0;n<numLayers;n++) this.partialMap[n][indexDst]=layers[n][indexSrc];
+		    					numPix++;
+		    				}
+		    				indexSrc++;
+		    			}
 		    		}
 		    	}
 		    	return numPix;
@@ -16311,11 +16840,12 @@ public class PixelMapping {
 	    	for (int ithread = 0; ithread < threads.length; ithread++) {
 	    		threads[ithread] = new Thread() {
 	    			public void run() {
+	    				boolean [] defined=  new boolean [equirectangularMap.pixelsHorizontal];
+	    				float [][] rowBuffer=new float [equirectangularMap.numLayers][equirectangularMap.pixelsHorizontal];
 	    				for (int iLat=ipLatAtomic.getAndIncrement(); iLat<equirectangularMap.pixelsVertical;iLat=ipLatAtomic.getAndIncrement()){
 
 	    					double latitude=equirectangularMap.latitudeTop-equirectangularMap.degreesPerPixel*iLat;
 	    					for (int iLong=0;iLong<equirectangularMap.pixelsHorizontal;iLong++){
-	    						int outIndex=iLat*equirectangularMap.pixelsHorizontal+iLong;
 	    						double [] pXY=null;
 	    						double longitude=equirectangularMap.longitudeLeft+equirectangularMap.degreesPerPixel*iLong;
 	    						double [][] xyz={ // unity vector in the direction
@@ -16389,15 +16919,15 @@ public class PixelMapping {
 	    										((corr.length>2) && (corr[2]<equirectangularMap.minAlpha))) {
 	    									pXY=null;
 	    								} else {
-	    									equirectangularMap.map[outIndex]=new float [corr.length];
-	    									for (int n=0;n<2;n++)           equirectangularMap.map[outIndex][n]=(float) pXY[n];
-	    									for (int n=2;n<corr.length;n++) equirectangularMap.map[outIndex][n]=(float) corr[n];
+	    									for (int n=0;n<2;n++)           rowBuffer[n][iLong]=(float) pXY[n];
+	    									for (int n=2;n<corr.length;n++) rowBuffer[n][iLong]=(float) corr[n];
 	    								}
 	    							}
 	    						}
-	    						if (pXY==null) equirectangularMap.map[outIndex]=null; 
+	    						defined[iLong]=(pXY!=null); 
 
 	    					}
+	    					equirectangularMap.setRow(iLat, defined, rowBuffer);
 	    					//	    		IJ.showProgress(iLat, equirectangularMap.pixelsVertical-1);
 	    					final int numFinished=ipLatDoneAtomic.getAndIncrement();
 	    					//					IJ.showProgress(progressValues[numFinished]);
@@ -16504,6 +17034,242 @@ public class PixelMapping {
 	    }
 
 	}
+	/**
+	 * Native binary map format, used as a faster alternative to the TIFF equirectangular and plane maps.
+	 * Layout (little endian): 
+	 *   0: magic "ELPHMAP1" (8 bytes)
+	 *   8: int  version
+	 *  12: int  width
+	 *  16: int  height
+	 *  20: int  number of layers
+	 *  24: long offset of the first layer (multiple of PAGE_SIZE)
+	 *  32: long layer stride in bytes (multiple of PAGE_SIZE)
+	 *  40: int  length of the properties block
+	 *  44: properties (java.util.Properties text format) - same names/values as in the TIFF map
+	 * Each layer is width*height float values starting at a page boundary.
+	 * Files are opened with FileChannel.map, so the data comes directly from the OS page cache (shared by all the
+	 * processes reading the same map). Layers are available as FloatBuffer views of the mapping (MappedStack.getLayerBuffer());
+	 * a layer is copied to a float[] only when its pixels are requested, so the layers that are not used stay in the page cache only.
+	 * Binary maps have the full name of the TIFF ones with EXTENSION appended (so maps differing only in
+	 * extension do not share one binary file), and are used automatically if they exist and are not older than the TIFF file.
+	 */
+	public static class BinaryMap{
+		public static final String EXTENSION=".fmap";
+		public static final byte [] MAGIC={'E','L','P','H','M','A','P','1'};
+		public static final int VERSION=1;
+		public static final int PAGE_SIZE=4096;
+		public static final int HEADER_SIZE=44;
+
+		public static String getBinaryPath(String path){
+			return path+EXTENSION;
+		}
+		/**
+		 * Select the binary map to use instead of the specified file
+		 * @param path path of the TIFF (or binary) map
+		 * @return path of the binary map if it exists and is up to date, null otherwise
+		 */
+		public static String selectBinaryPath(String path){
+			if (path==null) return null;
+			if (path.endsWith(EXTENSION)) return path;
+			File tiffFile=new File(path);
+			File binFile= new File(getBinaryPath(path));
+			if (!binFile.isFile()) return null;
+			if (tiffFile.isFile() && (tiffFile.lastModified()>binFile.lastModified())) return null;
+			return binFile.getPath();
+		}
+
+		public static long alignToPage(long size){
+			return ((size+PAGE_SIZE-1)/PAGE_SIZE)*PAGE_SIZE;
+		}
+		/**
+		 * Open binary map as an image stack with the same properties as the TIFF map
+		 * @param path binary map path
+		 * @return ImagePlus with float layers as slices and map properties set
+		 * @throws IOException
+		 */
+		public static ImagePlus open(String path) throws IOException{
+			RandomAccessFile raf=new RandomAccessFile(path,"r");
+			try {
+				FileChannel channel=raf.getChannel();
+				ByteBuffer header=channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(),PAGE_SIZE));
+				header.order(ByteOrder.LITTLE_ENDIAN);
+				byte [] magic=new byte[MAGIC.length];
+				header.get(magic);
+				if (!Arrays.equals(magic, MAGIC)) throw new IOException(path+" is not a binary map file");
+				int version=header.getInt();
+				if (version>VERSION) throw new IOException("Unsupported binary map version "+version+" in "+path);
+				int width=        header.getInt();
+				int height=       header.getInt();
+				int numLayers=    header.getInt();
+				long dataOffset=  header.getLong();
+				long layerStride= header.getLong();
+				int propertiesLength=header.getInt();
+				byte [] propertiesBytes=new byte[propertiesLength];
+				if ((HEADER_SIZE+propertiesLength)<=header.capacity()){
+					header.get(propertiesBytes);
+				} else {
+					ByteBuffer bb=channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, propertiesLength);
+					bb.get(propertiesBytes);
+				}
+				Properties properties=new Properties();
+				properties.load(new ByteArrayInputStream(propertiesBytes));
+				FloatBuffer [] layers=new FloatBuffer[numLayers];
+				String [] labels=new String[numLayers];
+				for (int n=0;n<numLayers;n++){ // mapping stays valid after the channel is closed
+					MappedByteBuffer mb=channel.map(FileChannel.MapMode.READ_ONLY, dataOffset+n*layerStride, 4L*width*height);
+					layers[n]=mb.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+					labels[n]=properties.getProperty("sliceLabel"+n);
+					if (labels[n]==null) labels[n]="layer"+n;
+				}
+				MappedStack stack=new MappedStack(width, height, layers, labels);
+				ImagePlus imp=new ImagePlus(new File(path).getName(), stack);
+				for (String name:properties.stringPropertyNames()) if (!name.startsWith("sliceLabel")){
+					imp.setProperty(name, properties.getProperty(name));
+				}
+				return imp;
+			} finally {
+				raf.close();
+			}
+		}
+		/**
+		 * Float stack backed by the memory-mapped layers of a binary map. Each layer is copied to the heap the first
+		 * time its pixels (or processor) are requested, getLayerBuffer() reads the mapping without copying.
+		 */
+		public static class MappedStack extends ImageStack{
+			private FloatBuffer [] layers;
+			public MappedStack(int width, int height, FloatBuffer [] layers, String [] labels){
+				super(width, height, layers.length);
+				this.layers=layers;
+				for (int n=0;n<layers.length;n++) setSliceLabel(labels[n], n+1);
+			}
+			/**
+			 * @param n slice number (1-based, as in getPixels())
+			 * @return read-only view of the mapped layer (independent position/limit)
+			 */
+			public FloatBuffer getLayerBuffer(int n){
+				return this.layers[n-1].duplicate();
+			}
+			public synchronized Object getPixels(int n){
+				Object pixels=super.getPixels(n);
+				if (pixels==null){
+					float [] layer=new float [getWidth()*getHeight()];
+					this.layers[n-1].duplicate().get(layer);
+					super.setPixels(layer, n);
+					pixels=layer;
+				}
+				return pixels;
+			}
+			public synchronized Object[] getImageArray(){
+				for (int n=1;n<=this.layers.length;n++) getPixels(n);
+				return super.getImageArray();
+			}
+			public synchronized void deleteSlice(int n){
+				getImageArray(); // slice numbers change - copy all layers first
+				super.deleteSlice(n);
+				FloatBuffer [] layers=new FloatBuffer[this.layers.length-1];
+				for (int i=0;i<layers.length;i++) layers[i]=this.layers[(i<(n-1))?i:(i+1)];
+				this.layers=layers;
+			}
+		}
+		/**
+		 * Save float image stack (with properties already decoded from the Info) as a binary map 
+		 * @param imp image stack with float slices
+		 * @param path binary map path
+		 * @throws IOException
+		 */
+		public static void save(ImagePlus imp, String path) throws IOException{
+			ImageStack stack=imp.getStack();
+			int width=imp.getWidth();
+			int height=imp.getHeight();
+			int numLayers=stack.getSize();
+			Properties properties=new Properties();
+			Properties impProperties=imp.getProperties();
+			if (impProperties!=null) for (String name:impProperties.stringPropertyNames()){
+				if (!name.equals("Info") && !name.equals("Label")) properties.setProperty(name, impProperties.getProperty(name));
+			}
+			for (int n=0;n<numLayers;n++) if (stack.getSliceLabel(n+1)!=null) properties.setProperty("sliceLabel"+n, stack.getSliceLabel(n+1));
+			ByteArrayOutputStream bos=new ByteArrayOutputStream();
+			properties.store(bos, null);
+			byte [] propertiesBytes=bos.toByteArray();
+			long dataOffset= alignToPage(HEADER_SIZE+propertiesBytes.length);
+			long layerStride=alignToPage(4L*width*height);
+			RandomAccessFile raf=new RandomAccessFile(path,"rw");
+			try {
+				raf.setLength(0);
+				FileChannel channel=raf.getChannel();
+				ByteBuffer header=ByteBuffer.allocate(HEADER_SIZE+propertiesBytes.length);
+				header.order(ByteOrder.LITTLE_ENDIAN);
+				header.put(MAGIC);
+				header.putInt(VERSION);
+				header.putInt(width);
+				header.putInt(height);
+				header.putInt(numLayers);
+				header.putLong(dataOffset);
+				header.putLong(layerStride);
+				header.putInt(propertiesBytes.length);
+				header.put(propertiesBytes);
+				header.flip();
+				channel.write(header,0);
+				for (int n=0;n<numLayers;n++){
+					float [] layer= (float []) stack.getProcessor(n+1).convertToFloat().getPixels();
+					ByteBuffer bb=ByteBuffer.allocate(4*layer.length);
+					bb.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().put(layer);
+					channel.write(bb,dataOffset+n*layerStride);
+				}
+				raf.setLength(dataOffset+numLayers*layerStride);
+			} finally {
+				raf.close();
+			}
+		}
+		/**
+		 * Convert TIFF map (equirectangular or plane) to the binary map next to it
+		 * @param path TIFF map path
+		 * @param debugLevel debug level
+		 * @return path of the binary map
+		 */
+		public static String convertTiffMap(String path, int debugLevel){
+			Opener opener=new Opener();
+			ImagePlus imp=opener.openImage("", path);
+			if (imp==null) {
+				String msg="Failed to read map file "+path;
+				IJ.showMessage("Error",msg);
+				throw new IllegalArgumentException (msg);
+			}
+			(new JP46_Reader_camera(false)).decodeProperiesFromInfo(imp);
+			String binPath=getBinaryPath(path);
+			try {
+				save(imp, binPath);
+			} catch (IOException e) {
+				String msg="Failed to write binary map "+binPath+": "+e.getMessage();
+				IJ.showMessage("Error",msg);
+				throw new IllegalArgumentException (msg);
+			}
+			if (debugLevel>0) System.out.println("Converted "+path+" to "+binPath);
+			return binPath;
+		}
+	}
+	/**
+	 * Open map file, using an up-to-date binary map instead of the TIFF one when available
+	 * @param path TIFF map path
+	 * @param debugLevel debug level
+	 * @return image stack with properties decoded, or null if the file could not be read
+	 */
+	public static ImagePlus openMapFile(String path, int debugLevel){
+		String binPath=BinaryMap.selectBinaryPath(path);
+		if (binPath!=null){
+			try {
+				ImagePlus imp=BinaryMap.open(binPath);
+				if (debugLevel>1) System.out.println("Read binary map "+binPath);
+				return imp;
+			} catch (IOException e) {
+				if (debugLevel>0) System.out.println("Failed to read binary map "+binPath+" ("+e.getMessage()+"), falling back to "+path);
+			}
+		}
+		Opener opener=new Opener();
+		ImagePlus imp=opener.openImage("", path);
+		if (imp!=null) (new JP46_Reader_camera(false)).decodeProperiesFromInfo(imp);
+		return imp;
+	}
 	/* Create a Thread[] array as large as the number of processors available.
 	 * From Stephan Preibisch's Multithreading.java class. See:
 	 * http://repo.or.cz/w/trakem2.git?a=blob;f=mpi/fruitfly/general/MultiThreading.java;hb=HEAD
@@ -1103,6 +1103,8 @@ public class PostProcessing {
     	
     	public double    filter2DisparityMax =100.0;
     	public double    filter2DisaprityMin = 50.0;
+    	public int       filter2PyramidLevels=    0; // 0 - search full disparity range, >0 - estimate tile disparity on 2^n downsampled images first
+    	public double    filter2PyramidWindow=  4.0; // process only planes within +/- this from the coarse estimation
     	public boolean   filter2UpdateMax=     true;
     	public double    filter2MinAbsolute=    0.01;
     	public double    filter2MinRelative=    0.1;
@@ -1112,6 +1114,7 @@ public class PostProcessing {
     	public double    filter2DisparityTolearnce=1.0;
     	public double    filter2MaskBlurSigma=   2.0;
     	public double    filter2corrHighPassSigma=2.0; // subtract blurred version to minimize correlation caused by masks
+    	public boolean   filter2ReleasePlaneData=false; // free per-plane tile data after the tile pass to reduce peak heap
     	
     	//photometric
     	public double    photometricIgnoreFraction=        0.001;
@@ -1232,6 +1235,8 @@ public class PostProcessing {
   			
   			properties.setProperty(prefix+"filter2DisparityMax",this.filter2DisparityMax+"");
   			properties.setProperty(prefix+"filter2DisaprityMin",this.filter2DisaprityMin+"");
+  			properties.setProperty(prefix+"filter2PyramidLevels",this.filter2PyramidLevels+"");
+  			properties.setProperty(prefix+"filter2PyramidWindow",this.filter2PyramidWindow+"");
   			properties.setProperty(prefix+"filter2UpdateMax",this.filter2UpdateMax+"");
   			properties.setProperty(prefix+"filter2MinAbsolute",this.filter2MinAbsolute+"");
   			properties.setProperty(prefix+"filter2MinRelative",this.filter2MinRelative+"");
@@ -1241,6 +1246,7 @@ public class PostProcessing {
   			properties.setProperty(prefix+"filter2DisparityTolearnce",this.filter2DisparityTolearnce+"");
   			properties.setProperty(prefix+"filter2MaskBlurSigma",this.filter2MaskBlurSigma+"");
   			properties.setProperty(prefix+"filter2corrHighPassSigma",this.filter2corrHighPassSigma+"");
+  			properties.setProperty(prefix+"filter2ReleasePlaneData",this.filter2ReleasePlaneData+"");
 
   			properties.setProperty(prefix+"photometricIgnoreFraction",this.photometricIgnoreFraction+"");
   			properties.setProperty(prefix+"photometricSubdivAverage",this.photometricSubdivAverage+"");
@@ -1376,6 +1382,8 @@ public class PostProcessing {
 		    
 		    if (properties.getProperty(prefix+"filter2DisparityMax")!=null) this.filter2DisparityMax=Double.parseDouble(properties.getProperty(prefix+"filter2DisparityMax"));
   		    if (properties.getProperty(prefix+"filter2DisaprityMin")!=null) this.filter2DisaprityMin=Double.parseDouble(properties.getProperty(prefix+"filter2DisaprityMin"));
+  		    if (properties.getProperty(prefix+"filter2PyramidLevels")!=null) this.filter2PyramidLevels=Integer.parseInt(properties.getProperty(prefix+"filter2PyramidLevels"));
+  		    if (properties.getProperty(prefix+"filter2PyramidWindow")!=null) this.filter2PyramidWindow=Double.parseDouble(properties.getProperty(prefix+"filter2PyramidWindow"));
     		if (properties.getProperty(prefix+"filter2UpdateMax")!=null)this.filter2UpdateMax=Boolean.parseBoolean(properties.getProperty(prefix+"filter2UpdateMax"));
   		    if (properties.getProperty(prefix+"filter2MinAbsolute")!=null) this.filter2MinAbsolute=Double.parseDouble(properties.getProperty(prefix+"filter2MinAbsolute"));
   		    if (properties.getProperty(prefix+"filter2MinRelative")!=null) this.filter2MinRelative=Double.parseDouble(properties.getProperty(prefix+"filter2MinRelative"));
@@ -1385,6 +1393,7 @@ public class PostProcessing {
   		    if (properties.getProperty(prefix+"filter2DisparityTolearnce")!=null) this.filter2DisparityTolearnce=Double.parseDouble(properties.getProperty(prefix+"filter2DisparityTolearnce"));
   		    if (properties.getProperty(prefix+"filter2MaskBlurSigma")!=null) this.filter2MaskBlurSigma=Double.parseDouble(properties.getProperty(prefix+"filter2MaskBlurSigma"));
   		    if (properties.getProperty(prefix+"filter2corrHighPassSigma")!=null) this.filter2corrHighPassSigma=Double.parseDouble(properties.getProperty(prefix+"filter2corrHighPassSigma"));
+    		if (properties.getProperty(prefix+"filter2ReleasePlaneData")!=null)this.filter2ReleasePlaneData=Boolean.parseBoolean(properties.getProperty(prefix+"filter2ReleasePlaneData"));
 		    
   		    if (properties.getProperty(prefix+"photometricIgnoreFraction")!=null) this.photometricIgnoreFraction=Double.parseDouble(properties.getProperty(prefix+"photometricIgnoreFraction"));
 		    if (properties.getProperty(prefix+"photometricSubdivAverage")!=null) this.photometricSubdivAverage=Integer.parseInt(properties.getProperty(prefix+"photometricSubdivAverage"));
@@ -1538,6 +1547,8 @@ public class PostProcessing {
 				gd.addMessage(" -------------- filter2 parameters --------------");
 				gd.addNumericField("Maximal disparity to process",this.filter2DisparityMax,2,6,"pix");
 				gd.addNumericField("Minimal disparity to process",this.filter2DisaprityMin,2,6,"pix");
+				gd.addNumericField("Coarse disparity pyramid levels (0 - search full range)",this.filter2PyramidLevels,0,2,"");
+				gd.addNumericField("Process only planes within this from the coarse disparity",this.filter2PyramidWindow,2,6,"pix");
 				gd.addCheckbox    ("Update abolute/relative maximums", this.filter2UpdateMax); // true;
 				gd.addNumericField("Absolute threshold for correlation vs. disparity maximums",this.filter2MinAbsolute,4,5,"");
 				gd.addNumericField("Relative threshold for correlation vs. disparity maximums",100*this.filter2MinRelative,2,6,"%");
@@ -1547,6 +1558,7 @@ public class PostProcessing {
 				gd.addNumericField("Disparity tolerance to consider objects to be at the same distance",this.filter2DisparityTolearnce,2,5,"");
 				gd.addNumericField("Blur enabling masks with this Gaussian sigma ",this.filter2MaskBlurSigma,2,5,"pix");
 				gd.addNumericField("HIgh-pass image data before multiplying by the enabling masks",this.filter2corrHighPassSigma,2,5,"pix");
+				gd.addCheckbox    ("Release per-plane tile data after each tile pass (lower memory)", this.filter2ReleasePlaneData); // false;
 			}			
 			
 			if ((mode & 1024)!=0){
@@ -1682,6 +1694,8 @@ public class PostProcessing {
 			if ((mode & 512)!=0){
 				this.filter2DisparityMax=       gd.getNextNumber();
 				this.filter2DisaprityMin=       gd.getNextNumber();
+				this.filter2PyramidLevels= (int) gd.getNextNumber();
+				this.filter2PyramidWindow=      gd.getNextNumber();
 				this.filter2UpdateMax=          gd.getNextBoolean();
 				this.filter2MinAbsolute=        gd.getNextNumber();
 				this.filter2MinRelative=   0.01*gd.getNextNumber();
@@ -1691,6 +1705,7 @@ public class PostProcessing {
 				this.filter2DisparityTolearnce= gd.getNextNumber();
 				this.filter2MaskBlurSigma=      gd.getNextNumber();
 				this.filter2corrHighPassSigma=  gd.getNextNumber();
+				this.filter2ReleasePlaneData=   gd.getNextBoolean();
 			}			
 			if ((mode & 1024)!=0){
 				this.photometricIgnoreFraction=       0.01*gd.getNextNumber();
@@ -0,0 +1,205 @@
+/**
+** -----------------------------------------------------------------------------**
+** TileGraphScheduler.java
+**
+** Multi-pass tile processing where each tile depends only on its neighbors
+** from the previous pass (no barrier between passes)
+**
+** Copyright (C) 2014 Elphel, Inc.
+**
+** -----------------------------------------------------------------------------**
+**
+**  TileGraphScheduler.java is free software: you can redistribute it and/or modify
+**  it under the terms of the GNU General Public License as published by
+**  the Free Software Foundation, either version 3 of the License, or
+**  (at your option) any later version.
+**
+**  This program is distributed in the hope that it will be useful,
+**  but WITHOUT ANY WARRANTY; without even the implied warranty of
+**  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+**  GNU General Public License for more details.
+**
+**  You should have received a copy of the GNU General Public License
+**  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+** -----------------------------------------------------------------------------**
+**
+*/
+import ij.IJ;
+
+import java.awt.Rectangle;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Runs several passes over the tiles of the WOI without a barrier between passes. Tile may start pass N as soon as
+ * itself and all its neighbors (within neighborRadius) finished pass N-1, so the passes proceed as a wavefront.
+ * Ready tiles are kept in a shared priority queue (earlier passes first, then scan order), all threads take from it.
+ */
+public class TileGraphScheduler{
+	/**
+	 * Task run by TileGraphScheduler for a single tile in a single pass
+	 */
+	public interface TileTask{
+		/**
+		 * @param tileX tile horizontal index (full map)
+		 * @param tileY tile vertical index (full map)
+		 * @param pass pass number (0..numPasses-1)
+		 * @param threadIndex index of the worker thread - use to access per-thread scratch data
+		 */
+		public void processTile(int tileX, int tileY, int pass, int threadIndex);
+	}
+
+	private Rectangle woi;
+	private int numPasses;
+	private int neighborRadius;
+	private int numTiles;
+	private int [] numDeps;   // number of tiles (including itself) that have to finish the previous pass
+	private AtomicIntegerArray pending; // [2*numTiles] - countdown for the next passes (even/odd), reused
+	private PriorityBlockingQueue<Long> readyQueue;
+	private AtomicInteger numDone;
+	private AtomicIntegerArray passDone;
+	private AtomicLongArray passStart;
+	private AtomicLongArray passEnd;
+	private final long END_OF_WORK=Long.MAX_VALUE;
+
+	public TileGraphScheduler(
+			Rectangle woi,
+			int numPasses,
+			int neighborRadius){
+		this.woi=woi;
+		this.numPasses=numPasses;
+		this.neighborRadius=neighborRadius;
+		this.numTiles=woi.width*woi.height;
+		this.numDeps=new int [this.numTiles];
+		for (int tile=0;tile<this.numTiles;tile++){
+			int tx=tile%woi.width, ty=tile/woi.width;
+			int w=Math.min(tx+neighborRadius,woi.width-1) -Math.max(tx-neighborRadius,0)+1;
+			int h=Math.min(ty+neighborRadius,woi.height-1)-Math.max(ty-neighborRadius,0)+1;
+			this.numDeps[tile]=w*h;
+		}
+	}
+
+	/**
+	 * Run all passes over all tiles of the WOI
+	 * @param task per-tile task
+	 * @param threads thread array (only its length is used)
+	 * @param showProgress show ImageJ progress bar
+	 * @param debugLevel print tiles/sec for each pass when >0
+	 */
+	public void run(
+			final TileTask task,
+			final Thread [] threads,
+			final boolean showProgress,
+			final int debugLevel){
+		final int total=this.numTiles*this.numPasses;
+		if (total==0) return;
+		this.pending=new AtomicIntegerArray(2*this.numTiles);
+		for (int tile=0;tile<this.numTiles;tile++){
+			this.pending.set(tile,this.numDeps[tile]);              // pass 2 (pass 0 is ready now)
+			this.pending.set(this.numTiles+tile,this.numDeps[tile]); // pass 1
+		}
+		this.readyQueue=new PriorityBlockingQueue<Long>(this.numTiles);
+		for (int tile=0;tile<this.numTiles;tile++) this.readyQueue.add(new Long(tile));
+		this.numDone=new AtomicInteger(0);
+		final AtomicReference<Throwable> taskError=new AtomicReference<Throwable>(); // first failure in any of the threads
+		this.passDone= new AtomicIntegerArray(this.numPasses);
+		this.passStart=new AtomicLongArray(this.numPasses);
+		this.passEnd=  new AtomicLongArray(this.numPasses);
+		if (showProgress) IJ.showProgress(0.0);
+		for (int ithread = 0; ithread < threads.length; ithread++) {
+			final int threadIndex=ithread;
+			threads[ithread] = new Thread() {
+				public void run() {
+					while (true){
+						long item;
+						try {
+							item=readyQueue.take();
+						} catch (InterruptedException ie) {
+							throw new RuntimeException(ie);
+						}
+						if ((item==END_OF_WORK) || (taskError.get()!=null)) break;
+						int pass=(int) (item/numTiles);
+						int tile=(int) (item%numTiles);
+						passStart.compareAndSet(pass, 0, System.nanoTime());
+						try {
+							task.processTile(woi.x+tile%woi.width, woi.y+tile/woi.width, pass, threadIndex);
+						} catch (Throwable t){ // dependent tiles will never become ready - stop all threads
+							if (taskError.compareAndSet(null, t)) {
+								for (int i=0;i<threads.length;i++) readyQueue.add(END_OF_WORK);
+							}
+							break;
+						}
+						if (passDone.incrementAndGet(pass)==numTiles) passEnd.set(pass, System.nanoTime());
+						if ((pass+1)<numPasses) releaseNeighbors(tile,pass+1);
+						final int done=numDone.incrementAndGet();
+						if (done==total) {
+							for (int i=0;i<threads.length;i++) readyQueue.add(END_OF_WORK);
+						}
+						if (showProgress){
+							SwingUtilities.invokeLater(new Runnable() {
+								public void run() {
+									IJ.showProgress(done,total);
+								}
+							});
+						}
+					}
+				}
+			};
+		}
+		startAndJoin(threads);
+		if (showProgress) IJ.showProgress(1.0);
+		EyesisCorrections.rethrowThreadError(taskError.get());
+		if (debugLevel>0){
+			for (int pass=0;pass<this.numPasses;pass++){
+				double seconds=1E-9*(this.passEnd.get(pass)-this.passStart.get(pass));
+				System.out.println("Pass "+pass+": "+this.numTiles+" tiles in "+IJ.d2s(seconds,3)+" sec, "+
+						IJ.d2s((seconds>0)?(this.numTiles/seconds):0.0,1)+" tiles/sec");
+			}
+		}
+	}
+
+	/**
+	 * Tile finished pass-1, decrement counters of the tile and its neighbors, queue those that became ready for the pass
+	 */
+	private void releaseNeighbors(int tile, int pass){
+		int tx=tile%this.woi.width, ty=tile/this.woi.width;
+		int slot=(pass%2)*this.numTiles;
+		for (int y=Math.max(ty-this.neighborRadius,0);y<=Math.min(ty+this.neighborRadius,this.woi.height-1);y++){
+			for (int x=Math.max(tx-this.neighborRadius,0);x<=Math.min(tx+this.neighborRadius,this.woi.width-1);x++){
+				int nTile=y*this.woi.width+x;
+				if (this.pending.decrementAndGet(slot+nTile)==0){
+					// all decrements for pass "pass" are done, the next ones for this slot will be for pass+2
+					this.pending.set(slot+nTile, this.numDeps[nTile]);
+					this.readyQueue.add(new Long(((long) pass)*this.numTiles+nTile));
+				}
+			}
+		}
+	}
+
+	/* Start all given threads and wait on each of them until all are done.
+	 * From Stephan Preibisch's Multithreading.java class. See:
+	 * http://repo.or.cz/w/trakem2.git?a=blob;f=mpi/fruitfly/general/MultiThreading.java;hb=HEAD
+	 */
+	private static void startAndJoin(Thread[] threads)
+	{
+		for (int ithread = 0; ithread < threads.length; ++ithread)
+		{
+			threads[ithread].setPriority(Thread.NORM_PRIORITY);
+			threads[ithread].start();
+		}
+
+		try
+		{   
+			for (int ithread = 0; ithread < threads.length; ++ithread)
+				threads[ithread].join();
+		} catch (InterruptedException ie)
+		{
+			throw new RuntimeException(ie);
+		}
+	}
+}
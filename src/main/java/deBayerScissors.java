@@ -74,11 +74,58 @@ import java.util.HashSet;
                               double debayer_mask_blur, // for both masks  sigma for Gaussian blur of the binary masks (<0 -do not use "scissors")
                           boolean debayer_use_scissors, // use "scissors", if false - just apply "diamond" ands "square" with DEBAYER_WIDTH_GREEN and DEBAYER_WIDTH_REDBLUE
                                         int this_debug){ // internal debug level
-    int length=green_fht.length;
+    return aliasScissorsAmplitude(fht_instance.calculateAmplitude(green_fht),
+                                  debayer_threshold,
+                                  debayer_gamma,
+                                  debayer_bonus,
+                                  mainToAlias,
+                                  debayer_mask_blur,
+                                  debayer_use_scissors,
+                                  this_debug);
+  }
+/* Same as above for the single precision (FloatFHT) green spectrum. The masks are still calculated in double precision
+   (polar transforms and blurring), only the amplitude is read directly from the float array, green_fht is not modified */
+  public double [][] aliasScissors(float [] green_fht, // fht array for green
+                              double debayer_threshold, // no high frequencies - use default uniform filter
+                                  double debayer_gamma, // power function applied to the amplitudes before generating spectral masks
+                                  double debayer_bonus, // scale far pixels as (1.0+bonus*r/rmax)
+                                    double mainToAlias,// relative main/alias amplitudes to enable pixels (i.e. 0.5 means that if alias is >0.5*main, the pixel will be masked out)
+                              double debayer_mask_blur, // for both masks  sigma for Gaussian blur of the binary masks (<0 -do not use "scissors")
+                          boolean debayer_use_scissors, // use "scissors", if false - just apply "diamond" ands "square" with DEBAYER_WIDTH_GREEN and DEBAYER_WIDTH_REDBLUE
+                                        int this_debug){ // internal debug level
+    int size=(int) Math.sqrt(green_fht.length);
+    double [] green_amp=new double[green_fht.length];
+    for (int row=0; row<size; row++) {
+      int base = row*size;
+      for (int c=0; c<size; c++) {
+        int l = ((size-row)%size) * size + (size-c)%size;
+        double a=green_fht[base+c], b=green_fht[l];
+        green_amp[base+c] = Math.sqrt(a*a + b*b);
+      }
+    }
+    fht_instance.swapQuadrants(green_amp);
+    return aliasScissorsAmplitude(green_amp,
+                                  debayer_threshold,
+                                  debayer_gamma,
+                                  debayer_bonus,
+                                  mainToAlias,
+                                  debayer_mask_blur,
+                                  debayer_use_scissors,
+                                  this_debug);
+  }
+
+  private double [][] aliasScissorsAmplitude(double [] green_amp, // amplitude spectrum of green, (0,0) in the center, will be modified
+                              double debayer_threshold,
+                                  double debayer_gamma,
+                                  double debayer_bonus,
+                                    double mainToAlias,
+                              double debayer_mask_blur,
+                          boolean debayer_use_scissors,
+                                        int this_debug){
+    int length=green_amp.length;
     int size=(int) Math.sqrt(length);
     double [] green_mask;
     double [] red_blue_mask;
-    double [] green_amp=fht_instance.calculateAmplitude(green_fht);
     int i,j;
 /**normalize amplitudes, apply gamma */
     double dmax=0.0;